@@ -66,9 +66,10 @@ import org.afree.graphics.geom.RectShape;
 import org.afree.ui.RectangleInsets;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.PointF;
-import android.os.Handler;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
@@ -78,18 +79,13 @@ public class AFreeChartView extends View implements ChartChangeListener,
 		ChartProgressListener {
 	private static final String TAG = "BLECardiac Plot";
 
-	/** The user interface thread handler. */
-	private Handler mHandler;
-
 	public AFreeChartView(Context context) {
 		super(context);
-		mHandler = new Handler();
 		this.initialize();
 	}
 
 	public AFreeChartView(Context context, AttributeSet attrs) {
 		super(context, attrs);
-		mHandler = new Handler();
 		this.initialize();
 	}
 
@@ -221,6 +217,27 @@ public class AFreeChartView extends View implements ChartChangeListener,
 	private boolean mFillSpaceX = true;
 	private boolean mFillSpaceY = true;
 
+	/** A flag that controls whether or not the off-screen buffer is used. */
+	private boolean useBuffer = DEFAULT_BUFFER_USED;
+
+	/** A flag that indicates that the buffer should be refreshed. */
+	private boolean refreshBuffer = true;
+
+	/** A buffer for the rendered chart. */
+	private Bitmap chartBuffer;
+
+	/** The canvas for drawing into the buffer. */
+	private Canvas chartBufferCanvas;
+
+	/** Whether a repaint has been posted and not yet drawn. */
+	private volatile boolean repaintPending = false;
+
+	/** The number of times the chart has been rendered. */
+	private long renderCount;
+
+	/** The number of times the view has been drawn. */
+	private long drawCount;
+
 	/**
 	 * touch event
 	 */
@@ -482,6 +499,7 @@ public class AFreeChartView extends View implements ChartChangeListener,
 	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
 		this.insets = new RectangleInsets(0, 0, 0, 0);
 		this.size = new Dimension(w, h);
+		this.refreshBuffer = true;
 	}
 
 	public RectangleInsets getInsets() {
@@ -546,9 +564,7 @@ public class AFreeChartView extends View implements ChartChangeListener,
 			this.domainMovable = false;
 			this.rangeMovable = false;
 		}
-		// if (this.useBuffer) {
-		// this.refreshBuffer = true;
-		// }
+		this.refreshBuffer = true;
 		repaint();
 	}
 
@@ -704,6 +720,73 @@ public class AFreeChartView extends View implements ChartChangeListener,
 		this.mFillSpaceY = mFillSpaceY;
 	}
 
+	/**
+	 * Returns a flag that controls whether or not an off-screen buffer is used
+	 * when drawing the chart.
+	 *
+	 * @return A boolean.
+	 */
+	public boolean getUseBuffer() {
+		return this.useBuffer;
+	}
+
+	/**
+	 * Sets whether or not an off-screen buffer is used when drawing the chart.
+	 * The chart is then only rendered after it changes, and other draws copy
+	 * the buffer.
+	 *
+	 * @param useBuffer
+	 *            the flag.
+	 */
+	public void setUseBuffer(boolean useBuffer) {
+		this.useBuffer = useBuffer;
+		if (!useBuffer) {
+			releaseBuffer();
+		}
+		repaint();
+	}
+
+	/**
+	 * Returns the flag that indicates that the off-screen buffer should be
+	 * refreshed on the next draw.
+	 *
+	 * @return A boolean.
+	 */
+	public boolean getRefreshBuffer() {
+		return this.refreshBuffer;
+	}
+
+	/**
+	 * Sets the refresh buffer flag. This flag is used to avoid unnecessary
+	 * redrawing of the chart when the off-screen buffer is used.
+	 *
+	 * @param flag
+	 *            <code>true</code> indicates that the buffer should be
+	 *            refreshed.
+	 */
+	public void setRefreshBuffer(boolean flag) {
+		this.refreshBuffer = flag;
+	}
+
+	/**
+	 * Returns the number of times the chart has been rendered.
+	 *
+	 * @return The count.
+	 */
+	public long getRenderCount() {
+		return this.renderCount;
+	}
+
+	/**
+	 * Returns the number of times the view has been drawn. The difference
+	 * from the render count is the number of draws that reused the buffer.
+	 *
+	 * @return The count.
+	 */
+	public long getDrawCount() {
+		return this.drawCount;
+	}
+
 	/**
 	 * Returns the chart rendering info from the most recent chart redraw.
 	 *
@@ -715,12 +798,32 @@ public class AFreeChartView extends View implements ChartChangeListener,
 
 	protected void onDraw(Canvas canvas) {
 		super.onDraw(canvas);
+		this.repaintPending = false;
+		this.drawCount++;
 
 		inertialMove();
 
 		paintComponent(canvas);
 	}
 
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		releaseBuffer();
+	}
+
+	/**
+	 * Frees the off-screen buffer. It is created again on the next draw.
+	 */
+	private void releaseBuffer() {
+		if (this.chartBuffer != null) {
+			this.chartBuffer.recycle();
+			this.chartBuffer = null;
+			this.chartBufferCanvas = null;
+		}
+		this.refreshBuffer = true;
+	}
+
 	@Override
 	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
 		super.onMeasure(widthMeasureSpec, heightMeasureSpec);
@@ -771,72 +874,50 @@ public class AFreeChartView extends View implements ChartChangeListener,
 		RectShape chartArea = new RectShape(0.0, 0.0, drawWidth, drawHeight);
 
 		// are we using the chart buffer?
-		// if (this.useBuffer) {
-		//
-		// // do we need to resize the buffer?
-		// if ((this.chartBuffer == null)
-		// || (this.chartBufferWidth != available.getWidth())
-		// || (this.chartBufferHeight != available.getHeight())) {
-		// this.chartBufferWidth = (int) available.getWidth();
-		// this.chartBufferHeight = (int) available.getHeight();
-		// GraphicsConfiguration gc = canvas.getDeviceConfiguration();
-		// this.chartBuffer = gc.createCompatibleImage(
-		// this.chartBufferWidth, this.chartBufferHeight,
-		// Transparency.TRANSLUCENT);
-		// this.refreshBuffer = true;
-		// }
-		//
-		// // do we need to redraw the buffer?
-		// if (this.refreshBuffer) {
-		//
-		// this.refreshBuffer = false; // clear the flag
-		//
-		// RectShape bufferArea = new RectShape(
-		// 0, 0, this.chartBufferWidth, this.chartBufferHeight);
-		//
-		// Graphics2D bufferG2 = (Graphics2D)
-		// this.chartBuffer.getGraphics();
-		// RectShape r = new RectShape(0, 0, this.chartBufferWidth,
-		// this.chartBufferHeight);
-		// bufferG2.setPaint(getBackground());
-		// bufferG2.fill(r);
-		// if (scale) {
-		// AffineTransform saved = bufferG2.getTransform();
-		// AffineTransform st = AffineTransform.getScaleInstance(
-		// this.scaleX, this.scaleY);
-		// bufferG2.transform(st);
-		// this.chart.draw(bufferG2, chartArea, this.anchor,
-		// this.info);
-		// bufferG2.setTransform(saved);
-		// }
-		// else {
-		// this.chart.draw(bufferG2, bufferArea, this.anchor,
-		// this.info);
-		// }
-		//
-		// }
-		//
-		// // zap the buffer onto the panel...
-		// canvas.drawImage(this.chartBuffer, insets.left, insets.top, this);
-		//
-		// }
+		if (this.useBuffer) {
+			int bufferWidth = (int) available.getWidth();
+			int bufferHeight = (int) available.getHeight();
+			if (bufferWidth <= 0 || bufferHeight <= 0) {
+				return;
+			}
 
-		// TODO:AffineTransform
-		// or redrawing the chart every time...
-		// else {
+			// do we need to resize the buffer?
+			if ((this.chartBuffer == null)
+					|| (this.chartBuffer.getWidth() != bufferWidth)
+					|| (this.chartBuffer.getHeight() != bufferHeight)) {
+				releaseBuffer();
+				this.chartBuffer = Bitmap.createBitmap(bufferWidth,
+						bufferHeight, Bitmap.Config.ARGB_8888);
+				this.chartBufferCanvas = new Canvas(this.chartBuffer);
+			}
 
-		// AffineTransform saved = canvas.getTransform();
-		// canvas.translate(insets.left, insets.top);
-		// if (scale) {
-		// AffineTransform st = AffineTransform.getScaleInstance(
-		// this.scaleX, this.scaleY);
-		// canvas.transform(st);
-		// }
-		// this.chart.draw(canvas, chartArea, this.anchor, this.info);
-		// canvas.setTransform(saved);
+			// do we need to redraw the buffer? Draws that only repeat the
+			// last frame, such as those from the system, skip this
+			if (this.refreshBuffer) {
+				this.refreshBuffer = false; // clear the flag
+				this.chartBuffer.eraseColor(Color.TRANSPARENT);
+				if (this.scaleX != 1.0 || this.scaleY != 1.0) {
+					this.chartBufferCanvas.save();
+					this.chartBufferCanvas.scale((float) this.scaleX,
+							(float) this.scaleY);
+					this.chart.draw(this.chartBufferCanvas, chartArea,
+							this.anchor, this.info);
+					this.chartBufferCanvas.restore();
+				} else {
+					this.chart.draw(this.chartBufferCanvas, chartArea,
+							this.anchor, this.info);
+				}
+				this.renderCount++;
+			}
 
-		// }
-		this.chart.draw(canvas, chartArea, this.anchor, this.info);
+			// zap the buffer onto the panel...
+			canvas.drawBitmap(this.chartBuffer, (float) insets.getLeft(),
+					(float) insets.getTop(), null);
+		} else {
+			// or redrawing the chart every time...
+			this.chart.draw(canvas, chartArea, this.anchor, this.info);
+			this.renderCount++;
+		}
 
 		// Iterator iterator = this.overlays.iterator();
 		// while (iterator.hasNext()) {
@@ -1109,14 +1190,16 @@ public class AFreeChartView extends View implements ChartChangeListener,
 	}
 
 	/**
-	 * Schedule a user interface repaint.
+	 * Schedule a user interface repaint on the next frame. Any number of
+	 * calls before that frame is drawn result in one draw. May be called
+	 * from any thread.
 	 */
 	public void repaint() {
-		mHandler.post(new Runnable() {
-			public void run() {
-				invalidate();
-			}
-		});
+		if (this.repaintPending) {
+			return;
+		}
+		this.repaintPending = true;
+		postInvalidateOnAnimation();
 	}
 
 	/**
@@ -1126,7 +1209,7 @@ public class AFreeChartView extends View implements ChartChangeListener,
 	 *            details of the chart change event.
 	 */
 	public void chartChanged(ChartChangeEvent event) {
-		// this.refreshBuffer = true;
+		this.refreshBuffer = true;
 		Plot plot = this.chart.getPlot();
 		if (plot instanceof Zoomable) {
 			Zoomable z = (Zoomable) plot;
@@ -29,44 +29,117 @@ import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Binder;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
-import android.support.v4.app.NotificationManagerCompat;
 import android.util.Log;
 
-import java.util.Date;
-import java.util.LinkedList;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
 
 /**
- * Service for managing connection and data communication with a GATT server
- * hosted on a given Bluetooth LE device.
+ * Service for managing connections and data communication with GATT servers
+ * hosted on Bluetooth LE devices. Several devices can be recorded at the same
+ * time. Each has a DeviceConnection with its own BluetoothGatt, state,
+ * GattOperationQueue, and session, and the data from all of them go to the
+ * same BCMDbWriter and SampleBus. The broadcasts have the address of the
+ * device in DEVICE_ADDRESS_CODE.
+ * <p/>
+ * Connection state, sessions, and GATT operations are handled on a single
+ * GATT thread. The GATT callbacks and the public methods post to it. Only
+ * notifications and read values are handled directly on the binder thread,
+ * so the measurements do not wait behind other work.
+ * <p/>
+ * A connection that is lost without being asked for is reconnected. Direct
+ * connection attempts are made at once and then with increasing delays, after
+ * which the service waits for the device with autoConnect. A session in
+ * progress is kept and resumes when the device is back, and a gap row with an
+ * invalid HR and no R-R values is written when the connection is lost, so
+ * plots and analysis do not join the data across the dropout.
+ * <p/>
+ * The service runs in the foreground and owns the recording. It is started
+ * with startService, opens its own database, and connects to the selected
+ * device, so recording does not depend on an activity being bound or alive
+ * and continues after the activities are gone. It is stopped by the Stop
+ * action in its notification, or when the last client unbinds with no
+ * device connected.
  */
 public class BCMBleService extends Service implements IConstants {
     private final static String TAG = "BCMService";
 
+    /**
+     * Device state when not connected.
+     */
+    public static final int DEVICE_STATE_DISCONNECTED = 0;
+    /**
+     * Device state while connecting.
+     */
+    public static final int DEVICE_STATE_CONNECTING = 1;
+    /**
+     * Device state while discovering services.
+     */
+    public static final int DEVICE_STATE_DISCOVERING = 2;
+    /**
+     * Device state while enabling notifications for a session.
+     */
+    public static final int DEVICE_STATE_STARTING = 3;
+    /**
+     * Device state while a session is recording.
+     */
+    public static final int DEVICE_STATE_RECORDING = 4;
+    /**
+     * Device state while reconnecting after the connection was lost.
+     */
+    public static final int DEVICE_STATE_RECONNECTING = 5;
+
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
+    private volatile BCMDbWriter mDbWriter;
+    /**
+     * The database the service records to. Only used on the main thread
+     * apart from the writer.
+     */
     private BCMDbAdapter mDbAdapter;
-    private int mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
-    private long mLastHrDate;
-    private int mLastBat = INVALID_INT;
-    private int mLastHr = INVALID_INT;
-    private String mLastRr = INVALID_STRING;
-
-    private BluetoothGattCharacteristic mCharBat;
-    private BluetoothGattCharacteristic mCharHr;
-    private boolean mSessionInProgress = false;
-    private long mSessionStartTime;
-
-    private Queue<BluetoothGattDescriptor> descriptorWriteQueue = new
-            LinkedList<>();
-    private Queue<BluetoothGattCharacteristic> characteristicReadQueue = new
-            LinkedList<>();
+    /**
+     * The database being migrated or null. Only used on the main thread.
+     */
+    private BCMDbAdapter mMigratingAdapter;
+    /**
+     * Whether to start writing the database when the migration is done.
+     */
+    private boolean mStartWhenMigrated;
+    /**
+     * Whether any client is bound.
+     */
+    private boolean mBound;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final SampleBus mSampleBus = SampleBus.getDefault();
+    /**
+     * The connections by device address. Guarded by itself.
+     */
+    private final Map<String, DeviceConnection> mConnections = new
+            LinkedHashMap<>();
+    private long mLastSessionStartTime = INVALID_DATE;
+    /**
+     * Timestamps all the samples, so the devices share one timeline.
+     */
+    private final SampleClock mClock = new SampleClock();
+    private HandlerThread mGattThread;
+    private Handler mGattHandler;
+    /**
+     * The Scheduler for the GattOperationQueues, which runs on mGattHandler.
+     */
+    private GattOperationQueue.Scheduler mGattScheduler;
 
     private final IBinder mBinder = new LocalBinder();
 
@@ -79,142 +152,101 @@ public class BCMBleService extends Service implements IConstants {
     public final static String ACTION_DATA_AVAILABLE = PACKAGE_NAME
             + ".ACTION_DATA_AVAILABLE";
     public final static String ACTION_ERROR = PACKAGE_NAME + ".ACTION_ERROR";
-
     /**
-     * Implements callback methods for GATT events.
+     * Action for an Intent to stop recording and stop the service.
      */
-    private final BluetoothGattCallback mGattCallback = new
-            BluetoothGattCallback() {
-                @Override
-                public void onConnectionStateChange(BluetoothGatt gatt, int
-                        status,
-                                                    int newState) {
-                    Log.i(TAG, "onConnectionStateChange: status="
-                            + (status == BluetoothGatt.GATT_SUCCESS ?
-                            "GATT_SUCCESS"
-                            : status));
-                    if (status != BluetoothGatt.GATT_SUCCESS) {
-                        Log.i(TAG,
-                                "onConnectionStateChange: Aborting: status is" +
-                                        " not " +
-                                        "GATT_SUCCESS");
-                        return;
-                    }
-                    String intentAction;
-                    if (newState == BluetoothProfile.STATE_CONNECTED) {
-                        intentAction = ACTION_GATT_CONNECTED;
-                        mConnectionState = BluetoothProfile.STATE_CONNECTED;
-                        // Stop any session
-                        stopSession();
-                        broadcastUpdate(intentAction);
-                        Log.i(TAG, "onConnectionStateChange: Connected to " +
-                                "GATT server");
-                        // Attempts to discover services after successful
-                        // connection.
-                        Log.i(TAG,
-                                "onConnectionStateChange: Attempting to start" +
-                                        " service" +
-                                        " discovery: "
-                                        + mBluetoothGatt.discoverServices());
-                    } else if (newState == BluetoothProfile
-                            .STATE_DISCONNECTED) {
-                        intentAction = ACTION_GATT_DISCONNECTED;
-                        mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
-                        Log.i(TAG,
-                                "onConnectionStateChange: Disconnected from " +
-                                        "GATT " +
-                                        "server");
-                        // Stop any session
-                        stopSession();
-                        broadcastUpdate(intentAction);
-                    }
-                }
-
-                @Override
-                public void onServicesDiscovered(BluetoothGatt gatt, int
-                        status) {
-                    if (status == BluetoothGatt.GATT_SUCCESS) {
-                        broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-                    } else {
-                        Log.w(TAG, "onServicesDiscovered received: " + status);
-                    }
-                }
-
-                @Override
-                public void onCharacteristicRead(BluetoothGatt gatt,
-                                                 BluetoothGattCharacteristic
-                                                         characteristic, int
-                                                         status) {
-                    characteristicReadQueue.remove();
-                    if (status == BluetoothGatt.GATT_SUCCESS) {
-                        broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-                    } else {
-                        Log.w(TAG, "onCharacteristicRead received: " + status);
-                    }
-                    if (characteristicReadQueue.size() > 0)
-                        mBluetoothGatt.readCharacteristic
-                                (characteristicReadQueue
-                                        .element());
-                }
-
-                @Override
-                public void onCharacteristicChanged(BluetoothGatt gatt,
-                                                    BluetoothGattCharacteristic
-                                                            characteristic) {
-                    broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-                }
-
-                @Override
-                public void onDescriptorWrite(BluetoothGatt gatt,
-                                              BluetoothGattDescriptor
-                                                      descriptor, int
-                                                      status) {
-                    if (status != BluetoothGatt.GATT_SUCCESS) {
-                        Log.d(TAG, "onDescriptorWrite: Error writing GATT " +
-                                "Descriptor: "
-                                + status);
-                    }
-                    // Pop the item that we just finishing writing
-                    descriptorWriteQueue.remove();
-                    // Check if there is more to write
-                    if (descriptorWriteQueue.size() > 0)
-                        mBluetoothGatt.writeDescriptor(descriptorWriteQueue
-                                .element());
-                    else if (characteristicReadQueue.size() > 0)
-                        mBluetoothGatt.readCharacteristic
-                                (characteristicReadQueue
-                                        .element());
-                }
-            };
+    public final static String ACTION_STOP_SERVICE = PACKAGE_NAME
+            + ".ACTION_STOP_SERVICE";
+    /**
+     * Action for the progress of a database migration, with the step in
+     * EXTRA_MSG.
+     */
+    public final static String ACTION_MIGRATION_PROGRESS = PACKAGE_NAME
+            + ".ACTION_MIGRATION_PROGRESS";
+    /**
+     * Action for the end of a database migration, with the error in
+     * EXTRA_MSG if it failed.
+     */
+    public final static String ACTION_MIGRATION_DONE = PACKAGE_NAME
+            + ".ACTION_MIGRATION_DONE";
 
     @Override
     public void onCreate() {
         super.onCreate();
-        // Post a notification the service is running
+        mGattThread = new HandlerThread("BCMGatt");
+        mGattThread.start();
+        mGattHandler = new Handler(mGattThread.getLooper());
+        final Handler handler = mGattHandler;
+        mGattScheduler = new GattOperationQueue.Scheduler() {
+            @Override
+            public long uptimeMillis() {
+                return SystemClock.uptimeMillis();
+            }
+
+            @Override
+            public void postDelayed(Runnable task, long delayMs) {
+                handler.postDelayed(task, delayMs);
+            }
+
+            @Override
+            public void removeCallbacks(Runnable task) {
+                handler.removeCallbacks(task);
+            }
+        };
+        // Run in the foreground with a notification the service is running
         Intent activityIntent = new Intent(this, DeviceMonitorActivity.class);
         PendingIntent viewPendingIntent = PendingIntent.getActivity(this, 0,
                 activityIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+        Intent stopIntent = new Intent(this, BCMBleService.class);
+        stopIntent.setAction(ACTION_STOP_SERVICE);
+        PendingIntent stopPendingIntent = PendingIntent.getService(this, 0,
+                stopIntent, PendingIntent.FLAG_UPDATE_CURRENT);
         NotificationCompat.Builder notificationBuilder = new
                 NotificationCompat.Builder(
                 this)
                 .setSmallIcon(R.drawable.blecardiacmonitor)
                 .setContentTitle(getString(R.string.service_notification_title))
                 .setContentText(getString(R.string.service_notification_text))
-                .setContentIntent(viewPendingIntent);
-        NotificationManagerCompat notificationManager =
-                NotificationManagerCompat
-                        .from(this);
-        notificationManager
-                .notify(NOTIFICATION_ID, notificationBuilder.build());
+                .setContentIntent(viewPendingIntent)
+                .setOngoing(true)
+                .addAction(0, getString(R.string.service_notification_stop),
+                        stopPendingIntent);
+        startForeground(NOTIFICATION_ID, notificationBuilder.build());
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        Log.d(TAG, "onStartCommand: "
+                + (intent == null ? "restarted" : intent.getAction()));
+        if (intent != null && ACTION_STOP_SERVICE.equals(intent.getAction())) {
+            close();
+            stopForeground(true);
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        if (!initialize()) {
+            return START_NOT_STICKY;
+        }
+        startDatabase();
+        // Resume recording the selected device unless it was disconnected
+        SharedPreferences prefs = PreferenceManager
+                .getDefaultSharedPreferences(this);
+        String address = prefs.getString(DEVICE_ADDRESS_CODE, null);
+        if (address != null
+                && !prefs.getBoolean(PREF_MANUALLY_DISCONNECTED, false)) {
+            connect(address);
+        }
+        // Restart and resume if the process is killed
+        return START_STICKY;
     }
 
     @Override
     public void onDestroy() {
-        // Cancel the notification
-        NotificationManagerCompat notificationManager =
-                NotificationManagerCompat
-                        .from(this);
-        notificationManager.cancel(NOTIFICATION_ID);
+        Log.d(TAG, "onDestroy");
+        close();
+        stopForeground(true);
+        // Lets anything already posted, such as closing connections, finish
+        mGattThread.quitSafely();
         super.onDestroy();
     }
 
@@ -229,73 +261,9 @@ public class BCMBleService extends Service implements IConstants {
     // sendBroadcast(intent);
     // }
 
-    private void broadcastUpdate(final String action) {
+    private void broadcastUpdate(final String action, final String address) {
         final Intent intent = new Intent(action);
-        sendBroadcast(intent);
-    }
-
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic
-                                         characteristic) {
-        Date now = new Date();
-        long date = now.getTime();
-        // // DEBUG
-        // Set this to "" to not get the date in the return value
-        // String dateStr = " @ " + millisecTimeFormater.format(now);
-        String dateStr = "";
-        final Intent intent = new Intent(action);
-        intent.putExtra(EXTRA_UUID, characteristic.getUuid().toString());
-        intent.putExtra(EXTRA_DATE, date);
-
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            HeartRateValues values = new HeartRateValues(characteristic, date);
-            mLastHr = values.getHr();
-            mLastRr = values.getRr();
-            mLastHrDate = date;
-            // // DEBUG
-            // Log.d(TAG, String.format("Received heart rate measurement: %d",
-            // mLastHr));
-            if (mDbAdapter != null) {
-                mDbAdapter.createData(mLastHrDate, mSessionStartTime, mLastHr,
-                        mLastRr);
-            }
-            intent.putExtra(EXTRA_HR, String.valueOf(values.getHr() + dateStr));
-            intent.putExtra(EXTRA_RR, values.getRr() + dateStr);
-            intent.putExtra(EXTRA_DATA, values.getInfo());
-        } else if (UUID_BATTERY_LEVEL.equals(characteristic.getUuid())) {
-            mLastBat = characteristic.getIntValue(
-                    BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-            Log.d(TAG, String.format("Received battery level: %d", mLastBat));
-            intent.putExtra(EXTRA_BAT, String.valueOf(mLastBat) + dateStr);
-            intent.putExtra(EXTRA_DATA,
-                    String.valueOf("Battery Level: " + mLastBat));
-        } else {
-            // For all other profiles, writes the data formatted in HEX.
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(
-                        data.length);
-                for (byte byteChar : data) {
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                }
-                intent.putExtra(
-                        EXTRA_DATA,
-                        BleNamesResolver
-                                .resolveCharacteristicName(characteristic
-                                        .getUuid().toString())
-                                + "\n"
-                                + new String(data)
-                                + "\n"
-                                + stringBuilder.toString());
-            } else {
-                intent.putExtra(
-                        EXTRA_DATA,
-                        BleNamesResolver
-                                .resolveCharacteristicName(characteristic
-                                        .getUuid().toString())
-                                + "\n" + ((data == null) ? "null" : "No data"));
-            }
-        }
+        intent.putExtra(DEVICE_ADDRESS_CODE, address);
         sendBroadcast(intent);
     }
 
@@ -308,16 +276,53 @@ public class BCMBleService extends Service implements IConstants {
     @Override
     public IBinder onBind(Intent intent) {
         Log.d(TAG, "onBind");
+        mBound = true;
         return mBinder;
     }
 
     @Override
     public boolean onUnbind(Intent intent) {
         Log.d(TAG, "onUnbind");
-        close();
+        mBound = false;
+        // Keep recording without the activity, but do not linger if there
+        // is nothing to record
+        if (!isRecording() && !isMigrating()) {
+            stopSelf();
+        }
         return super.onUnbind(intent);
     }
 
+    /**
+     * @return Whether any device is connected or being connected.
+     */
+    public boolean isRecording() {
+        synchronized (mConnections) {
+            for (DeviceConnection connection : mConnections.values()) {
+                if (connection.mState != DEVICE_STATE_DISCONNECTED) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param startDate The start date of a session.
+     * @return Whether any device is recording the session with the given
+     * start date.
+     */
+    public boolean isRecordingSession(long startDate) {
+        synchronized (mConnections) {
+            for (DeviceConnection connection : mConnections.values()) {
+                if (connection.mSessionInProgress
+                        && connection.mSessionStartTime == startDate) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * Initializes a reference to the local Bluetooth adapter.
      *
@@ -346,71 +351,220 @@ public class BCMBleService extends Service implements IConstants {
     }
 
     /**
-     * Starts writing to the database with the given adapter.
+     * Starts writing to the service's own database in the data directory.
+     * The data from all the devices are written in batches by a single
+     * BCMDbWriter, so the GATT callbacks do not wait on the database. Does
+     * nothing if already writing to the current data directory. Recording
+     * does not start while a migration is pending. The migration is run on
+     * its own thread, with its progress broadcast, and recording starts
+     * when it is done.
      *
-     * @param adapter The adapter.
-     * @return If successful.
+     * @return If the database is being written.
      */
-    public boolean startDatabase(BCMDbAdapter adapter) {
+    public boolean startDatabase() {
         Log.d(TAG, "startDatabase");
+        File dataDir = getDataDirectory();
+        if (dataDir == null) {
+            Log.e(TAG, "startDatabase: No data directory");
+            return false;
+        }
+        if (mMigratingAdapter != null) {
+            Log.w(TAG, "startDatabase: Waiting for the migration");
+            mStartWhenMigrated = true;
+            return false;
+        }
+        if (mDbAdapter != null) {
+            if (dataDir.equals(mDbAdapter.getDataDir()) && mDbWriter != null) {
+                return true;
+            }
+            // The data directory changed
+            stopDatabase();
+        }
+        BCMDbAdapter adapter = new BCMDbAdapter(this, dataDir);
+        adapter.open();
+        if (!adapter.isOpen()) {
+            adapter.close();
+            return false;
+        }
         mDbAdapter = adapter;
-        return mDbAdapter != null;
+        if (adapter.isMigrationPending()) {
+            Log.w(TAG, "startDatabase: Waiting for the migration");
+            startMigration(adapter);
+            return false;
+        }
+        BCMDbWriter writer = new BCMDbWriter(adapter,
+                new File(dataDir, JOURNAL_DIR));
+        writer.start();
+        mDbWriter = writer;
+        return true;
+    }
+
+    /**
+     * Runs the pending migrations of a database on a new thread. The
+     * database is closed when they are done, and recording is started if it
+     * is still wanted.
+     *
+     * @param adapter The adapter for the database.
+     */
+    private void startMigration(final BCMDbAdapter adapter) {
+        mMigratingAdapter = adapter;
+        mStartWhenMigrated = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String error = null;
+                try {
+                    adapter.migrate(new Migrator.ProgressListener() {
+                        private int nSteps;
+
+                        @Override
+                        public void onProgress(Migration migration,
+                                               long position) {
+                            nSteps++;
+                            Intent intent = new Intent(
+                                    ACTION_MIGRATION_PROGRESS);
+                            intent.putExtra(EXTRA_MSG,
+                                    migration.getDescription() + " ("
+                                            + nSteps + ")");
+                            sendBroadcast(intent);
+                        }
+                    });
+                } catch (Exception ex) {
+                    Log.e(TAG, "Error migrating the database", ex);
+                    error = ex.getMessage() != null ? ex.getMessage()
+                            : ex.toString();
+                }
+                final String msg = error;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onMigrationDone(adapter, msg);
+                    }
+                });
+            }
+        }, "BCMMigration").start();
+    }
+
+    /**
+     * Called on the main thread when a migration is done.
+     *
+     * @param adapter The adapter for the database.
+     * @param error   The error or null if it succeeded.
+     */
+    private void onMigrationDone(BCMDbAdapter adapter, String error) {
+        Log.d(TAG, "onMigrationDone: error=" + error);
+        mMigratingAdapter = null;
+        adapter.close();
+        if (mDbAdapter == adapter) {
+            mDbAdapter = null;
+        }
+        Intent intent = new Intent(ACTION_MIGRATION_DONE);
+        if (error != null) {
+            intent.putExtra(EXTRA_MSG, error);
+        }
+        sendBroadcast(intent);
+        // An error is left to the next time the database is started
+        if (error == null && mStartWhenMigrated) {
+            startDatabase();
+        } else if (!mBound && !isRecording()) {
+            stopSelf();
+        }
+    }
+
+    /**
+     * @return Whether a migration of the database is running.
+     */
+    public boolean isMigrating() {
+        return mMigratingAdapter != null;
+    }
+
+    /**
+     * @return Whether the database is being written, that is whether
+     * startDatabase succeeded and stopDatabase has not been called.
+     */
+    public boolean isDatabaseStarted() {
+        return mDbWriter != null;
     }
 
     /**
-     * Stops writing to the the database.
+     * Stops writing to the the database and closes it. Any queued data are
+     * written before this returns. A migration that is running is left to
+     * finish and close the database, since closing it would wait for the
+     * migration.
      */
     public void stopDatabase() {
         Log.d(TAG, "stopDatabase");
+        BCMDbWriter writer = mDbWriter;
+        mDbWriter = null;
+        if (writer != null) {
+            writer.stop();
+        }
+        mStartWhenMigrated = false;
+        if (mDbAdapter != null && mDbAdapter != mMigratingAdapter) {
+            mDbAdapter.close();
+        }
         mDbAdapter = null;
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Gets the data directory from the preferences, or the default one on
+     * the SD card if it has not been set.
+     *
+     * @return The directory or null if there is none.
+     */
+    private File getDataDirectory() {
+        SharedPreferences prefs = PreferenceManager
+                .getDefaultSharedPreferences(this);
+        String dataDirName = prefs.getString(PREF_DATA_DIRECTORY, null);
+        if (dataDirName != null) {
+            return new File(dataDirName);
+        }
+        File sdCardRoot = Environment.getExternalStorageDirectory();
+        if (sdCardRoot == null) {
+            return null;
+        }
+        return new File(sdCardRoot, SD_CARD_DB_DIRECTORY);
+    }
+
+    /**
+     * Connects to the GATT server hosted on the Bluetooth LE device. Other
+     * devices that are connected stay connected.
      *
      * @param address The device address of the destination device.
-     * @return Return true if the connection is initiated successfully. The
+     * @return Return true if the connection is being initiated. The
      * connection result is reported asynchronously through the
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth
      * .BluetoothGatt, int, int)}
      * callback.
      */
     public boolean connect(final String address) {
-        Log.d(TAG, "connect");
+        Log.d(TAG, "connect: " + address);
         if (mBluetoothAdapter == null || address == null) {
             Log.w(TAG,
                     "connect: BluetoothAdapter not initialized or unspecified" +
                             " address");
             return false;
         }
-
-        // Previously connected device. Try to reconnect.
-        if (mBluetoothDeviceAddress != null
-                && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG,
-                    "connect: Trying to use an existing mBluetoothGatt for " +
-                            "connection");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = BluetoothProfile.STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
+        DeviceConnection connection;
+        synchronized (mConnections) {
+            connection = mConnections.get(address);
+            if (connection == null) {
+                if (mConnections.size() >= MAX_DEVICES) {
+                    Log.w(TAG, "connect: Already have " + MAX_DEVICES
+                            + " devices");
+                    return false;
+                }
+                connection = new DeviceConnection(address);
+                mConnections.put(address, connection);
             }
         }
-
-        final BluetoothDevice device = mBluetoothAdapter
-                .getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect");
-            return false;
-        }
-        // We want to directly connect to the device, so we are setting the
-        // autoConnect parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = BluetoothProfile.STATE_CONNECTING;
+        final DeviceConnection finalConnection = connection;
+        mGattHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                finalConnection.connect();
+            }
+        });
         return true;
     }
 
@@ -420,50 +574,57 @@ public class BCMBleService extends Service implements IConstants {
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth
      * .BluetoothGatt, int, int)}
      * callback.
+     *
+     * @param address The device address.
      */
-    public void disconnect() {
-        Log.d(TAG, "disconnect");
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+    public void disconnect(String address) {
+        Log.d(TAG, "disconnect: " + address);
+        final DeviceConnection connection = getConnection(address);
+        if (mBluetoothAdapter == null || connection == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized or not connected");
             return;
         }
-        mBluetoothGatt.disconnect();
+        // Set at once so a loss that is already being handled does not
+        // start reconnecting
+        connection.mUserDisconnect = true;
+        mGattHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                connection.disconnect();
+            }
+        });
     }
 
     /**
-     * After using a given BLE device, the app must call this method to ensure
-     * resources are released properly.
+     * Closes the connection to a device and forgets it.
+     *
+     * @param address The device address.
      */
-    public void close() {
-        Log.d(TAG, "close");
-        stopDatabase();
-        if (mBluetoothGatt == null) {
-            return;
+    public void close(String address) {
+        Log.d(TAG, "close: " + address);
+        DeviceConnection connection;
+        synchronized (mConnections) {
+            connection = mConnections.remove(address);
+        }
+        if (connection != null) {
+            connection.close();
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
     }
 
     /**
-     * Enables or disables notification on a given characteristic.
-     *
-     * @param characteristic Characteristic to act on.
-     * @param enabled        If true, enable notification. False otherwise.
+     * After using the BLE devices, the app must call this method to ensure
+     * resources are released properly. Closes all the connections.
      */
-    public void setCharacteristicNotification(
-            BluetoothGattCharacteristic characteristic, boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+    public void close() {
+        Log.d(TAG, "close");
+        stopDatabase();
+        List<DeviceConnection> connections;
+        synchronized (mConnections) {
+            connections = new ArrayList<>(mConnections.values());
+            mConnections.clear();
         }
-        boolean res = mBluetoothGatt.setCharacteristicNotification(
-                characteristic, enabled);
-        if (!res) {
-            Log.d(TAG,
-                    "setCharacteristicNotification failed for "
-                            + BleNamesResolver
-                            .resolveCharacteristicName(characteristic
-                                    .getUuid().toString()));
+        for (DeviceConnection connection : connections) {
+            connection.close();
         }
     }
 
@@ -472,22 +633,59 @@ public class BCMBleService extends Service implements IConstants {
      * should be invoked only after {@code BluetoothGatt#discoverServices()}
      * completes successfully.
      *
+     * @param address The device address.
      * @return A {@code List} of supported services.
      */
-    public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null)
+    public List<BluetoothGattService> getSupportedGattServices(String address) {
+        DeviceConnection connection = getConnection(address);
+        if (connection == null || connection.mGatt == null)
             return null;
 
-        return mBluetoothGatt.getServices();
+        return connection.mGatt.getServices();
     }
 
     /**
      * Returns the connection state.
      *
-     * @return The connection state.
+     * @param address The device address.
+     * @return The connection state, one of the BluetoothProfile states.
+     */
+    public int getConnectionState(String address) {
+        DeviceConnection connection = getConnection(address);
+        if (connection == null) {
+            return BluetoothProfile.STATE_DISCONNECTED;
+        }
+        switch (connection.mState) {
+            case DEVICE_STATE_DISCONNECTED:
+                return BluetoothProfile.STATE_DISCONNECTED;
+            case DEVICE_STATE_CONNECTING:
+            case DEVICE_STATE_RECONNECTING:
+                return BluetoothProfile.STATE_CONNECTING;
+            default:
+                return BluetoothProfile.STATE_CONNECTED;
+        }
+    }
+
+    /**
+     * Returns the state of a device.
+     *
+     * @param address The device address.
+     * @return One of the DEVICE_STATE values.
      */
-    public int getConnectionState() {
-        return mConnectionState;
+    public int getDeviceState(String address) {
+        DeviceConnection connection = getConnection(address);
+        return connection == null ? DEVICE_STATE_DISCONNECTED
+                : connection.mState;
+    }
+
+    /**
+     * @return The addresses of the devices that are connected or being
+     * connected.
+     */
+    public List<String> getDeviceAddresses() {
+        synchronized (mConnections) {
+            return new ArrayList<>(mConnections.keySet());
+        }
     }
 
     /**
@@ -564,137 +762,933 @@ public class BCMBleService extends Service implements IConstants {
     /**
      * Returns if a session is in progress
      *
+     * @param address The device address.
      * @return If in progress.
      */
-    public boolean getSessionInProgress() {
-        return mSessionInProgress;
+    public boolean getSessionInProgress(String address) {
+        DeviceConnection connection = getConnection(address);
+        return connection != null && connection.mSessionInProgress;
     }
 
     /**
      * Initializes reading the battery level.
+     *
+     * @param address The device address.
      */
-    public void readBatteryLevel() {
-        if (mCharBat == null) {
-            return;
-        }
-        // Add it to the queueO
-        characteristicReadQueue.add(mCharBat);
-        // Process the queue if this is the only pending item
-        // Otherwise handle it asynchronously
-        if (descriptorWriteQueue.size() == 0
-                || characteristicReadQueue.size() == 1) {
-            mBluetoothGatt
-                    .readCharacteristic(characteristicReadQueue.element());
+    public void readBatteryLevel(String address) {
+        final DeviceConnection connection = getConnection(address);
+        if (connection != null) {
+            mGattHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    connection.readBatteryLevel();
+                }
+            });
         }
     }
 
     /**
-     * Starts a session.
+     * Starts a session. This is normally done by the service when the
+     * services are discovered. The session is started asynchronously.
      *
+     * @param address The device address.
      * @param charBat The BAT characteristic.
      * @param charHr  The HR characteristic.
-     * @return If successful. (Always returns true)
-     */
-    public boolean startSession(BluetoothGattCharacteristic charBat,
-                                BluetoothGattCharacteristic charHr) {
-        Log.d(TAG, "startSession");
-        // Log.d(TAG, "startSession: mSessionState=" + mSessionState
-        // + " mTimeoutTimer=" + mTimeoutTimer);
-        // // DEBUG
-        // String batVal = mCharBat == null ? "null" : String.format("%8x",
-        // mCharBat.hashCode());
-        // String hrVal = mCharHr == null ? "null" : String.format("%8x",
-        // mCharHr.hashCode());
-        // String customVal = mCharCustom == null ? "null" :
-        // String.format("%8x",
-        // mCharCustom.hashCode());
-        // Log.d(TAG, "  mCharBat=" + batVal + " mCharHr=" + hrVal
-        // + " mCharCustom=" + customVal);
-        // batVal = charBat == null ? "null" : String.format("%8x",
-        // charBat.hashCode());
-        // hrVal = charHr == null ? "null" : String.format("%8x",
-        // charHr.hashCode());
-        // customVal = charCustom == null ? "null" : String.format("%8x",
-        // charCustom.hashCode());
-        // Log.d(TAG, "  charBat=" + batVal + " charHr=" + hrVal +
-        // " charCustom="
-        // + customVal);
-        // Log.d(TAG, "  mDoBat=" + mDoBat + " mDoHr=" + mDoHr + " mDoCustom="
-        // + mDoCustom);
-        if (!mSessionInProgress) {
-            mSessionStartTime = new Date().getTime();
-        }
-
-        // // DEBUG Check permissions
-        // checkPermissions(charBat, charHr, charCustom);
-
-        // Stop notifying for existing characteristics
-        if (mCharHr != null) {
-            setCharacteristicNotification(mCharHr, false);
-        }
-
-        // Clear any queues
-        while (descriptorWriteQueue.size() > 0) {
-            descriptorWriteQueue.remove();
-        }
-        while (characteristicReadQueue.size() > 0) {
-            characteristicReadQueue.remove();
-        }
-
-        // Initialize for the new values
-        mCharBat = charBat;
-        mCharHr = charHr;
-        mLastBat = INVALID_INT;
-        mLastHr = INVALID_INT;
-        mLastRr = INVALID_STRING;
-        mLastHrDate = new Date().getTime();
-        BluetoothGattDescriptor descriptor;
-        if (mCharBat != null) {
-            characteristicReadQueue.add(mCharBat);
-        }
-        if (mCharHr != null) {
-            descriptor = mCharHr
-                    .getDescriptor(UUID_CLIENT_CHARACTERISTIC_CONFIG);
-            descriptor
-                    .setValue(BluetoothGattDescriptor
-                            .ENABLE_NOTIFICATION_VALUE);
-            descriptorWriteQueue.add(descriptor);
-            setCharacteristicNotification(mCharHr, true);
-        }
-
-        // Start the queues. Do writeDescriptors before any readCharacteristics
-        if (descriptorWriteQueue.size() > 0) {
-            mBluetoothGatt.writeDescriptor(descriptorWriteQueue.element());
-        } else if (characteristicReadQueue.size() > 0) {
-            mBluetoothGatt
-                    .readCharacteristic(characteristicReadQueue.element());
-        }
-
-        mSessionInProgress = true;
+     * @return If successful.
+     */
+    public boolean startSession(String address,
+                                final BluetoothGattCharacteristic charBat,
+                                final BluetoothGattCharacteristic charHr) {
+        final DeviceConnection connection = getConnection(address);
+        if (connection == null) {
+            return false;
+        }
+        mGattHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                connection.startSession(charBat, charHr);
+            }
+        });
         return true;
     }
 
     /**
      * Stops a session.
+     *
+     * @param address The device address.
+     */
+    public void stopSession(String address) {
+        final DeviceConnection connection = getConnection(address);
+        if (connection != null) {
+            mGattHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    connection.stopSession();
+                }
+            });
+        }
+    }
+
+    /**
+     * Gets the connection for an address.
+     *
+     * @param address The device address.
+     * @return The connection or null if there is none.
+     */
+    private DeviceConnection getConnection(String address) {
+        if (address == null) {
+            return null;
+        }
+        synchronized (mConnections) {
+            return mConnections.get(address);
+        }
+    }
+
+    /**
+     * Gets the start time for a new session. Sessions are identified by
+     * their start time, so this is later than any given out before, even if
+     * several devices start in the same millisecond. If no other session is
+     * recording, the SampleClock is anchored to the wall clock again first.
+     *
+     * @return The start time.
      */
-    public void stopSession() {
-        Log.d(TAG, "stopSession");
-        // Clear any queues
-        while (descriptorWriteQueue.size() > 0) {
-            descriptorWriteQueue.remove();
+    private synchronized long nextSessionStartTime() {
+        boolean recording = false;
+        synchronized (mConnections) {
+            for (DeviceConnection connection : mConnections.values()) {
+                if (connection.mSessionInProgress) {
+                    recording = true;
+                    break;
+                }
+            }
         }
-        while (characteristicReadQueue.size() > 0) {
-            characteristicReadQueue.remove();
+        if (!recording) {
+            mClock.anchor();
         }
-        // Stop notifying for existing characteristics
-        if (mSessionInProgress && mCharHr != null) {
-            setCharacteristicNotification(mCharHr, false);
+        long time = Math.max(mClock.now() / 1000,
+                mLastSessionStartTime + 1);
+        mLastSessionStartTime = time;
+        return time;
+    }
+
+    /**
+     * The connection to one device. Apart from onData, its methods run on
+     * the GATT thread. The state goes from DEVICE_STATE_DISCONNECTED to CONNECTING,
+     * then to DISCOVERING when connected, STARTING when the session is
+     * started, and RECORDING when notifications are enabled or the first
+     * measurement arrives. It goes back to DISCONNECTED when disconnected by
+     * request, or to RECONNECTING when the connection is lost, and then back
+     * to DISCOVERING when reconnected.
+     */
+    private class DeviceConnection implements GattOperationQueue.Gatt,
+            GattOperationQueue.Listener {
+        private final String mAddress;
+        private final int mSourceId;
+        private volatile BluetoothGatt mGatt;
+        private volatile int mState = DEVICE_STATE_DISCONNECTED;
+        /**
+         * Reused for decoding every Heart Rate Measurement notification.
+         */
+        private final HeartRateValues mHrValues = new HeartRateValues();
+        /**
+         * Times the beats in the notifications, on the binder thread.
+         */
+        private final BeatTimeline mTimeline = new BeatTimeline();
+        private final long[] mBeatTimes = new long[HeartRateValues.MAX_RR];
+        private final long[] mBeatDates = new long[HeartRateValues.MAX_RR];
+        /**
+         * The last time given out by nextTime. Guarded by this.
+         */
+        private long mLastTime = INVALID_DATE;
+        /**
+         * When the wall clock was last compared with the sample clock, and
+         * the offset last recorded, on the binder thread.
+         */
+        private long mLastClockCheck;
+        private long mClockOffset;
+        /**
+         * HRV over sliding windows, fed from the notifications.
+         */
+        private final HrvCalculator mHrv = new HrvCalculator(HRV_WINDOWS);
+        private final int[] mHrvValues = new int[HRV_WINDOWS.length
+                * HrvCalculator.N_METRICS + SpectralHrv.N_METRICS];
+        private long mLastHrvDate = INVALID_DATE;
+        /**
+         * Spectral HRV over the SPECTRAL_LIVE_WINDOW window, recomputed from
+         * the beats in it every SPECTRAL_LIVE_INTERVAL.
+         */
+        private final SpectralHrv mSpectral = new SpectralHrv();
+        private final int[] mSpectralRr = new int[mHrv.getCapacity()];
+        private final int[] mSpectralBefore = new int[mHrv.getCapacity()];
+        private long mLastSpectralDate = INVALID_DATE;
+        /**
+         * Set on the GATT thread to have the next notification break the
+         * HRV chain and the beat timeline, or reset them for a new session.
+         */
+        private volatile boolean mHrvGap;
+        private volatile boolean mHrvReset;
+        private int mLastBat = INVALID_INT;
+        private int mLastHr = INVALID_INT;
+
+        private BluetoothGattCharacteristic mCharBat;
+        private BluetoothGattCharacteristic mCharHr;
+        private volatile boolean mSessionInProgress = false;
+        private volatile long mSessionStartTime;
+
+        private final GattOperationQueue mOperations = new
+                GattOperationQueue(mGattScheduler, this, this);
+
+        /**
+         * Whether a disconnect was requested, in which case a lost
+         * connection is not reconnected.
+         */
+        private volatile boolean mUserDisconnect;
+        private int mReconnectAttempt;
+        private volatile long mLinkLostTime = INVALID_DATE;
+        private int mNResumes;
+        private long mResumeTimeTotal;
+        private long mResumeTimeMax;
+        private final Runnable mReconnectTask = new Runnable() {
+            @Override
+            public void run() {
+                reconnect();
+            }
+        };
+        private final Runnable mAttemptTimeoutTask = new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "Reconnection attempt " + mReconnectAttempt
+                        + " timed out: " + mAddress);
+                closeGatt();
+                scheduleReconnect();
+            }
+        };
+
+        /**
+         * Implements callback methods for GATT events.
+         */
+        private final BluetoothGattCallback mGattCallback = new
+                BluetoothGattCallback() {
+                    @Override
+                    public void onConnectionStateChange(final BluetoothGatt gatt,
+                                                        final int status,
+                                                        final int newState) {
+                        mGattHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                onConnectionStateChanged(gatt, status,
+                                        newState);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onServicesDiscovered(final BluetoothGatt gatt,
+                                                     final int status) {
+                        mGattHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (status == BluetoothGatt.GATT_SUCCESS) {
+                                    startSession(gatt.getServices());
+                                    broadcastUpdate(
+                                            ACTION_GATT_SERVICES_DISCOVERED,
+                                            mAddress);
+                                } else {
+                                    Log.w(TAG, "onServicesDiscovered " +
+                                            "received: " + status);
+                                }
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onCharacteristicRead(BluetoothGatt gatt,
+                                                     final
+                                                     BluetoothGattCharacteristic
+                                                             characteristic,
+                                                     final int status) {
+                        // Use the value before another read replaces it
+                        if (status == BluetoothGatt.GATT_SUCCESS) {
+                            onData(characteristic);
+                        } else {
+                            Log.w(TAG, "onCharacteristicRead received: "
+                                    + status);
+                        }
+                        mGattHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!mOperations.onComplete(GattOperationQueue
+                                                .Operation
+                                                .TYPE_READ_CHARACTERISTIC,
+                                        characteristic, status)) {
+                                    Log.d(TAG, "onCharacteristicRead: No "
+                                            + "matching operation");
+                                }
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onCharacteristicChanged(BluetoothGatt gatt,
+                                                        BluetoothGattCharacteristic
+                                                                characteristic) {
+                        onData(characteristic);
+                    }
+
+                    @Override
+                    public void onDescriptorWrite(BluetoothGatt gatt,
+                                                  final BluetoothGattDescriptor
+                                                          descriptor,
+                                                  final int status) {
+                        if (status != BluetoothGatt.GATT_SUCCESS) {
+                            Log.d(TAG, "onDescriptorWrite: Error writing " +
+                                    "GATT Descriptor: " + status);
+                        }
+                        mGattHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!mOperations.onComplete(GattOperationQueue
+                                                .Operation
+                                                .TYPE_WRITE_DESCRIPTOR,
+                                        descriptor, status)) {
+                                    Log.d(TAG, "onDescriptorWrite: No "
+                                            + "matching operation");
+                                }
+                            }
+                        });
+                    }
+                };
+
+        /**
+         * Constructor.
+         *
+         * @param address The device address.
+         */
+        DeviceConnection(String address) {
+            mAddress = address;
+            mSourceId = mSampleBus.getSourceId(address);
+        }
+
+        /**
+         * Handles a change in the connection state.
+         *
+         * @param gatt     The GATT.
+         * @param status   The status.
+         * @param newState The new state.
+         */
+        private void onConnectionStateChanged(BluetoothGatt gatt, int status,
+                                              int newState) {
+            Log.i(TAG, "onConnectionStateChange: " + mAddress
+                    + " status="
+                    + (status == BluetoothGatt.GATT_SUCCESS ?
+                    "GATT_SUCCESS" : status) + " newState=" + newState);
+            if (gatt != mGatt) {
+                Log.d(TAG, "onConnectionStateChange: Ignoring a closed " +
+                        "BluetoothGatt");
+                return;
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS
+                    && newState == BluetoothProfile.STATE_CONNECTED) {
+                mGattHandler.removeCallbacks(mAttemptTimeoutTask);
+                mGattHandler.removeCallbacks(mReconnectTask);
+                if (mState == DEVICE_STATE_RECONNECTING && mSessionInProgress) {
+                    // Keep the session. It is restarted with the same start
+                    // time when the services are discovered.
+                    Log.i(TAG, "onConnectionStateChange: Reconnected after "
+                            + (SystemClock.uptimeMillis() - mLinkLostTime)
+                            + " ms, attempt " + mReconnectAttempt);
+                } else {
+                    // Stop any session
+                    stopSession();
+                }
+                mState = DEVICE_STATE_DISCOVERING;
+                broadcastUpdate(ACTION_GATT_CONNECTED, mAddress);
+                Log.i(TAG, "onConnectionStateChange: Connected " +
+                        "to GATT server");
+                // Attempts to discover services after successful
+                // connection.
+                Log.i(TAG, "onConnectionStateChange: Attempting " +
+                        "to start service discovery: "
+                        + gatt.discoverServices());
+            } else if (!mUserDisconnect) {
+                // Lost, or a failed (re)connection attempt
+                onLinkLost();
+            } else if (newState == BluetoothProfile
+                    .STATE_DISCONNECTED) {
+                mState = DEVICE_STATE_DISCONNECTED;
+                Log.i(TAG, "onConnectionStateChange: " +
+                        "Disconnected from GATT server");
+                // Stop any session
+                stopSession();
+                broadcastUpdate(ACTION_GATT_DISCONNECTED, mAddress);
+            }
+        }
+
+        /**
+         * Connects or reconnects.
+         *
+         * @return If the connection was initiated.
+         */
+        boolean connect() {
+            mUserDisconnect = false;
+            if (mState != DEVICE_STATE_DISCONNECTED
+                    && mState != DEVICE_STATE_RECONNECTING) {
+                // Already connected or connecting
+                return true;
+            }
+            if (mState == DEVICE_STATE_RECONNECTING) {
+                // Try now rather than waiting for the next attempt
+                mGattHandler.removeCallbacks(mReconnectTask);
+                mGattHandler.removeCallbacks(mAttemptTimeoutTask);
+                closeGatt();
+                mReconnectAttempt = 0;
+                reconnect();
+                return true;
+            }
+            // Previously connected device. Try to reconnect.
+            BluetoothGatt gatt = mGatt;
+            if (gatt != null) {
+                Log.d(TAG, "connect: Trying to use an existing BluetoothGatt" +
+                        " for connection");
+                if (gatt.connect()) {
+                    mState = DEVICE_STATE_CONNECTING;
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+
+            final BluetoothDevice device = mBluetoothAdapter
+                    .getRemoteDevice(mAddress);
+            if (device == null) {
+                Log.w(TAG, "Device not found.  Unable to connect");
+                return false;
+            }
+            // We want to directly connect to the device, so we are setting
+            // the autoConnect parameter to false.
+            mState = DEVICE_STATE_CONNECTING;
+            mGatt = device.connectGatt(BCMBleService.this, false,
+                    mGattCallback);
+            Log.d(TAG, "Trying to create a new connection");
+            return true;
+        }
+
+        void disconnect() {
+            mUserDisconnect = true;
+            mGattHandler.removeCallbacks(mReconnectTask);
+            mGattHandler.removeCallbacks(mAttemptTimeoutTask);
+            if (mState == DEVICE_STATE_RECONNECTING) {
+                // There is no connection to report a disconnect
+                closeGatt();
+                mState = DEVICE_STATE_DISCONNECTED;
+                stopSession();
+                broadcastUpdate(ACTION_GATT_DISCONNECTED, mAddress);
+                return;
+            }
+            BluetoothGatt gatt = mGatt;
+            if (gatt != null) {
+                gatt.disconnect();
+            }
+        }
+
+        /**
+         * Closes the connection. The GATT is closed on the GATT thread after
+         * anything already posted for it.
+         */
+        void close() {
+            final BluetoothGatt gatt = mGatt;
+            mGatt = null;
+            mUserDisconnect = true;
+            mState = DEVICE_STATE_DISCONNECTED;
+            mGattHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mGattHandler.removeCallbacks(mReconnectTask);
+                    mGattHandler.removeCallbacks(mAttemptTimeoutTask);
+                    stopSession();
+                    if (gatt != null) {
+                        gatt.close();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Handles a connection that was lost or an attempt to make one that
+         * failed. The first time, any session is kept and a gap is written.
+         * Then the next attempt to reconnect is scheduled.
+         */
+        private void onLinkLost() {
+            mGattHandler.removeCallbacks(mAttemptTimeoutTask);
+            mGattHandler.removeCallbacks(mReconnectTask);
+            mOperations.clear();
+            // These belong to the old BluetoothGatt
+            mCharBat = null;
+            mCharHr = null;
+            // A failed BluetoothGatt is not reliably reusable
+            closeGatt();
+            if (mState != DEVICE_STATE_RECONNECTING) {
+                Log.i(TAG, "onLinkLost: " + mAddress + " sessionInProgress="
+                        + mSessionInProgress);
+                mState = DEVICE_STATE_RECONNECTING;
+                mLinkLostTime = SystemClock.uptimeMillis();
+                mReconnectAttempt = 0;
+                if (mSessionInProgress) {
+                    writeGap();
+                }
+                broadcastUpdate(ACTION_GATT_DISCONNECTED, mAddress);
+            }
+            scheduleReconnect();
+        }
+
+        /**
+         * Schedules the next reconnection attempt. The first is made at once
+         * and the rest after delays that double up to RECONNECT_MAX_DELAY.
+         */
+        private void scheduleReconnect() {
+            long delay = 0;
+            if (mReconnectAttempt > 0) {
+                delay = Math.min(RECONNECT_INITIAL_DELAY
+                                << Math.min(mReconnectAttempt - 1, 16),
+                        RECONNECT_MAX_DELAY);
+            }
+            mGattHandler.postDelayed(mReconnectTask, delay);
+        }
+
+        /**
+         * Makes a reconnection attempt. The first RECONNECT_DIRECT_ATTEMPTS
+         * are direct connections, which are fast but time out. After that
+         * autoConnect is used, which waits for the device indefinitely
+         * without using much power.
+         */
+        private void reconnect() {
+            if (mUserDisconnect || mState != DEVICE_STATE_RECONNECTING) {
+                return;
+            }
+            BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(
+                    mAddress);
+            if (device == null) {
+                Log.w(TAG, "reconnect: Device not found: " + mAddress);
+                return;
+            }
+            boolean autoConnect = mReconnectAttempt >=
+                    RECONNECT_DIRECT_ATTEMPTS;
+            mReconnectAttempt++;
+            Log.d(TAG, "reconnect: " + mAddress + " attempt="
+                    + mReconnectAttempt + " autoConnect=" + autoConnect);
+            mGatt = device.connectGatt(BCMBleService.this, autoConnect,
+                    mGattCallback);
+            if (mGatt == null) {
+                scheduleReconnect();
+            } else if (!autoConnect) {
+                mGattHandler.postDelayed(mAttemptTimeoutTask,
+                        RECONNECT_ATTEMPT_TIMEOUT);
+            }
+        }
+
+        /**
+         * Closes and forgets the BluetoothGatt, if any.
+         */
+        private void closeGatt() {
+            BluetoothGatt gatt = mGatt;
+            mGatt = null;
+            if (gatt != null) {
+                gatt.close();
+            }
+        }
+
+        /**
+         * Writes a gap row, with an invalid HR and no R-R values, to the
+         * session and publishes it so the live plots break there too.
+         */
+        private void writeGap() {
+            long time = nextTime();
+            long date = time / 1000;
+            BCMDbWriter writer = mDbWriter;
+            if (writer != null) {
+                writer.add(mAddress, time, mSessionStartTime, INVALID_INT,
+                        null, RrUtils.RR_NOT_PRESENT, null, 0);
+                // Do not leave the data before the gap queued
+                writer.flush();
+            }
+            mSampleBus.publishHr(mSourceId, date, INVALID_INT, null,
+                    RrUtils.RR_NOT_PRESENT, INVALID_DATE);
+            mHrvGap = true;
+        }
+
+        /**
+         * Adds R-R values to the HRV and publishes it at most every
+         * HRV_PUBLISH_INTERVAL, along with the spectral HRV, which is
+         * recomputed at most every SPECTRAL_LIVE_INTERVAL. Called for each
+         * notification on the binder thread.
+         *
+         * @param date      The date.
+         * @param beatDates The dates of the beats.
+         * @param rr        The R-R values.
+         * @param rrCount   The number of values or RrUtils.RR_NOT_PRESENT.
+         */
+        private void updateHrv(long date, long[] beatDates, int[] rr,
+                               int rrCount) {
+            HrvCalculator hrv = mHrv;
+            if (mHrvReset) {
+                mHrvReset = false;
+                mHrvGap = false;
+                hrv.reset();
+                mSpectral.reset();
+                mLastSpectralDate = INVALID_DATE;
+            } else if (mHrvGap) {
+                mHrvGap = false;
+                hrv.addGap();
+            }
+            hrv.add(date, beatDates, rr, rrCount);
+            if (mLastHrvDate != INVALID_DATE
+                    && date - mLastHrvDate < HRV_PUBLISH_INTERVAL
+                    && date >= mLastHrvDate) {
+                return;
+            }
+            mLastHrvDate = date;
+            if (mLastSpectralDate == INVALID_DATE
+                    || date - mLastSpectralDate >= SPECTRAL_LIVE_INTERVAL
+                    || date < mLastSpectralDate) {
+                mLastSpectralDate = date;
+                int nBeats = hrv.copyBeats(SPECTRAL_LIVE_WINDOW, mSpectralRr,
+                        mSpectralBefore);
+                mSpectral.reset();
+                mSpectral.addBeats(mSpectralRr, mSpectralBefore, nBeats);
+            }
+            int count = hrv.pack(mHrvValues);
+            count = mSpectral.pack(mHrvValues, count);
+            mSampleBus.publishHrv(mSourceId, date, mHrvValues, count);
+        }
+
+        /**
+         * Records the time to resume recording if the connection was lost.
+         */
+        private void onResumed() {
+            if (mLinkLostTime == INVALID_DATE) {
+                return;
+            }
+            long time = SystemClock.uptimeMillis() - mLinkLostTime;
+            mLinkLostTime = INVALID_DATE;
+            mNResumes++;
+            mResumeTimeTotal += time;
+            if (time > mResumeTimeMax) {
+                mResumeTimeMax = time;
+            }
+            Log.i(TAG, "onResumed: " + mAddress + " resumed after " + time
+                    + " ms: resumes=" + mNResumes + " avg="
+                    + mResumeTimeTotal / mNResumes + " max=" + mResumeTimeMax);
+        }
+
+        @Override
+        public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+            BluetoothGatt gatt = mGatt;
+            return gatt != null && gatt.writeDescriptor(descriptor);
+        }
+
+        @Override
+        public boolean readCharacteristic(BluetoothGattCharacteristic
+                                                  characteristic) {
+            BluetoothGatt gatt = mGatt;
+            return gatt != null && gatt.readCharacteristic(characteristic);
+        }
+
+        @Override
+        public void onOperationFailed(GattOperationQueue.Operation operation,
+                                      int status) {
+            Log.w(TAG, "onOperationFailed: " + mAddress + " " + operation
+                    + " status=" + status);
+            BluetoothGatt gatt = mGatt;
+            if (operation.getType() == GattOperationQueue.Operation
+                    .TYPE_WRITE_DESCRIPTOR && mSessionInProgress
+                    && gatt != null && !mUserDisconnect) {
+                // Notifications could not be enabled, so the session would
+                // record nothing. Drop the link, which reconnects.
+                Log.w(TAG, "onOperationFailed: Reconnecting " + mAddress);
+                gatt.disconnect();
+            }
+        }
+
+        /**
+         * Gets the time for a sample from the SampleClock. The times for a
+         * device are kept at least 1 ms apart, so the dates of its rows are
+         * distinct.
+         *
+         * @return The time in us.
+         */
+        private synchronized long nextTime() {
+            long time = mClock.now();
+            if (mLastTime != INVALID_DATE && time < mLastTime + 1000) {
+                time = mLastTime + 1000;
+            }
+            mLastTime = time;
+            return time;
+        }
+
+        /**
+         * Forgets the last time, for a new session, which may have a new
+         * anchor.
+         */
+        private synchronized void resetTime() {
+            mLastTime = INVALID_DATE;
+        }
+
+        /**
+         * Records the clock for the session at its first notification, and
+         * a correction whenever the wall clock has moved by
+         * CLOCK_MIN_CORRECTION from the sample clock, checked every
+         * CLOCK_CHECK_INTERVAL. Only the comparison reads the wall clock.
+         *
+         * @param writer The writer.
+         * @param time   The time of the notification in us.
+         */
+        private void checkClock(BCMDbWriter writer, long time) {
+            if (!mHrvReset && time - mLastClockCheck < 1000
+                    * CLOCK_CHECK_INTERVAL) {
+                return;
+            }
+            mLastClockCheck = time;
+            long wall = System.currentTimeMillis();
+            long offset = SampleClock.getOffset(time, wall);
+            if (mHrvReset || Math.abs(offset - mClockOffset)
+                    >= CLOCK_MIN_CORRECTION) {
+                if (!mHrvReset) {
+                    Log.i(TAG, "checkClock: " + mAddress + " wall clock moved "
+                            + (offset - mClockOffset) + " ms");
+                }
+                mClockOffset = offset;
+                writer.addClock(mSessionStartTime, time, wall);
+            }
+        }
+
+        /**
+         * Handles a characteristic that was read or changed. Heart Rate
+         * Measurements and Battery Levels are decoded, queued for the
+         * database, and published on the SampleBus as primitives. Anything
+         * else is broadcast with the data formatted as text.
+         *
+         * @param characteristic The characteristic.
+         */
+        private void onData(BluetoothGattCharacteristic characteristic) {
+            long time = nextTime();
+            long date = time / 1000;
+            if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
+                HeartRateValues values = mHrValues;
+                values.decode(characteristic.getValue(), date);
+                mLastHr = values.getHr();
+                // The first measurement after starting or reconnecting is
+                // when the session is recording again
+                if (mSessionInProgress
+                        && mState != DEVICE_STATE_RECORDING) {
+                    mState = DEVICE_STATE_RECORDING;
+                    onResumed();
+                }
+                // // DEBUG
+                // Log.d(TAG, String.format("Received heart rate measurement:
+                // %d", mLastHr));
+                int rrCount = values.isRrPresent() ? values.getRrCount()
+                        : RrUtils.RR_NOT_PRESENT;
+                int[] rr = values.getRrValues();
+                // A new session or a gap starts a new timeline, as when the
+                // beats are rebuilt from the rows
+                if (mHrvReset || mHrvGap) {
+                    mTimeline.reset();
+                }
+                long[] beatTimes = mBeatTimes;
+                long[] beatDates = mBeatDates;
+                int beatFlags = mTimeline.add(time, rr, rrCount, beatTimes);
+                for (int i = 0; i < rrCount; i++) {
+                    beatDates[i] = beatTimes[i] / 1000;
+                }
+                BCMDbWriter writer = mDbWriter;
+                if (writer != null) {
+                    checkClock(writer, time);
+                    writer.add(mAddress, time, mSessionStartTime, mLastHr,
+                            rr, rrCount, beatTimes, beatFlags);
+                }
+                mSampleBus.publishHr(mSourceId, date, mLastHr, rr, rrCount,
+                        rrCount > 0 ? beatDates[rrCount - 1] : INVALID_DATE);
+                updateHrv(date, beatDates, rr, rrCount);
+                return;
+            }
+            if (UUID_BATTERY_LEVEL.equals(characteristic.getUuid())) {
+                mLastBat = characteristic.getIntValue(
+                        BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+                Log.d(TAG, String.format("Received battery level: %d",
+                        mLastBat));
+                mSampleBus.publishBattery(mSourceId, date, mLastBat);
+                return;
+            }
+
+            // For all other profiles, writes the data formatted in HEX.
+            final Intent intent = new Intent(ACTION_DATA_AVAILABLE);
+            intent.putExtra(DEVICE_ADDRESS_CODE, mAddress);
+            intent.putExtra(EXTRA_UUID, characteristic.getUuid().toString());
+            intent.putExtra(EXTRA_DATE, date);
+            final byte[] data = characteristic.getValue();
+            String name = BleNamesResolver.resolveCharacteristicName(
+                    characteristic.getUuid().toString());
+            if (data != null && data.length > 0) {
+                final StringBuilder stringBuilder = new StringBuilder(
+                        data.length);
+                for (byte byteChar : data) {
+                    stringBuilder.append(String.format("%02X ", byteChar));
+                }
+                intent.putExtra(EXTRA_DATA, name + "\n" + new String(data)
+                        + "\n" + stringBuilder.toString());
+            } else {
+                intent.putExtra(EXTRA_DATA, name + "\n"
+                        + ((data == null) ? "null" : "No data"));
+            }
+            sendBroadcast(intent);
+        }
+
+        /**
+         * Enables or disables notification on a given characteristic.
+         *
+         * @param characteristic Characteristic to act on.
+         * @param enabled        If true, enable notification. False
+         *                       otherwise.
+         */
+        private void setCharacteristicNotification(
+                BluetoothGattCharacteristic characteristic, boolean enabled) {
+            BluetoothGatt gatt = mGatt;
+            if (gatt == null) {
+                Log.w(TAG, "BluetoothGatt not initialized");
+                return;
+            }
+            boolean res = gatt.setCharacteristicNotification(characteristic,
+                    enabled);
+            if (!res) {
+                Log.d(TAG,
+                        "setCharacteristicNotification failed for "
+                                + BleNamesResolver
+                                .resolveCharacteristicName(characteristic
+                                        .getUuid().toString()));
+            }
+        }
+
+        /**
+         * Initializes reading the battery level.
+         */
+        void readBatteryLevel() {
+            if (mCharBat == null || mGatt == null) {
+                return;
+            }
+            mOperations.add(GattOperationQueue.Operation.readCharacteristic(
+                    mCharBat, GattOperationQueue.Operation.PRIORITY_LOW));
+        }
+
+        /**
+         * Finds the HR and battery characteristics in the discovered
+         * services and starts a session with them.
+         *
+         * @param gattServices The services.
+         */
+        private void startSession(List<BluetoothGattService> gattServices) {
+            BluetoothGattCharacteristic charBat = null, charHr = null;
+            for (BluetoothGattService gattService : gattServices) {
+                if (gattService.getUuid().equals(UUID_HEART_RATE_SERVICE)) {
+                    charHr = gattService.getCharacteristic(
+                            UUID_HEART_RATE_MEASUREMENT);
+                } else if (gattService.getUuid().equals(
+                        UUID_BATTERY_SERVICE)) {
+                    charBat = gattService.getCharacteristic(
+                            UUID_BATTERY_LEVEL);
+                }
+            }
+            Log.d(TAG, "startSession: " + mAddress + " charBat=" + charBat
+                    + " charHr=" + charHr);
+            if (charBat != null || charHr != null) {
+                startSession(charBat, charHr);
+            }
+        }
+
+        /**
+         * Starts a session.
+         *
+         * @param charBat The BAT characteristic.
+         * @param charHr  The HR characteristic.
+         */
+        void startSession(BluetoothGattCharacteristic charBat,
+                          BluetoothGattCharacteristic charHr) {
+            Log.d(TAG, "startSession: " + mAddress);
+            BluetoothGatt gatt = mGatt;
+            if (gatt == null) {
+                return;
+            }
+            if (!mSessionInProgress) {
+                mSessionStartTime = nextSessionStartTime();
+                resetTime();
+                mHrvReset = true;
+            }
+
+            // // DEBUG Check permissions
+            // checkPermissions(charBat, charHr, charCustom);
+
+            // Stop notifying for existing characteristics
+            if (mCharHr != null) {
+                setCharacteristicNotification(mCharHr, false);
+            }
+
+            // Drop any pending operations
+            mOperations.clear();
+
+            // Initialize for the new values
+            mCharBat = charBat;
+            mCharHr = charHr;
+            mLastBat = INVALID_INT;
+            mLastHr = INVALID_INT;
+            mSessionInProgress = true;
+            mState = DEVICE_STATE_STARTING;
+            // Enabling HR notifications goes ahead of the battery read
+            BluetoothGattDescriptor descriptor;
+            if (mCharHr != null) {
+                descriptor = mCharHr
+                        .getDescriptor(UUID_CLIENT_CHARACTERISTIC_CONFIG);
+                descriptor
+                        .setValue(BluetoothGattDescriptor
+                                .ENABLE_NOTIFICATION_VALUE);
+                setCharacteristicNotification(mCharHr, true);
+                mOperations.add(GattOperationQueue.Operation.writeDescriptor(
+                        descriptor,
+                        GattOperationQueue.Operation.PRIORITY_HIGH));
+            }
+            if (mCharBat != null) {
+                mOperations.add(GattOperationQueue.Operation
+                        .readCharacteristic(mCharBat,
+                                GattOperationQueue.Operation.PRIORITY_LOW));
+            }
+        }
+
+        /**
+         * Stops a session.
+         */
+        void stopSession() {
+            Log.d(TAG, "stopSession: " + mAddress + " operations: "
+                    + mOperations.getInfo());
+            // Write any queued data for this session, after which its
+            // journal is no longer needed
+            BCMDbWriter writer = mDbWriter;
+            if (writer != null) {
+                writer.flush();
+                writer.closeJournal(mSessionStartTime);
+            }
+            // Drop any pending operations
+            mOperations.clear();
+            // Stop notifying for existing characteristics
+            if (mSessionInProgress && mCharHr != null) {
+                setCharacteristicNotification(mCharHr, false);
+            }
+            mCharBat = null;
+            mCharHr = null;
+            mLastHr = INVALID_INT;
+            mSessionInProgress = false;
+            if (mState == DEVICE_STATE_STARTING
+                    || mState == DEVICE_STATE_RECORDING) {
+                mState = DEVICE_STATE_DISCOVERING;
+            }
         }
-        mCharBat = null;
-        mCharHr = null;
-        mLastHr = -1;
-        mLastRr = null;
-        mSessionInProgress = false;
     }
 
 }
@@ -1,6 +1,9 @@
 package net.kenevans.android.blecardiacmonitor;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.Activity;
 import android.content.ContentValues;
@@ -8,7 +11,9 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 /**
@@ -18,15 +23,159 @@ import android.util.Log;
 public class BCMDbAdapter implements IConstants {
 	private DatabaseHelper mDbHelper;
 	private SQLiteDatabase mDb;
+	private final Context mContext;
+	/** The activity for showing errors, or null to log them. */
 	private final Activity mActivity;
 	private File mDataDir;
+	private final String mDbName;
+	/** Compiled statement for inserting data, created on first use. */
+	private SQLiteStatement mInsertDataStatement;
+	/** Reusable R-R blobs for createDataBatch, indexed by the count. */
+	private final byte[][] mRrBlobs = new byte[16][];
+	/** Compiled statement for inserting a session, created on first use. */
+	private SQLiteStatement mInsertSessionStatement;
+	/** Compiled statement for updating a session, created on first use. */
+	private SQLiteStatement mUpdateSessionStatement;
+	/** Compiled statement for getting a start date, created on first use. */
+	private SQLiteStatement mStartDateStatement;
+	/** Compiled statement for deleting a row, created on first use. */
+	private SQLiteStatement mDeleteDataStatement;
+	/** Compiled statement for deleting a session, created on first use. */
+	private SQLiteStatement mDeleteDataForStartDateStatement;
+	/** Compiled statement for deleting a session row, created on first use. */
+	private SQLiteStatement mDeleteSessionStatement;
+	/** Compiled statement for inserting a beat, created on first use. */
+	private SQLiteStatement mInsertBeatStatement;
+	/** Compiled statement for deleting beats, created on first use. */
+	private SQLiteStatement mDeleteBeatsForStartDateStatement;
+	/** Compiled statement for inserting a clock row, created on first use. */
+	private SQLiteStatement mInsertClockStatement;
+	/**
+	 * The RollupBuilder for each session being recorded, which carry the R-R
+	 * values from one batch to the next. A builder is removed when its
+	 * session ends and all of them when the rollups are changed by any
+	 * adapter.
+	 */
+	private final Map<Long, RollupBuilder> mRollupBuilders =
+			new HashMap<Long, RollupBuilder>();
+	/**
+	 * Incremented by any adapter in the process that deletes or rebuilds
+	 * rollups, so the RollupBuilders of the other adapters are not used.
+	 */
+	private static final AtomicInteger sRollupVersion = new AtomicInteger();
+	/** The value of sRollupVersion that mRollupBuilders are valid for. */
+	private int mRollupVersion = sRollupVersion.get();
+
+	/** SQL statement for inserting data with bound arguments */
+	private static final String DB_INSERT_DATA = "insert into "
+			+ DB_DATA_TABLE + " (" + COL_DATE + ", " + COL_START_DATE + ", "
+			+ COL_HR + ", " + COL_RR + ", " + COL_DEVICE + ", " + COL_TIME
+			+ ") values (?, ?, ?, ?, ?, ?);";
+
+	/** SQL statement for inserting an empty session if it does not exist */
+	private static final String DB_INSERT_SESSION = "insert or ignore into "
+			+ DB_SESSION_TABLE + " (" + COL_START_DATE + ", " + COL_END_DATE
+			+ ", " + COL_N_SAMPLES + ", " + COL_N_HR + ", " + COL_HR_SUM
+			+ ", " + COL_N_RR + ") values (?, ?, 0, 0, 0, 0);";
 
-	/** Database creation SQL statement */
-	private static final String DB_CREATE_DATA_TABLE = "create table "
-			+ DB_DATA_TABLE + " (_id integer primary key autoincrement, "
-			+ COL_DATE + " integer not null, " + COL_START_DATE
-			+ " integer not null, " + COL_HR + " integer not null, " + COL_RR
-			+ " text not null);";
+	/**
+	 * SQL statement for adding the summary of new data to a session. The
+	 * scalar min and max return null if either argument is null.
+	 */
+	private static final String DB_UPDATE_SESSION = "update "
+			+ DB_SESSION_TABLE + " set " + COL_END_DATE + " = max("
+			+ COL_END_DATE + ", ?1), " + COL_N_SAMPLES + " = "
+			+ COL_N_SAMPLES + " + ?2, " + COL_N_HR + " = " + COL_N_HR
+			+ " + ?3, " + COL_HR_MIN + " = coalesce(min(" + COL_HR_MIN
+			+ ", ?4), " + COL_HR_MIN + ", ?4), " + COL_HR_MAX
+			+ " = coalesce(max(" + COL_HR_MAX + ", ?5), " + COL_HR_MAX
+			+ ", ?5), " + COL_HR_SUM + " = " + COL_HR_SUM + " + ?6, "
+			+ COL_N_RR + " = " + COL_N_RR + " + ?7 where " + COL_START_DATE
+			+ " = ?8;";
+
+	// The queries use bound arguments and constant SQL, so the compiled
+	// statements are reused from the connection's statement cache
+
+	/** Columns for the data queries */
+	private static final String DATA_COLUMNS = COL_ID + ", " + COL_DATE
+			+ ", " + COL_START_DATE + ", " + COL_HR + ", " + COL_RR;
+	/** Columns for the HR queries */
+	private static final String HR_COLUMNS = COL_DATE + ", " + COL_HR;
+	/** Columns for the HR and R-R queries */
+	private static final String HR_RR_COLUMNS = COL_DATE + ", " + COL_HR
+			+ ", " + COL_RR;
+	/** Columns for the beat queries */
+	private static final String BEAT_COLUMNS = COL_DATE + ", " + COL_RR
+			+ ", " + COL_FLAGS;
+	/** Where clause for the start date */
+	private static final String WHERE_START_DATE = " from " + DB_DATA_TABLE
+			+ " where " + COL_START_DATE + "=? order by " + SORT_ASCENDING;
+	/** Where clause for a range of dates */
+	private static final String WHERE_DATES = " from " + DB_DATA_TABLE
+			+ " where " + COL_DATE + ">=? and " + COL_DATE + "<=? order by "
+			+ SORT_ASCENDING;
+	/** Where clause for a date and later */
+	private static final String WHERE_STARTING_AT_DATE = " from "
+			+ DB_DATA_TABLE + " where " + COL_DATE + ">=? order by "
+			+ SORT_ASCENDING;
+
+	private static final String SQL_DATA_FOR_ID = "select " + DATA_COLUMNS
+			+ " from " + DB_DATA_TABLE + " where " + COL_ID + "=?";
+	private static final String SQL_START_DATE_FOR_ID = "select "
+			+ COL_START_DATE + " from " + DB_DATA_TABLE + " where " + COL_ID
+			+ "=?";
+	private static final String SQL_DELETE_DATA = "delete from "
+			+ DB_DATA_TABLE + " where " + COL_ID + "=?";
+	private static final String SQL_DELETE_DATA_FOR_START_DATE = "delete from "
+			+ DB_DATA_TABLE + " where " + COL_START_DATE + "=?";
+	private static final String SQL_DELETE_SESSION = "delete from "
+			+ DB_SESSION_TABLE + " where " + COL_START_DATE + "=?";
+	private static final String SQL_DELETE_BEATS_FOR_START_DATE = "delete from "
+			+ DB_BEAT_TABLE + " where " + COL_START_DATE + "=?";
+	private static final String SQL_CLEAR_STALE_TIME = "update "
+			+ DB_DATA_TABLE + " set " + COL_TIME + "=null where " + COL_ID
+			+ "=? and " + COL_TIME + " / 1000 != " + COL_DATE;
+	private static final String SQL_DELETE_ROLLUPS_FOR_START_DATE = "delete from "
+			+ DB_ROLLUP_TABLE + " where " + COL_START_DATE + "=?";
+	private static final String SQL_ROLLUPS_FOR_DATES = "select " + COL_DATE
+			+ ", " + COL_N_HR + ", " + COL_HR_MIN + ", " + COL_HR_MAX + ", "
+			+ COL_HR_SUM + ", " + COL_N_RR + ", " + COL_RR_SUM + ", "
+			+ COL_RR_SUM_SQ + ", " + COL_N_DIFF + ", " + COL_DIFF_SUM_SQ
+			+ " from " + DB_ROLLUP_TABLE + " where " + COL_RES + "=? and "
+			+ COL_DATE + ">=? and " + COL_DATE + "<=? order by " + COL_DATE
+			+ " asc";
+	private static final String SQL_DELETE_CLOCK_FOR_START_DATE = "delete from "
+			+ DB_CLOCK_TABLE + " where " + COL_START_DATE + "=?";
+	private static final String SQL_LAST_DATA_TIME = "select max(coalesce("
+			+ COL_TIME + ", " + COL_DATE + " * 1000)) from " + DB_DATA_TABLE
+			+ " where " + COL_START_DATE + "=?";
+	private static final String SQL_LAST_CLOCK_TIME = "select max("
+			+ COL_TIME + ") from " + DB_CLOCK_TABLE + " where "
+			+ COL_START_DATE + "=?";
+	private static final String SQL_DATA_TIMES = "select coalesce("
+			+ COL_TIME + ", " + COL_DATE + " * 1000) as t from "
+			+ DB_DATA_TABLE + " where " + COL_START_DATE + "=? order by t";
+	private static final String SQL_CLOCK_TIMES = "select " + COL_TIME
+			+ " from " + DB_CLOCK_TABLE + " where " + COL_START_DATE
+			+ "=? order by " + COL_TIME;
+	private static final String SQL_BEATS_FOR_START_DATE = "select "
+			+ BEAT_COLUMNS + " from " + DB_BEAT_TABLE + " where "
+			+ COL_START_DATE + "=? order by " + COL_DATE + " asc";
+	private static final String SQL_BEATS_STARTING_AT_DATE = "select "
+			+ BEAT_COLUMNS + " from " + DB_BEAT_TABLE + " where " + COL_DATE
+			+ ">=? order by " + COL_DATE + " asc";
+	private static final String SQL_HR_FOR_START_DATE = "select "
+			+ HR_COLUMNS + WHERE_START_DATE;
+	private static final String SQL_HR_RR_FOR_START_DATE = "select "
+			+ HR_RR_COLUMNS + WHERE_START_DATE;
+	private static final String SQL_HR_FOR_DATES = "select " + HR_COLUMNS
+			+ WHERE_DATES;
+	private static final String SQL_HR_RR_FOR_DATES = "select "
+			+ HR_RR_COLUMNS + WHERE_DATES;
+	private static final String SQL_DATA_STARTING_AT_DATE = "select "
+			+ DATA_COLUMNS + WHERE_STARTING_AT_DATE;
+	private static final String SQL_HR_RR_STARTING_AT_DATE = "select "
+			+ HR_RR_COLUMNS + WHERE_STARTING_AT_DATE;
 
 	/**
 	 * Constructor - takes the context to allow the database to be
@@ -38,8 +187,82 @@ public class BCMDbAdapter implements IConstants {
 	 *            The location of the data.
 	 */
 	public BCMDbAdapter(Activity activity, File dataDir) {
+		this(activity, dataDir, DB_NAME);
+	}
+
+	/**
+	 * Constructor for a database with a name other than DB_NAME.
+	 * 
+	 * @param activity
+	 *            The context.
+	 * @param dataDir
+	 *            The location of the data.
+	 * @param dbName
+	 *            The file name of the database.
+	 */
+	public BCMDbAdapter(Activity activity, File dataDir, String dbName) {
+		mContext = activity;
 		mActivity = activity;
 		mDataDir = dataDir;
+		mDbName = dbName;
+	}
+
+	/**
+	 * Constructor for use without an activity, such as in a service. Errors
+	 * are logged instead of shown.
+	 * 
+	 * @param context
+	 *            The context.
+	 * @param dataDir
+	 *            The location of the data.
+	 */
+	public BCMDbAdapter(Context context, File dataDir) {
+		mContext = context;
+		mActivity = null;
+		mDataDir = dataDir;
+		mDbName = DB_NAME;
+	}
+
+	/**
+	 * Shows an error on the UI thread if there is an activity, otherwise logs
+	 * it.
+	 * 
+	 * @param msg
+	 *            The message.
+	 */
+	private void errMsg(final String msg) {
+		if (mActivity == null) {
+			Log.e(TAG, msg);
+			return;
+		}
+		mActivity.runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				Utils.errMsg(mActivity, msg);
+			}
+		});
+	}
+
+	/**
+	 * Shows an exception on the UI thread if there is an activity, otherwise
+	 * logs it.
+	 * 
+	 * @param msg
+	 *            The message.
+	 * @param ex
+	 *            The exception.
+	 */
+	private void excMsg(final String msg, final Exception ex) {
+		if (mActivity == null) {
+			Log.e(TAG, msg, ex);
+			return;
+		}
+		mActivity.runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				Utils.excMsg(mActivity, msg, ex);
+			}
+		});
 	}
 
 	/**
@@ -55,12 +278,7 @@ public class BCMDbAdapter implements IConstants {
 	public BCMDbAdapter open() throws SQLException {
 		// Make sure the directory exists and is available
 		if (mDataDir == null) {
-			mActivity.runOnUiThread(new Runnable() {
-				@Override
-				public void run() {
-					Utils.errMsg(mActivity, "Cannot access database");
-				}
-			});
+			errMsg("Cannot access database");
 			return null;
 		}
 		try {
@@ -68,75 +286,845 @@ public class BCMDbAdapter implements IConstants {
 				mDataDir.mkdirs();
 				// Try again
 				if (!mDataDir.exists()) {
-					mActivity.runOnUiThread(new Runnable() {
-						@Override
-						public void run() {
-							Utils.errMsg(mActivity,
-									"Unable to create database directory at "
-											+ mDataDir);
-						}
-					});
+					errMsg("Unable to create database directory at " + mDataDir);
 					return null;
 				}
 			}
-			mDbHelper = new DatabaseHelper(mActivity, mDataDir.getPath()
-					+ File.separator + DB_NAME);
+			mDbHelper = new DatabaseHelper(mContext, mDataDir.getPath()
+					+ File.separator + mDbName);
 			mDb = mDbHelper.getWritableDatabase();
 		} catch (final Exception ex) {
-			mActivity.runOnUiThread(new Runnable() {
-				@Override
-				public void run() {
-					Utils.excMsg(mActivity, "Error opening database at "
-							+ mDataDir, ex);
-				}
-			});
+			excMsg("Error opening database at " + mDataDir, ex);
 		}
 		return this;
 	}
 
 	public void close() {
+		synchronized (this) {
+			if (mInsertDataStatement != null) {
+				mInsertDataStatement.close();
+				mInsertDataStatement = null;
+			}
+			if (mInsertSessionStatement != null) {
+				mInsertSessionStatement.close();
+				mInsertSessionStatement = null;
+			}
+			if (mUpdateSessionStatement != null) {
+				mUpdateSessionStatement.close();
+				mUpdateSessionStatement = null;
+			}
+			if (mStartDateStatement != null) {
+				mStartDateStatement.close();
+				mStartDateStatement = null;
+			}
+			if (mDeleteDataStatement != null) {
+				mDeleteDataStatement.close();
+				mDeleteDataStatement = null;
+			}
+			if (mDeleteDataForStartDateStatement != null) {
+				mDeleteDataForStartDateStatement.close();
+				mDeleteDataForStartDateStatement = null;
+			}
+			if (mDeleteSessionStatement != null) {
+				mDeleteSessionStatement.close();
+				mDeleteSessionStatement = null;
+			}
+			if (mInsertBeatStatement != null) {
+				mInsertBeatStatement.close();
+				mInsertBeatStatement = null;
+			}
+			if (mDeleteBeatsForStartDateStatement != null) {
+				mDeleteBeatsForStartDateStatement.close();
+				mDeleteBeatsForStartDateStatement = null;
+			}
+			if (mInsertClockStatement != null) {
+				mInsertClockStatement.close();
+				mInsertClockStatement = null;
+			}
+		}
 		mDbHelper.close();
 	}
 
 	/**
-	 * Create new data using the parameters provided. If the data is
-	 * successfully created return the new rowId for that entry, otherwise
-	 * return a -1 to indicate failure.
+	 * Creates the first count rows of the given arrays in a single
+	 * transaction using a compiled insert statement. This is much faster than
+	 * inserting each row in its own transaction, since only one commit is
+	 * done. The session table is updated in the same transaction, once for
+	 * each run of rows with the same start date.
 	 * 
-	 * @param date
-	 * @param startDate
-	 * @param hr
-	 * @param rr
-	 * @return
+	 * @param dates
+	 *            The dates.
+	 * @param startDates
+	 *            The start dates.
+	 * @param hrs
+	 *            The heart rates.
+	 * @param rrCounts
+	 *            The number of R-R values for each row or
+	 *            RrUtils.RR_NOT_PRESENT.
+	 * @param rrValues
+	 *            The R-R values for all the rows, one row after another.
+	 * @param count
+	 *            The number of rows to create.
+	 * @return The number of rows created or -1 on failure.
+	 */
+	public int createDataBatch(long[] dates, long[] startDates, int[] hrs,
+			int[] rrCounts, int[] rrValues, int count) {
+		return createDataBatch(dates, startDates, hrs, rrCounts, rrValues,
+				null, count);
+	}
+
+	/**
+	 * Creates the first count rows of the given arrays in a single
+	 * transaction using a compiled insert statement, as above, with the
+	 * device for each row. This is for loading many rows, so no beats or
+	 * rollups are made. Use rebuildAllBeats and rebuildAllRollups after.
+	 * 
+	 * @param dates
+	 *            The dates.
+	 * @param startDates
+	 *            The start dates.
+	 * @param hrs
+	 *            The heart rates.
+	 * @param rrCounts
+	 *            The number of R-R values for each row or
+	 *            RrUtils.RR_NOT_PRESENT.
+	 * @param rrValues
+	 *            The R-R values for all the rows, one row after another.
+	 * @param devices
+	 *            The device addresses, or null if not known for any row.
+	 * @param count
+	 *            The number of rows to create.
+	 * @return The number of rows created or -1 on failure.
+	 */
+	public int createDataBatch(long[] dates, long[] startDates, int[] hrs,
+			int[] rrCounts, int[] rrValues, String[] devices, int count) {
+		return createDataBatch(dates, null, startDates, hrs, rrCounts,
+				rrValues, devices, null, null, count, false);
+	}
+
+	/**
+	 * Creates the first count rows of the given arrays in a single
+	 * transaction using a compiled insert statement, as above, with the
+	 * device and time for each row. This is for loading many rows, so no
+	 * beats or rollups are made. Use rebuildAllBeats and rebuildAllRollups
+	 * after.
+	 * 
+	 * @param dates
+	 *            The dates.
+	 * @param times
+	 *            The times in us, INVALID_DATE for rows with no time.
+	 * @param startDates
+	 *            The start dates.
+	 * @param hrs
+	 *            The heart rates.
+	 * @param rrCounts
+	 *            The number of R-R values for each row or
+	 *            RrUtils.RR_NOT_PRESENT.
+	 * @param rrValues
+	 *            The R-R values for all the rows, one row after another.
+	 * @param devices
+	 *            The device addresses, or null if not known for any row.
+	 * @param count
+	 *            The number of rows to create.
+	 * @return The number of rows created or -1 on failure.
+	 */
+	public int createDataBatch(long[] dates, long[] times,
+			long[] startDates, int[] hrs, int[] rrCounts, int[] rrValues,
+			String[] devices, int count) {
+		return createDataBatch(dates, times, startDates, hrs, rrCounts,
+				rrValues, devices, null, null, count, false);
+	}
+
+	/**
+	 * Creates the first count rows of the given arrays in a single
+	 * transaction using a compiled insert statement, as above, with the
+	 * device and time for each row and the beats found by a BeatTimeline.
+	 * There is a beat for each R-R value, and they are inserted in the same
+	 * transaction, as are the rollups for the rows. The rows for each session
+	 * must be in order of date.
+	 * 
+	 * @param dates
+	 *            The dates.
+	 * @param times
+	 *            The times in us, INVALID_DATE for rows with no time, or null
+	 *            if not known for any row.
+	 * @param startDates
+	 *            The start dates.
+	 * @param hrs
+	 *            The heart rates.
+	 * @param rrCounts
+	 *            The number of R-R values for each row or
+	 *            RrUtils.RR_NOT_PRESENT.
+	 * @param rrValues
+	 *            The R-R values for all the rows, one row after another.
+	 * @param devices
+	 *            The device addresses, or null if not known for any row.
+	 * @param beatTimes
+	 *            The time of the beat for each R-R value in us, INVALID_DATE
+	 *            for values with no beat, or null if there are no beats.
+	 * @param beatFlags
+	 *            The BeatTimeline flags for the first beat of each row, or
+	 *            null if there are no beats.
+	 * @param count
+	 *            The number of rows to create.
+	 * @return The number of rows created or -1 on failure.
+	 */
+	public int createDataBatch(long[] dates, long[] times,
+			long[] startDates, int[] hrs, int[] rrCounts, int[] rrValues,
+			String[] devices, long[] beatTimes, int[] beatFlags, int count) {
+		return createDataBatch(dates, times, startDates, hrs, rrCounts,
+				rrValues, devices, beatTimes, beatFlags, count, true);
+	}
+
+	/**
+	 * Creates the first count rows of the given arrays, as above.
+	 * 
+	 * @param rollup
+	 *            Whether to add the rows to the rollups.
+	 * @return The number of rows created or -1 on failure.
 	 */
-	public long createData(long date, long startDate, int hr, String rr) {
+	private synchronized int createDataBatch(long[] dates, long[] times,
+			long[] startDates, int[] hrs, int[] rrCounts, int[] rrValues,
+			String[] devices, long[] beatTimes, int[] beatFlags, int count,
+			boolean rollup) {
 		if (mDb == null) {
-			mActivity.runOnUiThread(new Runnable() {
-				@Override
-				public void run() {
-					Utils.errMsg(mActivity,
-							"Failed to create data. Database is null.");
+			errMsg("Failed to create data. Database is null.");
+			return -1;
+		}
+		if (rollup && mRollupVersion != sRollupVersion.get()) {
+			mRollupVersion = sRollupVersion.get();
+			mRollupBuilders.clear();
+		}
+		if (mInsertDataStatement == null) {
+			mInsertDataStatement = mDb.compileStatement(DB_INSERT_DATA);
+		}
+		SQLiteStatement statement = mInsertDataStatement;
+		if (beatTimes != null && mInsertBeatStatement == null) {
+			mInsertBeatStatement = mDb
+					.compileStatement(BCMSchema.DB_INSERT_BEAT);
+		}
+		int nCreated = 0;
+		int rrOffset = 0;
+		int rrCount;
+		byte[] blob;
+		// Created if there are rollups to write
+		MigrationDb db = null;
+		// Summary of the rows for the current start date
+		long sessionStart = INVALID_DATE, sessionEnd = INVALID_DATE;
+		int nSamples = 0, nHr = 0, hrMin = 0, hrMax = 0, nRr = 0, hr;
+		long hrSum = 0;
+		mDb.beginTransaction();
+		try {
+			for (int i = 0; i < count; i++) {
+				if (nSamples == 0 || startDates[i] != sessionStart) {
+					if (nSamples > 0) {
+						updateSession(sessionStart, sessionEnd, nSamples, nHr,
+								hrMin, hrMax, hrSum, nRr);
+					}
+					sessionStart = startDates[i];
+					sessionEnd = dates[i];
+					nSamples = nHr = nRr = 0;
+					hrSum = 0;
+				}
+				statement.bindLong(1, dates[i]);
+				statement.bindLong(2, startDates[i]);
+				statement.bindLong(3, hrs[i]);
+				rrCount = rrCounts[i];
+				if (rrCount < 0) {
+					statement.bindNull(4);
+				} else {
+					// The blob is copied when bound, so it can be reused
+					if (rrCount < mRrBlobs.length) {
+						blob = mRrBlobs[rrCount];
+						if (blob == null) {
+							blob = mRrBlobs[rrCount] = new byte[2 * rrCount];
+						}
+					} else {
+						blob = new byte[2 * rrCount];
+					}
+					RrUtils.toBlob(rrValues, rrOffset, rrCount, blob);
+					statement.bindBlob(4, blob);
+				}
+				if (devices == null || devices[i] == null) {
+					statement.bindNull(5);
+				} else {
+					statement.bindString(5, devices[i]);
+				}
+				if (times == null || times[i] == INVALID_DATE) {
+					statement.bindNull(6);
+				} else {
+					statement.bindLong(6, times[i]);
+				}
+				if (statement.executeInsert() < 0) {
+					if (rrCount > 0) {
+						rrOffset += rrCount;
+					}
+					continue;
 				}
-			});
+				if (rollup) {
+					if (db == null) {
+						db = new SQLiteMigrationDb(mDb);
+					}
+					getRollupBuilder(startDates[i]).add(db, dates[i], hrs[i],
+							rrValues, rrOffset, rrCount);
+				}
+				if (rrCount > 0) {
+					if (beatTimes != null) {
+						insertBeats(startDates[i], rrValues, beatTimes,
+								rrOffset, rrCount, beatFlags[i],
+								devices == null ? null : devices[i]);
+					}
+					rrOffset += rrCount;
+				}
+				nCreated++;
+				nSamples++;
+				if (dates[i] > sessionEnd) {
+					sessionEnd = dates[i];
+				}
+				hr = hrs[i];
+				if (hr > 0) {
+					if (nHr == 0 || hr < hrMin) {
+						hrMin = hr;
+					}
+					if (nHr == 0 || hr > hrMax) {
+						hrMax = hr;
+					}
+					nHr++;
+					hrSum += hr;
+				}
+				if (rrCount > 0) {
+					nRr += rrCount;
+				}
+			}
+			if (nSamples > 0) {
+				updateSession(sessionStart, sessionEnd, nSamples, nHr, hrMin,
+						hrMax, hrSum, nRr);
+			}
+			if (db != null) {
+				for (RollupBuilder builder : mRollupBuilders.values()) {
+					builder.flush(db);
+				}
+			}
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+		return nCreated;
+	}
+
+	/**
+	 * Gets the RollupBuilder for a session, creating it if necessary.
+	 * 
+	 * @param startDate
+	 *            The start date.
+	 * @return The RollupBuilder.
+	 */
+	private RollupBuilder getRollupBuilder(long startDate) {
+		RollupBuilder builder = mRollupBuilders.get(startDate);
+		if (builder == null) {
+			builder = new RollupBuilder(startDate);
+			mRollupBuilders.put(startDate, builder);
+		}
+		return builder;
+	}
+
+	/**
+	 * Removes the RollupBuilder for a session that has ended. Its buckets
+	 * were written with the last batch.
+	 * 
+	 * @param startDate
+	 *            The start date.
+	 */
+	public synchronized void endRollups(long startDate) {
+		mRollupBuilders.remove(startDate);
+	}
+
+	/**
+	 * Clears the RollupBuilders of all the adapters in the process. Must be
+	 * called when the data or rollup tables are deleted or rebuilt.
+	 */
+	private void invalidateRollupBuilders() {
+		mRollupVersion = sRollupVersion.incrementAndGet();
+		mRollupBuilders.clear();
+	}
+
+	/**
+	 * Inserts the beats for the R-R values of a row. Must be called in a
+	 * transaction.
+	 * 
+	 * @param startDate
+	 *            The start date.
+	 * @param rrValues
+	 *            The R-R values.
+	 * @param beatTimes
+	 *            The times of the beats in us, INVALID_DATE for values with
+	 *            no beat.
+	 * @param offset
+	 *            The index of the first value for the row.
+	 * @param count
+	 *            The number of values for the row.
+	 * @param flags
+	 *            The BeatTimeline flags for the first beat.
+	 * @param device
+	 *            The device address or null if not known.
+	 */
+	private void insertBeats(long startDate, int[] rrValues,
+			long[] beatTimes, int offset, int count, int flags, String device) {
+		SQLiteStatement statement = mInsertBeatStatement;
+		statement.bindLong(2, startDate);
+		if (device == null) {
+			statement.bindNull(5);
+		} else {
+			statement.bindString(5, device);
+		}
+		for (int i = offset; i < offset + count; i++) {
+			if (beatTimes[i] == INVALID_DATE) {
+				continue;
+			}
+			statement.bindLong(1, beatTimes[i] / 1000);
+			statement.bindLong(3, rrValues[i]);
+			statement.bindLong(4, i == offset ? flags : 0);
+			statement.bindLong(6, beatTimes[i]);
+			statement.executeInsert();
+		}
+	}
+
+	/**
+	 * Creates the first count rows of the given arrays in the clock table in
+	 * a single transaction.
+	 * 
+	 * @param startDates
+	 *            The start dates.
+	 * @param times
+	 *            The times on the sample clock in us.
+	 * @param walls
+	 *            The wall-clock dates at those times.
+	 * @param count
+	 *            The number of rows to create.
+	 * @return The number of rows created or -1 on failure.
+	 * @see SampleClock
+	 */
+	public synchronized int createClockBatch(long[] startDates,
+			long[] times, long[] walls, int count) {
+		if (mDb == null) {
+			errMsg("Failed to create clock rows. Database is null.");
 			return -1;
 		}
-		ContentValues values = new ContentValues();
-		values.put(COL_DATE, date);
-		values.put(COL_START_DATE, startDate);
-		values.put(COL_HR, hr);
-		values.put(COL_RR, rr);
+		if (mInsertClockStatement == null) {
+			mInsertClockStatement = mDb
+					.compileStatement(BCMSchema.DB_INSERT_CLOCK);
+		}
+		SQLiteStatement statement = mInsertClockStatement;
+		int nCreated = 0;
+		mDb.beginTransaction();
+		try {
+			for (int i = 0; i < count; i++) {
+				statement.bindLong(1, startDates[i]);
+				statement.bindLong(2, times[i]);
+				statement.bindLong(3, walls[i]);
+				if (statement.executeInsert() >= 0) {
+					nCreated++;
+				}
+			}
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+		return nCreated;
+	}
 
-		return mDb.insert(DB_DATA_TABLE, null, values);
+	/**
+	 * Adds the summary of new data to the session table, creating the session
+	 * if necessary. Must be called in a transaction.
+	 * 
+	 * @param startDate
+	 *            The start date of the session.
+	 * @param endDate
+	 *            The latest date in the new data.
+	 * @param nSamples
+	 *            The number of new rows.
+	 * @param nHr
+	 *            The number of new valid (positive) heart rates.
+	 * @param hrMin
+	 *            The minimum valid heart rate. Ignored if nHr is 0.
+	 * @param hrMax
+	 *            The maximum valid heart rate. Ignored if nHr is 0.
+	 * @param hrSum
+	 *            The sum of the valid heart rates.
+	 * @param nRr
+	 *            The number of new R-R values.
+	 */
+	private void updateSession(long startDate, long endDate, int nSamples,
+			int nHr, int hrMin, int hrMax, long hrSum, int nRr) {
+		if (mInsertSessionStatement == null) {
+			mInsertSessionStatement = mDb.compileStatement(DB_INSERT_SESSION);
+		}
+		if (mUpdateSessionStatement == null) {
+			mUpdateSessionStatement = mDb.compileStatement(DB_UPDATE_SESSION);
+		}
+		mInsertSessionStatement.bindLong(1, startDate);
+		mInsertSessionStatement.bindLong(2, endDate);
+		mInsertSessionStatement.executeInsert();
+		SQLiteStatement statement = mUpdateSessionStatement;
+		statement.bindLong(1, endDate);
+		statement.bindLong(2, nSamples);
+		statement.bindLong(3, nHr);
+		if (nHr > 0) {
+			statement.bindLong(4, hrMin);
+			statement.bindLong(5, hrMax);
+		} else {
+			statement.bindNull(4);
+			statement.bindNull(5);
+		}
+		statement.bindLong(6, hrSum);
+		statement.bindLong(7, nRr);
+		statement.bindLong(8, startDate);
+		statement.executeUpdateDelete();
 	}
 
 	/**
-	 * Delete all the data and recreate the table.
+	 * Recalculates the session table entry for the given start date from the
+	 * data. The entry is removed if there is no data for it.
 	 * 
-	 * @return true if deleted, false otherwise.
+	 * @param startDate
+	 *            The start date.
+	 */
+	public synchronized void rebuildSession(long startDate) {
+		Object[] args = new Object[] { startDate };
+		mDb.beginTransaction();
+		try {
+			if (mDeleteSessionStatement == null) {
+				mDeleteSessionStatement = mDb
+						.compileStatement(SQL_DELETE_SESSION);
+			}
+			mDeleteSessionStatement.bindLong(1, startDate);
+			mDeleteSessionStatement.executeUpdateDelete();
+			mDb.execSQL(BCMSchema.DB_SUMMARIZE_SESSIONS + " where "
+					+ COL_START_DATE + "=?"
+					+ BCMSchema.DB_SUMMARIZE_SESSIONS_GROUP, args);
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+	}
+
+	/**
+	 * Recalculates the beats for the given start date from the data.
+	 * 
+	 * @param startDate
+	 *            The start date.
+	 */
+	public synchronized void rebuildBeats(long startDate) {
+		mDb.beginTransaction();
+		try {
+			BCMSchema.rebuildBeats(new SQLiteMigrationDb(mDb), startDate);
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+	}
+
+	/**
+	 * Recalculates the rollups for the given start date from the data.
+	 * 
+	 * @param startDate
+	 *            The start date.
 	 */
-	public void recreateDataTable() {
+	public synchronized void rebuildRollups(long startDate) {
+		invalidateRollupBuilders();
+		mDb.beginTransaction();
+		try {
+			BCMSchema.rebuildRollups(new SQLiteMigrationDb(mDb), startDate);
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+	}
+
+	/**
+	 * Recalculates the whole rollup table from the data, one session per
+	 * transaction. Uses the session table and the indexes on the data
+	 * table, which should be up to date.
+	 */
+	public synchronized void rebuildAllRollups() {
+		MigrationDb db = new SQLiteMigrationDb(mDb);
+		invalidateRollupBuilders();
+		BCMSchema.createRollupTable(db);
+		Cursor cursor = mDb.query(DB_SESSION_TABLE,
+				new String[] { COL_START_DATE }, null, null, null, null, null);
+		try {
+			while (cursor.moveToNext()) {
+				mDb.beginTransaction();
+				try {
+					BCMSchema.rebuildRollups(db, cursor.getLong(0));
+					mDb.setTransactionSuccessful();
+				} finally {
+					mDb.endTransaction();
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Recalculates the whole beat table from the data, one session per
+	 * transaction. The beat indexes are dropped while the beats are written
+	 * and created at the end. Uses the session table and the indexes on the
+	 * data table, which should be up to date.
+	 * 
+	 * @return The number of beats.
+	 */
+	public synchronized long rebuildAllBeats() {
+		MigrationDb db = new SQLiteMigrationDb(mDb);
+		BCMSchema.createBeatTable(db);
+		mDb.execSQL("DROP INDEX IF EXISTS "
+				+ BCMSchema.DB_BEAT_START_DATE_INDEX);
+		mDb.execSQL("DROP INDEX IF EXISTS " + BCMSchema.DB_BEAT_DATE_INDEX);
+		long nBeats = 0;
+		Cursor cursor = mDb.query(DB_SESSION_TABLE,
+				new String[] { COL_START_DATE }, null, null, null, null, null);
+		try {
+			while (cursor.moveToNext()) {
+				mDb.beginTransaction();
+				try {
+					nBeats += BCMSchema.rebuildBeats(db, cursor.getLong(0));
+					mDb.setTransactionSuccessful();
+				} finally {
+					mDb.endTransaction();
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		for (String sql : BCMSchema.DB_CREATE_BEAT_INDEXES) {
+			mDb.execSQL(sql);
+		}
+		return nBeats;
+	}
+
+	/**
+	 * Gets the start date of the data with the given rowId.
+	 * 
+	 * @param rowId
+	 * @return The start date or INVALID_DATE if not found.
+	 */
+	private long getStartDate(long rowId) {
+		if (mStartDateStatement == null) {
+			mStartDateStatement = mDb.compileStatement(SQL_START_DATE_FOR_ID);
+		}
+		mStartDateStatement.bindLong(1, rowId);
+		try {
+			return mStartDateStatement.simpleQueryForLong();
+		} catch (SQLiteDoneException ex) {
+			// No rows
+			return INVALID_DATE;
+		}
+	}
+
+	/**
+	 * Gets the latest time of the data for a session, which is how far it
+	 * has been written.
+	 * 
+	 * @param startDate
+	 *            The start date.
+	 * @return The time in us, from the date for rows with no time, or
+	 *         INVALID_DATE if there is no data.
+	 */
+	public synchronized long getLastDataTime(long startDate) {
+		return queryLastTime(SQL_LAST_DATA_TIME, startDate);
+	}
+
+	/**
+	 * Gets the latest time of the clock rows for a session.
+	 * 
+	 * @param startDate
+	 *            The start date.
+	 * @return The time in us or INVALID_DATE if there are no clock rows.
+	 */
+	public synchronized long getLastClockTime(long startDate) {
+		return queryLastTime(SQL_LAST_CLOCK_TIME, startDate);
+	}
+
+	/**
+	 * Gets the times of all the data for a session, so rows that are already
+	 * written can be found.
+	 * 
+	 * @param startDate
+	 *            The start date.
+	 * @return The times in us in ascending order, from the date for rows
+	 *         with no time.
+	 */
+	public synchronized long[] getDataTimes(long startDate) {
+		return queryTimes(SQL_DATA_TIMES, startDate);
+	}
+
+	/**
+	 * Gets the times of all the clock rows for a session.
+	 * 
+	 * @param startDate
+	 *            The start date.
+	 * @return The times in us in ascending order.
+	 */
+	public synchronized long[] getClockTimes(long startDate) {
+		return queryTimes(SQL_CLOCK_TIMES, startDate);
+	}
+
+	/**
+	 * Runs a query for a sorted column of times.
+	 * 
+	 * @param sql
+	 *            The query, with the start date as its argument.
+	 * @param startDate
+	 *            The start date.
+	 * @return The times, empty if there are none.
+	 */
+	private long[] queryTimes(String sql, long startDate) {
+		if (mDb == null) {
+			return new long[0];
+		}
+		Cursor cursor = mDb.rawQuery(sql,
+				new String[] { Long.toString(startDate) });
+		try {
+			long[] times = new long[cursor.getCount()];
+			for (int i = 0; cursor.moveToNext(); i++) {
+				times[i] = cursor.getLong(0);
+			}
+			return times;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Runs a query for a single time that may be null.
+	 * 
+	 * @param sql
+	 *            The query, with the start date as its argument.
+	 * @param startDate
+	 *            The start date.
+	 * @return The time or INVALID_DATE if it is null.
+	 */
+	private long queryLastTime(String sql, long startDate) {
+		if (mDb == null) {
+			return INVALID_DATE;
+		}
+		Cursor cursor = mDb.rawQuery(sql,
+				new String[] { Long.toString(startDate) });
+		try {
+			if (cursor.moveToFirst() && !cursor.isNull(0)) {
+				return cursor.getLong(0);
+			}
+			return INVALID_DATE;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Creates the indexes on the data table if they do not exist.
+	 */
+	public synchronized void createIndexes() {
+		createIndexes(mDb);
+	}
+
+	/**
+	 * Drops the indexes on the data table. Only intended for measuring the
+	 * effect of the indexes. Call createIndexes to restore them.
+	 */
+	public synchronized void dropIndexes() {
+		for (String sql : BCMSchema.DB_DROP_INDEXES) {
+			mDb.execSQL(sql);
+		}
+	}
+
+	/**
+	 * Creates the indexes on the data table as they were before version 9,
+	 * covering the R-R values. Only intended for measuring the effect of
+	 * leaving them out. Call dropIndexes and then createIndexes to restore
+	 * the current ones.
+	 */
+	public synchronized void createRrIndexes() {
+		for (String sql : BCMSchema.DB_CREATE_RR_INDEXES) {
+			mDb.execSQL(sql);
+		}
+	}
+
+	/**
+	 * Creates the indexes on the data table in the given database if they do
+	 * not exist.
+	 * 
+	 * @param db
+	 *            The database.
+	 */
+	private static void createIndexes(SQLiteDatabase db) {
+		for (String sql : BCMSchema.DB_CREATE_INDEXES) {
+			db.execSQL(sql);
+		}
+	}
+
+	/**
+	 * @return Whether the database is open.
+	 */
+	public synchronized boolean isOpen() {
+		return mDb != null;
+	}
+
+	/**
+	 * @return The location of the data.
+	 */
+	public File getDataDir() {
+		return mDataDir;
+	}
+
+	/**
+	 * Gets if there are migrations from an earlier version of the database
+	 * that have not been completed. The data should not be used until
+	 * migrate has been called.
+	 * 
+	 * @return If there are pending migrations.
+	 */
+	public synchronized boolean isMigrationPending() {
+		if (mDb == null) {
+			return false;
+		}
+		return BCMSchema.createMigrator().hasPending(
+				new SQLiteMigrationDb(mDb));
+	}
+
+	/**
+	 * Runs the pending migrations on the calling thread, which should not be
+	 * the UI thread. Each step runs in its own transaction, so if the process
+	 * is killed, calling this again resumes after the last completed step.
+	 * 
+	 * @param listener
+	 *            The listener for progress or null.
+	 * @return The number of steps run.
+	 */
+	public synchronized int migrate(Migrator.ProgressListener listener) {
+		if (mDb == null) {
+			return 0;
+		}
+		return BCMSchema.createMigrator().run(new SQLiteMigrationDb(mDb),
+				listener);
+	}
+
+	/**
+	 * Delete all the data and recreate the tables. This includes the clock
+	 * table, whose rows are restored by BackupRestorer, but are not in CSV
+	 * files, so they are lost when restoring those.
+	 */
+	public synchronized void recreateDataTable() {
 		mDb.execSQL("DROP TABLE IF EXISTS " + DB_DATA_TABLE);
-		mDb.execSQL(DB_CREATE_DATA_TABLE);
+		mDb.execSQL(BCMSchema.DB_CREATE_DATA_TABLE);
+		createIndexes(mDb);
+		mDb.execSQL("DROP TABLE IF EXISTS " + DB_SESSION_TABLE);
+		mDb.execSQL(BCMSchema.DB_CREATE_SESSION_TABLE);
+		BCMSchema.createBeatTable(new SQLiteMigrationDb(mDb));
+		mDb.execSQL("DROP TABLE IF EXISTS " + DB_CLOCK_TABLE);
+		mDb.execSQL(BCMSchema.DB_CREATE_CLOCK_TABLE);
+		BCMSchema.createRollupTable(new SQLiteMigrationDb(mDb));
+		invalidateRollupBuilders();
 	}
 
 	/**
@@ -153,6 +1141,36 @@ public class BCMDbAdapter implements IConstants {
 				SORT_ASCENDING);
 	}
 
+	/**
+	 * Return a Cursor over all the columns that are saved by Save Database
+	 * for all the rows, in the order they were created.
+	 * 
+	 * @return Cursor over items.
+	 */
+	public Cursor fetchAllDataForBackup() {
+		if (mDb == null) {
+			return null;
+		}
+		return mDb.query(DB_DATA_TABLE, new String[] { COL_DATE, COL_TIME,
+				COL_START_DATE, COL_HR, COL_RR, COL_DEVICE }, null, null, null,
+				null, COL_ID + " ASC");
+	}
+
+	/**
+	 * Return a Cursor over all the rows of the clock table, for Save
+	 * Database.
+	 * 
+	 * @return Cursor over items.
+	 */
+	public Cursor fetchAllClocksForBackup() {
+		if (mDb == null) {
+			return null;
+		}
+		return mDb.query(DB_CLOCK_TABLE, new String[] { COL_START_DATE,
+				COL_TIME, COL_WALL }, null, null, null, null, COL_START_DATE
+				+ " ASC, " + COL_TIME + " ASC");
+	}
+
 	/**
 	 * Delete the data with the given rowId.
 	 * 
@@ -160,8 +1178,19 @@ public class BCMDbAdapter implements IConstants {
 	 *            id of data to delete
 	 * @return true if deleted, false otherwise.
 	 */
-	public boolean deleteData(long rowId) {
-		return mDb.delete(DB_DATA_TABLE, COL_ID + "=" + rowId, null) > 0;
+	public synchronized boolean deleteData(long rowId) {
+		long startDate = getStartDate(rowId);
+		if (mDeleteDataStatement == null) {
+			mDeleteDataStatement = mDb.compileStatement(SQL_DELETE_DATA);
+		}
+		mDeleteDataStatement.bindLong(1, rowId);
+		boolean deleted = mDeleteDataStatement.executeUpdateDelete() > 0;
+		if (deleted) {
+			rebuildSession(startDate);
+			rebuildBeats(startDate);
+			rebuildRollups(startDate);
+		}
+		return deleted;
 	}
 
 	/**
@@ -174,9 +1203,8 @@ public class BCMDbAdapter implements IConstants {
 	 *             if entry could not be found/retrieved.
 	 */
 	public Cursor fetchData(long rowId) throws SQLException {
-		Cursor mCursor = mDb.query(true, DB_DATA_TABLE, new String[] { COL_ID,
-				COL_DATE, COL_START_DATE, COL_HR, COL_RR }, COL_ID + "="
-				+ rowId, null, null, null, null, null);
+		Cursor mCursor = mDb.rawQuery(SQL_DATA_FOR_ID,
+				new String[] { Long.toString(rowId) });
 		if (mCursor != null) {
 			mCursor.moveToFirst();
 		}
@@ -186,6 +1214,7 @@ public class BCMDbAdapter implements IConstants {
 	/**
 	 * Update the data using the details provided. The data to be updated is
 	 * specified using the rowId, and it is altered to use the values passed in.
+	 * The time is kept only if the date is not changed.
 	 * 
 	 * @param rowId
 	 * @param date
@@ -194,31 +1223,60 @@ public class BCMDbAdapter implements IConstants {
 	 * @param rr
 	 * @return
 	 */
-	public boolean updateData(long rowId, long date, long startDate, int hr,
-			String rr) {
+	public synchronized boolean updateData(long rowId, long date,
+			long startDate, int hr, byte[] rr) {
 		ContentValues values = new ContentValues();
 		values.put(COL_DATE, date);
 		values.put(COL_START_DATE, startDate);
 		values.put(COL_HR, hr);
 		values.put(COL_RR, rr);
 
-		return mDb.update(DB_DATA_TABLE, values, COL_ID + "=" + rowId, null) > 0;
+		long oldStartDate = getStartDate(rowId);
+		boolean updated = mDb.update(DB_DATA_TABLE, values, COL_ID + "=?",
+				new String[] { Long.toString(rowId) }) > 0;
+		if (updated) {
+			mDb.execSQL(SQL_CLEAR_STALE_TIME, new Object[] { rowId });
+			rebuildSession(startDate);
+			rebuildBeats(startDate);
+			rebuildRollups(startDate);
+			if (oldStartDate != startDate) {
+				rebuildSession(oldStartDate);
+				rebuildBeats(oldStartDate);
+				rebuildRollups(oldStartDate);
+			}
+		}
+		return updated;
 	}
 
 	/**
 	 * Return a Cursor over the list of start and ending times, sorted in
-	 * reverse order.
+	 * reverse order. Uses the session table, so the data are not scanned.
 	 * 
-	 * @param date
 	 * @return Cursor over items.
 	 */
 	public Cursor fetchAllSessionStartEndData() {
 		if (mDb == null) {
 			return null;
 		}
-		return mDb.query(DB_DATA_TABLE, new String[] { COL_START_DATE,
-				COL_END_DATE }, null, null, COL_START_DATE, null,
-				SORT_DESCENDING);
+		return mDb.query(DB_SESSION_TABLE, new String[] { COL_START_DATE,
+				COL_END_DATE }, null, null, null, null, COL_START_DATE
+				+ " DESC");
+	}
+
+	/**
+	 * Return a Cursor over the session table, including the summary columns,
+	 * sorted in reverse order.
+	 * 
+	 * @return Cursor over items.
+	 */
+	public Cursor fetchAllSessionSummaryData() {
+		if (mDb == null) {
+			return null;
+		}
+		return mDb.query(DB_SESSION_TABLE, new String[] { COL_START_DATE,
+				COL_END_DATE, COL_N_SAMPLES, COL_N_HR, COL_HR_MIN, COL_HR_MAX,
+				COL_HR_SUM, COL_N_RR }, null, null, null, null, COL_START_DATE
+				+ " DESC");
 	}
 
 	// /////////////////////////////////////////////////////////////////////////
@@ -232,9 +1290,37 @@ public class BCMDbAdapter implements IConstants {
 	 * @param start
 	 * @return
 	 */
-	public boolean deleteAllDataForStartDate(long start) {
-		return mDb.delete(DB_DATA_TABLE,
-				COL_START_DATE + "=" + Long.toString(start), null) > 0;
+	public synchronized boolean deleteAllDataForStartDate(long start) {
+		if (mDeleteDataForStartDateStatement == null) {
+			mDeleteDataForStartDateStatement = mDb
+					.compileStatement(SQL_DELETE_DATA_FOR_START_DATE);
+		}
+		if (mDeleteSessionStatement == null) {
+			mDeleteSessionStatement = mDb.compileStatement(SQL_DELETE_SESSION);
+		}
+		if (mDeleteBeatsForStartDateStatement == null) {
+			mDeleteBeatsForStartDateStatement = mDb
+					.compileStatement(SQL_DELETE_BEATS_FOR_START_DATE);
+		}
+		boolean deleted;
+		mDb.beginTransaction();
+		try {
+			mDeleteDataForStartDateStatement.bindLong(1, start);
+			deleted = mDeleteDataForStartDateStatement.executeUpdateDelete() > 0;
+			mDeleteSessionStatement.bindLong(1, start);
+			mDeleteSessionStatement.executeUpdateDelete();
+			mDeleteBeatsForStartDateStatement.bindLong(1, start);
+			mDeleteBeatsForStartDateStatement.executeUpdateDelete();
+			mDb.execSQL(SQL_DELETE_CLOCK_FOR_START_DATE,
+					new Object[] { start });
+			mDb.execSQL(SQL_DELETE_ROLLUPS_FOR_START_DATE,
+					new Object[] { start });
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+		invalidateRollupBuilders();
+		return deleted;
 	}
 
 	/**
@@ -248,9 +1334,8 @@ public class BCMDbAdapter implements IConstants {
 		if (mDb == null) {
 			return null;
 		}
-		return mDb.query(DB_DATA_TABLE, new String[] { COL_DATE, COL_HR },
-				COL_START_DATE + "=" + Long.toString(date), null, null, null,
-				SORT_ASCENDING);
+		return mDb.rawQuery(SQL_HR_FOR_START_DATE,
+				new String[] { Long.toString(date) });
 	}
 
 	/**
@@ -264,11 +1349,23 @@ public class BCMDbAdapter implements IConstants {
 		if (mDb == null) {
 			return null;
 		}
-		return mDb
-				.query(DB_DATA_TABLE,
-						new String[] { COL_DATE, COL_HR, COL_RR },
-						COL_START_DATE + "=" + Long.toString(date), null, null,
-						null, SORT_ASCENDING);
+		return mDb.rawQuery(SQL_HR_RR_FOR_START_DATE,
+				new String[] { Long.toString(date) });
+	}
+
+	/**
+	 * Return a Cursor over the beats in the database having the given start
+	 * date, with the date, R-R value, and BeatTimeline flags, sorted by date.
+	 * 
+	 * @param date
+	 * @return Cursor over items.
+	 */
+	public Cursor fetchAllBeatsForStartDate(long date) {
+		if (mDb == null) {
+			return null;
+		}
+		return mDb.rawQuery(SQL_BEATS_FOR_START_DATE,
+				new String[] { Long.toString(date) });
 	}
 
 	// /////////////////////////////////////////////////////////////////////////
@@ -287,10 +1384,8 @@ public class BCMDbAdapter implements IConstants {
 		if (mDb == null) {
 			return null;
 		}
-		return mDb.query(DB_DATA_TABLE, new String[] { COL_DATE, COL_HR },
-				COL_DATE + ">=" + Long.toString(start) + " AND " + COL_DATE
-						+ "<=" + Long.toString(end), null, null, null,
-				SORT_ASCENDING);
+		return mDb.rawQuery(SQL_HR_FOR_DATES, new String[] {
+				Long.toString(start), Long.toString(end) });
 	}
 
 	/**
@@ -305,10 +1400,34 @@ public class BCMDbAdapter implements IConstants {
 		if (mDb == null) {
 			return null;
 		}
-		return mDb.query(DB_DATA_TABLE,
-				new String[] { COL_DATE, COL_HR, COL_RR }, COL_DATE + ">="
-						+ Long.toString(start) + " AND " + COL_DATE + "<="
-						+ Long.toString(end), null, null, null, SORT_ASCENDING);
+		return mDb.rawQuery(SQL_HR_RR_FOR_DATES, new String[] {
+				Long.toString(start), Long.toString(end) });
+	}
+
+	/**
+	 * Return a Cursor over the rollups for the given start and end times, at
+	 * the coarsest resolution that still gives at least nPoints buckets. The
+	 * columns are COL_DATE, COL_N_HR, COL_HR_MIN, COL_HR_MAX, COL_HR_SUM,
+	 * COL_N_RR, COL_RR_SUM, COL_RR_SUM_SQ, COL_N_DIFF, and COL_DIFF_SUM_SQ.
+	 * There is a row for each session in each bucket.
+	 * 
+	 * @param start
+	 * @param end
+	 * @param nPoints
+	 *            The number of points wanted, typically the width in pixels.
+	 * @return Cursor over items.
+	 * @see RollupBuilder
+	 */
+	public Cursor fetchRollupsForDates(long start, long end, int nPoints) {
+		if (mDb == null) {
+			return null;
+		}
+		long res = RollupBuilder.getResolution(start, end, nPoints);
+		// Include the bucket holding the start
+		return mDb.rawQuery(SQL_ROLLUPS_FOR_DATES,
+				new String[] { Long.toString(res),
+						Long.toString(start - start % res),
+						Long.toString(end) });
 	}
 
 	// /////////////////////////////////////////////////////////////////////////
@@ -326,10 +1445,8 @@ public class BCMDbAdapter implements IConstants {
 		if (mDb == null) {
 			return null;
 		}
-		return mDb.query(DB_DATA_TABLE, new String[] { COL_ID, COL_DATE,
-				COL_START_DATE, COL_HR, COL_RR },
-				COL_DATE + ">=" + Long.toString(date), null, null, null,
-				SORT_ASCENDING);
+		return mDb.rawQuery(SQL_DATA_STARTING_AT_DATE,
+				new String[] { Long.toString(date) });
 	}
 
 	/**
@@ -343,11 +1460,24 @@ public class BCMDbAdapter implements IConstants {
 		if (mDb == null) {
 			return null;
 		}
-		return mDb
-				.query(DB_DATA_TABLE,
-						new String[] { COL_DATE, COL_HR, COL_RR }, COL_DATE
-								+ ">=" + Long.toString(date), null, null, null,
-						SORT_ASCENDING);
+		return mDb.rawQuery(SQL_HR_RR_STARTING_AT_DATE,
+				new String[] { Long.toString(date) });
+	}
+
+	/**
+	 * Return a Cursor over the beats in the database for a given time and
+	 * later, with the date, R-R value, and BeatTimeline flags, sorted by
+	 * date.
+	 * 
+	 * @param date
+	 * @return Cursor over items.
+	 */
+	public Cursor fetchAllBeatsStartingAtDate(long date) {
+		if (mDb == null) {
+			return null;
+		}
+		return mDb.rawQuery(SQL_BEATS_STARTING_AT_DATE,
+				new String[] { Long.toString(date) });
 	}
 
 	/**
@@ -362,17 +1492,26 @@ public class BCMDbAdapter implements IConstants {
 
 		@Override
 		public void onCreate(SQLiteDatabase db) {
-			db.execSQL(DB_CREATE_DATA_TABLE);
+			BCMSchema.create(new SQLiteMigrationDb(db));
 		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			// TODO Re-do this so nothing is lost if there is a need to change
-			// the version
 			Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-					+ newVersion + ", which will destroy all old data");
-			db.execSQL("DROP TABLE IF EXISTS " + DB_DATA_TABLE);
-			onCreate(db);
+					+ newVersion);
+			// Only record the migrations here. This runs in a single
+			// transaction, typically on the UI thread, so the work is done
+			// later by migrate.
+			BCMSchema.createMigrator().markPending(new SQLiteMigrationDb(db),
+					oldVersion);
+		}
+
+		@Override
+		public void onOpen(SQLiteDatabase db) {
+			super.onOpen(db);
+			if (!db.isReadOnly()) {
+				Migrator.createTable(new SQLiteMigrationDb(db));
+			}
 		}
 	}
 
@@ -0,0 +1,777 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Write-behind stage for data rows. Rows are added to a bounded queue by the
+ * caller, which never waits on the database, and a dedicated writer thread
+ * drains the queue into the database in batches, one transaction per batch.
+ * A batch is written when the queue holds DB_WRITER_BATCH_SIZE rows, when the
+ * oldest queued row is DB_WRITER_MAX_AGE ms old, or when flush or stop is
+ * called. If the queue is full, new rows are dropped and counted. The R-R
+ * values and the times of their beats are kept as primitives in separate
+ * ring buffers, so nothing is allocated per row. The beats are written in
+ * the same transaction as their rows. The occasional rows for the clock
+ * table are queued separately and written with the next batch.
+ * <p/>
+ * If there is a journal directory, each queued row is also appended to the
+ * SessionJournal for its session, which is a write to memory-mapped files,
+ * and the writer deletes the journal as its rows are committed. The writer
+ * thread creates the next segment of each journal ahead of time. If a batch
+ * is not written in full, its journals are kept. Journals left by a process
+ * that was killed, or kept, are replayed into the database when the writer
+ * starts, skipping the rows that were committed, so large batches can be
+ * used without risking the rows waiting in the queue.
+ */
+public class BCMDbWriter implements IConstants {
+    private static final String TAG = "BCMDbWriter";
+    /**
+     * Capacity of the queue of clock rows.
+     */
+    private static final int CLOCK_QUEUE_SIZE = 32;
+
+    private final BCMDbAdapter mDbAdapter;
+    private final File mJournalDir;
+    private final Object mLock = new Object();
+    /**
+     * The journals of the sessions with rows that are not all committed or
+     * that are not closed, guarded by mLock.
+     */
+    private final List<SessionJournal> mJournals =
+            new ArrayList<SessionJournal>();
+    /**
+     * The journals left from before the writer started, to be replayed.
+     */
+    private File[] mRecoveryFiles;
+    /**
+     * The start dates of the sessions that have ended since the last batch,
+     * guarded by mLock, and those for the current batch. Their rollups are
+     * ended once the batch is written.
+     */
+    private final List<Long> mEndedSessions = new ArrayList<Long>();
+    private final List<Long> mBatchEndedSessions = new ArrayList<Long>();
+
+    // Queue, a ring buffer of primitive columns guarded by mLock
+    private final int mCapacity;
+    private final long[] mDates;
+    private final long[] mTimes;
+    private final long[] mStartDates;
+    private final int[] mHrs;
+    private final String[] mDevices;
+    private final int[] mRrCounts;
+    private final int[] mRrStarts;
+    private final int[] mRrRing;
+    private final long[] mBeatRing;
+    private final int[] mBeatFlags;
+    private final SessionJournal[] mRowJournals;
+    private final long[] mClockStartDates;
+    private final long[] mClockTimes;
+    private final long[] mClockWalls;
+    private final SessionJournal[] mClockJournals;
+    private int mClockCount;
+    private int mRrNext;
+    private int mRrUsed;
+    private int mHead;
+    private int mCount;
+    private long mOldestTime;
+    private boolean mFlushRequested;
+    private boolean mStopRequested;
+    /**
+     * Set when a journal needs its next segment created.
+     */
+    private boolean mSegmentNeeded;
+    private long mNDropped;
+
+    // Batch being written, only used by the writer thread
+    private final long[] mBatchDates;
+    private final long[] mBatchTimes;
+    private final long[] mBatchStartDates;
+    private final int[] mBatchHrs;
+    private final String[] mBatchDevices;
+    private final int[] mBatchRrCounts;
+    private final int[] mBatchRrValues;
+    private final long[] mBatchBeatTimes;
+    private final int[] mBatchBeatFlags;
+    private final SessionJournal[] mBatchJournals;
+    private final long[] mBatchClockStartDates;
+    private final long[] mBatchClockTimes;
+    private final long[] mBatchClockWalls;
+    private final SessionJournal[] mBatchClockJournals;
+
+    private Thread mThread;
+    private long mNWritten;
+    private long mNBatches;
+
+    /**
+     * Constructor for a writer with no journal.
+     *
+     * @param adapter The database adapter to write to.
+     */
+    public BCMDbWriter(BCMDbAdapter adapter) {
+        this(adapter, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param adapter    The database adapter to write to.
+     * @param journalDir The directory for the journals or null for none. It
+     *                   must only be used with this database.
+     */
+    public BCMDbWriter(BCMDbAdapter adapter, File journalDir) {
+        mDbAdapter = adapter;
+        mJournalDir = journalDir;
+        mCapacity = DB_WRITER_QUEUE_SIZE;
+        mDates = new long[mCapacity];
+        mTimes = new long[mCapacity];
+        mStartDates = new long[mCapacity];
+        mHrs = new int[mCapacity];
+        mDevices = new String[mCapacity];
+        mRrCounts = new int[mCapacity];
+        mRrStarts = new int[mCapacity];
+        mRrRing = new int[DB_WRITER_RR_QUEUE_SIZE];
+        mBeatRing = new long[DB_WRITER_RR_QUEUE_SIZE];
+        mBeatFlags = new int[mCapacity];
+        mRowJournals = new SessionJournal[mCapacity];
+        mClockStartDates = new long[CLOCK_QUEUE_SIZE];
+        mClockTimes = new long[CLOCK_QUEUE_SIZE];
+        mClockWalls = new long[CLOCK_QUEUE_SIZE];
+        mClockJournals = new SessionJournal[CLOCK_QUEUE_SIZE];
+        mBatchDates = new long[mCapacity];
+        mBatchTimes = new long[mCapacity];
+        mBatchStartDates = new long[mCapacity];
+        mBatchHrs = new int[mCapacity];
+        mBatchDevices = new String[mCapacity];
+        mBatchRrCounts = new int[mCapacity];
+        mBatchRrValues = new int[DB_WRITER_RR_QUEUE_SIZE];
+        mBatchBeatTimes = new long[DB_WRITER_RR_QUEUE_SIZE];
+        mBatchBeatFlags = new int[mCapacity];
+        mBatchJournals = new SessionJournal[mCapacity];
+        mBatchClockStartDates = new long[CLOCK_QUEUE_SIZE];
+        mBatchClockTimes = new long[CLOCK_QUEUE_SIZE];
+        mBatchClockWalls = new long[CLOCK_QUEUE_SIZE];
+        mBatchClockJournals = new SessionJournal[CLOCK_QUEUE_SIZE];
+    }
+
+    /**
+     * Starts the writer thread. It first replays any journals left from
+     * before.
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mThread != null) {
+                return;
+            }
+            if (mJournalDir != null && mJournals.isEmpty()) {
+                mRecoveryFiles = SessionJournal.listFiles(mJournalDir);
+            }
+            mStopRequested = false;
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeLoop();
+                }
+            }, TAG);
+            mThread.start();
+        }
+    }
+
+    /**
+     * Stops the writer thread after writing any queued rows. Waits for the
+     * thread to finish.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (mLock) {
+            thread = mThread;
+            if (thread == null) {
+                return;
+            }
+            mStopRequested = true;
+            mLock.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (mLock) {
+            mThread = null;
+            // Keep the journals with rows that were not written
+            for (SessionJournal journal : mJournals) {
+                journal.close();
+                journal.deleteCommitted();
+            }
+            mJournals.clear();
+        }
+        Log.d(TAG, "stop: written=" + mNWritten + " batches=" + mNBatches
+                + " dropped=" + mNDropped);
+    }
+
+    /**
+     * Queues a row to be written. Does not block. May be called from several
+     * threads, one per device.
+     *
+     * @param device    The device address or null if not known.
+     * @param date      The date.
+     * @param startDate The start date.
+     * @param hr        The heart rate.
+     * @param rr        The array holding the R-R values.
+     * @param rrCount   The number of R-R values or RrUtils.RR_NOT_PRESENT.
+     * @return False if the queue was full and the row was dropped.
+     */
+    public boolean add(String device, long date, long startDate, int hr,
+                       int[] rr, int rrCount) {
+        return add(device, date, INVALID_DATE, startDate, hr, rr, rrCount,
+                null, 0);
+    }
+
+    /**
+     * Queues a row to be written with its time from a SampleClock and the
+     * beats for its R-R values, as found by a BeatTimeline. Does not block.
+     * May be called from several threads, one per device.
+     *
+     * @param device    The device address or null if not known.
+     * @param time      The time in us.
+     * @param startDate The start date.
+     * @param hr        The heart rate.
+     * @param rr        The array holding the R-R values.
+     * @param rrCount   The number of R-R values or RrUtils.RR_NOT_PRESENT.
+     * @param beatTimes The array holding the time of the beat for each R-R
+     *                  value in us or null to write no beats.
+     * @param beatFlags The BeatTimeline flags for the first beat.
+     * @return False if the queue was full and the row was dropped.
+     */
+    public boolean add(String device, long time, long startDate, int hr,
+                       int[] rr, int rrCount, long[] beatTimes,
+                       int beatFlags) {
+        return add(device, time / 1000, time, startDate, hr, rr, rrCount,
+                beatTimes, beatFlags);
+    }
+
+    /**
+     * Queues a row to be written.
+     *
+     * @param device    The device address or null if not known.
+     * @param date      The date.
+     * @param time      The time in us or INVALID_DATE if not known.
+     * @param startDate The start date.
+     * @param hr        The heart rate.
+     * @param rr        The array holding the R-R values.
+     * @param rrCount   The number of R-R values or RrUtils.RR_NOT_PRESENT.
+     * @param beatTimes The array holding the time of the beat for each R-R
+     *                  value in us or null to write no beats.
+     * @param beatFlags The BeatTimeline flags for the first beat.
+     * @return False if the queue was full and the row was dropped.
+     */
+    private boolean add(String device, long date, long time, long startDate,
+                        int hr, int[] rr, int rrCount, long[] beatTimes,
+                        int beatFlags) {
+        synchronized (mLock) {
+            int nRr = rrCount < 0 ? 0 : rrCount;
+            if (mCount == mCapacity || mRrUsed + nRr > mRrRing.length) {
+                mNDropped++;
+                return false;
+            }
+            int index = (mHead + mCount) % mCapacity;
+            mDates[index] = date;
+            mTimes[index] = time;
+            mStartDates[index] = startDate;
+            mHrs[index] = hr;
+            mDevices[index] = device;
+            mRrCounts[index] = rrCount;
+            mRrStarts[index] = mRrNext;
+            mBeatFlags[index] = beatFlags;
+            SessionJournal journal = getJournal(startDate);
+            mRowJournals[index] = journal != null && journal.appendRow(
+                    device, date, time, hr, rr, rrCount, beatTimes, beatFlags)
+                    ? journal : null;
+            if (journal != null && journal.needsSegment()) {
+                mSegmentNeeded = true;
+                mLock.notifyAll();
+            }
+            for (int i = 0; i < nRr; i++) {
+                mRrRing[mRrNext] = rr[i];
+                mBeatRing[mRrNext] = beatTimes == null ? INVALID_DATE
+                        : beatTimes[i];
+                mRrNext = (mRrNext + 1) % mRrRing.length;
+            }
+            mRrUsed += nRr;
+            mCount++;
+            if (mCount == 1) {
+                // Wake the writer so it starts timing the age of this row
+                mOldestTime = System.currentTimeMillis();
+                mLock.notifyAll();
+            } else if (mCount >= DB_WRITER_BATCH_SIZE) {
+                mLock.notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queues a row for the clock table, to be written with the next batch.
+     * Does not block. May be called from several threads.
+     *
+     * @param startDate The start date.
+     * @param time      The time on the sample clock in us.
+     * @param wall      The wall-clock date at that time.
+     * @return False if the queue was full and the row was dropped.
+     * @see SampleClock
+     */
+    public boolean addClock(long startDate, long time, long wall) {
+        synchronized (mLock) {
+            if (mClockCount == CLOCK_QUEUE_SIZE) {
+                mNDropped++;
+                return false;
+            }
+            mClockStartDates[mClockCount] = startDate;
+            mClockTimes[mClockCount] = time;
+            mClockWalls[mClockCount] = wall;
+            SessionJournal journal = getJournal(startDate);
+            mClockJournals[mClockCount] = journal != null
+                    && journal.appendClock(time, wall) ? journal : null;
+            if (journal != null && journal.needsSegment()) {
+                mSegmentNeeded = true;
+                mLock.notifyAll();
+            }
+            mClockCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Closes the journal for a session that has ended, so it is deleted once
+     * the queued rows for the session are written, and ends its rollups
+     * after the next batch. Does not block on the database.
+     *
+     * @param startDate The start date.
+     */
+    public void closeJournal(long startDate) {
+        synchronized (mLock) {
+            mEndedSessions.add(startDate);
+            mLock.notifyAll();
+            for (int i = 0; i < mJournals.size(); i++) {
+                SessionJournal journal = mJournals.get(i);
+                if (journal.getStartDate() == startDate) {
+                    journal.close();
+                    if (journal.isDone()) {
+                        journal.deleteCommitted();
+                        mJournals.remove(i);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the journal for a session, creating it if necessary. Must be
+     * called with mLock held.
+     *
+     * @param startDate The start date.
+     * @return The journal or null if there is no journal directory.
+     */
+    private SessionJournal getJournal(long startDate) {
+        if (mJournalDir == null) {
+            return null;
+        }
+        // There are few sessions, and this does not allocate
+        for (int i = 0; i < mJournals.size(); i++) {
+            SessionJournal journal = mJournals.get(i);
+            if (journal.getStartDate() == startDate) {
+                return journal;
+            }
+        }
+        SessionJournal journal = new SessionJournal(mJournalDir, startDate);
+        mJournals.add(journal);
+        return journal;
+    }
+
+    /**
+     * Requests that the queued rows be written as soon as possible. Does not
+     * block.
+     */
+    public void flush() {
+        synchronized (mLock) {
+            mFlushRequested = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Gets the number of rows dropped because the queue was full.
+     *
+     * @return The number of dropped rows.
+     */
+    public long getNDropped() {
+        synchronized (mLock) {
+            return mNDropped;
+        }
+    }
+
+    /**
+     * The loop run by the writer thread.
+     */
+    private void writeLoop() {
+        File[] recoveryFiles;
+        synchronized (mLock) {
+            recoveryFiles = mRecoveryFiles;
+            mRecoveryFiles = null;
+        }
+        if (recoveryFiles != null && recoveryFiles.length > 0) {
+            new Recovery().replay(recoveryFiles);
+        }
+        boolean done = false;
+        while (!done) {
+            int nRows, nClockRows;
+            createSegments();
+            synchronized (mLock) {
+                // Wait until there is a reason to write, or a segment to
+                // create
+                boolean due = false;
+                while (!mSegmentNeeded) {
+                    long wait = 0;
+                    if (mStopRequested || mFlushRequested
+                            || !mEndedSessions.isEmpty()
+                            || mCount >= DB_WRITER_BATCH_SIZE) {
+                        due = true;
+                    } else if (mCount > 0) {
+                        wait = mOldestTime + DB_WRITER_MAX_AGE
+                                - System.currentTimeMillis();
+                        due = wait <= 0;
+                    }
+                    if (due) {
+                        break;
+                    }
+                    try {
+                        mLock.wait(wait);
+                    } catch (InterruptedException ex) {
+                        mStopRequested = true;
+                    }
+                }
+                if (!due) {
+                    continue;
+                }
+                done = mStopRequested;
+                mFlushRequested = false;
+                // Move the queued rows to the batch
+                nRows = mCount;
+                int nRr = 0;
+                for (int i = 0; i < nRows; i++) {
+                    int index = (mHead + i) % mCapacity;
+                    mBatchDates[i] = mDates[index];
+                    mBatchTimes[i] = mTimes[index];
+                    mBatchStartDates[i] = mStartDates[index];
+                    mBatchHrs[i] = mHrs[index];
+                    mBatchDevices[i] = mDevices[index];
+                    int rrCount = mRrCounts[index];
+                    mBatchRrCounts[i] = rrCount;
+                    mBatchBeatFlags[i] = mBeatFlags[index];
+                    mBatchJournals[i] = mRowJournals[index];
+                    mRowJournals[index] = null;
+                    for (int j = 0, k = mRrStarts[index]; j < rrCount; j++) {
+                        mBatchBeatTimes[nRr] = mBeatRing[k];
+                        mBatchRrValues[nRr++] = mRrRing[k];
+                        k = (k + 1) % mRrRing.length;
+                    }
+                }
+                mHead = (mHead + nRows) % mCapacity;
+                mCount = 0;
+                mRrUsed = 0;
+                nClockRows = mClockCount;
+                System.arraycopy(mClockStartDates, 0, mBatchClockStartDates,
+                        0, nClockRows);
+                System.arraycopy(mClockTimes, 0, mBatchClockTimes, 0,
+                        nClockRows);
+                System.arraycopy(mClockWalls, 0, mBatchClockWalls, 0,
+                        nClockRows);
+                System.arraycopy(mClockJournals, 0, mBatchClockJournals, 0,
+                        nClockRows);
+                Arrays.fill(mClockJournals, 0, nClockRows, null);
+                mClockCount = 0;
+                mBatchEndedSessions.addAll(mEndedSessions);
+                mEndedSessions.clear();
+            }
+            boolean rowsWritten = nRows == 0 || writeBatch(nRows);
+            boolean clockWritten = nClockRows == 0
+                    || writeClockBatch(nClockRows);
+            commitJournals(nRows, rowsWritten, nClockRows, clockWritten);
+            for (int i = 0; i < mBatchEndedSessions.size(); i++) {
+                mDbAdapter.endRollups(mBatchEndedSessions.get(i));
+            }
+            mBatchEndedSessions.clear();
+        }
+    }
+
+    /**
+     * Counts the rows of the batch as committed in their journals if they
+     * were written and deletes what is no longer needed. If they were not
+     * all written, their journals are kept instead, since it is not known
+     * which were, and they are replayed the next time the writer starts.
+     *
+     * @param nRows         The number of data rows.
+     * @param rowsWritten   If the data rows were all written.
+     * @param nClockRows    The number of clock rows.
+     * @param clocksWritten If the clock rows were all written.
+     */
+    private void commitJournals(int nRows, boolean rowsWritten,
+                                int nClockRows, boolean clocksWritten) {
+        synchronized (mLock) {
+            for (int i = 0; i < nRows; i++) {
+                if (mBatchJournals[i] != null) {
+                    if (rowsWritten) {
+                        mBatchJournals[i].commit(1, 0);
+                    } else {
+                        mBatchJournals[i].keep();
+                    }
+                    mBatchJournals[i] = null;
+                }
+            }
+            for (int i = 0; i < nClockRows; i++) {
+                if (mBatchClockJournals[i] != null) {
+                    if (clocksWritten) {
+                        mBatchClockJournals[i].commit(0, 1);
+                    } else {
+                        mBatchClockJournals[i].keep();
+                    }
+                    mBatchClockJournals[i] = null;
+                }
+            }
+            if (nRows == 0 && nClockRows == 0) {
+                return;
+            }
+            for (int i = mJournals.size() - 1; i >= 0; i--) {
+                SessionJournal journal = mJournals.get(i);
+                journal.deleteCommitted();
+                if (journal.isDone()) {
+                    mJournals.remove(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the next segment of the journals that need one. The files are
+     * created and mapped without holding mLock, so adding rows does not
+     * wait on the file system.
+     */
+    private void createSegments() {
+        while (true) {
+            SessionJournal journal = null;
+            File file = null;
+            synchronized (mLock) {
+                mSegmentNeeded = false;
+                for (int i = 0; i < mJournals.size(); i++) {
+                    if (mJournals.get(i).needsSegment()) {
+                        journal = mJournals.get(i);
+                        file = journal.nextSegmentFile();
+                        break;
+                    }
+                }
+            }
+            if (journal == null) {
+                return;
+            }
+            MappedByteBuffer buffer = null;
+            try {
+                buffer = SessionJournal.mapSegment(file);
+            } catch (IOException ex) {
+                Log.e(TAG, "Error creating " + file, ex);
+            }
+            synchronized (mLock) {
+                if (mJournals.contains(journal)) {
+                    journal.setNextSegment(file, buffer);
+                } else if (!file.delete() && file.exists()) {
+                    // The journal was deleted meanwhile
+                    Log.e(TAG, "Cannot delete " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the first nRows rows of the batch to the database.
+     *
+     * @param nRows The number of rows.
+     * @return If the rows were all written.
+     */
+    private boolean writeBatch(int nRows) {
+        try {
+            int nCreated = mDbAdapter.createDataBatch(mBatchDates,
+                    mBatchTimes, mBatchStartDates, mBatchHrs, mBatchRrCounts,
+                    mBatchRrValues, mBatchDevices, mBatchBeatTimes,
+                    mBatchBeatFlags, nRows);
+            if (nCreated >= 0) {
+                mNWritten += nCreated;
+                mNBatches++;
+            }
+            if (nCreated != nRows) {
+                Log.w(TAG, "writeBatch: Wrote " + nCreated + " of " + nRows
+                        + " rows");
+            }
+            return nCreated == nRows;
+        } catch (Exception ex) {
+            Log.e(TAG, "writeBatch: Error writing " + nRows + " rows", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the first nRows clock rows of the batch to the database.
+     *
+     * @param nRows The number of rows.
+     * @return If the rows were all written.
+     */
+    private boolean writeClockBatch(int nRows) {
+        try {
+            return mDbAdapter.createClockBatch(mBatchClockStartDates,
+                    mBatchClockTimes, mBatchClockWalls, nRows) == nRows;
+        } catch (Exception ex) {
+            Log.e(TAG, "writeClockBatch: Error writing " + nRows + " rows",
+                    ex);
+            return false;
+        }
+    }
+
+    /**
+     * Replays journals into the database, using the batch arrays. Only used
+     * by the writer thread before it takes rows from the queue. Rows after
+     * the last one written for their session are written. Earlier rows may
+     * be missing too, if a batch was not written but later ones were, so
+     * they are looked up in the times of the rows that are written.
+     */
+    private class Recovery implements SessionJournal.Visitor {
+        private long mLastTime;
+        private long mLastClockTime;
+        /**
+         * The sorted times of the rows written for the session, read when
+         * first needed, or null.
+         */
+        private long[] mTimes;
+        private long[] mClockTimes;
+        private int mNRows;
+        private int mNRr;
+        private int mNClockRows;
+        private long mStartDate;
+        private boolean mFailed;
+        private long mNReplayed;
+
+        /**
+         * Replays the given journal files, which must be in the order they
+         * were written, and deletes them if all their rows were written.
+         *
+         * @param files The files.
+         */
+        void replay(File[] files) {
+            Log.i(TAG, "Replaying " + files.length + " journal files");
+            mStartDate = INVALID_DATE;
+            for (File file : files) {
+                long startDate = SessionJournal.getStartDate(file);
+                if (startDate != mStartDate) {
+                    mStartDate = startDate;
+                    mLastTime = mDbAdapter.getLastDataTime(startDate);
+                    mLastClockTime = mDbAdapter.getLastClockTime(startDate);
+                    mTimes = null;
+                    mClockTimes = null;
+                    // Later files of a session are kept if one fails, as
+                    // its rows would otherwise be taken as committed
+                    mFailed = false;
+                }
+                try {
+                    SessionJournal.read(file, this);
+                } catch (IOException ex) {
+                    Log.e(TAG, "Error reading " + file, ex);
+                    mFailed = true;
+                }
+                writeRows();
+                writeClockRows();
+                if (!mFailed && !file.delete()) {
+                    Log.e(TAG, "Cannot delete " + file);
+                }
+            }
+            Log.i(TAG, "Replayed " + mNReplayed + " rows");
+        }
+
+        @Override
+        public void row(String device, long date, long time, int hr,
+                        int[] rr, int rrCount, long[] beatTimes,
+                        int beatFlags) {
+            long rowTime = time != INVALID_DATE ? time : date * 1000;
+            if (mLastTime != INVALID_DATE && rowTime <= mLastTime) {
+                if (mTimes == null) {
+                    mTimes = mDbAdapter.getDataTimes(mStartDate);
+                }
+                if (Arrays.binarySearch(mTimes, rowTime) >= 0) {
+                    // Already committed
+                    return;
+                }
+            }
+            int nRr = rrCount < 0 ? 0 : rrCount;
+            if (mNRows == mCapacity || mNRr + nRr > mBatchRrValues.length) {
+                writeRows();
+            }
+            int i = mNRows++;
+            mBatchDates[i] = date;
+            mBatchTimes[i] = time;
+            mBatchStartDates[i] = mStartDate;
+            mBatchHrs[i] = hr;
+            mBatchDevices[i] = device;
+            mBatchRrCounts[i] = rrCount;
+            mBatchBeatFlags[i] = beatFlags;
+            mBatchJournals[i] = null;
+            for (int j = 0; j < nRr; j++) {
+                mBatchRrValues[mNRr] = rr[j];
+                mBatchBeatTimes[mNRr++] = beatTimes == null ? INVALID_DATE
+                        : beatTimes[j];
+            }
+        }
+
+        @Override
+        public void clock(long time, long wall) {
+            if (mLastClockTime != INVALID_DATE && time <= mLastClockTime) {
+                if (mClockTimes == null) {
+                    mClockTimes = mDbAdapter.getClockTimes(mStartDate);
+                }
+                if (Arrays.binarySearch(mClockTimes, time) >= 0) {
+                    return;
+                }
+            }
+            if (mNClockRows == CLOCK_QUEUE_SIZE) {
+                writeClockRows();
+            }
+            int i = mNClockRows++;
+            mBatchClockStartDates[i] = mStartDate;
+            mBatchClockTimes[i] = time;
+            mBatchClockWalls[i] = wall;
+            mBatchClockJournals[i] = null;
+        }
+
+        private void writeRows() {
+            if (mNRows > 0) {
+                if (writeBatch(mNRows)) {
+                    mNReplayed += mNRows;
+                } else {
+                    mFailed = true;
+                }
+            }
+            mNRows = 0;
+            mNRr = 0;
+        }
+
+        private void writeClockRows() {
+            if (mNClockRows > 0 && !writeClockBatch(mNClockRows)) {
+                mFailed = true;
+            }
+            mNClockRows = 0;
+        }
+    }
+
+}
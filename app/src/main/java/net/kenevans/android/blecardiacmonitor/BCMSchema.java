@@ -0,0 +1,538 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The database schema and the migrations from earlier versions. This does
+ * not depend on Android, so the migrations can be run on the JVM.
+ */
+public class BCMSchema implements IConstants {
+    /**
+     * Number of rows copied in each step when a table is copied.
+     */
+    public static final int MIGRATION_CHUNK_SIZE = 10000;
+
+    /**
+     * Data table creation SQL statement.
+     */
+    public static final String DB_CREATE_DATA_TABLE = createDataTableSql(
+            DB_DATA_TABLE);
+
+    /**
+     * Session table creation SQL statement. There is one row for each start
+     * date, holding a summary of the data for that start date.
+     */
+    public static final String DB_CREATE_SESSION_TABLE = "create table "
+            + DB_SESSION_TABLE + " (" + COL_START_DATE
+            + " integer primary key, " + COL_END_DATE + " integer not null, "
+            + COL_N_SAMPLES + " integer not null, " + COL_N_HR
+            + " integer not null, " + COL_HR_MIN + " integer, " + COL_HR_MAX
+            + " integer, " + COL_HR_SUM + " integer not null, " + COL_N_RR
+            + " integer not null);";
+
+    /**
+     * SQL statement for summarizing the data into the session table. A where
+     * clause may be appended, followed by DB_SUMMARIZE_SESSIONS_GROUP.
+     */
+    public static final String DB_SUMMARIZE_SESSIONS = "insert into "
+            + DB_SESSION_TABLE + " (" + COL_START_DATE + ", " + COL_END_DATE
+            + ", " + COL_N_SAMPLES + ", " + COL_N_HR + ", " + COL_HR_MIN
+            + ", " + COL_HR_MAX + ", " + COL_HR_SUM + ", " + COL_N_RR
+            + ") select " + COL_START_DATE + ", max(" + COL_DATE
+            + "), count(*), count(case when " + COL_HR
+            + " > 0 then 1 end), min(case when " + COL_HR + " > 0 then "
+            + COL_HR + " end), max(case when " + COL_HR + " > 0 then "
+            + COL_HR + " end), total(case when " + COL_HR + " > 0 then "
+            + COL_HR + " end), total(length(" + COL_RR + ") / 2) from "
+            + DB_DATA_TABLE;
+
+    /**
+     * SQL group by clause for DB_SUMMARIZE_SESSIONS.
+     */
+    public static final String DB_SUMMARIZE_SESSIONS_GROUP = " group by "
+            + COL_START_DATE;
+
+    /**
+     * Name of the index on the data table by start date.
+     */
+    public static final String DB_START_DATE_INDEX = DB_DATA_TABLE
+            + "_startdate_idx";
+    /**
+     * Name of the index on the data table by date.
+     */
+    public static final String DB_DATE_INDEX = DB_DATA_TABLE + "_date_idx";
+
+    /**
+     * Index creation SQL statements. The range queries come out sorted by
+     * date, and those for the HR alone are answered from the index. The R-R
+     * blob is read from the table, since having it in the indexes makes
+     * them nearly as large as the table and slows down the inserts.
+     */
+    public static final String[] DB_CREATE_INDEXES = {
+            "create index if not exists " + DB_START_DATE_INDEX + " on "
+                    + DB_DATA_TABLE + " (" + COL_START_DATE + ", " + COL_DATE
+                    + ", " + COL_HR + ");",
+            "create index if not exists " + DB_DATE_INDEX + " on "
+                    + DB_DATA_TABLE + " (" + COL_DATE + ", " + COL_HR + ");"};
+
+    /**
+     * The index creation SQL statements before version 9, which also
+     * covered the R-R blob. Only used by DbBenchmark for comparison.
+     */
+    public static final String[] DB_CREATE_RR_INDEXES = {
+            "create index if not exists " + DB_START_DATE_INDEX + " on "
+                    + DB_DATA_TABLE + " (" + COL_START_DATE + ", " + COL_DATE
+                    + ", " + COL_HR + ", " + COL_RR + ");",
+            "create index if not exists " + DB_DATE_INDEX + " on "
+                    + DB_DATA_TABLE + " (" + COL_DATE + ", " + COL_HR + ", "
+                    + COL_RR + ");"};
+
+    /**
+     * Index drop SQL statements for the data table.
+     */
+    public static final String[] DB_DROP_INDEXES = {
+            "drop index if exists " + DB_START_DATE_INDEX,
+            "drop index if exists " + DB_DATE_INDEX};
+
+    /**
+     * Beat table creation SQL statement. There is one row for each R-R
+     * value, with the time of the beat that ends it as found by a
+     * BeatTimeline, in us, and the date in ms. The R-R value is in units of
+     * 1/1024 sec. There is no rowid alias, since the rows are only found by
+     * date.
+     */
+    public static final String DB_CREATE_BEAT_TABLE = "create table "
+            + DB_BEAT_TABLE + " (" + COL_DATE + " integer not null, "
+            + COL_START_DATE + " integer not null, " + COL_RR
+            + " integer not null, " + COL_FLAGS + " integer not null, "
+            + COL_DEVICE + " text, " + COL_TIME + " integer not null);";
+
+    /**
+     * Name of the index on the beat table by start date.
+     */
+    public static final String DB_BEAT_START_DATE_INDEX = DB_BEAT_TABLE
+            + "_startdate_idx";
+    /**
+     * Name of the index on the beat table by date.
+     */
+    public static final String DB_BEAT_DATE_INDEX = DB_BEAT_TABLE
+            + "_date_idx";
+
+    /**
+     * Beat index creation SQL statements. As for the data table, the indexes
+     * cover the columns returned by the queries.
+     */
+    public static final String[] DB_CREATE_BEAT_INDEXES = {
+            "create index if not exists " + DB_BEAT_START_DATE_INDEX + " on "
+                    + DB_BEAT_TABLE + " (" + COL_START_DATE + ", " + COL_DATE
+                    + ", " + COL_RR + ", " + COL_FLAGS + ");",
+            "create index if not exists " + DB_BEAT_DATE_INDEX + " on "
+                    + DB_BEAT_TABLE + " (" + COL_DATE + ", " + COL_RR + ", "
+                    + COL_FLAGS + ");"};
+
+    /**
+     * SQL statement for inserting a beat with bound arguments.
+     */
+    public static final String DB_INSERT_BEAT = "insert into "
+            + DB_BEAT_TABLE + " (" + COL_DATE + ", " + COL_START_DATE + ", "
+            + COL_RR + ", " + COL_FLAGS + ", " + COL_DEVICE + ", "
+            + COL_TIME + ") values (?, ?, ?, ?, ?, ?);";
+
+    /**
+     * Clock table creation SQL statement. The first row for a session is the
+     * anchor of its SampleClock, and each later row a correction, giving
+     * the wall-clock date at a time on the sample clock. The wall clock may
+     * have drifted or been changed in between, while the sample clock did
+     * not jump.
+     */
+    public static final String DB_CREATE_CLOCK_TABLE = "create table "
+            + DB_CLOCK_TABLE + " (" + COL_START_DATE + " integer not null, "
+            + COL_TIME + " integer not null, " + COL_WALL
+            + " integer not null);";
+
+    /**
+     * SQL statement for inserting a clock row with bound arguments.
+     */
+    public static final String DB_INSERT_CLOCK = "insert into "
+            + DB_CLOCK_TABLE + " (" + COL_START_DATE + ", " + COL_TIME + ", "
+            + COL_WALL + ") values (?, ?, ?);";
+
+    private static final String SQL_DELETE_BEATS_FOR_START_DATE = "delete "
+            + "from " + DB_BEAT_TABLE + " where " + COL_START_DATE + "=?";
+    /**
+     * Rollup table creation SQL statement. There is a row for each bucket
+     * of each resolution in each session, made by a RollupBuilder. The HR
+     * min and max are null if there are no valid heart rates. The R-R
+     * values are in units of 1/1024 sec.
+     */
+    public static final String DB_CREATE_ROLLUP_TABLE = "create table "
+            + DB_ROLLUP_TABLE + " (" + COL_RES + " integer not null, "
+            + COL_DATE + " integer not null, " + COL_START_DATE
+            + " integer not null, " + COL_N_SAMPLES + " integer not null, "
+            + COL_N_HR + " integer not null, " + COL_HR_MIN + " integer, "
+            + COL_HR_MAX + " integer, " + COL_HR_SUM + " integer not null, "
+            + COL_N_RR + " integer not null, " + COL_RR_SUM
+            + " integer not null, " + COL_RR_SUM_SQ + " integer not null, "
+            + COL_N_DIFF + " integer not null, " + COL_DIFF_SUM_SQ
+            + " integer not null);";
+
+    /**
+     * Rollup index creation SQL statements. The first makes the buckets
+     * unique and is used for the range queries, and the second for a
+     * session.
+     */
+    public static final String[] DB_CREATE_ROLLUP_INDEXES = {
+            "create unique index if not exists " + DB_ROLLUP_TABLE
+                    + "_res_date_idx on " + DB_ROLLUP_TABLE + " (" + COL_RES
+                    + ", " + COL_DATE + ", " + COL_START_DATE + ");",
+            "create index if not exists " + DB_ROLLUP_TABLE
+                    + "_startdate_idx on " + DB_ROLLUP_TABLE + " ("
+                    + COL_START_DATE + ");"};
+
+    /**
+     * SQL statement for inserting an empty bucket if it does not exist, with
+     * the resolution, date, and start date as bound arguments.
+     */
+    public static final String DB_INSERT_ROLLUP = "insert or ignore into "
+            + DB_ROLLUP_TABLE + " (" + COL_RES + ", " + COL_DATE + ", "
+            + COL_START_DATE + ", " + COL_N_SAMPLES + ", " + COL_N_HR + ", "
+            + COL_HR_SUM + ", " + COL_N_RR + ", " + COL_RR_SUM + ", "
+            + COL_RR_SUM_SQ + ", " + COL_N_DIFF + ", " + COL_DIFF_SUM_SQ
+            + ") values (?, ?, ?, 0, 0, 0, 0, 0, 0, 0, 0);";
+
+    /**
+     * SQL statement for adding to a bucket, as for the session table, with
+     * the resolution, date, and start date as the last bound arguments.
+     */
+    public static final String DB_UPDATE_ROLLUP = "update " + DB_ROLLUP_TABLE
+            + " set " + COL_N_SAMPLES + " = " + COL_N_SAMPLES + " + ?1, "
+            + COL_N_HR + " = " + COL_N_HR + " + ?2, " + COL_HR_MIN
+            + " = coalesce(min(" + COL_HR_MIN + ", ?3), " + COL_HR_MIN
+            + ", ?3), " + COL_HR_MAX + " = coalesce(max(" + COL_HR_MAX
+            + ", ?4), " + COL_HR_MAX + ", ?4), " + COL_HR_SUM + " = "
+            + COL_HR_SUM + " + ?5, " + COL_N_RR + " = " + COL_N_RR
+            + " + ?6, " + COL_RR_SUM + " = " + COL_RR_SUM + " + ?7, "
+            + COL_RR_SUM_SQ + " = " + COL_RR_SUM_SQ + " + ?8, " + COL_N_DIFF
+            + " = " + COL_N_DIFF + " + ?9, " + COL_DIFF_SUM_SQ + " = "
+            + COL_DIFF_SUM_SQ + " + ?10 where " + COL_RES + " = ?11 and "
+            + COL_DATE + " = ?12 and " + COL_START_DATE + " = ?13";
+
+    private static final String SQL_DELETE_ROLLUPS_FOR_START_DATE = "delete "
+            + "from " + DB_ROLLUP_TABLE + " where " + COL_START_DATE + "=?";
+    // Rows at the same date are in the order they were recorded, as the
+    // RollupBuilder saw them, not that of the index, which is by HR
+    private static final String SQL_DATA_FOR_ROLLUPS = "select " + COL_DATE
+            + ", " + COL_HR + ", " + COL_RR + " from " + DB_DATA_TABLE
+            + " where " + COL_START_DATE + "=? order by " + COL_DATE
+            + " asc, " + COL_ID + " asc";
+
+    // Rows from before version 7 have no time. Rows at the same date are
+    // in the order they were recorded, as for the rollups.
+    private static final String SQL_DATA_FOR_BEATS = "select coalesce("
+            + COL_TIME + ", " + COL_DATE + " * 1000), " + COL_HR + ", "
+            + COL_RR + ", " + COL_DEVICE + " from " + DB_DATA_TABLE
+            + " where " + COL_START_DATE + "=? order by " + COL_DATE
+            + " asc, " + COL_ID + " asc";
+    private static final String SQL_NEXT_START_DATE = "select min("
+            + COL_START_DATE + ") from " + DB_DATA_TABLE + " where "
+            + COL_START_DATE + ">?";
+
+    /**
+     * Gets the SQL statement to create a data table with the given name. The
+     * R-R values are a blob of little-endian UINT16 values, null if not
+     * present. The device is the address of the device that recorded the
+     * row, null if not known. The time is the date in us, null if not
+     * known.
+     *
+     * @param table The table name.
+     * @return The SQL statement.
+     */
+    public static String createDataTableSql(String table) {
+        return "create table " + table
+                + " (_id integer primary key autoincrement, " + COL_DATE
+                + " integer not null, " + COL_START_DATE
+                + " integer not null, " + COL_HR + " integer not null, "
+                + COL_RR + " blob, " + COL_DEVICE + " text, " + COL_TIME
+                + " integer);";
+    }
+
+    /**
+     * Creates the current schema in an empty database and records all the
+     * migrations as done.
+     *
+     * @param db The database.
+     */
+    public static void create(MigrationDb db) {
+        db.execSQL(DB_CREATE_DATA_TABLE);
+        for (String sql : DB_CREATE_INDEXES) {
+            db.execSQL(sql);
+        }
+        db.execSQL(DB_CREATE_SESSION_TABLE);
+        createBeatTable(db);
+        db.execSQL(DB_CREATE_CLOCK_TABLE);
+        createRollupTable(db);
+        createMigrator().markAllDone(db);
+    }
+
+    /**
+     * Creates the beat table and its indexes, replacing any existing table.
+     *
+     * @param db The database.
+     */
+    public static void createBeatTable(MigrationDb db) {
+        db.execSQL("drop table if exists " + DB_BEAT_TABLE);
+        db.execSQL(DB_CREATE_BEAT_TABLE);
+        for (String sql : DB_CREATE_BEAT_INDEXES) {
+            db.execSQL(sql);
+        }
+    }
+
+    /**
+     * Creates the rollup table and its indexes, replacing any existing
+     * table.
+     *
+     * @param db The database.
+     */
+    public static void createRollupTable(MigrationDb db) {
+        db.execSQL("drop table if exists " + DB_ROLLUP_TABLE);
+        db.execSQL(DB_CREATE_ROLLUP_TABLE);
+        for (String sql : DB_CREATE_ROLLUP_INDEXES) {
+            db.execSQL(sql);
+        }
+    }
+
+    /**
+     * Replaces the rollups for a start date with those made from the data.
+     * Should be called in a transaction.
+     *
+     * @param db        The database.
+     * @param startDate The start date.
+     */
+    public static void rebuildRollups(MigrationDb db, long startDate) {
+        db.execSQL(SQL_DELETE_ROLLUPS_FOR_START_DATE, startDate);
+        RollupBuilder builder = new RollupBuilder(startDate);
+        MigrationDb.Rows rows = db.query(SQL_DATA_FOR_ROLLUPS, startDate);
+        try {
+            while (rows.next()) {
+                builder.add(db, rows.getLong(0), (int) rows.getLong(1),
+                        rows.isNull(2) ? null : rows.getBlob(2));
+            }
+        } finally {
+            rows.close();
+        }
+        builder.flush(db);
+    }
+
+    /**
+     * Replaces the beats for a start date with those found by replaying the
+     * data through a BeatTimeline, in the same way as while recording. A row
+     * with an invalid HR and no R-R values is a gap. Should be called in a
+     * transaction.
+     *
+     * @param db        The database.
+     * @param startDate The start date.
+     * @return The number of beats.
+     */
+    public static int rebuildBeats(MigrationDb db, long startDate) {
+        db.execSQL(SQL_DELETE_BEATS_FOR_START_DATE, startDate);
+        BeatTimeline timeline = new BeatTimeline();
+        int[] rr = new int[HeartRateValues.MAX_RR];
+        long[] beatTimes = new long[HeartRateValues.MAX_RR];
+        int nBeats = 0;
+        int count, flags;
+        byte[] blob;
+        String device;
+        MigrationDb.Rows rows = db.query(SQL_DATA_FOR_BEATS, startDate);
+        try {
+            while (rows.next()) {
+                blob = rows.isNull(2) ? null : rows.getBlob(2);
+                if (blob == null) {
+                    if (rows.getLong(1) == INVALID_INT) {
+                        timeline.reset();
+                    }
+                    continue;
+                }
+                count = RrUtils.fromBlob(blob, rr);
+                flags = timeline.add(rows.getLong(0), rr, count, beatTimes);
+                device = rows.isNull(3) ? null : rows.getString(3);
+                for (int i = 0; i < count; i++) {
+                    db.execSQL(DB_INSERT_BEAT, beatTimes[i] / 1000,
+                            startDate, rr[i], i == 0 ? flags : 0, device,
+                            beatTimes[i]);
+                }
+                nBeats += count;
+            }
+        } finally {
+            rows.close();
+        }
+        return nBeats;
+    }
+
+    /**
+     * Creates a Migrator with the migrations from each earlier version to
+     * DB_VERSION. New versions should add a migration here rather than
+     * dropping tables.
+     *
+     * @return The Migrator.
+     */
+    public static Migrator createMigrator() {
+        List<Migration> migrations = new ArrayList<Migration>();
+        migrations.add(new RrToBlobMigration());
+        migrations.add(new Migration.Sql(3, "Add the session table",
+                "drop table if exists " + DB_SESSION_TABLE,
+                DB_CREATE_SESSION_TABLE, DB_SUMMARIZE_SESSIONS
+                + DB_SUMMARIZE_SESSIONS_GROUP));
+        migrations.add(new Migration.Sql(4, "Index the data table",
+                DB_CREATE_INDEXES));
+        migrations.add(new Migration.Sql(5, "Add the device column",
+                "alter table " + DB_DATA_TABLE + " add column " + COL_DEVICE
+                        + " text"));
+        // The beats are filled by version 7, which recreates the table
+        migrations.add(new Migration.Sql(6, "Add the beat table",
+                "drop table if exists " + DB_BEAT_TABLE,
+                DB_CREATE_BEAT_TABLE));
+        migrations.add(new TimeMigration());
+        migrations.add(new RollupMigration());
+        // The indexes have the same names, so they must be dropped first
+        migrations.add(new Migration.Sql(9, "Index the data table without "
+                + "the R-R values", concat(DB_DROP_INDEXES,
+                DB_CREATE_INDEXES)));
+        return new Migrator(migrations);
+    }
+
+    /**
+     * Concatenates arrays of SQL statements.
+     *
+     * @param first  The first statements.
+     * @param second The statements to run after them.
+     * @return The statements.
+     */
+    private static String[] concat(String[] first, String[] second) {
+        String[] sql = new String[first.length + second.length];
+        System.arraycopy(first, 0, sql, 0, first.length);
+        System.arraycopy(second, 0, sql, first.length, second.length);
+        return sql;
+    }
+
+    /**
+     * Adds the time column to the data table and the clock table, and
+     * recreates the beat table with times and fills it from the data
+     * (version 6 to version 7). One session is done per step. The position
+     * is the last start date done.
+     */
+    private static class TimeMigration extends Migration {
+        TimeMigration() {
+            super(7, "Add the times in microseconds");
+        }
+
+        @Override
+        public long step(MigrationDb db, long position) {
+            if (position == START) {
+                db.execSQL("alter table " + DB_DATA_TABLE + " add column "
+                        + COL_TIME + " integer");
+                db.execSQL("drop table if exists " + DB_CLOCK_TABLE);
+                db.execSQL(DB_CREATE_CLOCK_TABLE);
+                createBeatTable(db);
+            }
+            long startDate = db.queryLong(SQL_NEXT_START_DATE, DONE,
+                    position);
+            if (startDate == DONE) {
+                return DONE;
+            }
+            rebuildBeats(db, startDate);
+            return startDate;
+        }
+    }
+
+    /**
+     * Adds the rollup table and fills it from the data (version 7 to version
+     * 8). One session is done per step. The position is the last start date
+     * done.
+     */
+    private static class RollupMigration extends Migration {
+        RollupMigration() {
+            super(8, "Add the rollup table");
+        }
+
+        @Override
+        public long step(MigrationDb db, long position) {
+            if (position == START) {
+                createRollupTable(db);
+            }
+            long startDate = db.queryLong(SQL_NEXT_START_DATE, DONE,
+                    position);
+            if (startDate == DONE) {
+                return DONE;
+            }
+            rebuildRollups(db, startDate);
+            return startDate;
+        }
+    }
+
+    /**
+     * Converts the R-R column from space-separated text to a blob (version 1
+     * to version 2). The data are copied to a new table in chunks of rows,
+     * and the new table replaces the old one after the last chunk. The
+     * position is the last _id copied. Unparsable R-R values are stored as
+     * not present.
+     */
+    private static class RrToBlobMigration extends Migration {
+        private static final String NEW_TABLE = DB_DATA_TABLE + "_v2";
+        // The version 2 table, without the columns added later
+        private static final String SQL_CREATE = "create table " + NEW_TABLE
+                + " (_id integer primary key autoincrement, " + COL_DATE
+                + " integer not null, " + COL_START_DATE
+                + " integer not null, " + COL_HR + " integer not null, "
+                + COL_RR + " blob);";
+        private static final String SQL_SELECT = "select " + COL_ID + ", "
+                + COL_DATE + ", " + COL_START_DATE + ", " + COL_HR + ", "
+                + COL_RR + " from " + DB_DATA_TABLE + " where " + COL_ID
+                + ">? order by " + COL_ID + " asc limit "
+                + MIGRATION_CHUNK_SIZE;
+        private static final String SQL_INSERT = "insert into " + NEW_TABLE
+                + " (" + COL_ID + ", " + COL_DATE + ", " + COL_START_DATE
+                + ", " + COL_HR + ", " + COL_RR + ") values (?, ?, ?, ?, ?);";
+
+        private final int[] mRr = new int[HeartRateValues.MAX_RR];
+
+        RrToBlobMigration() {
+            super(2, "Store the R-R values as a blob");
+        }
+
+        @Override
+        public long step(MigrationDb db, long position) {
+            if (position == START) {
+                db.execSQL("drop table if exists " + NEW_TABLE);
+                db.execSQL(SQL_CREATE);
+            }
+            long lastId = position;
+            int nRows = 0;
+            byte[] blob;
+            MigrationDb.Rows rows = db.query(SQL_SELECT, position);
+            try {
+                while (rows.next()) {
+                    lastId = rows.getLong(0);
+                    try {
+                        blob = RrUtils.parseToBlob(rows.getString(4), mRr);
+                    } catch (NumberFormatException ex) {
+                        blob = null;
+                    }
+                    db.execSQL(SQL_INSERT, lastId, rows.getLong(1),
+                            rows.getLong(2), rows.getLong(3), blob);
+                    nRows++;
+                }
+            } finally {
+                rows.close();
+            }
+            if (nRows > 0) {
+                return lastId;
+            }
+            db.execSQL("drop table " + DB_DATA_TABLE);
+            db.execSQL("alter table " + NEW_TABLE + " rename to "
+                    + DB_DATA_TABLE);
+            return DONE;
+        }
+    }
+
+}
@@ -0,0 +1,669 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The binary format of the files written by Save Database, as written by
+ * BackupWriter and read by BackupRestorer. All the fixed-size integers are
+ * big-endian.
+ * <p/>
+ * A file starts with a header of HEADER_SIZE bytes: the MAGIC, the
+ * VERSION, the number of blocks, the number of rows, the offset of the
+ * index, and a CRC32 of the preceding bytes. It is followed by the blocks,
+ * and then by the index, which runs to the end of the file. The index has an
+ * entry of INDEX_ENTRY_SIZE bytes for each block, then the number of rows of
+ * the clock table and CLOCK_ENTRY_SIZE bytes for each, and then a CRC32 of
+ * all of it. An entry has the offset of the block, its length compressed and
+ * not, its number of rows, a CRC32 of the compressed bytes, and its first
+ * and last dates. A clock row has its start date, time, and wall-clock date.
+ * Version 1 files have no clock rows, nor their number.
+ * <p/>
+ * A block holds up to BLOCK_ROWS rows compressed with Deflate and decodes
+ * on its own, so blocks can be read in any order and in parallel. The rows
+ * are stored a column at a time, since values of one kind compress much
+ * better together. The values are varints, and the dates, heart rates, and
+ * R-R values are stored as the zigzag-encoded difference from the previous
+ * one in the block. The columns are:
+ * <ol>
+ * <li>The number of rows.</li>
+ * <li>The device addresses, as their number, then the length and UTF-8
+ * bytes of each.</li>
+ * <li>The start date of each row.</li>
+ * <li>The date of each row.</li>
+ * <li>The time of each row in us, as 0 if null, otherwise 1 plus the zigzag
+ * difference from the date in us.</li>
+ * <li>The heart rate of each row.</li>
+ * <li>The number of R-R values of each row plus 1, so RR_NOT_PRESENT is
+ * 0.</li>
+ * <li>The R-R values of all the rows, in units of 1/1024 sec.</li>
+ * <li>The device of each row, as 0 if null, otherwise 1 plus its index.</li>
+ * </ol>
+ */
+public class BackupFormat implements IConstants {
+    /**
+     * The first 4 bytes of a file, "BCMB".
+     */
+    public static final int MAGIC = 0x42434D42;
+    /**
+     * The version of the format.
+     */
+    public static final int VERSION = 2;
+    /**
+     * The first version with the clock rows.
+     */
+    public static final int VERSION_CLOCKS = 2;
+    /**
+     * The size of the header in bytes.
+     */
+    public static final int HEADER_SIZE = 32;
+    /**
+     * The size of an index entry in bytes.
+     */
+    public static final int INDEX_ENTRY_SIZE = 40;
+    /**
+     * The size of a clock row in the index in bytes.
+     */
+    public static final int CLOCK_ENTRY_SIZE = 24;
+    /**
+     * The maximum number of rows in a block.
+     */
+    public static final int BLOCK_ROWS = 8192;
+    /**
+     * The Deflater level, which is faster than the default and compresses
+     * the varints nearly as well.
+     */
+    public static final int COMPRESSION_LEVEL = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Gets the number of threads to use for compressing or decompressing.
+     *
+     * @return The number of threads.
+     */
+    public static int getNThreads() {
+        return Math.max(1, Math.min(4,
+                Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Writes the index at the current position and then the header.
+     *
+     * @param channel The channel.
+     * @param blocks  The blocks, with their index entries.
+     * @param clocks  The clock rows.
+     * @param nRows   The number of rows in the blocks.
+     * @throws IOException If writing fails.
+     */
+    public static void writeIndex(FileChannel channel, List<Block> blocks,
+                                  Clocks clocks, long nRows)
+            throws IOException {
+        long indexOffset = channel.position();
+        long indexLength = (long) blocks.size() * INDEX_ENTRY_SIZE + 4
+                + (long) clocks.count * CLOCK_ENTRY_SIZE + 4;
+        if (indexLength > Integer.MAX_VALUE) {
+            throw new IOException("Index is too large");
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) indexLength);
+        for (Block block : blocks) {
+            block.putEntry(buf);
+        }
+        buf.putInt(clocks.count);
+        for (int i = 0; i < clocks.count; i++) {
+            buf.putLong(clocks.startDates[i]);
+            buf.putLong(clocks.times[i]);
+            buf.putLong(clocks.walls[i]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putInt((int) crc.getValue());
+        buf.flip();
+        writeFully(channel, buf);
+
+        buf = ByteBuffer.allocate(HEADER_SIZE);
+        buf.putInt(MAGIC);
+        buf.putInt(VERSION);
+        buf.putInt(blocks.size());
+        buf.putLong(nRows);
+        buf.putLong(indexOffset);
+        crc.reset();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putInt((int) crc.getValue());
+        buf.flip();
+        channel.position(0);
+        writeFully(channel, buf);
+    }
+
+    /**
+     * Reads and checks the header and the index.
+     *
+     * @param channel The channel.
+     * @return The index, with blocks that have only their index entries.
+     * @throws IOException If the file is not a valid backup.
+     */
+    public static Index readIndex(FileChannel channel) throws IOException {
+        long length = channel.size();
+        if (length < HEADER_SIZE) {
+            throw new IOException("Not a saved database");
+        }
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, buf, 0);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, HEADER_SIZE - 4);
+        if (buf.getInt() != MAGIC) {
+            throw new IOException("Not a saved database");
+        }
+        int version = buf.getInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported version " + version);
+        }
+        int nBlocks = buf.getInt();
+        long nRows = buf.getLong();
+        long indexOffset = buf.getLong();
+        if (buf.getInt() != (int) crc.getValue()) {
+            throw new IOException("Bad header checksum");
+        }
+        long entriesLength = (long) nBlocks * INDEX_ENTRY_SIZE;
+        long indexLength = version < VERSION_CLOCKS ? entriesLength + 4
+                : length - indexOffset;
+        if (nBlocks < 0 || indexOffset < HEADER_SIZE
+                || indexLength > Integer.MAX_VALUE
+                || indexLength < entriesLength
+                + (version < VERSION_CLOCKS ? 4 : 8)
+                || indexOffset + indexLength > length) {
+            throw new IOException("Bad index");
+        }
+        buf = ByteBuffer.allocate((int) indexLength);
+        readFully(channel, buf, indexOffset);
+        crc.reset();
+        crc.update(buf.array(), 0, buf.capacity() - 4);
+        if (buf.getInt(buf.capacity() - 4) != (int) crc.getValue()) {
+            throw new IOException("Bad index checksum");
+        }
+        Index index = new Index();
+        index.nRows = nRows;
+        index.blocks = new Block[nBlocks];
+        for (int i = 0; i < nBlocks; i++) {
+            Block block = new Block();
+            block.getEntry(buf);
+            if (block.offset < HEADER_SIZE
+                    || block.compressedLength < 0 || block.length < 0
+                    || block.offset + block.compressedLength > indexOffset) {
+                throw new IOException("Bad index entry " + i);
+            }
+            index.blocks[i] = block;
+        }
+        int nClocks = 0;
+        if (version >= VERSION_CLOCKS) {
+            nClocks = buf.getInt();
+            if (nClocks < 0 || (long) nClocks * CLOCK_ENTRY_SIZE
+                    != buf.remaining() - 4) {
+                throw new IOException("Bad number of clock rows");
+            }
+        }
+        index.clocks = new Clocks(nClocks);
+        for (int i = 0; i < nClocks; i++) {
+            index.clocks.add(buf.getLong(), buf.getLong(), buf.getLong());
+        }
+        return index;
+    }
+
+    /**
+     * Writes all of a buffer at the current position.
+     *
+     * @param channel The channel.
+     * @param buf     The buffer.
+     * @throws IOException If writing fails.
+     */
+    public static void writeFully(FileChannel channel, ByteBuffer buf)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Fills a buffer from the given position. Safe to call from several
+     * threads.
+     *
+     * @param channel  The channel.
+     * @param buf      The buffer.
+     * @param position The position in the file.
+     * @throws IOException If reading fails or the file is too short.
+     */
+    public static void readFully(FileChannel channel, ByteBuffer buf,
+                                 long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int nRead = channel.read(buf, position);
+            if (nRead < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += nRead;
+        }
+        buf.flip();
+    }
+
+    /**
+     * The header and index of a file.
+     */
+    public static class Index {
+        /**
+         * The blocks, with only their index entries.
+         */
+        public Block[] blocks;
+        public Clocks clocks;
+        /**
+         * The number of rows in the blocks, as given in the header.
+         */
+        public long nRows;
+    }
+
+    /**
+     * Rows of the clock table.
+     */
+    public static class Clocks {
+        public long[] startDates;
+        public long[] times;
+        public long[] walls;
+        public int count;
+
+        /**
+         * Constructor.
+         *
+         * @param capacity The initial capacity.
+         */
+        public Clocks(int capacity) {
+            capacity = Math.max(capacity, 1);
+            startDates = new long[capacity];
+            times = new long[capacity];
+            walls = new long[capacity];
+        }
+
+        /**
+         * Adds a row, growing the arrays if necessary.
+         *
+         * @param startDate The start date.
+         * @param time      The time on the sample clock in us.
+         * @param wall      The wall-clock date at that time.
+         */
+        public void add(long startDate, long time, long wall) {
+            if (count == times.length) {
+                startDates = Arrays.copyOf(startDates, 2 * count);
+                times = Arrays.copyOf(times, 2 * count);
+                walls = Arrays.copyOf(walls, 2 * count);
+            }
+            startDates[count] = startDate;
+            times[count] = time;
+            walls[count] = wall;
+            count++;
+        }
+    }
+
+    /**
+     * A block of rows, with its entry in the index.
+     */
+    public static class Block {
+        /**
+         * The rows, which are set before encoding and after decoding.
+         */
+        public DataBatch batch;
+        /**
+         * The compressed bytes, of which the first compressedLength are used.
+         */
+        public byte[] data;
+        // The index entry
+        public long offset;
+        public int compressedLength;
+        public int length;
+        public int nRows;
+        public int crc;
+        public long firstDate;
+        public long lastDate;
+
+        /**
+         * Writes the index entry for the block.
+         *
+         * @param buf The buffer to write to.
+         */
+        public void putEntry(ByteBuffer buf) {
+            buf.putLong(offset);
+            buf.putInt(compressedLength);
+            buf.putInt(length);
+            buf.putInt(nRows);
+            buf.putInt(crc);
+            buf.putLong(firstDate);
+            buf.putLong(lastDate);
+        }
+
+        /**
+         * Reads the index entry for the block.
+         *
+         * @param buf The buffer to read from.
+         */
+        public void getEntry(ByteBuffer buf) {
+            offset = buf.getLong();
+            compressedLength = buf.getInt();
+            length = buf.getInt();
+            nRows = buf.getInt();
+            crc = buf.getInt();
+            firstDate = buf.getLong();
+            lastDate = buf.getLong();
+        }
+
+        /**
+         * Encodes and compresses the batch into data, setting everything but
+         * the offset.
+         */
+        public void encode() {
+            DataBatch b = batch;
+            int n = b.count;
+            Encoder out = new Encoder(16 * n + 2 * b.nRr + 64);
+            out.putVarint(n);
+            // The device dictionary
+            String[] devices = new String[4];
+            int nDevices = 0;
+            int[] deviceIndexes = new int[n];
+            String device, last = null;
+            int lastIndex = 0;
+            for (int i = 0; i < n; i++) {
+                device = b.devices[i];
+                if (device == null) {
+                    deviceIndexes[i] = 0;
+                    continue;
+                }
+                if (!device.equals(last)) {
+                    lastIndex = 0;
+                    for (int j = 0; j < nDevices; j++) {
+                        if (device.equals(devices[j])) {
+                            lastIndex = j + 1;
+                            break;
+                        }
+                    }
+                    if (lastIndex == 0) {
+                        if (nDevices == devices.length) {
+                            devices = Arrays.copyOf(devices, 2 * nDevices);
+                        }
+                        devices[nDevices++] = device;
+                        lastIndex = nDevices;
+                    }
+                    last = device;
+                }
+                deviceIndexes[i] = lastIndex;
+            }
+            out.putVarint(nDevices);
+            for (int j = 0; j < nDevices; j++) {
+                byte[] bytes = devices[j].getBytes(UTF_8);
+                out.putVarint(bytes.length);
+                out.put(bytes);
+            }
+            long prev = 0;
+            for (int i = 0; i < n; i++) {
+                out.putZigzag(b.startDates[i] - prev);
+                prev = b.startDates[i];
+            }
+            prev = 0;
+            for (int i = 0; i < n; i++) {
+                out.putZigzag(b.dates[i] - prev);
+                prev = b.dates[i];
+            }
+            for (int i = 0; i < n; i++) {
+                if (b.times[i] == INVALID_DATE) {
+                    out.putVarint(0);
+                } else {
+                    out.putVarint(1 + zigzag(b.times[i] - 1000 * b.dates[i]));
+                }
+            }
+            prev = 0;
+            for (int i = 0; i < n; i++) {
+                out.putZigzag(b.hrs[i] - prev);
+                prev = b.hrs[i];
+            }
+            for (int i = 0; i < n; i++) {
+                out.putVarint(b.rrCounts[i] < 0 ? 0 : b.rrCounts[i] + 1);
+            }
+            prev = 0;
+            for (int i = 0; i < b.nRr; i++) {
+                out.putZigzag(b.rrValues[i] - prev);
+                prev = b.rrValues[i];
+            }
+            for (int i = 0; i < n; i++) {
+                out.putVarint(deviceIndexes[i]);
+            }
+
+            // Compress
+            Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+            try {
+                deflater.setInput(out.mBuf, 0, out.mPos);
+                deflater.finish();
+                byte[] data = new byte[out.mPos / 2 + 64];
+                int len = 0;
+                while (!deflater.finished()) {
+                    if (len == data.length) {
+                        data = Arrays.copyOf(data, 2 * data.length);
+                    }
+                    len += deflater.deflate(data, len, data.length - len);
+                }
+                this.data = data;
+                compressedLength = len;
+            } finally {
+                deflater.end();
+            }
+            CRC32 crc32 = new CRC32();
+            crc32.update(data, 0, compressedLength);
+            crc = (int) crc32.getValue();
+            length = out.mPos;
+            nRows = n;
+            firstDate = n > 0 ? b.dates[0] : INVALID_DATE;
+            lastDate = n > 0 ? b.dates[n - 1] : INVALID_DATE;
+        }
+
+        /**
+         * Checks and decompresses data and decodes it into a new batch.
+         *
+         * @throws IOException If the block is corrupt.
+         */
+        public void decode() throws IOException {
+            CRC32 crc32 = new CRC32();
+            crc32.update(data, 0, compressedLength);
+            if ((int) crc32.getValue() != crc) {
+                throw new IOException("Bad checksum");
+            }
+            byte[] buf = new byte[length];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data, 0, compressedLength);
+                int len = 0;
+                while (len < length && !inflater.finished()) {
+                    int nRead = inflater.inflate(buf, len, length - len);
+                    if (nRead == 0 && (inflater.needsInput()
+                            || inflater.needsDictionary())) {
+                        break;
+                    }
+                    len += nRead;
+                }
+                if (len != length) {
+                    throw new IOException("Bad length");
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException(ex.getMessage());
+            } finally {
+                inflater.end();
+            }
+
+            Decoder in = new Decoder(buf);
+            int n = (int) in.getVarint();
+            if (n != nRows || n > BLOCK_ROWS) {
+                throw new IOException("Bad number of rows");
+            }
+            DataBatch b = new DataBatch(Math.max(n, 1));
+            int nDevices = (int) in.getVarint();
+            if (nDevices > n) {
+                throw new IOException("Bad number of devices");
+            }
+            String[] devices = new String[nDevices];
+            for (int j = 0; j < nDevices; j++) {
+                int len = (int) in.getVarint();
+                devices[j] = new String(buf, in.skip(len), len, UTF_8);
+            }
+            long prev = 0;
+            for (int i = 0; i < n; i++) {
+                prev += in.getZigzag();
+                b.startDates[i] = prev;
+            }
+            prev = 0;
+            for (int i = 0; i < n; i++) {
+                prev += in.getZigzag();
+                b.dates[i] = prev;
+            }
+            long value;
+            for (int i = 0; i < n; i++) {
+                value = in.getVarint();
+                b.times[i] = value == 0 ? INVALID_DATE
+                        : 1000 * b.dates[i] + unzigzag(value - 1);
+            }
+            prev = 0;
+            for (int i = 0; i < n; i++) {
+                prev += in.getZigzag();
+                b.hrs[i] = (int) prev;
+            }
+            int nRr = 0;
+            for (int i = 0; i < n; i++) {
+                int count = (int) in.getVarint() - 1;
+                if (count > HeartRateValues.MAX_RR) {
+                    throw new IOException("Bad number of R-R values");
+                }
+                b.rrCounts[i] = count;
+                if (count > 0) {
+                    nRr += count;
+                }
+            }
+            if (nRr > b.rrValues.length) {
+                b.rrValues = new int[nRr];
+            }
+            prev = 0;
+            for (int i = 0; i < nRr; i++) {
+                prev += in.getZigzag();
+                b.rrValues[i] = (int) prev;
+            }
+            for (int i = 0; i < n; i++) {
+                int index = (int) in.getVarint();
+                if (index > nDevices) {
+                    throw new IOException("Bad device");
+                }
+                b.devices[i] = index == 0 ? null : devices[index - 1];
+            }
+            b.count = n;
+            b.nRr = nRr;
+            batch = b;
+        }
+    }
+
+    /**
+     * Zigzag encodes a value, so small negative values are small too.
+     */
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes varints to a growable byte array.
+     */
+    private static class Encoder {
+        private byte[] mBuf;
+        private int mPos;
+
+        Encoder(int capacity) {
+            mBuf = new byte[capacity];
+        }
+
+        private void ensure(int n) {
+            if (mPos + n > mBuf.length) {
+                mBuf = Arrays.copyOf(mBuf, Math.max(2 * mBuf.length,
+                        mPos + n));
+            }
+        }
+
+        void putVarint(long value) {
+            ensure(10);
+            byte[] buf = mBuf;
+            int pos = mPos;
+            while ((value & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+            mPos = pos;
+        }
+
+        void putZigzag(long value) {
+            putVarint(zigzag(value));
+        }
+
+        void put(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, mBuf, mPos, bytes.length);
+            mPos += bytes.length;
+        }
+    }
+
+    /**
+     * Reads varints from a byte array.
+     */
+    private static class Decoder {
+        private final byte[] mBuf;
+        private int mPos;
+
+        Decoder(byte[] buf) {
+            mBuf = buf;
+        }
+
+        long getVarint() throws IOException {
+            long value = 0;
+            int b;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (mPos == mBuf.length) {
+                    throw new IOException("Block is too short");
+                }
+                b = mBuf[mPos++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Bad varint");
+        }
+
+        long getZigzag() throws IOException {
+            return unzigzag(getVarint());
+        }
+
+        /**
+         * Skips bytes.
+         *
+         * @param n The number of bytes.
+         * @return The position of the first one.
+         */
+        int skip(int n) throws IOException {
+            if (n < 0 || mPos + n > mBuf.length) {
+                throw new IOException("Block is too short");
+            }
+            int pos = mPos;
+            mPos += n;
+            return pos;
+        }
+    }
+
+}
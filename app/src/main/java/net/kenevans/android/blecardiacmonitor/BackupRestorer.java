@@ -0,0 +1,207 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.util.Log;
+
+/**
+ * Restores a file written by Save Database in the BackupFormat into the
+ * database. The header and index are checked before any data are deleted.
+ * The blocks are read and decoded by a pool of threads, each on its own, and
+ * the calling thread writes them in order with createDataBatch, one
+ * transaction per block. A block that is corrupt is skipped and its rows
+ * counted as errors. The clock rows, which are in the index, are written
+ * last. As for CsvRestorer, the indexes are dropped during the
+ * load, and the indexes, beats, and rollups are rebuilt at the end.
+ */
+public class BackupRestorer implements DatabaseRestorer, IConstants {
+    /**
+     * Minimum time between progress reports in ms.
+     */
+    private static final long PROGRESS_INTERVAL = 250;
+
+    private final BCMDbAdapter mDbAdapter;
+    private final File mFile;
+    private final ProgressListener mListener;
+    private volatile boolean mCancelled;
+
+    private int mNBlocks;
+    private int mNBlocksDone;
+    private long mNRows;
+    private int mNErrors;
+    private long mElapsed;
+
+    /**
+     * Constructor.
+     *
+     * @param adapter  The adapter for the database.
+     * @param file     The file to restore.
+     * @param listener The listener for progress or null.
+     */
+    public BackupRestorer(BCMDbAdapter adapter, File file,
+                          ProgressListener listener) {
+        mDbAdapter = adapter;
+        mFile = file;
+        mListener = listener;
+    }
+
+    @Override
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    @Override
+    public void run() throws Exception {
+        long start = System.currentTimeMillis();
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        int nThreads = BackupFormat.getNThreads();
+        ExecutorService executor = null;
+        boolean loading = false;
+        try {
+            final FileChannel channel = raf.getChannel();
+            BackupFormat.Index index = BackupFormat.readIndex(channel);
+            BackupFormat.Block[] blocks = index.blocks;
+            mNBlocks = blocks.length;
+
+            // Delete all the data and recreate the table without the indexes
+            mDbAdapter.recreateDataTable();
+            mDbAdapter.dropIndexes();
+            loading = true;
+
+            executor = Executors.newFixedThreadPool(nThreads);
+            ArrayDeque<Future<BackupFormat.Block>> pending = new
+                    ArrayDeque<Future<BackupFormat.Block>>();
+            int next = 0;
+            long lastProgress = 0;
+            while (!mCancelled && (next < blocks.length
+                    || !pending.isEmpty())) {
+                // Keep a bounded number of blocks in memory
+                while (next < blocks.length
+                        && pending.size() < 2 * nThreads) {
+                    pending.add(submit(executor, channel, blocks[next++]));
+                }
+                BackupFormat.Block block = blocks[mNBlocksDone];
+                try {
+                    pending.remove().get();
+                    DataBatch batch = block.batch;
+                    int nCreated = mDbAdapter.createDataBatch(batch.dates,
+                            batch.times, batch.startDates, batch.hrs,
+                            batch.rrCounts, batch.rrValues, batch.devices,
+                            batch.count);
+                    if (nCreated < 0) {
+                        nCreated = 0;
+                    }
+                    mNRows += nCreated;
+                    mNErrors += batch.count - nCreated;
+                } catch (ExecutionException ex) {
+                    Log.e(TAG, "Skipping block " + mNBlocksDone + " in "
+                            + mFile, ex.getCause());
+                    mNErrors += block.nRows;
+                }
+                // Only the index entry is kept
+                block.batch = null;
+                block.data = null;
+                mNBlocksDone++;
+                long now = System.currentTimeMillis();
+                if (mListener != null
+                        && now - lastProgress >= PROGRESS_INTERVAL) {
+                    lastProgress = now;
+                    long elapsed = now - start;
+                    double fraction = (double) mNBlocksDone / mNBlocks;
+                    double rate = elapsed > 0 ? 1000. * mNRows / elapsed : 0;
+                    long eta = (long) (elapsed * (1 - fraction) / fraction);
+                    mListener.onProgress(mNRows, fraction, rate, eta);
+                }
+            }
+            BackupFormat.Clocks clocks = index.clocks;
+            if (!mCancelled && clocks.count > 0) {
+                int nCreated = mDbAdapter.createClockBatch(clocks.startDates,
+                        clocks.times, clocks.walls, clocks.count);
+                mNErrors += clocks.count - Math.max(nCreated, 0);
+            }
+        } catch (InterruptedException ex) {
+            mCancelled = true;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            try {
+                raf.close();
+            } catch (IOException ex) {
+                // Do nothing
+            }
+            if (loading) {
+                if (mListener != null) {
+                    mListener.onIndexing();
+                }
+                mDbAdapter.createIndexes();
+                // The beats and rollups are not in the file
+                mDbAdapter.rebuildAllBeats();
+                mDbAdapter.rebuildAllRollups();
+            }
+            mElapsed = System.currentTimeMillis() - start;
+        }
+        Log.d(TAG, this.getClass().getSimpleName() + ": run: " + mNRows
+                + " rows in " + mElapsed + " ms");
+    }
+
+    /**
+     * Submits a block to be read and decoded.
+     *
+     * @param executor The executor.
+     * @param channel  The channel, which is only used for positional reads.
+     * @param block    The block.
+     * @return The Future for the decoded block.
+     */
+    private static Future<BackupFormat.Block> submit(ExecutorService executor,
+                                                     final FileChannel channel,
+                                                     final BackupFormat.Block
+                                                             block) {
+        return executor.submit(new Callable<BackupFormat.Block>() {
+            @Override
+            public BackupFormat.Block call() throws IOException {
+                ByteBuffer buf = ByteBuffer.allocate(block.compressedLength);
+                BackupFormat.readFully(channel, buf, block.offset);
+                block.data = buf.array();
+                block.decode();
+                return block;
+            }
+        });
+    }
+
+    @Override
+    public String getPosition() {
+        return "block " + mNBlocksDone + " of " + mNBlocks;
+    }
+
+    @Override
+    public long getNRows() {
+        return mNRows;
+    }
+
+    @Override
+    public int getNErrors() {
+        return mNErrors;
+    }
+
+    @Override
+    public long getElapsed() {
+        return mElapsed;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+}
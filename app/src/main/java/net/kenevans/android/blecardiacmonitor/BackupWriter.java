@@ -0,0 +1,259 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * Saves all the data in the database to a file in the BackupFormat. The
+ * calling thread reads the rows into blocks, which are encoded and
+ * compressed by a pool of threads and written in order, so the database is
+ * read while earlier blocks are being compressed. The rows of the clock
+ * table are then read and written in the index.
+ */
+public class BackupWriter implements IConstants {
+    /**
+     * Minimum time between progress reports in ms.
+     */
+    private static final long PROGRESS_INTERVAL = 250;
+
+    /**
+     * Callback for progress, called on the thread calling run.
+     */
+    public interface ProgressListener {
+        /**
+         * Called periodically while saving.
+         *
+         * @param nRows    The number of rows written.
+         * @param fraction The fraction of the rows written.
+         */
+        void onProgress(long nRows, double fraction);
+    }
+
+    private final BCMDbAdapter mDbAdapter;
+    private final File mFile;
+    private final ProgressListener mListener;
+    private volatile boolean mCancelled;
+
+    private long mNRows;
+    private int mNBlocks;
+    private long mElapsed;
+
+    /**
+     * Constructor.
+     *
+     * @param adapter  The adapter for the database.
+     * @param file     The file to write.
+     * @param listener The listener for progress or null.
+     */
+    public BackupWriter(BCMDbAdapter adapter, File file,
+                        ProgressListener listener) {
+        mDbAdapter = adapter;
+        mFile = file;
+        mListener = listener;
+    }
+
+    /**
+     * Requests that run stop as soon as possible. The file is deleted.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Writes the file. Runs on the calling thread, which should not be the UI
+     * thread.
+     *
+     * @throws Exception If reading the database or writing the file fails.
+     */
+    public void run() throws Exception {
+        long start = System.currentTimeMillis();
+        int nThreads = BackupFormat.getNThreads();
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        ArrayDeque<Future<BackupFormat.Block>> pending = new
+                ArrayDeque<Future<BackupFormat.Block>>();
+        List<BackupFormat.Block> blocks = new ArrayList<BackupFormat.Block>();
+        FileOutputStream fos = null;
+        Cursor cursor = null;
+        boolean ok = false;
+        try {
+            fos = new FileOutputStream(mFile);
+            FileChannel channel = fos.getChannel();
+            // Leave room for the header, which is written last
+            channel.position(BackupFormat.HEADER_SIZE);
+            cursor = mDbAdapter.fetchAllDataForBackup();
+            int indexDate = cursor.getColumnIndexOrThrow(COL_DATE);
+            int indexTime = cursor.getColumnIndexOrThrow(COL_TIME);
+            int indexStartDate = cursor.getColumnIndexOrThrow(COL_START_DATE);
+            int indexHr = cursor.getColumnIndexOrThrow(COL_HR);
+            int indexRr = cursor.getColumnIndexOrThrow(COL_RR);
+            int indexDevice = cursor.getColumnIndexOrThrow(COL_DEVICE);
+            int total = cursor.getCount();
+            int[] rr = new int[HeartRateValues.MAX_RR];
+            DataBatch batch = null;
+            long lastProgress = 0;
+            while (!mCancelled && cursor.moveToNext()) {
+                if (batch == null) {
+                    batch = new DataBatch(BackupFormat.BLOCK_ROWS);
+                }
+                batch.add(cursor.getLong(indexDate),
+                        cursor.isNull(indexTime) ? INVALID_DATE
+                                : cursor.getLong(indexTime),
+                        cursor.getLong(indexStartDate),
+                        cursor.isNull(indexHr) ? INVALID_INT
+                                : cursor.getInt(indexHr), rr,
+                        RrUtils.fromBlob(cursor.getBlob(indexRr), rr),
+                        cursor.getString(indexDevice));
+                if (batch.isFull()) {
+                    pending.add(submit(executor, batch));
+                    batch = null;
+                    // Keep a bounded number of blocks in memory
+                    while (pending.size() > 2 * nThreads) {
+                        write(channel, pending.remove().get(), blocks);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (mListener != null
+                        && now - lastProgress >= PROGRESS_INTERVAL) {
+                    lastProgress = now;
+                    mListener.onProgress(mNRows, total > 0
+                            ? (double) mNRows / total : 0);
+                }
+            }
+            if (batch != null && batch.count > 0) {
+                pending.add(submit(executor, batch));
+            }
+            while (!pending.isEmpty()) {
+                write(channel, pending.remove().get(), blocks);
+            }
+            if (mCancelled) {
+                return;
+            }
+            cursor.close();
+            cursor = null;
+            BackupFormat.writeIndex(channel, blocks, readClocks(), mNRows);
+            channel.force(false);
+            ok = true;
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw cause instanceof Exception ? (Exception) cause : ex;
+        } finally {
+            executor.shutdownNow();
+            if (cursor != null) {
+                cursor.close();
+            }
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException ex) {
+                    ok = false;
+                }
+            }
+            if (!ok && !mFile.delete()) {
+                Log.e(TAG, "Cannot delete " + mFile);
+            }
+            mElapsed = System.currentTimeMillis() - start;
+        }
+        Log.d(TAG, this.getClass().getSimpleName() + ": run: " + mNRows
+                + " rows in " + mNBlocks + " blocks in " + mElapsed + " ms");
+    }
+
+    /**
+     * Submits a block to be encoded.
+     *
+     * @param executor The executor.
+     * @param batch    The rows of the block.
+     * @return The Future for the encoded block.
+     */
+    private static Future<BackupFormat.Block> submit(ExecutorService executor,
+                                                     DataBatch batch) {
+        final BackupFormat.Block block = new BackupFormat.Block();
+        block.batch = batch;
+        return executor.submit(new Callable<BackupFormat.Block>() {
+            @Override
+            public BackupFormat.Block call() {
+                block.encode();
+                return block;
+            }
+        });
+    }
+
+    /**
+     * Writes an encoded block at the current position.
+     *
+     * @param channel The channel.
+     * @param block   The block.
+     * @param blocks  The list of the written blocks to add it to.
+     * @throws IOException If writing fails.
+     */
+    private void write(FileChannel channel, BackupFormat.Block block,
+                       List<BackupFormat.Block> blocks) throws IOException {
+        block.offset = channel.position();
+        BackupFormat.writeFully(channel, ByteBuffer.wrap(block.data, 0,
+                block.compressedLength));
+        mNRows += block.nRows;
+        mNBlocks++;
+        // Only the index entry is kept
+        block.batch = null;
+        block.data = null;
+        blocks.add(block);
+    }
+
+    /**
+     * Reads all the rows of the clock table.
+     *
+     * @return The rows.
+     */
+    private BackupFormat.Clocks readClocks() {
+        Cursor cursor = mDbAdapter.fetchAllClocksForBackup();
+        try {
+            int indexStartDate = cursor.getColumnIndexOrThrow(COL_START_DATE);
+            int indexTime = cursor.getColumnIndexOrThrow(COL_TIME);
+            int indexWall = cursor.getColumnIndexOrThrow(COL_WALL);
+            BackupFormat.Clocks clocks = new BackupFormat.Clocks(
+                    cursor.getCount());
+            while (cursor.moveToNext()) {
+                clocks.add(cursor.getLong(indexStartDate),
+                        cursor.getLong(indexTime), cursor.getLong(indexWall));
+            }
+            return clocks;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return The number of rows written.
+     */
+    public long getNRows() {
+        return mNRows;
+    }
+
+    /**
+     * @return The time taken in ms.
+     */
+    public long getElapsed() {
+        return mElapsed;
+    }
+
+    /**
+     * @return If cancel was called.
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+}
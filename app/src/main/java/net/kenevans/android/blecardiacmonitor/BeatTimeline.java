@@ -0,0 +1,167 @@
+package net.kenevans.android.blecardiacmonitor;
+
+/**
+ * Assigns a time to every beat in a stream of Heart Rate Measurements. The
+ * R-R values in a measurement have no times of their own, only the time the
+ * measurement arrived. The beats are placed by adding up the intervals from
+ * the previous beat, which keeps the exact spacing measured by the sensor,
+ * and the timeline is reconciled with the arrival times so it does not drift
+ * from the phone's clock.
+ * <p/>
+ * The last beat in a measurement cannot be later than its arrival. If it
+ * would be, the timeline is moved back to the arrival time. The lag of the
+ * last beat behind the arrival is otherwise made up of the wait for the
+ * next notification and the radio latency, and the smallest lag over every
+ * BEAT_SYNC_PACKETS measurements is taken as the drift of the timeline
+ * behind the phone. It is moved forward by that much, but by no more than
+ * BEAT_MAX_DRIFT_STEP at a time, so a run of late notifications does not
+ * pull it far. A lag over BEAT_RESYNC_LAG means beats were lost, and the
+ * timeline is started again from the arrival time.
+ * <p/>
+ * The times are in microseconds, as given by a SampleClock, and beats are
+ * kept at least 1 ms apart so their dates in ms are distinct. Internally
+ * they are in units of 1/16 us, in which both the intervals in 1/1024 sec
+ * and the times in us are exact, so nothing is lost to rounding however
+ * long the timeline runs. The result depends only on the
+ * measurements, so replaying the stored rows gives the same beats as were
+ * found while recording.
+ * <p/>
+ * Must only be used from one thread.
+ */
+public class BeatTimeline implements IConstants {
+    /**
+     * Flag for a beat that follows a gap. The interval before it is not the
+     * time since the previous beat.
+     */
+    public static final int FLAG_GAP = 1;
+    /**
+     * The number of units per us.
+     */
+    private static final long UNITS_PER_US = 16;
+    /**
+     * The number of units per ms.
+     */
+    private static final long UNITS_PER_MS = 1000 * UNITS_PER_US;
+    /**
+     * The number of units in each unit of an R-R value.
+     */
+    private static final long UNITS_PER_RR = 15625;
+
+    private boolean mStarted;
+    /**
+     * The time of the last beat.
+     */
+    private long mLast;
+    /**
+     * The time returned for the last beat.
+     */
+    private long mLastTime;
+    private int mNPackets;
+    private long mMinLag;
+    private long mNCorrections;
+    private long mNResyncs;
+
+    /**
+     * Starts a new timeline at the next measurement, for example after the
+     * connection was lost or for a new session.
+     */
+    public void reset() {
+        mStarted = false;
+    }
+
+    /**
+     * Finds the times of the beats in a measurement.
+     *
+     * @param time      The time the measurement arrived in us.
+     * @param rr        The R-R values in units of 1/1024 sec.
+     * @param count     The number of values or RrUtils.RR_NOT_PRESENT.
+     * @param beatTimes The array to hold the time of each beat in us.
+     * @return FLAG_GAP if the first beat starts a new timeline, otherwise 0.
+     */
+    public int add(long time, int[] rr, int count, long[] beatTimes) {
+        if (count <= 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += rr[i];
+        }
+        sum *= UNITS_PER_RR;
+        long arrival = time * UNITS_PER_US;
+        int flags = 0;
+        if (!mStarted) {
+            start(arrival - sum);
+            flags = FLAG_GAP;
+        }
+        long lag = arrival - (mLast + sum);
+        if (lag < 0) {
+            // Ahead of the phone
+            mLast += lag;
+            mNCorrections++;
+            lag = 0;
+        } else if (lag > BEAT_RESYNC_LAG * UNITS_PER_MS) {
+            // Beats were lost
+            start(arrival - sum);
+            mNResyncs++;
+            flags = FLAG_GAP;
+            lag = 0;
+        }
+        if (lag < mMinLag) {
+            mMinLag = lag;
+        }
+        if (++mNPackets == BEAT_SYNC_PACKETS) {
+            // Behind the phone
+            long step = Math.min(mMinLag, BEAT_MAX_DRIFT_STEP * UNITS_PER_MS);
+            if (step > 0) {
+                mLast += step;
+                mNCorrections++;
+            }
+            mNPackets = 0;
+            mMinLag = Long.MAX_VALUE;
+        }
+
+        long last = mLast;
+        long beatTime;
+        for (int i = 0; i < count; i++) {
+            last += rr[i] * UNITS_PER_RR;
+            beatTime = (last + UNITS_PER_US / 2) / UNITS_PER_US;
+            // Keep the dates increasing if the timeline was moved back
+            if (beatTime < mLastTime + 1000) {
+                beatTime = mLastTime + 1000;
+            }
+            beatTimes[i] = beatTime;
+            mLastTime = beatTime;
+        }
+        mLast = last;
+        return flags;
+    }
+
+    /**
+     * Starts the timeline.
+     *
+     * @param last The time of the beat before the first one.
+     */
+    private void start(long last) {
+        mStarted = true;
+        mLast = last;
+        mNPackets = 0;
+        mMinLag = Long.MAX_VALUE;
+    }
+
+    /**
+     * @return The number of times the timeline was moved to follow the
+     * arrival times.
+     */
+    public long getNCorrections() {
+        return mNCorrections;
+    }
+
+    /**
+     * @return The number of times the timeline was started again because
+     * beats were lost.
+     */
+    public long getNResyncs() {
+        return mNResyncs;
+    }
+
+}
@@ -0,0 +1,206 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes text as UTF-8 to a channel through a large buffer. Unlike
+ * FileWriter, the encoding does not depend on the platform, and ASCII, which
+ * is nearly all of what is written, is copied straight into the buffer.
+ * Integers are written without creating Strings.
+ */
+public class ChannelWriter implements Closeable {
+    /**
+     * The default buffer size.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private final WritableByteChannel mChannel;
+    private final byte[] mBytes;
+    private final ByteBuffer mBuffer;
+    private final char[] mDigits = new char[20];
+    private int mPos;
+
+    /**
+     * Constructor.
+     *
+     * @param channel    The channel.
+     * @param bufferSize The buffer size in bytes. Must be at least 4.
+     */
+    public ChannelWriter(WritableByteChannel channel, int bufferSize) {
+        mChannel = channel;
+        mBytes = new byte[bufferSize];
+        mBuffer = ByteBuffer.wrap(mBytes);
+    }
+
+    /**
+     * Creates a ChannelWriter for a new file with the default buffer size.
+     *
+     * @param file The file, which is replaced if it exists.
+     * @return The ChannelWriter.
+     * @throws IOException If the file cannot be opened.
+     */
+    public static ChannelWriter open(File file) throws IOException {
+        return new ChannelWriter(new FileOutputStream(file).getChannel(),
+                DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a ChannelWriter for a new file with the default buffer size,
+     * optionally compressing it with gzip. The gzip trailer is written by
+     * close.
+     *
+     * @param file The file, which is replaced if it exists.
+     * @param gzip Whether to compress the file.
+     * @return The ChannelWriter.
+     * @throws IOException If the file cannot be opened.
+     */
+    public static ChannelWriter open(File file, boolean gzip)
+            throws IOException {
+        if (!gzip) {
+            return open(file);
+        }
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            return new ChannelWriter(Channels.newChannel(new GZIPOutputStream(
+                    fos, DEFAULT_BUFFER_SIZE)), DEFAULT_BUFFER_SIZE);
+        } catch (IOException ex) {
+            fos.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Writes a char.
+     *
+     * @param c The char.
+     * @throws IOException If writing fails.
+     */
+    public void write(char c) throws IOException {
+        if (mPos + 3 > mBytes.length) {
+            flush();
+        }
+        if (c < 0x80) {
+            mBytes[mPos++] = (byte) c;
+        } else if (c < 0x800) {
+            mBytes[mPos++] = (byte) (0xC0 | (c >> 6));
+            mBytes[mPos++] = (byte) (0x80 | (c & 0x3F));
+        } else {
+            // Surrogates are written separately, which is not valid UTF-8,
+            // but nothing written here is outside the BMP
+            mBytes[mPos++] = (byte) (0xE0 | (c >> 12));
+            mBytes[mPos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            mBytes[mPos++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    /**
+     * Writes chars.
+     *
+     * @param chars  The array holding the chars.
+     * @param offset The offset of the first char.
+     * @param length The number of chars.
+     * @throws IOException If writing fails.
+     */
+    public void write(char[] chars, int offset, int length)
+            throws IOException {
+        int end = offset + length;
+        char c;
+        for (int i = offset; i < end; i++) {
+            c = chars[i];
+            if (c < 0x80 && mPos < mBytes.length) {
+                mBytes[mPos++] = (byte) c;
+            } else {
+                write(c);
+            }
+        }
+    }
+
+    /**
+     * Writes a String.
+     *
+     * @param string The String.
+     * @throws IOException If writing fails.
+     */
+    public void write(String string) throws IOException {
+        int len = string.length();
+        char c;
+        for (int i = 0; i < len; i++) {
+            c = string.charAt(i);
+            if (c < 0x80 && mPos < mBytes.length) {
+                mBytes[mPos++] = (byte) c;
+            } else {
+                write(c);
+            }
+        }
+    }
+
+    /**
+     * Writes an integer in decimal.
+     *
+     * @param value The value.
+     * @throws IOException If writing fails.
+     */
+    public void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            write(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        int n = 0;
+        do {
+            mDigits[n++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        if (mPos + n > mBytes.length) {
+            flush();
+        }
+        if (n > mBytes.length) {
+            while (n > 0) {
+                write(mDigits[--n]);
+            }
+            return;
+        }
+        while (n > 0) {
+            mBytes[mPos++] = (byte) mDigits[--n];
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the channel.
+     *
+     * @throws IOException If writing fails.
+     */
+    public void flush() throws IOException {
+        mBuffer.clear();
+        mBuffer.limit(mPos);
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mPos = 0;
+    }
+
+    /**
+     * Flushes and closes the channel.
+     *
+     * @throws IOException If writing or closing fails.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            mChannel.close();
+        }
+    }
+
+}
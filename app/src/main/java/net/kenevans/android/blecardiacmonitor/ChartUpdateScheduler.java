@@ -0,0 +1,102 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.view.Choreographer;
+
+/**
+ * Coalesces updates to live plot datasets so the chart is notified at most
+ * once per display frame. Call beginUpdate before adding samples. The first
+ * call in a frame suspends notification on the datasets and posts a
+ * Choreographer callback. Later samples in the same frame are added silently,
+ * and the callback turns notification back on, which fires one change event
+ * per changed dataset. Bursts of R-R values and HR arriving together therefore
+ * cost one chart redraw instead of one per value. Must be used on the UI
+ * thread.
+ */
+public class ChartUpdateScheduler implements Choreographer.FrameCallback {
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    private RingBufferXYDataset[] mDatasets = new RingBufferXYDataset[0];
+    private boolean mPending;
+    private long mUpdateCount;
+    private long mFrameCount;
+
+    /**
+     * Sets the datasets to manage, flushing any pending update to the old
+     * ones.
+     *
+     * @param datasets The datasets. Null entries are ignored.
+     */
+    public void setDatasets(RingBufferXYDataset... datasets) {
+        flush();
+        mDatasets = datasets;
+    }
+
+    /**
+     * Starts an update. Call before adding samples to the datasets.
+     */
+    public void beginUpdate() {
+        mUpdateCount++;
+        if (mPending) {
+            return;
+        }
+        mPending = true;
+        for (RingBufferXYDataset dataset : mDatasets) {
+            if (dataset != null) {
+                dataset.setNotify(false);
+            }
+        }
+        mChoreographer.postFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mPending) {
+            return;
+        }
+        mFrameCount++;
+        resume();
+    }
+
+    /**
+     * Applies any pending update now, for example when the plot is paused.
+     */
+    public void flush() {
+        if (!mPending) {
+            return;
+        }
+        mChoreographer.removeFrameCallback(this);
+        mFrameCount++;
+        resume();
+    }
+
+    private void resume() {
+        mPending = false;
+        for (RingBufferXYDataset dataset : mDatasets) {
+            if (dataset != null) {
+                dataset.setNotify(true);
+            }
+        }
+    }
+
+    /**
+     * @return The number of updates started.
+     */
+    public long getUpdateCount() {
+        return mUpdateCount;
+    }
+
+    /**
+     * @return The number of frames in which updates were applied.
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return The number of updates that were merged into the frame of an
+     * earlier one, each of which would otherwise have been a redraw.
+     */
+    public long getMergedCount() {
+        return mUpdateCount - mFrameCount;
+    }
+
+}
@@ -0,0 +1,424 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import android.util.Log;
+
+/**
+ * Restores a file written by Export Database as CSV, or by Save Database
+ * before it used the BackupFormat, into the database. A reader thread
+ * parses the lines straight into primitive batches without creating a String
+ * per line or field, and the calling thread writes each batch with
+ * createDataBatch, which uses one transaction and a compiled statement per
+ * batch. The batches are recycled between the two threads through a pair of
+ * bounded queues. The indexes are dropped during the load and rebuilt at the
+ * end, which is much faster than maintaining them row by row.
+ */
+public class CsvRestorer implements DatabaseRestorer, IConstants {
+    /**
+     * Number of rows in each batch.
+     */
+    private static final int BATCH_SIZE = 5000;
+    /**
+     * Number of batches in flight.
+     */
+    private static final int N_BATCHES = 4;
+    /**
+     * Minimum time between progress reports in ms.
+     */
+    private static final long PROGRESS_INTERVAL = 250;
+    /**
+     * Marks the end of the data in the queue of full batches.
+     */
+    private static final DataBatch END = new DataBatch(0);
+
+    private final BCMDbAdapter mDbAdapter;
+    private final File mFile;
+    private final ProgressListener mListener;
+    private final BlockingQueue<DataBatch> mFree = new
+            ArrayBlockingQueue<DataBatch>(N_BATCHES);
+    private final BlockingQueue<DataBatch> mFull = new
+            ArrayBlockingQueue<DataBatch>(N_BATCHES + 1);
+    private volatile boolean mCancelled;
+    private volatile long mBytesRead;
+    private volatile Exception mReadException;
+    private Thread mReaderThread;
+
+    // Set by the reader thread, valid after it finishes
+    private int mNLines;
+    private int mNParseErrors;
+    private final int[] mBounds = new int[8];
+
+    // Set by the writer
+    private long mNRows;
+    private int mNWriteErrors;
+    private long mElapsed;
+
+    /**
+     * Constructor.
+     *
+     * @param adapter  The adapter for the database.
+     * @param file     The file to restore.
+     * @param listener The listener for progress or null.
+     */
+    public CsvRestorer(BCMDbAdapter adapter, File file,
+                       ProgressListener listener) {
+        mDbAdapter = adapter;
+        mFile = file;
+        mListener = listener;
+    }
+
+    @Override
+    public void cancel() {
+        mCancelled = true;
+        Thread reader = mReaderThread;
+        if (reader != null) {
+            reader.interrupt();
+        }
+    }
+
+    @Override
+    public void run() throws Exception {
+        long start = System.currentTimeMillis();
+        final long length = mFile.length();
+        for (int i = 0; i < N_BATCHES; i++) {
+            mFree.add(new DataBatch(BATCH_SIZE));
+        }
+
+        // Delete all the data and recreate the table without the indexes
+        mDbAdapter.recreateDataTable();
+        mDbAdapter.dropIndexes();
+
+        mReaderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "CsvRestorer");
+        mReaderThread.start();
+        long lastProgress = 0;
+        try {
+            while (true) {
+                DataBatch batch = mFull.take();
+                if (batch == END) {
+                    break;
+                }
+                if (!mCancelled) {
+                    int nCreated = mDbAdapter.createDataBatch(batch.dates,
+                            batch.startDates, batch.hrs, batch.rrCounts,
+                            batch.rrValues, batch.count);
+                    if (nCreated < 0) {
+                        nCreated = 0;
+                    }
+                    mNRows += nCreated;
+                    mNWriteErrors += batch.count - nCreated;
+                }
+                batch.clear();
+                mFree.put(batch);
+                long now = System.currentTimeMillis();
+                if (mListener != null && now - lastProgress >=
+                        PROGRESS_INTERVAL) {
+                    lastProgress = now;
+                    long elapsed = now - start;
+                    double fraction = length > 0 ? Math.min(1.,
+                            (double) mBytesRead / length) : 0;
+                    double rate = elapsed > 0 ? 1000. * mNRows / elapsed : 0;
+                    long eta = fraction > 0 ? (long) (elapsed * (1 -
+                            fraction) / fraction) : -1;
+                    mListener.onProgress(mNRows, fraction, rate, eta);
+                }
+            }
+        } catch (InterruptedException ex) {
+            mCancelled = true;
+            mReaderThread.interrupt();
+        } finally {
+            try {
+                mReaderThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            mReaderThread = null;
+            if (mListener != null) {
+                mListener.onIndexing();
+            }
+            mDbAdapter.createIndexes();
+            // The rows are restored without their beats and rollups
+            mDbAdapter.rebuildAllBeats();
+            mDbAdapter.rebuildAllRollups();
+            mElapsed = System.currentTimeMillis() - start;
+        }
+        Log.d(TAG, this.getClass().getSimpleName() + ": run: " + mNRows
+                + " rows in " + mElapsed + " ms");
+        if (mReadException != null) {
+            throw mReadException;
+        }
+    }
+
+    /**
+     * The loop run by the reader thread. Always ends by queueing END.
+     */
+    private void readLoop() {
+        FileInputStream fis = null;
+        DataBatch batch = null;
+        try {
+            fis = new FileInputStream(mFile);
+            FileChannel channel = fis.getChannel();
+            LineReader in = new LineReader(new InputStreamReader(fis,
+                    "UTF-8"));
+            int[] rr = new int[HeartRateValues.MAX_RR];
+            int len;
+            while (!mCancelled && (len = in.readLine()) >= 0) {
+                mNLines++;
+                if (batch == null) {
+                    batch = mFree.take();
+                }
+                if (!parseLine(in.line, len, batch, rr)) {
+                    mNParseErrors++;
+                    Log.d(TAG, "Invalid line @ line " + mNLines);
+                }
+                if (batch.isFull()) {
+                    mBytesRead = channel.position();
+                    mFull.put(batch);
+                    batch = null;
+                }
+            }
+            if (batch != null && batch.count > 0) {
+                mFull.put(batch);
+                batch = null;
+            }
+            mBytesRead = channel.position();
+        } catch (InterruptedException ex) {
+            mCancelled = true;
+        } catch (Exception ex) {
+            mReadException = ex;
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException ex) {
+                    // Do nothing
+                }
+            }
+            // There is always room for END since there are only N_BATCHES
+            // batches
+            mFull.offer(END);
+        }
+    }
+
+    /**
+     * Parses a line of the form date,startDate,hr,rr, and adds it to the
+     * batch. Blank lines and lines starting with # are skipped. As for the
+     * original restore, values that cannot be parsed are stored as invalid.
+     *
+     * @param line  The characters of the line.
+     * @param len   The length of the line.
+     * @param batch The batch.
+     * @param rr    Scratch array for the R-R values.
+     * @return False if the line does not have enough fields.
+     */
+    private boolean parseLine(char[] line, int len, DataBatch batch,
+                              int[] rr) {
+        int start = 0;
+        int end = len;
+        while (start < end && Character.isWhitespace(line[start])) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(line[end - 1])) {
+            end--;
+        }
+        if (start == end || line[start] == '#') {
+            return true;
+        }
+        // Find the first 4 fields
+        int[] bounds = mBounds;
+        int nFields = 0;
+        int fieldStart = start;
+        for (int i = start; i <= end && nFields < 4; i++) {
+            if (i == end || line[i] == SAVE_DATABASE_DELIM.charAt(0)) {
+                bounds[2 * nFields] = fieldStart;
+                bounds[2 * nFields + 1] = i;
+                nFields++;
+                fieldStart = i + 1;
+            }
+        }
+        if (nFields < 4 || bounds[6] == bounds[7]) {
+            return false;
+        }
+        long date = parseLong(line, bounds[0], bounds[1], INVALID_DATE);
+        long startDate = parseLong(line, bounds[2], bounds[3], INVALID_DATE);
+        int hr = (int) parseLong(line, bounds[4], bounds[5], 0);
+        int rrCount = parseRr(line, bounds[6], bounds[7], rr);
+        batch.add(date, startDate, hr, rr, rrCount);
+        return true;
+    }
+
+    /**
+     * Parses a long.
+     *
+     * @param chars        The characters.
+     * @param start        The start index.
+     * @param end          The end index, exclusive.
+     * @param defaultValue The value to return if the characters are not an
+     *                     integer.
+     * @return The value.
+     */
+    private static long parseLong(char[] chars, int start, int end,
+                                  long defaultValue) {
+        while (start < end && chars[start] == ' ') {
+            start++;
+        }
+        while (end > start && chars[end - 1] == ' ') {
+            end--;
+        }
+        boolean negative = false;
+        if (start < end && chars[start] == '-') {
+            negative = true;
+            start++;
+        }
+        if (start == end) {
+            return defaultValue;
+        }
+        long val = 0;
+        char c;
+        for (int i = start; i < end; i++) {
+            c = chars[i];
+            if (c < '0' || c > '9') {
+                return defaultValue;
+            }
+            val = 10 * val + (c - '0');
+        }
+        return negative ? -val : val;
+    }
+
+    /**
+     * Parses the space-separated R-R values.
+     *
+     * @param chars The characters.
+     * @param start The start index.
+     * @param end   The end index, exclusive.
+     * @param rr    The array to hold the values.
+     * @return The number of values or RrUtils.RR_NOT_PRESENT if the field is
+     * INVALID_STRING or cannot be parsed.
+     */
+    private static int parseRr(char[] chars, int start, int end, int[] rr) {
+        int count = 0;
+        int i = start;
+        char c;
+        while (i < end) {
+            c = chars[i];
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            if (c < '0' || c > '9') {
+                // INVALID_STRING or garbage
+                return RrUtils.RR_NOT_PRESENT;
+            }
+            int val = 0;
+            while (i < end && (c = chars[i]) >= '0' && c <= '9') {
+                val = 10 * val + (c - '0');
+                i++;
+            }
+            if (i < end && !Character.isWhitespace(c)) {
+                return RrUtils.RR_NOT_PRESENT;
+            }
+            if (count < rr.length) {
+                rr[count++] = val;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads lines into a reusable char array.
+     */
+    private static class LineReader {
+        private final Reader mReader;
+        private final char[] mBuf = new char[65536];
+        private int mPos;
+        private int mLimit;
+        /**
+         * The characters of the last line read.
+         */
+        char[] line = new char[256];
+
+        LineReader(Reader reader) {
+            mReader = reader;
+        }
+
+        /**
+         * Reads the next line into line, without the line terminator.
+         *
+         * @return The length of the line or -1 at the end of the input.
+         * @throws IOException If reading fails.
+         */
+        int readLine() throws IOException {
+            int len = 0;
+            boolean any = false;
+            while (true) {
+                if (mPos == mLimit) {
+                    mLimit = mReader.read(mBuf, 0, mBuf.length);
+                    mPos = 0;
+                    if (mLimit <= 0) {
+                        mLimit = 0;
+                        return any ? len : -1;
+                    }
+                }
+                any = true;
+                char c = mBuf[mPos++];
+                if (c == '\n') {
+                    if (len > 0 && line[len - 1] == '\r') {
+                        len--;
+                    }
+                    return len;
+                }
+                if (len == line.length) {
+                    char[] newLine = new char[2 * line.length];
+                    System.arraycopy(line, 0, newLine, 0, len);
+                    line = newLine;
+                }
+                line[len++] = c;
+            }
+        }
+    }
+
+    /**
+     * @return The number of lines read.
+     */
+    public int getNLines() {
+        return mNLines;
+    }
+
+    @Override
+    public String getPosition() {
+        return "line " + mNLines;
+    }
+
+    @Override
+    public long getNRows() {
+        return mNRows;
+    }
+
+    @Override
+    public int getNErrors() {
+        return mNParseErrors + mNWriteErrors;
+    }
+
+    @Override
+    public long getElapsed() {
+        return mElapsed;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+}
@@ -0,0 +1,130 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.util.Arrays;
+
+/**
+ * A reusable batch of data rows held as primitive columns, in the form taken
+ * by BCMDbAdapter.createDataBatch.
+ */
+public class DataBatch implements IConstants {
+    /**
+     * The dates.
+     */
+    public final long[] dates;
+    /**
+     * The times in us or INVALID_DATE if not known.
+     */
+    public final long[] times;
+    /**
+     * The start dates.
+     */
+    public final long[] startDates;
+    /**
+     * The heart rates.
+     */
+    public final int[] hrs;
+    /**
+     * The device addresses or null if not known.
+     */
+    public final String[] devices;
+    /**
+     * The number of R-R values for each row or RrUtils.RR_NOT_PRESENT.
+     */
+    public final int[] rrCounts;
+    /**
+     * The R-R values for all the rows, one row after another. Grows as
+     * needed.
+     */
+    public int[] rrValues;
+    /**
+     * The number of rows.
+     */
+    public int count;
+    /**
+     * The number of R-R values.
+     */
+    public int nRr;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The maximum number of rows.
+     */
+    public DataBatch(int capacity) {
+        dates = new long[capacity];
+        times = new long[capacity];
+        startDates = new long[capacity];
+        hrs = new int[capacity];
+        devices = new String[capacity];
+        rrCounts = new int[capacity];
+        rrValues = new int[4 * capacity];
+    }
+
+    /**
+     * @return The maximum number of rows.
+     */
+    public int capacity() {
+        return dates.length;
+    }
+
+    /**
+     * @return If the batch holds capacity rows.
+     */
+    public boolean isFull() {
+        return count == dates.length;
+    }
+
+    /**
+     * Removes all the rows.
+     */
+    public void clear() {
+        Arrays.fill(devices, 0, count, null);
+        count = 0;
+        nRr = 0;
+    }
+
+    /**
+     * Adds a row. The batch must not be full.
+     *
+     * @param date      The date.
+     * @param startDate The start date.
+     * @param hr        The heart rate.
+     * @param rr        The array holding the R-R values.
+     * @param rrCount   The number of R-R values or RrUtils.RR_NOT_PRESENT.
+     */
+    public void add(long date, long startDate, int hr, int[] rr,
+                    int rrCount) {
+        add(date, INVALID_DATE, startDate, hr, rr, rrCount, null);
+    }
+
+    /**
+     * Adds a row with its time and device. The batch must not be full.
+     *
+     * @param date      The date.
+     * @param time      The time in us or INVALID_DATE if not known.
+     * @param startDate The start date.
+     * @param hr        The heart rate.
+     * @param rr        The array holding the R-R values.
+     * @param rrCount   The number of R-R values or RrUtils.RR_NOT_PRESENT.
+     * @param device    The device address or null if not known.
+     */
+    public void add(long date, long time, long startDate, int hr, int[] rr,
+                    int rrCount, String device) {
+        dates[count] = date;
+        times[count] = time;
+        devices[count] = device;
+        startDates[count] = startDate;
+        hrs[count] = hr;
+        rrCounts[count] = rrCount;
+        if (rrCount > 0) {
+            if (nRr + rrCount > rrValues.length) {
+                rrValues = Arrays.copyOf(rrValues, Math.max(2 * rrValues
+                        .length, nRr + rrCount));
+            }
+            System.arraycopy(rr, 0, rrValues, nRr, rrCount);
+            nRr += rrCount;
+        }
+        count++;
+    }
+
+}
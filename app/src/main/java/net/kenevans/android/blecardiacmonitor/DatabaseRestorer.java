@@ -0,0 +1,69 @@
+package net.kenevans.android.blecardiacmonitor;
+
+/**
+ * Restores a file written by Save Database or Export Database as CSV into
+ * the database, replacing all the data.
+ */
+public interface DatabaseRestorer {
+    /**
+     * Callback for progress, called on the thread calling run.
+     */
+    interface ProgressListener {
+        /**
+         * Called periodically while restoring.
+         *
+         * @param nRows      The number of rows written.
+         * @param fraction   The fraction of the file read.
+         * @param rowsPerSec The average rate.
+         * @param etaMs      The estimated time remaining in ms or -1 if not
+         *                   known.
+         */
+        void onProgress(long nRows, double fraction, double rowsPerSec,
+                        long etaMs);
+
+        /**
+         * Called when the data are written and the indexes, beats, and
+         * rollups are being rebuilt.
+         */
+        void onIndexing();
+    }
+
+    /**
+     * Requests that run stop as soon as possible. The rows already written
+     * are kept.
+     */
+    void cancel();
+
+    /**
+     * Deletes all the data and restores the file. Runs on the calling thread,
+     * which should not be the UI thread.
+     *
+     * @throws Exception If reading the file fails.
+     */
+    void run() throws Exception;
+
+    /**
+     * @return Where in the file the restore is, for messages.
+     */
+    String getPosition();
+
+    /**
+     * @return The number of rows written.
+     */
+    long getNRows();
+
+    /**
+     * @return The number of rows or lines that could not be read or written.
+     */
+    int getNErrors();
+
+    /**
+     * @return The time taken in ms.
+     */
+    long getElapsed();
+
+    /**
+     * @return If cancel was called.
+     */
+    boolean isCancelled();
+}
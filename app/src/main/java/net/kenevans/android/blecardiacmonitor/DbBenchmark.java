@@ -0,0 +1,257 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * Micro-benchmark for the database queries. Fills a scratch database with
+ * synthetic sessions in steps up to the given table sizes and, at each size,
+ * times the range queries used for plotting and exporting with the indexes,
+ * with the earlier indexes that also covered the R-R values, and without
+ * indexes. The scratch database should not be the real one, since it is
+ * filled with made up data and its indexes are dropped and recreated.
+ */
+public class DbBenchmark implements IConstants {
+    /**
+     * The default table sizes.
+     */
+    public static final int[] DEFAULT_SIZES = {10000, 100000, 1000000};
+    /**
+     * The default number of times each query is run.
+     */
+    public static final int DEFAULT_REPEATS = 5;
+
+    /**
+     * Length of a synthetic session in rows. The rows are 1 sec apart.
+     */
+    private static final int SESSION_LENGTH = 3600;
+    /**
+     * Number of rows written in each transaction.
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * Callback for progress.
+     */
+    public interface ProgressListener {
+        /**
+         * Called with a progress message.
+         *
+         * @param msg The message.
+         */
+        void onProgress(String msg);
+    }
+
+    private final BCMDbAdapter mDbAdapter;
+    private final ProgressListener mListener;
+    private volatile boolean mCancelled;
+
+    // The synthetic data
+    private final long mFirstDate = 1000000000000L;
+    private int mNRows;
+
+    /**
+     * Constructor.
+     *
+     * @param adapter  An open adapter for the scratch database.
+     * @param listener The listener for progress or null.
+     */
+    public DbBenchmark(BCMDbAdapter adapter, ProgressListener listener) {
+        mDbAdapter = adapter;
+        mListener = listener;
+    }
+
+    /**
+     * Requests that run stop as soon as possible.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Gets if cancel has been called.
+     *
+     * @return If cancelled.
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Runs the benchmark. The data table is recreated first.
+     *
+     * @param sizes    The table sizes in increasing order.
+     * @param nRepeats The number of times each query is run at each size.
+     * @return A report of the median latencies in ms.
+     */
+    public String run(int[] sizes, int nRepeats) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Median query time (ms), indexed / R-R in index / not "
+                + "indexed\n");
+        mDbAdapter.recreateDataTable();
+        mNRows = 0;
+        for (int size : sizes) {
+            progress("Filling to " + size + " rows");
+            fill(size);
+            if (mCancelled) {
+                sb.append("Cancelled\n");
+                break;
+            }
+            progress("Querying " + size + " rows");
+            long[] indexed = timeQueries(nRepeats);
+            mDbAdapter.dropIndexes();
+            long[] scanned = timeQueries(nRepeats);
+            progress("Indexing " + size + " rows with R-R");
+            mDbAdapter.createRrIndexes();
+            long[] covered = timeQueries(nRepeats);
+            mDbAdapter.dropIndexes();
+            progress("Indexing " + size + " rows");
+            mDbAdapter.createIndexes();
+            if (mCancelled) {
+                sb.append("Cancelled\n");
+                break;
+            }
+            sb.append(String.format(Locale.US, "\n%,d rows, %,d sessions\n",
+                    mNRows, (mNRows + SESSION_LENGTH - 1) / SESSION_LENGTH));
+            sb.append(String.format(Locale.US,
+                    "  Session: %.1f / %.1f / %.1f\n", ms(indexed[0]),
+                    ms(covered[0]), ms(scanned[0])));
+            sb.append(String.format(Locale.US,
+                    "  Dates: %.1f / %.1f / %.1f\n", ms(indexed[1]),
+                    ms(covered[1]), ms(scanned[1])));
+            sb.append(String.format(Locale.US,
+                    "  Starting at: %.1f / %.1f / %.1f\n", ms(indexed[2]),
+                    ms(covered[2]), ms(scanned[2])));
+            sb.append(String.format(Locale.US,
+                    "  Session list: %.1f / %.1f / %.1f\n", ms(indexed[3]),
+                    ms(covered[3]), ms(scanned[3])));
+        }
+        Log.d(TAG, this.getClass().getSimpleName() + ": run:\n" + sb);
+        return sb.toString();
+    }
+
+    /**
+     * Adds synthetic data until the table has the given number of rows.
+     *
+     * @param size The number of rows.
+     */
+    private void fill(int size) {
+        long[] dates = new long[BATCH_SIZE];
+        long[] startDates = new long[BATCH_SIZE];
+        int[] hrs = new int[BATCH_SIZE];
+        int[] rrCounts = new int[BATCH_SIZE];
+        int[] rrValues = new int[BATCH_SIZE];
+        while (mNRows < size && !mCancelled) {
+            int count = Math.min(BATCH_SIZE, size - mNRows);
+            for (int i = 0; i < count; i++) {
+                int row = mNRows + i;
+                dates[i] = date(row);
+                startDates[i] = date(row - row % SESSION_LENGTH);
+                hrs[i] = 60 + row % 61;
+                rrCounts[i] = 1;
+                rrValues[i] = 61440 / hrs[i];
+            }
+            mDbAdapter.createDataBatch(dates, startDates, hrs, rrCounts,
+                    rrValues, count);
+            mNRows += count;
+        }
+    }
+
+    /**
+     * Times the queries. The data for a session in the middle of the table
+     * are used.
+     *
+     * @param nRepeats The number of times each query is run.
+     * @return The median times in ns for the session, dates, starting at date,
+     * and session list queries.
+     */
+    private long[] timeQueries(int nRepeats) {
+        int middle = mNRows / 2;
+        long startDate = date(middle - middle % SESSION_LENGTH);
+        long endDate = startDate + 1000L * (SESSION_LENGTH - 1);
+        long lastDate = date(Math.max(0, mNRows - SESSION_LENGTH));
+        long[][] times = new long[4][nRepeats];
+        for (int i = 0; i < nRepeats && !mCancelled; i++) {
+            long start = System.nanoTime();
+            readAll(mDbAdapter.fetchAllHrRrDateDataForStartDate(startDate));
+            times[0][i] = System.nanoTime() - start;
+            start = System.nanoTime();
+            readAll(mDbAdapter.fetchAllHrRrDateDataForDates(startDate,
+                    endDate));
+            times[1][i] = System.nanoTime() - start;
+            start = System.nanoTime();
+            readAll(mDbAdapter.fetchAllHrRrDateDataStartingAtDate(lastDate));
+            times[2][i] = System.nanoTime() - start;
+            start = System.nanoTime();
+            readAll(mDbAdapter.fetchAllSessionSummaryData());
+            times[3][i] = System.nanoTime() - start;
+        }
+        long[] medians = new long[times.length];
+        for (int i = 0; i < times.length; i++) {
+            Arrays.sort(times[i]);
+            medians[i] = times[i][nRepeats / 2];
+        }
+        return medians;
+    }
+
+    /**
+     * Reads all the rows of a cursor, as the callers do, then closes it.
+     *
+     * @param cursor The cursor.
+     * @return The number of rows.
+     */
+    private static int readAll(Cursor cursor) {
+        int nRows = 0;
+        if (cursor == null) {
+            return nRows;
+        }
+        try {
+            int nCols = cursor.getColumnCount();
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < nCols; i++) {
+                    cursor.getType(i);
+                }
+                nRows++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return nRows;
+    }
+
+    /**
+     * Gets the synthetic date for the given row.
+     *
+     * @param row The row.
+     * @return The date.
+     */
+    private long date(int row) {
+        return mFirstDate + 1000L * row;
+    }
+
+    /**
+     * Converts ns to ms.
+     *
+     * @param ns The time in ns.
+     * @return The time in ms.
+     */
+    private static double ms(long ns) {
+        return ns / 1000000.;
+    }
+
+    /**
+     * Reports progress to the listener.
+     *
+     * @param msg The message.
+     */
+    private void progress(String msg) {
+        Log.d(TAG, this.getClass().getSimpleName() + ": " + msg);
+        if (mListener != null) {
+            mListener.onProgress(msg);
+        }
+    }
+
+}
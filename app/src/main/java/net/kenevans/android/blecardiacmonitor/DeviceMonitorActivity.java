@@ -6,6 +6,7 @@ import java.util.UUID;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
@@ -21,6 +22,7 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
 import android.util.Log;
@@ -40,14 +42,32 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
     private TextView mBat;
     private TextView mHr;
     private TextView mRr;
+    private TextView mHrv;
     private TextView mStatus;
     private String mDeviceName;
     private String mDeviceAddress;
     private BCMBleService mBLECardiacBleService;
     private boolean mConnected = false;
-    private BCMDbAdapter mDbAdapter;
-    private BluetoothGattCharacteristic mCharBat;
-    private BluetoothGattCharacteristic mCharHr;
+    /**
+     * Shows the progress of a migration of the database by the service, or
+     * null.
+     */
+    private ProgressDialog mMigrationDialog;
+    private SampleBus.Subscription mSubscription;
+    private int mSourceId = -1;
+    private final StringBuilder mRrText = new StringBuilder();
+    private final StringBuilder mHrvText = new StringBuilder();
+
+    /**
+     * Displays the samples from the SampleBus on the UI thread.
+     */
+    private final SampleBus.Listener mSampleListener = new SampleBus
+            .Listener() {
+        @Override
+        public void onSample(SampleBus.Sample sample) {
+            displayData(sample);
+        }
+    };
 
     /**
      * Manages the service lifecycle.
@@ -68,9 +88,10 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
                         Utils.errMsg(DeviceMonitorActivity.this, msg);
                         return;
                     }
-                    if (mDbAdapter != null) {
-                        mBLECardiacBleService.startDatabase(mDbAdapter);
-                    }
+                    // Any migration is run by the service, which starts
+                    // recording when it is done
+                    mBLECardiacBleService.startDatabase();
+                    updateMigrationDialog(null);
                     // Automatically connects to the device upon successful
                     // start-up
                     // initialization.
@@ -105,14 +126,20 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
      * ACTION_GATT_CONNECTED: connected to a GATT server.<br>
      * ACTION_GATT_DISCONNECTED: disconnected from a GATT server.<br>
      * ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.<br>
-     * ACTION_DATA_AVAILABLE: received data from the device. This can be a
-     * result of read or notification operations.<br>
+     * <br>
+     * The HR, R-R, and battery data come from the SampleBus instead. Events
+     * for devices other than the one shown are ignored.
      */
     private final BroadcastReceiver mGattUpdateReceiver = new
             BroadcastReceiver() {
                 @Override
                 public void onReceive(Context context, Intent intent) {
                     final String action = intent.getAction();
+                    String address = intent.getStringExtra
+                            (DEVICE_ADDRESS_CODE);
+                    if (address != null && !address.equals(mDeviceAddress)) {
+                        return;
+                    }
                     if (BCMBleService.ACTION_GATT_CONNECTED.equals(action)) {
                         Log.d(TAG, "onReceive: " + action);
                         mConnected = true;
@@ -123,20 +150,37 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
                         Log.d(TAG, "onReceive: " + action);
                         mConnected = false;
                         resetDataViews();
-                        updateConnectionState(R.string.disconnected);
+                        if (mBLECardiacBleService != null
+                                && mBLECardiacBleService.getDeviceState(
+                                mDeviceAddress) == BCMBleService
+                                .DEVICE_STATE_RECONNECTING) {
+                            updateConnectionState(R.string.reconnecting);
+                        } else {
+                            updateConnectionState(R.string.disconnected);
+                        }
                         invalidateOptionsMenu();
                     } else if (BCMBleService.ACTION_GATT_SERVICES_DISCOVERED
                             .equals(action)) {
                         Log.d(TAG, "onReceive: " + action);
                         onServicesDiscovered(mBLECardiacBleService
-                                .getSupportedGattServices());
-                    } else if (BCMBleService.ACTION_DATA_AVAILABLE.equals
-                            (action)) {
-                        // Log.d(TAG, "onReceive: " + action);
-                        displayData(intent);
+                                .getSupportedGattServices(mDeviceAddress));
                     } else if (BCMBleService.ACTION_ERROR.equals(action)) {
                         // Log.d(TAG, "onReceive: " + action);
                         displayError(intent);
+                    } else if (BCMBleService.ACTION_MIGRATION_PROGRESS
+                            .equals(action)) {
+                        updateMigrationDialog(intent.getStringExtra(
+                                EXTRA_MSG));
+                    } else if (BCMBleService.ACTION_MIGRATION_DONE
+                            .equals(action)) {
+                        updateMigrationDialog(null);
+                        String msg = intent.getStringExtra(EXTRA_MSG);
+                        if (msg != null) {
+                            Utils.errMsg(DeviceMonitorActivity.this,
+                                    "Error upgrading database. It will be "
+                                            + "retried the next time the "
+                                            + "app is started.\n" + msg);
+                        }
                     }
                 }
             };
@@ -179,6 +223,7 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
                 .getDefaultSharedPreferences(this);
         mDeviceName = prefs.getString(DEVICE_NAME_CODE, null);
         mDeviceAddress = prefs.getString(DEVICE_ADDRESS_CODE, null);
+        mSourceId = getSourceId(mDeviceAddress);
         Log.d(TAG, this.getClass().getSimpleName() + ": onCreate: "
                 + mDeviceName + " " + mDeviceAddress);
 
@@ -188,19 +233,17 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
         mBat = (TextView) findViewById(R.id.bat_value);
         mHr = (TextView) findViewById(R.id.hr_value);
         mRr = (TextView) findViewById(R.id.rr_value);
+        mHrv = (TextView) findViewById(R.id.hrv_value);
         mStatus = (TextView) findViewById(R.id.status_value);
         resetDataViews();
 
+        // Set the default data directory before the service looks for it
+        getDataDirectory();
+
+        // Start the service so it keeps recording when this is gone
         Intent gattServiceIntent = new Intent(this, BCMBleService.class);
+        startService(gattServiceIntent);
         bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
-
-        // Open the database
-        File dataDir = getDataDirectory();
-        if (dataDir == null) {
-            return;
-        }
-        mDbAdapter = new BCMDbAdapter(this, dataDir);
-        mDbAdapter.open();
     }
 
     @Override
@@ -217,6 +260,10 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
         // DEBUG
         Log.d(TAG, "Starting registerReceiver");
         registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+        mSubscription = SampleBus.getDefault().subscribe(mSampleListener,
+                new SampleBus.HandlerExecutor(new Handler()));
+        // The migration may have ended while paused
+        updateMigrationDialog(null);
         if (!manuallyDisconnected && mDeviceAddress != null
                 && mBLECardiacBleService != null) {
             Log.d(TAG, "Starting mBLECardiacBleService.connect");
@@ -233,17 +280,22 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
         Log.d(TAG, this.getClass().getSimpleName() + ": onPause");
         super.onPause();
         unregisterReceiver(mGattUpdateReceiver);
+        if (mSubscription != null) {
+            mSubscription.close();
+            mSubscription = null;
+        }
+        if (mMigrationDialog != null) {
+            mMigrationDialog.dismiss();
+            mMigrationDialog = null;
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        // The service keeps recording
         unbindService(mServiceConnection);
         mBLECardiacBleService = null;
-        if (mDbAdapter != null) {
-            mDbAdapter.close();
-            mDbAdapter = null;
-        }
     }
 
     @Override
@@ -267,7 +319,7 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
                 setManuallyDisconnected(false);
                 return true;
             case R.id.menu_disconnect:
-                mBLECardiacBleService.disconnect();
+                mBLECardiacBleService.disconnect(mDeviceAddress);
                 setManuallyDisconnected(true);
                 return true;
             case android.R.id.home:
@@ -276,6 +328,9 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
             case R.id.menu_select_device:
                 selectDevice();
                 return true;
+            case R.id.menu_add_device:
+                addDevice();
+                return true;
             case R.id.menu_session_manager:
                 startSessionManager();
                 return true;
@@ -301,8 +356,19 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
         switch (requestCode) {
             case REQUEST_SELECT_DEVICE_CODE:
                 if (resultCode == Activity.RESULT_OK) {
+                    // Stop recording the previous device
+                    String oldAddress = mDeviceAddress;
                     mDeviceName = data.getStringExtra(DEVICE_NAME_CODE);
                     mDeviceAddress = data.getStringExtra(DEVICE_ADDRESS_CODE);
+                    mSourceId = getSourceId(mDeviceAddress);
+                    if (mBLECardiacBleService != null && oldAddress != null
+                            && !oldAddress.equals(mDeviceAddress)) {
+                        mBLECardiacBleService.close(oldAddress);
+                        mConnected = false;
+                        resetDataViews();
+                        updateConnectionState(R.string.disconnected);
+                        invalidateOptionsMenu();
+                    }
                     // Use this instead of getPreferences to be application-wide
                     SharedPreferences.Editor editor = PreferenceManager
                             .getDefaultSharedPreferences(this).edit();
@@ -315,6 +381,24 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
                             .setText(mDeviceAddress);
                 }
                 break;
+            case REQUEST_ADD_DEVICE_CODE:
+                if (resultCode == Activity.RESULT_OK) {
+                    String address = data.getStringExtra(DEVICE_ADDRESS_CODE);
+                    if (address == null || address.equals(mDeviceAddress)) {
+                        break;
+                    }
+                    if (mBLECardiacBleService == null
+                            || !mBLECardiacBleService.connect(address)) {
+                        Utils.errMsg(this, getString(
+                                R.string.add_device_error_format, address));
+                        break;
+                    }
+                    Toast.makeText(this, getString(
+                            R.string.add_device_format, address,
+                            mBLECardiacBleService.getDeviceAddresses().size()),
+                            Toast.LENGTH_LONG).show();
+                }
+                break;
             case REQUEST_PLOT_CODE:
                 String msg = null;
                 if (data != null) {
@@ -429,9 +513,19 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
         }
     }
 
+    /**
+     * Calls an activity to select another device to record at the same time
+     * as this one.
+     */
+    public void addDevice() {
+        Intent intent = new Intent(DeviceMonitorActivity.this,
+                DeviceScanActivity.class);
+        startActivityForResult(intent, REQUEST_ADD_DEVICE_CODE);
+    }
+
     public void readBatteryLevel() {
         if (mBLECardiacBleService != null) {
-            mBLECardiacBleService.readBatteryLevel();
+            mBLECardiacBleService.readBatteryLevel(mDeviceAddress);
         }
     }
 
@@ -483,49 +577,94 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
     }
 
     /**
-     * Displays the data from an ACTION_DATA_AVAILABLE callback.
+     * Displays a sample from the SampleBus.
      *
-     * @param intent The Intent.
+     * @param sample The sample.
      */
-    private void displayData(Intent intent) {
-        String uuidString;
-        UUID uuid;
-        String value;
-        try {
-            uuidString = intent.getStringExtra(EXTRA_UUID);
-            if (uuidString == null) {
-                mStatus.setText(R.string.null_uuid_msg);
-                return;
+    private void displayData(SampleBus.Sample sample) {
+        if (sample.getSource() != mSourceId) {
+            return;
+        }
+        switch (sample.getType()) {
+            case SampleBus.TYPE_HR:
+                mHr.setText(String.valueOf(sample.getHr()));
+                mRrText.setLength(0);
+                mRr.setText(sample.appendRr(mRrText).toString());
+                break;
+            case SampleBus.TYPE_BATTERY:
+                mBat.setText(String.valueOf(sample.getBatteryLevel()));
+                break;
+            case SampleBus.TYPE_HRV:
+                mHrvText.setLength(0);
+                appendHrv(mHrvText, sample);
+                mHrv.setText(mHrvText.toString());
+                break;
+        }
+    }
+
+    /**
+     * Appends the HRV metrics in a sample, one line per window and one for
+     * the spectral metrics if present.
+     *
+     * @param sb     The StringBuilder.
+     * @param sample The TYPE_HRV sample.
+     */
+    private static void appendHrv(StringBuilder sb, SampleBus.Sample sample) {
+        int[] values = sample.getHrvValues();
+        int nWindows = Math.min(sample.getHrvWindowCount(),
+                HRV_WINDOWS.length);
+        long window;
+        for (int w = 0; w < nWindows; w++) {
+            if (w > 0) {
+                sb.append('\n');
             }
-            uuid = UUID.fromString(uuidString);
-            if (uuid.equals(UUID_HEART_RATE_MEASUREMENT)) {
-                value = intent.getStringExtra(EXTRA_HR);
-                if (value == null) {
-                    mHr.setText(R.string.not_available);
-                } else {
-                    mHr.setText(value);
-                }
-                value = intent.getStringExtra(EXTRA_RR);
-                if (value == null) {
-                    mRr.setText(R.string.not_available);
-                } else {
-                    mRr.setText(value);
-                }
-            } else if (uuid.equals(UUID_BATTERY_LEVEL)) {
-                value = intent.getStringExtra(EXTRA_BAT);
-                if (value == null) {
-                    mBat.setText(R.string.not_available);
-                } else {
-                    mBat.setText(value);
-                }
+            window = HRV_WINDOWS[w] / 1000;
+            if (window % 60 == 0) {
+                sb.append(window / 60).append(" min:");
+            } else {
+                sb.append(window).append(" s:");
             }
-        } catch (Exception ex) {
-            Log.d(TAG, "Error displaying data", ex);
-            mStatus.setText(this.getString(R.string.exception_msg_format,
-                    ex.getMessage()));
-            // Don't use Utils here as there may be many
-            // Utils.excMsg(this, "Error displaying message", ex);
+            sb.append(" RMSSD ");
+            appendTenths(sb, HrvCalculator.unpack(values, w,
+                    HrvCalculator.METRIC_RMSSD));
+            sb.append(" SDNN ");
+            appendTenths(sb, HrvCalculator.unpack(values, w,
+                    HrvCalculator.METRIC_SDNN));
+            sb.append(" pNN50 ");
+            appendTenths(sb, HrvCalculator.unpack(values, w,
+                    HrvCalculator.METRIC_PNN50));
+            sb.append("% HR ");
+            appendTenths(sb, HrvCalculator.unpack(values, w,
+                    HrvCalculator.METRIC_MEAN_HR));
+        }
+        int offset = sample.getHrvSpectralOffset();
+        if (offset >= 0) {
+            sb.append('\n').append(HRV_WINDOWS[SPECTRAL_LIVE_WINDOW] / 60000)
+                    .append(" min: LF ");
+            appendTenths(sb, SpectralHrv.unpack(values, offset,
+                    SpectralHrv.METRIC_LF));
+            sb.append(" HF ");
+            appendTenths(sb, SpectralHrv.unpack(values, offset,
+                    SpectralHrv.METRIC_HF));
+            sb.append(" LF/HF ");
+            appendTenths(sb, SpectralHrv.unpack(values, offset,
+                    SpectralHrv.METRIC_LF_HF));
+        }
+    }
+
+    /**
+     * Appends a value with one decimal, or NA if it is NaN.
+     *
+     * @param sb    The StringBuilder.
+     * @param value The value.
+     */
+    private static void appendTenths(StringBuilder sb, double value) {
+        if (Double.isNaN(value)) {
+            sb.append("NA");
+            return;
         }
+        long tenths = Math.round(value * 10);
+        sb.append(tenths / 10).append('.').append(tenths % 10);
     }
 
     /**
@@ -565,14 +704,14 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
     }
 
     /**
-     * Starts a session using the proper starting Characteristics depending on
-     * mDoBat, mDoHr, and mDoCustom.
+     * Gets the SampleBus source id for a device.
      *
-     * @return Whether the service started the session successfully.
+     * @param address The device address.
+     * @return The id or -1 if the address is null.
      */
-    boolean startSession() {
-        Log.d(TAG, "  mCharBat=" + mCharBat + " mCharHr=" + mCharHr);
-        return mBLECardiacBleService.startSession(mCharBat, mCharHr);
+    private static int getSourceId(String address) {
+        return address == null ? -1 : SampleBus.getDefault().getSourceId(
+                address);
     }
 
     /**
@@ -582,29 +721,10 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
         mBat.setText(R.string.not_available);
         mHr.setText(R.string.not_available);
         mRr.setText(R.string.not_available);
+        mHrv.setText(R.string.not_available);
         mStatus.setText("");
     }
 
-    /**
-     * Sets up read or notify for this characteristic if possible.
-     *
-     * @param characteristic The Characteristic found.
-     */
-    private void onCharacteristicFound(
-            BluetoothGattCharacteristic characteristic) {
-        Log.d(TAG, "onCharacteristicFound: " + characteristic.getUuid());
-        if (characteristic.getUuid().equals(UUID_HEART_RATE_MEASUREMENT)
-                || characteristic.getUuid().equals(UUID_BATTERY_LEVEL)
-                || characteristic.getUuid().equals(UUID_CUSTOM_MEASUREMENT)) {
-            if (characteristic.getUuid().equals(UUID_HEART_RATE_MEASUREMENT)) {
-                mCharHr = characteristic;
-            } else if (characteristic.getUuid().equals(UUID_BATTERY_LEVEL)) {
-                mCharBat = characteristic;
-            }
-            startSession();
-        }
-    }
-
     /**
      * Make an IntentFilter for the actions in which we are interested.
      *
@@ -615,12 +735,14 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
         intentFilter.addAction(BCMBleService.ACTION_GATT_CONNECTED);
         intentFilter.addAction(BCMBleService.ACTION_GATT_DISCONNECTED);
         intentFilter.addAction(BCMBleService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BCMBleService.ACTION_DATA_AVAILABLE);
+        intentFilter.addAction(BCMBleService.ACTION_MIGRATION_PROGRESS);
+        intentFilter.addAction(BCMBleService.ACTION_MIGRATION_DONE);
         return intentFilter;
     }
 
     /**
-     * Called when services are discovered.
+     * Called when services are discovered. The service starts the session
+     * itself, so this only warns about anything missing.
      *
      * @param gattServices The list of Gatt services.
      */
@@ -631,8 +753,7 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
         // Loop through available GATT Services
         UUID serviceUuid;
         UUID charUuid;
-        mCharBat = null;
-        mCharHr = null;
+        BluetoothGattCharacteristic charBat = null, charHr = null;
         boolean hrFound = false, batFound = false;
         for (BluetoothGattService gattService : gattServices) {
             serviceUuid = gattService.getUuid();
@@ -643,8 +764,7 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
                         .getCharacteristics()) {
                     charUuid = characteristic.getUuid();
                     if (charUuid.equals(UUID_HEART_RATE_MEASUREMENT)) {
-                        mCharHr = characteristic;
-                        onCharacteristicFound(characteristic);
+                        charHr = characteristic;
                     }
                 }
             } else if (serviceUuid.equals(UUID_BATTERY_SERVICE)) {
@@ -654,21 +774,20 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
                         .getCharacteristics()) {
                     charUuid = characteristic.getUuid();
                     if (charUuid.equals(UUID_BATTERY_LEVEL)) {
-                        mCharBat = characteristic;
-                        onCharacteristicFound(characteristic);
+                        charBat = characteristic;
                     }
                 }
             }
         }
-        if (!hrFound || !batFound || mCharHr == null || mCharBat == null) {
+        if (!hrFound || !batFound || charHr == null || charBat == null) {
             String info = "Services and Characteristics not found:" + "\n";
             if (!hrFound) {
                 info += "  Heart Rate" + "\n";
-            } else if (mCharHr == null) {
+            } else if (charHr == null) {
                 info += "    Heart Rate Measurement" + "\n";
             } else if (!batFound) {
                 info += "  Battery" + "\n";
-            } else if (mCharBat == null) {
+            } else if (charBat == null) {
                 info += "    Battery Level" + "\n";
             }
             Utils.warnMsg(this, info);
@@ -676,4 +795,36 @@ public class DeviceMonitorActivity extends Activity implements IConstants {
         }
     }
 
+    /**
+     * Shows a progress dialog while the service is migrating the database,
+     * and dismisses it when it is not. Recording starts when the migration
+     * is done.
+     *
+     * @param step The step being run or null if not known.
+     */
+    private void updateMigrationDialog(String step) {
+        boolean migrating = step != null || (mBLECardiacBleService != null
+                && mBLECardiacBleService.isMigrating());
+        if (!migrating) {
+            if (mMigrationDialog != null) {
+                mMigrationDialog.dismiss();
+                mMigrationDialog = null;
+            }
+            return;
+        }
+        String msg = getString(R.string.upgrading_database_progress_text);
+        if (step != null) {
+            msg += "\n" + step;
+        }
+        if (mMigrationDialog == null) {
+            mMigrationDialog = new ProgressDialog(this);
+            mMigrationDialog.setCancelable(false);
+            mMigrationDialog.setIndeterminate(true);
+            mMigrationDialog.setMessage(msg);
+            mMigrationDialog.show();
+        } else if (step != null) {
+            mMigrationDialog.setMessage(msg);
+        }
+    }
+
 }
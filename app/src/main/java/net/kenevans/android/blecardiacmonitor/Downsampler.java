@@ -0,0 +1,147 @@
+package net.kenevans.android.blecardiacmonitor;
+
+/**
+ * Reduces a series of samples to a given number of points with the
+ * Largest-Triangle-Three-Buckets algorithm (Steinarsson, 2013). The first and
+ * last points are kept, and from each bucket in between it keeps the point
+ * that makes the largest triangle with the point kept from the previous
+ * bucket and the average of the next bucket. This preserves the peaks and
+ * the overall shape far better than taking every nth point.
+ * <p/>
+ * NaN values are gaps in the plot. They do not take part in the triangles,
+ * but the first NaN in a bucket is also kept, in time order, so gaps stay
+ * visible. The output can therefore have up to about twice the requested
+ * number of points.
+ */
+public class Downsampler {
+    /**
+     * Gets the size the output arrays must have for a given threshold.
+     *
+     * @param threshold The number of points requested.
+     * @return The size.
+     */
+    public static int getOutputCapacity(int threshold) {
+        return 2 * Math.max(threshold, 3);
+    }
+
+    /**
+     * Downsamples a range of samples.
+     *
+     * @param times     The times, which must be increasing.
+     * @param values    The values.
+     * @param from      The index of the first sample.
+     * @param to        The index after the last sample.
+     * @param threshold The number of points requested. Values less than 3
+     *                  are treated as 3.
+     * @param outTimes  The array for the output times, which must hold
+     *                  getOutputCapacity(threshold) from outOffset.
+     * @param outValues The array for the output values, the same size.
+     * @param outOffset The index in the output arrays to start at.
+     * @return The number of points written.
+     */
+    public static int lttb(long[] times, double[] values, int from, int to,
+                           int threshold, long[] outTimes, double[] outValues,
+                           int outOffset) {
+        threshold = Math.max(threshold, 3);
+        int n = to - from;
+        if (n <= threshold) {
+            System.arraycopy(times, from, outTimes, outOffset, n);
+            System.arraycopy(values, from, outValues, outOffset, n);
+            return n;
+        }
+        // Times are relative to the first to keep precision in the areas
+        long base = times[from];
+        int out = outOffset;
+        outTimes[out] = times[from];
+        outValues[out] = values[from];
+        out++;
+        // The index of the last non-NaN point kept, or -1
+        int a = Double.isNaN(values[from]) ? -1 : from;
+        double every = (double) (n - 2) / (threshold - 2);
+        int start, end, nextEnd, nAvg, selected, firstNaN;
+        double avgX, avgY, ax, ay, area, maxArea, value;
+        for (int i = 0; i < threshold - 2; i++) {
+            start = from + 1 + (int) (i * every);
+            end = Math.min(from + 1 + (int) ((i + 1) * every), to - 1);
+            nextEnd = Math.min(from + 1 + (int) ((i + 2) * every), to);
+
+            // Average of the next bucket
+            avgX = 0;
+            avgY = 0;
+            nAvg = 0;
+            for (int j = end; j < nextEnd; j++) {
+                value = values[j];
+                if (!Double.isNaN(value)) {
+                    avgX += times[j] - base;
+                    avgY += value;
+                    nAvg++;
+                }
+            }
+
+            // Point with the largest triangle in this bucket
+            selected = -1;
+            firstNaN = -1;
+            maxArea = -1;
+            if (a >= 0) {
+                ax = times[a] - base;
+                ay = values[a];
+            } else {
+                ax = ay = Double.NaN;
+            }
+            if (nAvg > 0) {
+                avgX /= nAvg;
+                avgY /= nAvg;
+            } else {
+                // The next bucket is all gaps, so there is nothing to aim at
+                // and the first point is kept
+                avgX = avgY = Double.NaN;
+            }
+            for (int j = start; j < end; j++) {
+                value = values[j];
+                if (Double.isNaN(value)) {
+                    if (firstNaN < 0) {
+                        firstNaN = j;
+                    }
+                    continue;
+                }
+                if (a < 0 || Double.isNaN(avgX)) {
+                    // Nothing to compare with, so keep the first
+                    if (selected < 0) {
+                        selected = j;
+                    }
+                    continue;
+                }
+                area = Math.abs((ax - avgX) * (value - ay)
+                        - (ax - (times[j] - base)) * (avgY - ay));
+                if (area > maxArea) {
+                    maxArea = area;
+                    selected = j;
+                }
+            }
+
+            // Keep them in time order
+            if (firstNaN >= 0 && (selected < 0 || firstNaN < selected)) {
+                outTimes[out] = times[firstNaN];
+                outValues[out] = Double.NaN;
+                out++;
+                firstNaN = -1;
+            }
+            if (selected >= 0) {
+                outTimes[out] = times[selected];
+                outValues[out] = values[selected];
+                out++;
+                a = selected;
+            }
+            if (firstNaN >= 0) {
+                outTimes[out] = times[firstNaN];
+                outValues[out] = Double.NaN;
+                out++;
+            }
+        }
+        outTimes[out] = times[to - 1];
+        outValues[out] = values[to - 1];
+        out++;
+        return out - outOffset;
+    }
+
+}
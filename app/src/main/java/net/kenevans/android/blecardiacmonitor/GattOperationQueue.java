@@ -0,0 +1,481 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Runs GATT operations for one device one at a time, since Android only
+ * allows one outstanding operation per connection. Operations are started in
+ * order of priority, then in the order they were added. Each has a timeout,
+ * after which it is retried, or dropped when its retries are used up, so an
+ * operation that never gets a callback cannot stall the queue. Operations
+ * that fail to start or complete with an error are retried the same way.
+ * <p/>
+ * The queue is confined to the thread of its Scheduler. All the methods
+ * must be called on that thread, so GATT callbacks must be posted to it. The
+ * GATT is reached through the Gatt interface and time through the
+ * Scheduler, so the queue can be driven by fakes on the JVM. Failures are
+ * reported to the Listener rather than logged.
+ */
+public class GattOperationQueue implements IConstants {
+    /**
+     * Status for an operation that could not be started.
+     */
+    public static final int STATUS_NOT_STARTED = -1;
+    /**
+     * Status for an operation that timed out.
+     */
+    public static final int STATUS_TIMEOUT = -2;
+
+    /**
+     * The GATT operations the queue uses.
+     */
+    public interface Gatt {
+        /**
+         * @param descriptor The descriptor.
+         * @return If the write was started.
+         * @see BluetoothGatt#writeDescriptor
+         */
+        boolean writeDescriptor(BluetoothGattDescriptor descriptor);
+
+        /**
+         * @param characteristic The characteristic.
+         * @return If the read was started.
+         * @see BluetoothGatt#readCharacteristic
+         */
+        boolean readCharacteristic(BluetoothGattCharacteristic
+                                           characteristic);
+    }
+
+    /**
+     * Runs tasks after a delay on the thread the queue is used on and tells
+     * the time.
+     */
+    public interface Scheduler {
+        /**
+         * @return The time in ms, which must not go backward.
+         * @see android.os.SystemClock#uptimeMillis
+         */
+        long uptimeMillis();
+
+        /**
+         * Runs a task on the queue's thread after a delay.
+         *
+         * @param task    The task.
+         * @param delayMs The delay in ms.
+         * @see android.os.Handler#postDelayed
+         */
+        void postDelayed(Runnable task, long delayMs);
+
+        /**
+         * Removes all pending runs of a task.
+         *
+         * @param task The task.
+         * @see android.os.Handler#removeCallbacks(Runnable)
+         */
+        void removeCallbacks(Runnable task);
+    }
+
+    /**
+     * Listener for operations that fail after all their retries.
+     */
+    public interface Listener {
+        /**
+         * @param operation The operation.
+         * @param status    The status of the last attempt, a GATT status,
+         *                  STATUS_NOT_STARTED, or STATUS_TIMEOUT.
+         */
+        void onOperationFailed(Operation operation, int status);
+    }
+
+    private final Scheduler mScheduler;
+    private final Gatt mGatt;
+    private final Listener mListener;
+    private final PriorityQueue<Operation> mQueue = new PriorityQueue<>(8,
+            new Comparator<Operation>() {
+                @Override
+                public int compare(Operation lhs, Operation rhs) {
+                    if (lhs.mPriority != rhs.mPriority) {
+                        return lhs.mPriority > rhs.mPriority ? -1 : 1;
+                    }
+                    return lhs.mSequence < rhs.mSequence ? -1
+                            : (lhs.mSequence == rhs.mSequence ? 0 : 1);
+                }
+            });
+    private Operation mCurrent;
+    private long mNextSequence;
+    /**
+     * Whether nothing is to be started until the retry delay is over.
+     */
+    private boolean mRetryWaiting;
+
+    private final Runnable mTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+    private final Runnable mStartTask = new Runnable() {
+        @Override
+        public void run() {
+            mRetryWaiting = false;
+            startNext();
+        }
+    };
+
+    // Metrics
+    private long mNCompleted;
+    private long mNFailed;
+    private long mNRetries;
+    private long mNTimeouts;
+    private long mNLatency;
+    private long mLatencyTotal;
+    private long mLatencyMax;
+    private long mWaitTotal;
+    private long mWaitMax;
+
+    /**
+     * Constructor.
+     *
+     * @param scheduler The Scheduler for the thread the queue is used on.
+     * @param gatt      The GATT to run the operations on.
+     * @param listener  The listener for failed operations or null.
+     */
+    public GattOperationQueue(Scheduler scheduler, Gatt gatt,
+                              Listener listener) {
+        mScheduler = scheduler;
+        mGatt = gatt;
+        mListener = listener;
+    }
+
+    /**
+     * Adds an operation and starts it if nothing else is running.
+     *
+     * @param operation The operation. It must not be added again.
+     */
+    public void add(Operation operation) {
+        operation.mSequence = mNextSequence++;
+        operation.mQueuedTime = mScheduler.uptimeMillis();
+        operation.mAttempts = 0;
+        mQueue.add(operation);
+        startNext();
+    }
+
+    /**
+     * Called when the GATT reports that an operation is done. Completions
+     * that do not match the running operation, such as a late one for an
+     * operation that timed out, are ignored.
+     *
+     * @param type   The type of operation.
+     * @param target The descriptor or characteristic it was for.
+     * @param status The GATT status.
+     * @return If it matched the running operation.
+     */
+    public boolean onComplete(int type, Object target, int status) {
+        Operation operation = mCurrent;
+        if (operation == null || !operation.matches(type, target)) {
+            return false;
+        }
+        mScheduler.removeCallbacks(mTimeoutTask);
+        mCurrent = null;
+        long latency = mScheduler.uptimeMillis() - operation.mStartTime;
+        mNLatency++;
+        mLatencyTotal += latency;
+        if (latency > mLatencyMax) {
+            mLatencyMax = latency;
+        }
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            mNCompleted++;
+            startNext();
+        } else {
+            retryOrFail(operation, status);
+        }
+        return true;
+    }
+
+    /**
+     * Removes all the operations, including the running one. Used when the
+     * connection is lost or a session restarts.
+     */
+    public void clear() {
+        mScheduler.removeCallbacks(mTimeoutTask);
+        mScheduler.removeCallbacks(mStartTask);
+        mQueue.clear();
+        mCurrent = null;
+        mRetryWaiting = false;
+    }
+
+    /**
+     * @return The number of operations waiting or running.
+     */
+    public int size() {
+        return mQueue.size() + (mCurrent == null ? 0 : 1);
+    }
+
+    private void startNext() {
+        if (mCurrent != null || mRetryWaiting) {
+            return;
+        }
+        Operation operation = mQueue.poll();
+        if (operation == null) {
+            return;
+        }
+        mCurrent = operation;
+        operation.mAttempts++;
+        operation.mStartTime = mScheduler.uptimeMillis();
+        if (operation.mAttempts > 1) {
+            mNRetries++;
+        } else {
+            long wait = operation.mStartTime - operation.mQueuedTime;
+            mWaitTotal += wait;
+            if (wait > mWaitMax) {
+                mWaitMax = wait;
+            }
+        }
+        boolean started;
+        try {
+            started = operation.start(mGatt);
+        } catch (RuntimeException ex) {
+            // Treated the same as the GATT refusing to start it
+            started = false;
+        }
+        if (!started) {
+            mCurrent = null;
+            retryOrFail(operation, STATUS_NOT_STARTED);
+            return;
+        }
+        mScheduler.postDelayed(mTimeoutTask, operation.mTimeout);
+    }
+
+    private void onTimeout() {
+        Operation operation = mCurrent;
+        if (operation == null) {
+            return;
+        }
+        mCurrent = null;
+        mNTimeouts++;
+        retryOrFail(operation, STATUS_TIMEOUT);
+    }
+
+    /**
+     * Puts an operation that did not succeed back at the front of its
+     * priority to be tried again after a delay, during which nothing else is
+     * started, or drops it if it has no retries left.
+     *
+     * @param operation The operation.
+     * @param status    The status.
+     */
+    private void retryOrFail(Operation operation, int status) {
+        if (operation.mAttempts <= operation.mMaxRetries) {
+            // Keeps its sequence, so it goes ahead of later ones
+            mQueue.add(operation);
+            mRetryWaiting = true;
+            mScheduler.removeCallbacks(mStartTask);
+            mScheduler.postDelayed(mStartTask, GATT_RETRY_DELAY);
+            return;
+        }
+        mNFailed++;
+        if (mListener != null) {
+            mListener.onOperationFailed(operation, status);
+        }
+        startNext();
+    }
+
+    /**
+     * @return The number of operations that succeeded.
+     */
+    public long getNCompleted() {
+        return mNCompleted;
+    }
+
+    /**
+     * @return The number of operations that failed after all their retries.
+     */
+    public long getNFailed() {
+        return mNFailed;
+    }
+
+    /**
+     * @return The number of retries.
+     */
+    public long getNRetries() {
+        return mNRetries;
+    }
+
+    /**
+     * @return The number of attempts that timed out.
+     */
+    public long getNTimeouts() {
+        return mNTimeouts;
+    }
+
+    /**
+     * @return The maximum time in ms from starting an attempt to its
+     * callback.
+     */
+    public long getLatencyMax() {
+        return mLatencyMax;
+    }
+
+    /**
+     * @return A summary of the metrics.
+     */
+    public String getInfo() {
+        long nStarted = mNCompleted + mNFailed;
+        return "completed=" + mNCompleted + " failed=" + mNFailed
+                + " retries=" + mNRetries + " timeouts=" + mNTimeouts
+                + " latencyAvg=" + (mNLatency > 0 ? mLatencyTotal / mNLatency : 0)
+                + " latencyMax=" + mLatencyMax + " waitAvg="
+                + (nStarted > 0 ? mWaitTotal / nStarted : 0) + " waitMax="
+                + mWaitMax;
+    }
+
+    /**
+     * A GATT operation.
+     */
+    public static class Operation {
+        /**
+         * Type for writing a descriptor.
+         */
+        public static final int TYPE_WRITE_DESCRIPTOR = 1;
+        /**
+         * Type for reading a characteristic.
+         */
+        public static final int TYPE_READ_CHARACTERISTIC = 2;
+
+        /**
+         * Priority for operations that other things wait on, such as
+         * enabling notifications.
+         */
+        public static final int PRIORITY_HIGH = 2;
+        /**
+         * Priority for ordinary operations.
+         */
+        public static final int PRIORITY_NORMAL = 1;
+        /**
+         * Priority for operations that can wait, such as battery reads.
+         */
+        public static final int PRIORITY_LOW = 0;
+
+        private final int mType;
+        private final int mPriority;
+        private final BluetoothGattDescriptor mDescriptor;
+        private final BluetoothGattCharacteristic mCharacteristic;
+        private final long mTimeout;
+        private final int mMaxRetries;
+        private long mSequence;
+        private long mQueuedTime;
+        private long mStartTime;
+        private int mAttempts;
+
+        private Operation(int type, int priority,
+                          BluetoothGattDescriptor descriptor,
+                          BluetoothGattCharacteristic characteristic) {
+            mType = type;
+            mPriority = priority;
+            mDescriptor = descriptor;
+            mCharacteristic = characteristic;
+            mTimeout = GATT_OPERATION_TIMEOUT;
+            mMaxRetries = GATT_OPERATION_RETRIES;
+        }
+
+        /**
+         * Creates an operation to write a descriptor. The value must already
+         * be set on the descriptor.
+         *
+         * @param descriptor The descriptor.
+         * @param priority   The priority.
+         * @return The operation.
+         */
+        public static Operation writeDescriptor(
+                BluetoothGattDescriptor descriptor, int priority) {
+            return new Operation(TYPE_WRITE_DESCRIPTOR, priority, descriptor,
+                    null);
+        }
+
+        /**
+         * Creates an operation to read a characteristic.
+         *
+         * @param characteristic The characteristic.
+         * @param priority       The priority.
+         * @return The operation.
+         */
+        public static Operation readCharacteristic(
+                BluetoothGattCharacteristic characteristic, int priority) {
+            return new Operation(TYPE_READ_CHARACTERISTIC, priority, null,
+                    characteristic);
+        }
+
+        private boolean start(Gatt gatt) {
+            switch (mType) {
+                case TYPE_WRITE_DESCRIPTOR:
+                    return gatt.writeDescriptor(mDescriptor);
+                case TYPE_READ_CHARACTERISTIC:
+                    return gatt.readCharacteristic(mCharacteristic);
+            }
+            return false;
+        }
+
+        private boolean matches(int type, Object target) {
+            if (type != mType) {
+                return false;
+            }
+            Object own = mType == TYPE_WRITE_DESCRIPTOR ? mDescriptor
+                    : mCharacteristic;
+            if (own == target) {
+                return true;
+            }
+            // The stack may hand back a different instance
+            if (mType == TYPE_WRITE_DESCRIPTOR
+                    && target instanceof BluetoothGattDescriptor) {
+                BluetoothGattDescriptor descriptor =
+                        (BluetoothGattDescriptor) target;
+                return mDescriptor.getUuid().equals(descriptor.getUuid())
+                        && mDescriptor.getCharacteristic().getUuid().equals(
+                        descriptor.getCharacteristic().getUuid());
+            }
+            return mType == TYPE_READ_CHARACTERISTIC
+                    && target instanceof BluetoothGattCharacteristic
+                    && mCharacteristic.getUuid().equals(
+                    ((BluetoothGattCharacteristic) target).getUuid());
+        }
+
+        /**
+         * @return The type.
+         */
+        public int getType() {
+            return mType;
+        }
+
+        /**
+         * @return The priority.
+         */
+        public int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * @return The number of times it has been started.
+         */
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        @Override
+        public String toString() {
+            String target;
+            if (mType == TYPE_WRITE_DESCRIPTOR) {
+                target = "writeDescriptor "
+                        + mDescriptor.getCharacteristic().getUuid();
+            } else {
+                target = "readCharacteristic " + mCharacteristic.getUuid();
+            }
+            return target + " attempts=" + mAttempts;
+        }
+    }
+
+}
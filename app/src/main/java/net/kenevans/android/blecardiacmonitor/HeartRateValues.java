@@ -1,84 +1,191 @@
 package net.kenevans.android.blecardiacmonitor;
 
-import android.bluetooth.BluetoothGattCharacteristic;
+import java.nio.ByteBuffer;
 
+/**
+ * Mutable holder for the values in a Heart Rate Measurement characteristic.
+ * The same instance is meant to be reused for every notification. Decoding
+ * works directly on the payload bytes, does not depend on Android, and does
+ * not allocate. The Strings for the R-R values and the info are only built
+ * when asked for.
+ */
 public class HeartRateValues implements IConstants {
-    long date;
+    /**
+     * Flag bit for the heart rate being UINT16 rather than UINT8.
+     */
+    public static final int FLAG_HR_UINT16 = 0x01;
+    /**
+     * Flag bit for sensor contact being detected.
+     */
+    public static final int FLAG_CONTACT_DETECTED = 0x02;
+    /**
+     * Flag bit for sensor contact being supported.
+     */
+    public static final int FLAG_CONTACT_SUPPORTED = 0x04;
+    /**
+     * Flag bit for the energy expended being present.
+     */
+    public static final int FLAG_ENERGY_EXPENDED = 0x08;
+    /**
+     * Flag bit for R-R values being present.
+     */
+    public static final int FLAG_RR = 0x10;
+
+    /**
+     * Sensor contact is not supported.
+     */
+    public static final int CONTACT_NOT_SUPPORTED = 0;
+    /**
+     * Sensor contact is supported but not detected.
+     */
+    public static final int CONTACT_NOT_DETECTED = 2;
+    /**
+     * Sensor contact is supported and detected.
+     */
+    public static final int CONTACT_DETECTED = 3;
+
+    /**
+     * The maximum number of R-R values. A characteristic value can be at
+     * most 512 bytes.
+     */
+    public static final int MAX_RR = 256;
+
+    /**
+     * The maximum length of a characteristic value in bytes.
+     */
+    public static final int MAX_LENGTH = 512;
+
+    private long date = INVALID_DATE;
+    private int flags;
     private int hr = INVALID_INT;
-    int sensorContact = INVALID_INT;
-    int ee = INVALID_INT;
-    private String rr = INVALID_STRING;
-    private String info;
+    private int sensorContact = INVALID_INT;
+    private int ee = INVALID_INT;
+    private final int[] rr = new int[MAX_RR];
+    private int rrCount;
+    private boolean rrPresent;
+    /**
+     * Holds the bytes of a buffer that has no accessible array.
+     */
+    private final byte[] bytes = new byte[MAX_LENGTH];
 
-    public HeartRateValues(BluetoothGattCharacteristic characteristic, long
-            date) {
-        this.date = date;
-        if (!characteristic.getUuid().equals(UUID_HEART_RATE_MEASUREMENT)) {
-            return;
-        }
-        String string = "";
-        int flag = characteristic.getProperties();
-        int format;
-        int offset = 1;
-        if ((flag & 0x01) != 0) {
-            format = BluetoothGattCharacteristic.FORMAT_UINT16;
-            offset += 2;
-        } else {
-            format = BluetoothGattCharacteristic.FORMAT_UINT8;
-            offset += 1;
+    /**
+     * Decodes a Heart Rate Measurement value.
+     *
+     * @param data The characteristic value.
+     * @param date The date the value was received.
+     * @return If the value could be decoded.
+     */
+    public boolean decode(byte[] data, long date) {
+        if (data == null) {
+            reset(date);
+            return false;
         }
-        hr = characteristic.getIntValue(format, 1);
-        string += "Heart Rate: " + hr;
-        // Sensor Contact
-        sensorContact = (flag >> 1) & 0x11;
-        switch (sensorContact) {
-            case 0:
-            case 1:
-                string += "\nSensor contact not supported";
-                break;
-            case 2:
-                string += "\nSensor contact not detected";
-                break;
-            case 3:
-                string += "\nSensor contact detected";
-                break;
+        return decode(data, 0, data.length, date);
+    }
+
+    /**
+     * Decodes a Heart Rate Measurement value.
+     *
+     * @param data   The array holding the characteristic value.
+     * @param offset The offset of the value in the array.
+     * @param length The length of the value.
+     * @param date   The date the value was received.
+     * @return If the value could be decoded.
+     */
+    public boolean decode(byte[] data, int offset, int length, long date) {
+        reset(date);
+        int end = offset + length;
+        if (data == null || length < 2 || end > data.length) {
+            return false;
         }
-        // Energy Expended
-        if ((flag & 0x08) != 0) {
-            offset += 2;
-            ee = characteristic.getIntValue(
-                    BluetoothGattCharacteristic.FORMAT_UINT16, offset);
-            string += "\nEnergy Expended: " + ee;
+        int flag = data[offset] & 0xFF;
+        int pos = offset + 1;
+        // Heart rate
+        if ((flag & FLAG_HR_UINT16) != 0) {
+            if (pos + 2 > end) {
+                return false;
+            }
+            hr = uint16(data, pos);
+            pos += 2;
         } else {
-            string += "\nEnergy Expended: NA";
+            hr = data[pos] & 0xFF;
+            pos += 1;
         }
-        // R-R
-        if ((flag & 0x10) != 0) {
-            int len = characteristic.getValue().length;
-            // There may be more than 1 R-R value
-            int iVal;
-            String rrString = "";
-            while (offset < len) {
-                iVal = characteristic.getIntValue(
-                        BluetoothGattCharacteristic.FORMAT_UINT16, offset);
-                offset += 2;
-                rrString += " " + iVal;
+        // Sensor contact
+        sensorContact = (flag >> 1) & 0x03;
+        // Energy expended
+        if ((flag & FLAG_ENERGY_EXPENDED) != 0) {
+            if (pos + 2 > end) {
+                // Do not leave the heart rate from a bad value
+                reset(date);
+                return false;
             }
-            rr = rrString.trim();
-            string += "\nR-R: " + rrString;
-        } else {
-            string += "\nR-R: NA";
+            ee = uint16(data, pos);
+            pos += 2;
+        }
+        // R-R, there may be more than 1 value
+        if ((flag & FLAG_RR) != 0) {
+            rrPresent = true;
+            while (pos + 2 <= end && rrCount < MAX_RR) {
+                rr[rrCount++] = uint16(data, pos);
+                pos += 2;
+            }
+        }
+        flags = flag;
+        return true;
+    }
+
+    /**
+     * Decodes a Heart Rate Measurement value from the remaining bytes in the
+     * given buffer. The position of the buffer is not changed. A buffer
+     * without an accessible array, such as a direct one, is copied into an
+     * array that is reused, so the same parser is used in either case.
+     *
+     * @param buffer The buffer.
+     * @param date   The date the value was received.
+     * @return If the value could be decoded.
+     */
+    public boolean decode(ByteBuffer buffer, long date) {
+        if (buffer == null) {
+            reset(date);
+            return false;
+        }
+        if (buffer.hasArray()) {
+            return decode(buffer.array(),
+                    buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining(), date);
         }
-        // // DEBUG
-        // final byte[] data = characteristic.getValue();
-        // if (data != null && data.length > 0) {
-        // final StringBuilder stringBuilder = new StringBuilder(data.length);
-        // for (byte byteChar : data) {
-        // stringBuilder.append(String.format("%02X ", byteChar));
-        // }
-        // info += "\n" + stringBuilder.toString();
-        // }
-        this.info = string;
+        int length = Math.min(buffer.remaining(), MAX_LENGTH);
+        for (int i = 0, pos = buffer.position(); i < length; i++, pos++) {
+            bytes[i] = buffer.get(pos);
+        }
+        return decode(bytes, 0, length, date);
+    }
+
+    /**
+     * Resets the values to invalid.
+     *
+     * @param date The date to use.
+     */
+    private void reset(long date) {
+        this.date = date;
+        flags = 0;
+        hr = INVALID_INT;
+        sensorContact = INVALID_INT;
+        ee = INVALID_INT;
+        rrCount = 0;
+        rrPresent = false;
+    }
+
+    /**
+     * Gets a little-endian UINT16 from a byte array.
+     *
+     * @param data   The array.
+     * @param offset The offset.
+     * @return The value.
+     */
+    private static int uint16(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
     }
 
     /**
@@ -91,6 +198,16 @@ public class HeartRateValues implements IConstants {
         return date;
     }
 
+    /**
+     * Gets the flags byte from the last decoded value.
+     *
+     * @return The flags.
+     */
+    @SuppressWarnings("unused")
+    public int getFlags() {
+        return flags;
+    }
+
     /**
      * Gets the heart rate.
      *
@@ -102,7 +219,8 @@ public class HeartRateValues implements IConstants {
     }
 
     /**
-     * Gets the sensor contact
+     * Gets the sensor contact. One of CONTACT_NOT_SUPPORTED (or 1, which
+     * also means not supported), CONTACT_NOT_DETECTED, or CONTACT_DETECTED.
      *
      * @return The sensor contact.
      */
@@ -114,7 +232,7 @@ public class HeartRateValues implements IConstants {
     /**
      * Gets the energy expended.
      *
-     * @return The energy expended.
+     * @return The energy expended or INVALID_INT if not present.
      */
     @SuppressWarnings("unused")
     public int getEe() {
@@ -122,12 +240,75 @@ public class HeartRateValues implements IConstants {
     }
 
     /**
-     * Gets the R-R values.
+     * Gets if the R-R field was present. It may be present with no values.
+     *
+     * @return If present.
+     */
+    public boolean isRrPresent() {
+        return rrPresent;
+    }
+
+    /**
+     * Gets the number of R-R values.
+     *
+     * @return The number of R-R values.
+     */
+    public int getRrCount() {
+        return rrCount;
+    }
+
+    /**
+     * Gets an R-R value in units of 1/1024 sec.
+     *
+     * @param index The index.
+     * @return The R-R value.
+     */
+    public int getRr(int index) {
+        return rr[index];
+    }
+
+    /**
+     * Gets the array holding the R-R values in units of 1/1024 sec. Only the
+     * first getRrCount() values are valid. The array is reused.
+     *
+     * @return The R-R array.
+     */
+    public int[] getRrValues() {
+        return rr;
+    }
+
+    /**
+     * Gets the R-R values as a space-separated String. Returns INVALID_STRING
+     * if the R-R field was not present.
      *
      * @return The R-R values.
      */
     public String getRr() {
-        return rr;
+        if (!rrPresent) {
+            return INVALID_STRING;
+        }
+        if (rrCount == 0) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(5 * rrCount);
+        appendRr(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the R-R values separated by spaces to the given StringBuilder.
+     *
+     * @param sb The StringBuilder.
+     * @return The StringBuilder.
+     */
+    public StringBuilder appendRr(StringBuilder sb) {
+        for (int i = 0; i < rrCount; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(rr[i]);
+        }
+        return sb;
     }
 
     /**
@@ -136,7 +317,33 @@ public class HeartRateValues implements IConstants {
      * @return The info.
      */
     public String getInfo() {
-        return info;
+        StringBuilder sb = new StringBuilder(80);
+        sb.append("Heart Rate: ").append(hr);
+        switch (sensorContact) {
+            case 0:
+            case 1:
+                sb.append("\nSensor contact not supported");
+                break;
+            case CONTACT_NOT_DETECTED:
+                sb.append("\nSensor contact not detected");
+                break;
+            case CONTACT_DETECTED:
+                sb.append("\nSensor contact detected");
+                break;
+        }
+        sb.append("\nEnergy Expended: ");
+        if (ee != INVALID_INT) {
+            sb.append(ee);
+        } else {
+            sb.append("NA");
+        }
+        sb.append("\nR-R: ");
+        if (rrPresent) {
+            appendRr(sb);
+        } else {
+            sb.append("NA");
+        }
+        return sb.toString();
     }
 
 }
@@ -0,0 +1,423 @@
+package net.kenevans.android.blecardiacmonitor;
+
+/**
+ * Streaming heart rate variability for one device. R-R intervals are added as
+ * they arrive, and RMSSD, SDNN, pNN50, and mean HR are kept for several
+ * sliding time windows at once.
+ * <p/>
+ * The beats are held once, in primitive ring buffers sized for the longest
+ * window, and each window has its own head in them and running sums of the
+ * intervals, their squares, and the squares of the successive differences.
+ * The sums are integers in the sensor's units of 1/1024 sec, so they are
+ * exact and do not drift as beats are added and evicted. Adding a beat is
+ * O(1) per window, amortized over the evictions, and nothing is allocated.
+ * <p/>
+ * Artifacts are rejected by an RrFilter. A rejected beat or a gap breaks the
+ * chain of successive differences, so no difference spans it. The time taken
+ * by the rejected beats is kept, so copyBeats can give the beats with their
+ * timing for SpectralHrv.
+ * <p/>
+ * Must only be used from one thread.
+ */
+public class HrvCalculator implements IConstants {
+    /**
+     * Index of RMSSD in the packed values for a window.
+     */
+    public static final int METRIC_RMSSD = 0;
+    /**
+     * Index of SDNN in the packed values for a window.
+     */
+    public static final int METRIC_SDNN = 1;
+    /**
+     * Index of pNN50 in the packed values for a window.
+     */
+    public static final int METRIC_PNN50 = 2;
+    /**
+     * Index of the mean HR in the packed values for a window.
+     */
+    public static final int METRIC_MEAN_HR = 3;
+    /**
+     * Number of packed values per window.
+     */
+    public static final int N_METRICS = 4;
+    /**
+     * Packed value for a metric that is not available.
+     */
+    private static final int PACKED_NAN = 0xFFFF;
+    /**
+     * Scale of each packed metric, which is 10 * ms, 10 * ms, 100 * percent,
+     * and 10 * bpm.
+     */
+    private static final double[] PACK_SCALE = {10, 10, 100, 10};
+    /**
+     * The most beats per second held, allowing for 240 bpm.
+     */
+    private static final int MAX_BEATS_PER_SECOND = 4;
+    /**
+     * Value of the time before a beat when it follows a gap.
+     */
+    public static final int BEFORE_GAP = -1;
+    /**
+     * 50 ms in units of 1/1024 sec times 1000, for comparing without
+     * rounding.
+     */
+    private static final long NN50_SCALED = 50 * 1024;
+
+    private final long[] mWindows;
+    private final int mNWindows;
+    // The beats
+    private final long[] mDates;
+    private final int[] mRr;
+    /**
+     * The time taken by the rejected intervals between each beat and the
+     * previous one, which is 0 when it follows it without a break, or
+     * BEFORE_GAP.
+     */
+    private final int[] mBefore;
+    private final int mMask;
+    /**
+     * The number of beats added, which is the sequence of the next one.
+     */
+    private long mTail;
+    // Per window
+    private final long[] mHead;
+    private final long[] mSum;
+    private final long[] mSumSq;
+    private final long[] mSumDiffSq;
+    private final int[] mNDiff;
+    private final int[] mNNn50;
+
+    private final RrFilter mFilter = new RrFilter();
+    private boolean mGap = true;
+    /**
+     * The time taken by the rejected intervals since the last beat.
+     */
+    private int mSkipped;
+
+    /**
+     * Constructor.
+     *
+     * @param windows The window lengths in ms.
+     */
+    public HrvCalculator(long[] windows) {
+        mWindows = windows.clone();
+        mNWindows = windows.length;
+        long longest = 0;
+        for (long window : windows) {
+            longest = Math.max(longest, window);
+        }
+        int capacity = (int) Math.min(MAX_BEATS_PER_SECOND * longest / 1000
+                + 1, 1 << 16);
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mDates = new long[size];
+        mRr = new int[size];
+        mBefore = new int[size];
+        mMask = size - 1;
+        mHead = new long[mNWindows];
+        mSum = new long[mNWindows];
+        mSumSq = new long[mNWindows];
+        mSumDiffSq = new long[mNWindows];
+        mNDiff = new int[mNWindows];
+        mNNn50 = new int[mNWindows];
+    }
+
+    /**
+     * Adds the R-R values from a Heart Rate Measurement.
+     *
+     * @param date  The date of the measurement.
+     * @param rr    The R-R values in units of 1/1024 sec.
+     * @param count The number of values or RrUtils.RR_NOT_PRESENT.
+     */
+    public void add(long date, int[] rr, int count) {
+        for (int i = 0; i < count; i++) {
+            addBeat(date, rr[i]);
+        }
+        evict(date);
+    }
+
+    /**
+     * Adds the R-R values from a Heart Rate Measurement with the date of
+     * each beat, as found by a BeatTimeline, which places them in the
+     * windows more exactly than the date of the measurement.
+     *
+     * @param date      The date of the measurement.
+     * @param beatDates The dates of the beats.
+     * @param rr        The R-R values in units of 1/1024 sec.
+     * @param count     The number of values or RrUtils.RR_NOT_PRESENT.
+     */
+    public void add(long date, long[] beatDates, int[] rr, int count) {
+        for (int i = 0; i < count; i++) {
+            addBeat(beatDates[i], rr[i]);
+        }
+        evict(date);
+    }
+
+    /**
+     * Breaks the chain of successive differences, for example when the
+     * connection was lost. The beats already held stay until they age out.
+     */
+    public void addGap() {
+        mGap = true;
+    }
+
+    /**
+     * Removes all the beats, for example for a new session.
+     */
+    public void reset() {
+        for (int w = 0; w < mNWindows; w++) {
+            mHead[w] = mTail;
+            mSum[w] = 0;
+            mSumSq[w] = 0;
+            mSumDiffSq[w] = 0;
+            mNDiff[w] = 0;
+            mNNn50[w] = 0;
+        }
+        mGap = true;
+        mFilter.reset();
+    }
+
+    private void addBeat(long date, int rr) {
+        if (!mFilter.accept(rr)) {
+            mSkipped += rr;
+            return;
+        }
+
+        long seq = mTail;
+        // Make room if the buffer is full
+        for (int w = 0; w < mNWindows; w++) {
+            if (seq - mHead[w] > mMask) {
+                removeHead(w);
+            }
+        }
+        int index = (int) (seq & mMask);
+        boolean gap = mGap || seq == 0;
+        boolean linked = !gap && mSkipped == 0;
+        mDates[index] = date;
+        mRr[index] = rr;
+        mBefore[index] = gap ? BEFORE_GAP : mSkipped;
+        mGap = false;
+        mSkipped = 0;
+        mTail = seq + 1;
+
+        long diff = linked ? rr - mRr[(int) ((seq - 1) & mMask)] : 0;
+        boolean nn50 = Math.abs(diff) * 1000 > NN50_SCALED;
+        for (int w = 0; w < mNWindows; w++) {
+            mSum[w] += rr;
+            mSumSq[w] += (long) rr * rr;
+            // Only if the previous beat is still in this window
+            if (linked && mHead[w] < seq) {
+                mSumDiffSq[w] += diff * diff;
+                mNDiff[w]++;
+                if (nn50) {
+                    mNNn50[w]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Evicts the beats that are older than each window.
+     *
+     * @param date The current date.
+     */
+    private void evict(long date) {
+        long oldest;
+        for (int w = 0; w < mNWindows; w++) {
+            oldest = date - mWindows[w];
+            while (mHead[w] < mTail
+                    && mDates[(int) (mHead[w] & mMask)] < oldest) {
+                removeHead(w);
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest beat from a window, along with the difference from
+     * it to the next beat.
+     *
+     * @param w The window.
+     */
+    private void removeHead(int w) {
+        long seq = mHead[w];
+        int index = (int) (seq & mMask);
+        int rr = mRr[index];
+        mSum[w] -= rr;
+        mSumSq[w] -= (long) rr * rr;
+        if (seq + 1 < mTail) {
+            int next = (int) ((seq + 1) & mMask);
+            if (mBefore[next] == 0) {
+                long diff = mRr[next] - rr;
+                mSumDiffSq[w] -= diff * diff;
+                mNDiff[w]--;
+                if (Math.abs(diff) * 1000 > NN50_SCALED) {
+                    mNNn50[w]--;
+                }
+            }
+        }
+        mHead[w] = seq + 1;
+    }
+
+    /**
+     * @return The number of windows.
+     */
+    public int getWindowCount() {
+        return mNWindows;
+    }
+
+    /**
+     * @param w The window.
+     * @return The length of the window in ms.
+     */
+    public long getWindow(int w) {
+        return mWindows[w];
+    }
+
+    /**
+     * @param w The window.
+     * @return The number of beats in the window.
+     */
+    public int getBeatCount(int w) {
+        return (int) (mTail - mHead[w]);
+    }
+
+    /**
+     * @param w The window.
+     * @return The RMSSD in ms or NaN if there are no successive differences.
+     */
+    public double getRmssd(int w) {
+        int n = mNDiff[w];
+        if (n == 0) {
+            return Double.NaN;
+        }
+        return Math.sqrt((double) mSumDiffSq[w] / n) / 1.024;
+    }
+
+    /**
+     * @param w The window.
+     * @return The SDNN in ms or NaN if there are fewer than 2 beats.
+     */
+    public double getSdnn(int w) {
+        long n = getBeatCount(w);
+        if (n < 2) {
+            return Double.NaN;
+        }
+        // n * sumSq - sum^2 is exact
+        double variance = (double) (n * mSumSq[w] - mSum[w] * mSum[w])
+                / (n * (n - 1));
+        return Math.sqrt(Math.max(variance, 0)) / 1.024;
+    }
+
+    /**
+     * @param w The window.
+     * @return The percentage of successive differences over 50 ms or NaN if
+     * there are none.
+     */
+    public double getPnn50(int w) {
+        int n = mNDiff[w];
+        if (n == 0) {
+            return Double.NaN;
+        }
+        return 100.0 * mNNn50[w] / n;
+    }
+
+    /**
+     * @param w The window.
+     * @return The mean HR in bpm from the intervals or NaN if there are no
+     * beats.
+     */
+    public double getMeanHr(int w) {
+        int n = getBeatCount(w);
+        if (n == 0 || mSum[w] == 0) {
+            return Double.NaN;
+        }
+        return 60.0 * 1024 * n / mSum[w];
+    }
+
+    /**
+     * @return The most beats that can be held.
+     */
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Copies the beats in a window, oldest first, with the time before each
+     * one. Beats that do not fit are ignored.
+     *
+     * @param w      The window.
+     * @param rr     The array to hold the intervals in units of 1/1024 sec.
+     * @param before The array to hold the time taken by rejected intervals
+     *               before each beat in units of 1/1024 sec, or BEFORE_GAP.
+     * @return The number of beats copied.
+     */
+    public int copyBeats(int w, int[] rr, int[] before) {
+        int count = Math.min(getBeatCount(w), Math.min(rr.length,
+                before.length));
+        long seq = mTail - count;
+        int index;
+        for (int i = 0; i < count; i++, seq++) {
+            index = (int) (seq & mMask);
+            rr[i] = mRr[index];
+            // The first beat has nothing before it in the window
+            before[i] = i == 0 ? BEFORE_GAP : mBefore[index];
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of intervals accepted.
+     */
+    public long getNAccepted() {
+        return mFilter.getNAccepted();
+    }
+
+    /**
+     * @return The number of intervals rejected as artifacts.
+     */
+    public long getNRejected() {
+        return mFilter.getNRejected();
+    }
+
+    /**
+     * Packs the metrics for all the windows into 16-bit values, N_METRICS per
+     * window, for publishing on the SampleBus.
+     *
+     * @param values The array to fill. Must hold N_METRICS values per window.
+     * @return The number of values.
+     */
+    public int pack(int[] values) {
+        int i = 0;
+        for (int w = 0; w < mNWindows; w++) {
+            values[i++] = pack(getRmssd(w), METRIC_RMSSD);
+            values[i++] = pack(getSdnn(w), METRIC_SDNN);
+            values[i++] = pack(getPnn50(w), METRIC_PNN50);
+            values[i++] = pack(getMeanHr(w), METRIC_MEAN_HR);
+        }
+        return i;
+    }
+
+    private static int pack(double value, int metric) {
+        if (Double.isNaN(value)) {
+            return PACKED_NAN;
+        }
+        return (int) Math.min(Math.round(value * PACK_SCALE[metric]),
+                PACKED_NAN - 1);
+    }
+
+    /**
+     * Gets a metric from packed values.
+     *
+     * @param values The packed values.
+     * @param w      The window.
+     * @param metric One of the METRIC values.
+     * @return The value or NaN if it is not available.
+     */
+    public static double unpack(int[] values, int w, int metric) {
+        int value = values[w * N_METRICS + metric];
+        if (value == PACKED_NAN) {
+            return Double.NaN;
+        }
+        return value / PACK_SCALE[metric];
+    }
+
+}
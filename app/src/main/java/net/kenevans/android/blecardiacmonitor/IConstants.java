@@ -52,11 +52,6 @@ public interface IConstants {
      */
     int NOTIFICATION_ID = 1;
 
-    /**
-     * Initial start time for RR values.
-     */
-    long INITIAL_RR_START_TIME = 0;
-
     // Base
     /**
      * Base string for standard UUIDS. These UUIDs differ in characters 4-7.
@@ -109,6 +104,7 @@ public interface IConstants {
     String PREF_PLOT_HR = "plotHrPreference";
     String PREF_PLOT_RR = "plotRrPreference";
     String PREF_PLOT_INTERVAL = "plotIntervalPreference";
+    String PREF_GZIP_EXPORT = "gzipExportPreference";
     String PREF_MANUALLY_DISCONNECTED = "manuallyDisconnected";
 
     // Session
@@ -166,14 +162,39 @@ public interface IConstants {
      * Simple name of the database.
      */
     String DB_NAME = "BCMMonitor.db";
+    /**
+     * Name of the scratch database used by the database benchmark.
+     */
+    String DB_BENCHMARK_NAME = "BCMBenchmark.db";
     /**
      * Simple name of the data table.
      */
     String DB_DATA_TABLE = "data";
     /**
-     * The database version
+     * Simple name of the session table.
+     */
+    String DB_SESSION_TABLE = "sessions";
+    /**
+     * Simple name of the beat table.
+     */
+    String DB_BEAT_TABLE = "beats";
+    /**
+     * Simple name of the clock table.
      */
-    int DB_VERSION = 1;
+    String DB_CLOCK_TABLE = "clock";
+    /**
+     * Simple name of the rollup table.
+     */
+    String DB_ROLLUP_TABLE = "rollups";
+    /**
+     * The database version. Version 2 stores the R-R values as a blob.
+     * Version 3 adds the session table. Version 4 adds the indexes on the data
+     * table. Version 5 adds the device column to the data table. Version 6
+     * adds the beat table. Version 7 adds the times in microseconds and the
+     * clock table. Version 8 adds the rollup table. Version 9 leaves the R-R
+     * values out of the indexes on the data table.
+     */
+    int DB_VERSION = 9;
     /**
      * Database column for the id. Identifies the row.
      */
@@ -187,17 +208,262 @@ public interface IConstants {
      */
     String COL_START_DATE = "startdate";
     /**
-     * Database column for the end date.
+     * Database column for the end date in the session table.
+     */
+    String COL_END_DATE = "enddate";
+    /**
+     * Database column for the number of samples in the session table.
+     */
+    String COL_N_SAMPLES = "nsamples";
+    /**
+     * Database column for the number of valid (positive) heart rates in the
+     * session table.
      */
-    String COL_END_DATE = "MAX(" + COL_DATE + ")";
+    String COL_N_HR = "nhr";
+    /**
+     * Database column for the minimum valid heart rate in the session table.
+     */
+    String COL_HR_MIN = "hrmin";
+    /**
+     * Database column for the maximum valid heart rate in the session table.
+     */
+    String COL_HR_MAX = "hrmax";
+    /**
+     * Database column for the sum of the valid heart rates in the session
+     * table.
+     */
+    String COL_HR_SUM = "hrsum";
+    /**
+     * Database column for the number of R-R values in the session table.
+     */
+    String COL_N_RR = "nrr";
     /**
      * Database column for the heart rate.
      */
     String COL_HR = "hr";
     /**
-     * Database column for the R-R.
+     * Database column for the R-R. A blob of little-endian UINT16 values in
+     * units of 1/1024 sec.
      */
     String COL_RR = "rr";
+    /**
+     * Database column for the address of the device that recorded the row.
+     * Null for rows recorded before version 5 or restored from CSV.
+     */
+    String COL_DEVICE = "device";
+    /**
+     * Database column for the BeatTimeline flags in the beat table.
+     */
+    String COL_FLAGS = "flags";
+    /**
+     * Database column for the time in microseconds, as given by a
+     * SampleClock. Null for rows recorded before version 7.
+     */
+    String COL_TIME = "time";
+    /**
+     * Database column for the wall-clock date in the clock table.
+     */
+    String COL_WALL = "wall";
+    /**
+     * Database column for the resolution in the rollup table (ms).
+     */
+    String COL_RES = "res";
+    /**
+     * Database column for the sum of the R-R values in the rollup table.
+     */
+    String COL_RR_SUM = "rrsum";
+    /**
+     * Database column for the sum of the squared R-R values in the rollup
+     * table.
+     */
+    String COL_RR_SUM_SQ = "rrsumsq";
+    /**
+     * Database column for the number of successive differences of the R-R
+     * values in the rollup table.
+     */
+    String COL_N_DIFF = "ndiff";
+    /**
+     * Database column for the sum of the squared successive differences of
+     * the R-R values in the rollup table.
+     */
+    String COL_DIFF_SUM_SQ = "diffsumsq";
+    /**
+     * Capacity of the queue of rows waiting to be written to the database.
+     */
+    int DB_WRITER_QUEUE_SIZE = 1024;
+    /**
+     * Capacity of the queue of R-R values for the rows waiting to be written
+     * to the database.
+     */
+    int DB_WRITER_RR_QUEUE_SIZE = 8 * DB_WRITER_QUEUE_SIZE;
+    /**
+     * Number of queued rows that causes them to be written to the database.
+     */
+    int DB_WRITER_BATCH_SIZE = 240;
+    /**
+     * Maximum time a row waits in the queue before it is written to the
+     * database (ms). The rows are in the journal while they wait.
+     */
+    long DB_WRITER_MAX_AGE = 30000;
+    /**
+     * Name of the directory for the journals in the data directory.
+     */
+    String JOURNAL_DIR = "journal";
+    /**
+     * Size of a segment file of a journal in bytes.
+     */
+    int JOURNAL_SEGMENT_SIZE = 256 * 1024;
+    /**
+     * Number of samples the SampleBus holds for subscribers that are behind.
+     */
+    int SAMPLE_BUS_CAPACITY = 64;
+    /**
+     * Maximum number of devices the service records at the same time.
+     */
+    int MAX_DEVICES = 16;
+    /**
+     * Time a GATT operation may take before it is retried (ms).
+     */
+    long GATT_OPERATION_TIMEOUT = 3000;
+    /**
+     * Number of times a GATT operation is retried before it is dropped.
+     */
+    int GATT_OPERATION_RETRIES = 2;
+    /**
+     * Delay before a GATT operation is retried (ms).
+     */
+    long GATT_RETRY_DELAY = 100;
+    /**
+     * Number of direct connection attempts made after a connection is lost
+     * before waiting for the device with autoConnect.
+     */
+    int RECONNECT_DIRECT_ATTEMPTS = 6;
+    /**
+     * Delay before the second direct reconnection attempt (ms). It doubles for
+     * each attempt after that. The first attempt is made at once.
+     */
+    long RECONNECT_INITIAL_DELAY = 250;
+    /**
+     * Maximum delay between direct reconnection attempts (ms).
+     */
+    long RECONNECT_MAX_DELAY = 4000;
+    /**
+     * Time a direct reconnection attempt may take before it is abandoned
+     * (ms).
+     */
+    long RECONNECT_ATTEMPT_TIMEOUT = 5000;
+
+    // Beats
+    /**
+     * Number of Heart Rate Measurements over which the smallest lag of the
+     * beats behind the arrival is taken as the drift of the beat timeline.
+     */
+    int BEAT_SYNC_PACKETS = 30;
+    /**
+     * Largest correction for drift made to the beat timeline at a time (ms).
+     */
+    long BEAT_MAX_DRIFT_STEP = 20;
+    /**
+     * Lag of the last beat in a Heart Rate Measurement behind its arrival
+     * over which beats are assumed lost and the beat timeline is restarted
+     * (ms).
+     */
+    long BEAT_RESYNC_LAG = 3000;
+
+    // Rollups
+    /**
+     * Bucket sizes of the rollup table, from finest to coarsest (ms).
+     */
+    long[] ROLLUP_RESOLUTIONS = {1000, 10000, 60000, 600000};
+
+    // Clock
+    /**
+     * Interval at which the wall clock is compared with the sample clock
+     * (ms).
+     */
+    long CLOCK_CHECK_INTERVAL = 60000;
+    /**
+     * Change in the offset of the wall clock from the sample clock that is
+     * recorded as a correction (ms).
+     */
+    long CLOCK_MIN_CORRECTION = 5;
+
+    // HRV
+    /**
+     * Lengths of the sliding windows for real-time HRV (ms).
+     */
+    long[] HRV_WINDOWS = {30000, 60000, 300000};
+    /**
+     * Index in HRV_WINDOWS of the window that is plotted.
+     */
+    int HRV_PLOT_WINDOW = 1;
+    /**
+     * Interval at which HRV is published (ms).
+     */
+    long HRV_PUBLISH_INTERVAL = 1000;
+    /**
+     * Shortest R-R interval accepted for HRV (ms).
+     */
+    int HRV_RR_MIN = 300;
+    /**
+     * Longest R-R interval accepted for HRV (ms).
+     */
+    int HRV_RR_MAX = 2000;
+    /**
+     * Largest difference from the recent average R-R interval accepted for
+     * HRV (percent).
+     */
+    int HRV_ARTIFACT_PERCENT = 20;
+    /**
+     * Number of R-R intervals rejected in a row after which the next one is
+     * taken as a new reference.
+     */
+    int HRV_MAX_REJECTS = 5;
+
+    // Spectral HRV
+    /**
+     * Rate at which the R-R series is resampled for spectral HRV (Hz).
+     */
+    int SPECTRAL_RATE = 4;
+    /**
+     * Length of the segments that are averaged for spectral HRV (ms).
+     * Successive segments overlap by half.
+     */
+    long SPECTRAL_SEGMENT = 300000;
+    /**
+     * Shortest run of R-R values without a gap that is analyzed when there
+     * is not a whole segment (ms).
+     */
+    long SPECTRAL_MIN_SEGMENT = 120000;
+    /**
+     * Longest time taken by rejected R-R values that is bridged by
+     * interpolation for spectral HRV (ms).
+     */
+    long SPECTRAL_MAX_SKIP = 3000;
+    /**
+     * Lower edge of the VLF band (Hz).
+     */
+    double SPECTRAL_VLF_MIN = 0.0033;
+    /**
+     * Lower edge of the LF band (Hz).
+     */
+    double SPECTRAL_LF_MIN = 0.04;
+    /**
+     * Lower edge of the HF band (Hz).
+     */
+    double SPECTRAL_HF_MIN = 0.15;
+    /**
+     * Upper edge of the HF band (Hz).
+     */
+    double SPECTRAL_HF_MAX = 0.4;
+    /**
+     * Index in HRV_WINDOWS of the window used for the live spectral HRV.
+     */
+    int SPECTRAL_LIVE_WINDOW = 2;
+    /**
+     * Interval at which the live spectral HRV is computed (ms).
+     */
+    long SPECTRAL_LIVE_INTERVAL = 10000;
     // /** Database column for the temporary flag. */
     //  String COL_TMP = "temporary";
     /**
@@ -205,14 +471,24 @@ public interface IConstants {
      */
     String SAVE_DATABASE_FILENAME_PREFIX = "BCMDatabase";
     /**
-     * Suffix for the file name for saving the database.
+     * Suffix for the file name for exporting the database as CSV.
      */
     String SAVE_DATABASE_FILENAME_SUFFIX = ".csv";
     /**
-     * Template for creating the file name for saving the database.
+     * Template for creating the file name for exporting the database as CSV.
      */
     String SAVE_DATABASE_FILENAME_TEMPLATE = SAVE_DATABASE_FILENAME_PREFIX
             + ".%s" + SAVE_DATABASE_FILENAME_SUFFIX;
+    /**
+     * Suffix for the file name for saving the database in the BackupFormat.
+     */
+    String SAVE_DATABASE_BACKUP_SUFFIX = ".bcmb";
+    /**
+     * Template for creating the file name for saving the database in the
+     * BackupFormat.
+     */
+    String SAVE_DATABASE_BACKUP_TEMPLATE = SAVE_DATABASE_FILENAME_PREFIX
+            + ".%s" + SAVE_DATABASE_BACKUP_SUFFIX;
     /**
      * Name of the file that will be restored. It would typically be a file that
      * was previously saved and then renamed.
@@ -267,6 +543,10 @@ public interface IConstants {
      * Request code for settings.
      */
     int REQUEST_SETTINGS_CODE = 15;
+    /**
+     * Request code for adding a device to record.
+     */
+    int REQUEST_ADD_DEVICE_CODE = 16;
 
     // Intent codes
     /**
@@ -281,18 +561,6 @@ public interface IConstants {
      * The intent code for the date.
      */
     String EXTRA_DATE = PACKAGE_NAME + ".extraDate";
-    /**
-     * The intent code for the heart rate.
-     */
-    String EXTRA_HR = PACKAGE_NAME + ".extraHr";
-    /**
-     * The intent code for the R-R values.
-     */
-    String EXTRA_RR = PACKAGE_NAME + ".extraRr";
-    /**
-     * The intent code for the battery level.
-     */
-    String EXTRA_BAT = PACKAGE_NAME + ".extraBattery";
     /**
      * The intent code for a message.
      */
@@ -321,7 +589,8 @@ public interface IConstants {
     String PLOT_SESSION_START_TIME_CODE = PACKAGE_NAME
             + ".PlotSessionStartTimeCode";
     /**
-     * Intent code for plotting session end time.
+     * Intent code for plotting session end time. If given, the range from
+     * the start time is plotted from the rollups.
      */
     String PLOT_SESSION_END_TIME_CODE = PACKAGE_NAME
             + ".PlotSessionEndTimeCode";
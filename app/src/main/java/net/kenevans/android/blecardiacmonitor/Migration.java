@@ -0,0 +1,87 @@
+package net.kenevans.android.blecardiacmonitor;
+
+/**
+ * A step in upgrading the database from one version to the next. The work is
+ * done by repeated calls to step, each of which the Migrator runs in its own
+ * transaction together with saving the returned position. A migration that
+ * copies a large table should copy one chunk of rows per step, so memory use
+ * is bounded and an interrupted migration resumes where it left off.
+ */
+public abstract class Migration {
+    /**
+     * Position for a migration that has not started.
+     */
+    public static final long START = 0;
+    /**
+     * Position returned by step when the migration is complete.
+     */
+    public static final long DONE = -1;
+
+    private final int mVersion;
+    private final String mDescription;
+
+    /**
+     * Constructor.
+     *
+     * @param version     The version the migration upgrades to.
+     * @param description A short description.
+     */
+    protected Migration(int version, String description) {
+        mVersion = version;
+        mDescription = description;
+    }
+
+    /**
+     * @return The version the migration upgrades to.
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return The description.
+     */
+    public String getDescription() {
+        return mDescription;
+    }
+
+    /**
+     * Does the next part of the migration. Called inside a transaction. The
+     * meaning of the position is up to the migration, except for START and
+     * DONE.
+     *
+     * @param db       The database.
+     * @param position START for the first call, otherwise the value returned
+     *                 by the previous call.
+     * @return The position to resume from or DONE.
+     */
+    public abstract long step(MigrationDb db, long position);
+
+    /**
+     * A migration that is done in a single step by executing statements.
+     */
+    public static class Sql extends Migration {
+        private final String[] mStatements;
+
+        /**
+         * Constructor.
+         *
+         * @param version     The version the migration upgrades to.
+         * @param description A short description.
+         * @param statements  The SQL statements.
+         */
+        public Sql(int version, String description, String... statements) {
+            super(version, description);
+            mStatements = statements;
+        }
+
+        @Override
+        public long step(MigrationDb db, long position) {
+            for (String sql : mStatements) {
+                db.execSQL(sql);
+            }
+            return DONE;
+        }
+    }
+
+}
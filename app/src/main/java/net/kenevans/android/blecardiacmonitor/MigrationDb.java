@@ -0,0 +1,95 @@
+package net.kenevans.android.blecardiacmonitor;
+
+/**
+ * The small part of a SQLite database that migrations use. It does not
+ * depend on Android, so the migrations can be run on the JVM against a
+ * plain SQLite JDBC driver as well as on the device against an
+ * SQLiteDatabase.
+ */
+public interface MigrationDb {
+    /**
+     * Rows returned by a query. Starts before the first row.
+     */
+    interface Rows {
+        /**
+         * Moves to the next row.
+         *
+         * @return False if there are no more rows.
+         */
+        boolean next();
+
+        /**
+         * @param column The 0-based column index.
+         * @return If the value is null.
+         */
+        boolean isNull(int column);
+
+        /**
+         * @param column The 0-based column index.
+         * @return The value as a long.
+         */
+        long getLong(int column);
+
+        /**
+         * @param column The 0-based column index.
+         * @return The value as a String.
+         */
+        String getString(int column);
+
+        /**
+         * @param column The 0-based column index.
+         * @return The value as a byte array.
+         */
+        byte[] getBlob(int column);
+
+        /**
+         * Releases the rows.
+         */
+        void close();
+    }
+
+    /**
+     * Begins a transaction.
+     */
+    void beginTransaction();
+
+    /**
+     * Marks the current transaction to be committed by endTransaction.
+     */
+    void setTransactionSuccessful();
+
+    /**
+     * Ends the current transaction, committing it if setTransactionSuccessful
+     * was called and rolling it back otherwise.
+     */
+    void endTransaction();
+
+    /**
+     * Executes a statement that does not return rows.
+     *
+     * @param sql  The SQL.
+     * @param args The bound arguments. Each is a Long, Integer, String,
+     *             byte[] or null.
+     */
+    void execSQL(String sql, Object... args);
+
+    /**
+     * Runs a query.
+     *
+     * @param sql  The SQL.
+     * @param args The bound arguments.
+     * @return The rows.
+     */
+    Rows query(String sql, Object... args);
+
+    /**
+     * Runs a query for a single long value.
+     *
+     * @param sql          The SQL.
+     * @param defaultValue The value to return if there are no rows or the
+     *                     value is null.
+     * @param args         The bound arguments.
+     * @return The value.
+     */
+    long queryLong(String sql, long defaultValue, Object... args);
+}
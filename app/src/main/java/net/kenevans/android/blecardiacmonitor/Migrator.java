@@ -0,0 +1,153 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs an ordered list of migrations. The state of each migration is kept in
+ * the MIGRATION_TABLE table in the database itself, so a migration that was
+ * interrupted, for example by the process being killed, is resumed from its
+ * last completed step the next time run is called. Each step runs in its own
+ * transaction together with saving its position.
+ */
+public class Migrator {
+    /**
+     * Name of the table holding the state of the migrations.
+     */
+    public static final String MIGRATION_TABLE = "migrations";
+    private static final String COL_VERSION = "version";
+    private static final String COL_POSITION = "position";
+    private static final String COL_DONE = "done";
+
+    private static final String SQL_CREATE_TABLE = "create table if not "
+            + "exists " + MIGRATION_TABLE + " (" + COL_VERSION
+            + " integer primary key, " + COL_POSITION + " integer not null, "
+            + COL_DONE + " integer not null);";
+    private static final String SQL_INSERT_PENDING = "insert or ignore into "
+            + MIGRATION_TABLE + " (" + COL_VERSION + ", " + COL_POSITION
+            + ", " + COL_DONE + ") values (?, " + Migration.START + ", 0);";
+    private static final String SQL_INSERT_DONE = "insert or replace into "
+            + MIGRATION_TABLE + " (" + COL_VERSION + ", " + COL_POSITION
+            + ", " + COL_DONE + ") values (?, " + Migration.DONE + ", 1);";
+    private static final String SQL_UPDATE = "update " + MIGRATION_TABLE
+            + " set " + COL_POSITION + "=?, " + COL_DONE + "=? where "
+            + COL_VERSION + "=?;";
+    private static final String SQL_COUNT_PENDING = "select count(*) from "
+            + MIGRATION_TABLE + " where " + COL_DONE + "=0;";
+    private static final String SQL_PENDING_POSITION = "select "
+            + COL_POSITION + " from " + MIGRATION_TABLE + " where "
+            + COL_VERSION + "=? and " + COL_DONE + "=0;";
+
+    /**
+     * Callback for progress.
+     */
+    public interface ProgressListener {
+        /**
+         * Called after each step.
+         *
+         * @param migration The migration.
+         * @param position  The position after the step or Migration.DONE.
+         */
+        void onProgress(Migration migration, long position);
+    }
+
+    private final List<Migration> mMigrations;
+
+    /**
+     * Constructor.
+     *
+     * @param migrations The migrations. They are run in order of version.
+     */
+    public Migrator(List<Migration> migrations) {
+        mMigrations = new ArrayList<Migration>(migrations);
+        Collections.sort(mMigrations, new Comparator<Migration>() {
+            @Override
+            public int compare(Migration lhs, Migration rhs) {
+                return lhs.getVersion() < rhs.getVersion() ? -1 : (lhs
+                        .getVersion() == rhs.getVersion() ? 0 : 1);
+            }
+        });
+    }
+
+    /**
+     * Creates the table holding the state of the migrations if it does not
+     * exist.
+     *
+     * @param db The database.
+     */
+    public static void createTable(MigrationDb db) {
+        db.execSQL(SQL_CREATE_TABLE);
+    }
+
+    /**
+     * Records the migrations to versions after the given one as pending.
+     * Does no other work, so it is cheap enough to call from
+     * SQLiteOpenHelper.onUpgrade.
+     *
+     * @param db          The database.
+     * @param fromVersion The current version of the database.
+     */
+    public void markPending(MigrationDb db, int fromVersion) {
+        createTable(db);
+        for (Migration migration : mMigrations) {
+            if (migration.getVersion() > fromVersion) {
+                db.execSQL(SQL_INSERT_PENDING, migration.getVersion());
+            }
+        }
+    }
+
+    /**
+     * Records all the migrations as done, as for a newly created database.
+     *
+     * @param db The database.
+     */
+    public void markAllDone(MigrationDb db) {
+        createTable(db);
+        for (Migration migration : mMigrations) {
+            db.execSQL(SQL_INSERT_DONE, migration.getVersion());
+        }
+    }
+
+    /**
+     * @param db The database.
+     * @return If there are pending migrations.
+     */
+    public boolean hasPending(MigrationDb db) {
+        return db.queryLong(SQL_COUNT_PENDING, 0) > 0;
+    }
+
+    /**
+     * Runs the pending migrations in order on the calling thread.
+     *
+     * @param db       The database.
+     * @param listener The listener for progress or null.
+     * @return The number of steps run.
+     */
+    public int run(MigrationDb db, ProgressListener listener) {
+        int nSteps = 0;
+        for (Migration migration : mMigrations) {
+            long position = db.queryLong(SQL_PENDING_POSITION,
+                    Migration.DONE, migration.getVersion());
+            while (position != Migration.DONE) {
+                db.beginTransaction();
+                try {
+                    position = migration.step(db, position);
+                    db.execSQL(SQL_UPDATE, position,
+                            position == Migration.DONE ? 1 : 0,
+                            migration.getVersion());
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                nSteps++;
+                if (listener != null) {
+                    listener.onProgress(migration, position);
+                }
+            }
+        }
+        return nSteps;
+    }
+
+}
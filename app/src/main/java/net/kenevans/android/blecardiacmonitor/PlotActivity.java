@@ -11,6 +11,8 @@ import org.afree.chart.axis.AxisLocation;
 import org.afree.chart.axis.DateAxis;
 import org.afree.chart.axis.NumberAxis;
 import org.afree.chart.axis.NumberTickUnit;
+import org.afree.chart.event.AxisChangeEvent;
+import org.afree.chart.event.AxisChangeListener;
 import org.afree.chart.plot.XYPlot;
 import org.afree.chart.renderer.xy.StandardXYItemRenderer;
 import org.afree.chart.renderer.xy.XYItemRenderer;
@@ -20,6 +22,7 @@ import org.afree.chart.title.TextTitle;
 import org.afree.data.time.FixedMillisecond;
 import org.afree.data.time.TimeSeries;
 import org.afree.data.time.TimeSeriesCollection;
+import org.afree.data.xy.XYDataset;
 import org.afree.graphics.SolidColor;
 import org.afree.graphics.geom.Dimension;
 import org.afree.graphics.geom.Font;
@@ -37,6 +40,7 @@ import android.graphics.Color;
 import android.graphics.Point;
 import android.graphics.Typeface;
 import android.os.Bundle;
+import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.Display;
@@ -50,14 +54,37 @@ import android.view.WindowManager;
  */
 public class PlotActivity extends Activity implements IConstants {
     private static final String TAG = "BCM Plot";
+    /**
+     * The most HR values per second expected in a live plot, with a margin.
+     */
+    private static final int LIVE_HR_PER_SECOND = 2;
+    /**
+     * The most R-R values per second expected in a live plot, allowing for
+     * 220 bpm and gaps.
+     */
+    private static final int LIVE_RR_PER_SECOND = 5;
     private AFreeChartView mView;
     private AFreeChart mChart;
-    private TimeSeriesCollection mHrDataset;
-    private TimeSeriesCollection mRrDataset;
-    private TimeSeriesCollection mActDataset;
-    private TimeSeriesCollection mPaDataset;
+    private XYDataset mHrDataset;
+    private XYDataset mRrDataset;
+    private XYDataset mActDataset;
+    private XYDataset mPaDataset;
+    // RMSSD, only for a live plot
+    private XYDataset mRmssdDataset;
+    // Used for a session
     private TimeSeries mHrSeries;
     private TimeSeries mRrSeries;
+    // RMSSD, only for a range plotted from the rollups
+    private TimeSeries mRmssdSeries;
+    // Used for a live plot
+    private RingBufferXYDataset mHrLive;
+    private RingBufferXYDataset mRrLive;
+    private RingBufferXYDataset mRmssdLive;
+    // Applies live updates once per frame
+    private SampleBus.Subscription mSubscription;
+    private int mSourceId = -1;
+    private final ChartUpdateScheduler mUpdateScheduler = new
+            ChartUpdateScheduler();
     private boolean mPlotHr = true;
     private boolean mPlotRr = true;
     private int mPlotInterval = PLOT_MAXIMUM_AGE;
@@ -65,9 +92,47 @@ public class PlotActivity extends Activity implements IConstants {
     private File mDataDir;
     private long mPlotStartTime = INVALID_DATE;
     private long mPlotSessionStart = INVALID_DATE;
+    private long mPlotSessionEnd = INVALID_DATE;
     private boolean mIsSession = false;
-    private long mLastRrUpdateTime = INVALID_DATE;
-    private long mLastRrTime = INVALID_DATE;
+    // Whether the range from the start to the end is plotted from the
+    // rollups instead of the data
+    private boolean mIsHistory = false;
+    // Reused for the beat dates to avoid allocating for each sample
+    private final long[] mBeatDates = new long[HeartRateValues.MAX_RR];
+    // All the samples for a session, which are downsampled into the series
+    private SampleSeries mHrSamples;
+    private SampleSeries mRrSamples;
+    // Reused for the downsampled points
+    private long[] mDownTimes = new long[0];
+    private double[] mDownValues = new double[0];
+    private boolean mResampling;
+    private long mResampledLower = INVALID_DATE;
+    private long mResampledUpper = INVALID_DATE;
+    private int mResampledThreshold;
+
+    /**
+     * Plots the samples from the SampleBus on the UI thread.
+     */
+    private final SampleBus.Listener mSampleListener = new SampleBus
+            .Listener() {
+        @Override
+        public void onSample(SampleBus.Sample sample) {
+            updateChart(sample);
+        }
+    };
+
+    /**
+     * Resamples a session when the domain axis is zoomed or panned.
+     */
+    private final AxisChangeListener mDomainAxisListener = new
+            AxisChangeListener() {
+                @Override
+                public void axisChanged(AxisChangeEvent event) {
+                    if (!mResampling) {
+                        resample(false);
+                    }
+                }
+            };
 
     /**
      * Handles various events fired by the Service.
@@ -77,18 +142,16 @@ public class PlotActivity extends Activity implements IConstants {
      * ACTION_GATT_CONNECTED: connected to a GATT server.<br>
      * ACTION_GATT_DISCONNECTED: disconnected from a GATT server.<br>
      * ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.<br>
-     * ACTION_DATA_AVAILABLE: received data from the device. This can be a
-     * result of read or notification operations.<br>
+     * ACTION_ERROR: an error occurred.<br>
+     * <br>
+     * The data to plot come from the SampleBus instead.
      */
     private final BroadcastReceiver mGattUpdateReceiver = new
             BroadcastReceiver() {
                 @Override
                 public void onReceive(Context context, Intent intent) {
                     final String action = intent.getAction();
-                    if (BCMBleService.ACTION_DATA_AVAILABLE.equals(action)) {
-                        // Log.d(TAG, "onReceive: " + action);
-                        updateChart(intent);
-                    } else if (BCMBleService.ACTION_ERROR.equals(action)) {
+                    if (BCMBleService.ACTION_ERROR.equals(action)) {
                         Log.d(TAG, "onReceive: " + action);
                         displayError(intent);
                     }
@@ -106,7 +169,7 @@ public class PlotActivity extends Activity implements IConstants {
         // intentFilter.addAction(BCMBleService.ACTION_GATT_DISCONNECTED);
         // intentFilter
         // .addAction(BCMBleService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BCMBleService.ACTION_DATA_AVAILABLE);
+        intentFilter.addAction(BCMBleService.ACTION_ERROR);
         return intentFilter;
     }
 
@@ -125,6 +188,9 @@ public class PlotActivity extends Activity implements IConstants {
             if (mIsSession) {
                 mPlotSessionStart = extras.getLong(
                         PLOT_SESSION_START_TIME_CODE, INVALID_DATE);
+                mPlotSessionEnd = extras.getLong(PLOT_SESSION_END_TIME_CODE,
+                        INVALID_DATE);
+                mIsHistory = mPlotSessionEnd != INVALID_DATE;
             }
         }
         if (mIsSession && (mPlotSessionStart == INVALID_DATE)) {
@@ -196,6 +262,12 @@ public class PlotActivity extends Activity implements IConstants {
         if (!mIsSession) {
             Log.d(TAG, "onResume: Starting registerReceiver");
             registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+            // Only plot the selected device
+            String address = prefs.getString(DEVICE_ADDRESS_CODE, null);
+            mSourceId = address == null ? -1 : SampleBus.getDefault()
+                    .getSourceId(address);
+            mSubscription = SampleBus.getDefault().subscribe(mSampleListener,
+                    new SampleBus.HandlerExecutor(new Handler()));
             mPlotStartTime = new Date().getTime() - mPlotInterval;
             // Make it keep the screen on
             getWindow()
@@ -215,6 +287,11 @@ public class PlotActivity extends Activity implements IConstants {
         super.onPause();
         if (!mIsSession) {
             unregisterReceiver(mGattUpdateReceiver);
+            if (mSubscription != null) {
+                mSubscription.close();
+                mSubscription = null;
+            }
+            mUpdateScheduler.flush();
         }
     }
 
@@ -296,6 +373,7 @@ public class PlotActivity extends Activity implements IConstants {
         ((XYPlot) mChart.getPlot()).setDataset(2, mRrDataset);
         ((XYPlot) mChart.getPlot()).setDataset(3, mActDataset);
         ((XYPlot) mChart.getPlot()).setDataset(4, mPaDataset);
+        ((XYPlot) mChart.getPlot()).setDataset(5, mRmssdDataset);
     }
 
     /**
@@ -329,6 +407,17 @@ public class PlotActivity extends Activity implements IConstants {
         double chartScaleY = mView.getChartScaleY();
         info += "chartScaleX=" + chartScaleX + " chartScaleY=" + chartScaleY
                 + "\n";
+        info += "renders=" + mView.getRenderCount() + " draws="
+                + mView.getDrawCount() + "\n";
+        if (!mIsSession) {
+            info += "updates=" + mUpdateScheduler.getUpdateCount()
+                    + " frames=" + mUpdateScheduler.getFrameCount()
+                    + " merged=" + mUpdateScheduler.getMergedCount() + "\n";
+            if (mSubscription != null) {
+                info += "busLag=" + mSubscription.getLag() + " busDropped="
+                        + mSubscription.getNDropped() + "\n";
+            }
+        }
         Display display = getWindowManager().getDefaultDisplay();
         Point displaySize = new Point();
         display.getSize(displaySize);
@@ -339,72 +428,29 @@ public class PlotActivity extends Activity implements IConstants {
     }
 
     /**
-     * Parses the RR String and adds items to the series at the appropriate
-     * times.
+     * Adds the RR values to the dataset at the dates of their beats.
      *
-     * @param series     The series to use.
-     * @param updateTime The time of this update.
-     * @param strValue   The RR String from the database.
+     * @param dataset The dataset to use.
+     * @param sample  The sample.
      * @return If the operation was successful.
      */
-    private boolean addRrValues(TimeSeries series, long updateTime,
-                                String strValue) {
-        if (series == null || strValue == null) {
+    private boolean addRrValues(RingBufferXYDataset dataset,
+                                SampleBus.Sample sample) {
+        if (dataset == null) {
             return false;
         }
-        if (strValue.length() == 0) {
-            // Do nothing
+        int count = sample.getRrCount();
+        if (count == RrUtils.RR_NOT_PRESENT) {
+            dataset.add(sample.getDate(), Double.NaN);
             return true;
         }
-        if (strValue.equals(INVALID_STRING)) {
-            mLastRrUpdateTime = updateTime;
-            mLastRrTime = updateTime - INITIAL_RR_START_TIME;
-            series.addOrUpdate(new FixedMillisecond(updateTime), Double.NaN);
+        if (!sample.getBeatDates(mBeatDates)) {
             return true;
         }
-        String[] tokens;
-        tokens = strValue.trim().split("\\s+");
-        int nTokens = tokens.length;
-        if (nTokens == 0) {
-            return false;
-        }
-        long[] times = new long[nTokens];
-        double[] values = new double[nTokens];
-        long lastRrTime = mLastRrTime;
-        double val = Double.NaN;
-        for (int i = 0; i < nTokens; i++) {
-            try {
-                val = Double.parseDouble(tokens[i]);
-            } catch (NumberFormatException ex) {
-                return false;
-            }
-            lastRrTime += val;
-            times[i] = lastRrTime;
-            values[i] = val / 1.024;
-        }
-        // Make all times be >= mLastRrUpdateTime
-        long deltaTime;
-        long firstTime = times[0];
-        if (firstTime < mLastRrUpdateTime) {
-            deltaTime = mLastRrUpdateTime - firstTime;
-            for (int i = 0; i < nTokens; i++) {
-                times[i] += deltaTime;
-            }
-        }
-        // Make all times be <= updateTime. Overrides previous if necessary.
-        long lastTime = times[nTokens - 1];
-        if (times[nTokens - 1] > updateTime) {
-            deltaTime = lastTime - updateTime;
-            for (int i = 0; i < nTokens; i++) {
-                times[i] -= deltaTime;
-            }
-        }
-        // Add to the series
-        for (int i = 0; i < nTokens; i++) {
-            series.addOrUpdate(new FixedMillisecond(times[i]), values[i]);
+        int[] rr = sample.getRrValues();
+        for (int i = 0; i < count; i++) {
+            dataset.add(mBeatDates[i], rr[i] / 1.024);
         }
-        mLastRrUpdateTime = updateTime;
-        mLastRrTime = times[nTokens - 1];
         return true;
     }
 
@@ -431,6 +477,7 @@ public class PlotActivity extends Activity implements IConstants {
         SolidColor ltgray = new SolidColor(Color.LTGRAY);
         SolidColor hrColor = new SolidColor(Color.argb(255, 255, 50, 50));
         SolidColor rrColor = new SolidColor(Color.argb(255, 0, 153, 255));
+        SolidColor rmssdColor = new SolidColor(Color.argb(255, 50, 205, 50));
 
         Font font = new Font("SansSerif", Typeface.NORMAL, 30);
         Font titleFont = new Font("SansSerif", Typeface.BOLD, 36);
@@ -482,6 +529,9 @@ public class PlotActivity extends Activity implements IConstants {
         xAxis.setAxisLinePaintType(white);
         xAxis.setTickLabelFont(font);
         xAxis.setTickLabelPaintType(ltgray);
+        if (mIsSession) {
+            xAxis.addChangeListener(mDomainAxisListener);
+        }
 
         // HR
         if (mPlotHr) {
@@ -532,86 +582,104 @@ public class PlotActivity extends Activity implements IConstants {
             axis.setAxisLinePaintType(color);
             axis.setTickLabelFont(font);
             axis.setTickLabelPaintType(color);
+
+            // RMSSD, which is also in ms, on the same axis
+            final int rmssdNum = 5;
+            plot.setDataset(rmssdNum, mRmssdDataset);
+            plot.mapDatasetToRangeAxis(rmssdNum, axisNum);
+            XYItemRenderer rmssdRenderer = new StandardXYItemRenderer();
+            rmssdRenderer.setSeriesPaintType(0, rmssdColor);
+            rmssdRenderer.setBaseStroke(strokeSize);
+            rmssdRenderer.setSeriesStroke(0, strokeSize);
+            plot.setRenderer(rmssdNum, rmssdRenderer);
         }
         return chart;
     }
 
     /**
-     * Updates the chart when data is received from the BCMBleService.
+     * Updates the chart when a sample is received from the SampleBus.
      *
-     * @param intent
+     * @param sample The sample.
      */
-    private void updateChart(Intent intent) {
-        Log.d(TAG, "updateChart");
-        String strValue;
-        double value = Double.NaN;
-        long date = intent.getLongExtra(EXTRA_DATE, INVALID_DATE);
-        if (date == INVALID_DATE) {
+    private void updateChart(SampleBus.Sample sample) {
+        if (sample.getSource() != mSourceId) {
             return;
         }
-        if (mPlotHr && mHrSeries != null) {
-            value = Double.NaN;
-            strValue = intent.getStringExtra(EXTRA_HR);
-            if (strValue != null && strValue.length() > 0) {
-                try {
-                    value = Double.parseDouble(strValue);
-                } catch (NumberFormatException ex) {
-                    value = Double.NaN;
-                }
-                if (value == INVALID_INT) {
-                    value = Double.NaN;
-                }
-                mHrSeries.addOrUpdate(new FixedMillisecond(date), value);
+        if (sample.getType() == SampleBus.TYPE_HRV) {
+            if (mRmssdLive != null
+                    && sample.getHrvWindowCount() > HRV_PLOT_WINDOW) {
+                mUpdateScheduler.beginUpdate();
+                mRmssdLive.add(sample.getDate(), HrvCalculator.unpack(
+                        sample.getHrvValues(), HRV_PLOT_WINDOW,
+                        HrvCalculator.METRIC_RMSSD));
             }
+            return;
         }
-        if (mPlotRr && mRrSeries != null) {
-
-            if (mLastRrUpdateTime == INVALID_DATE) {
-                mLastRrUpdateTime = date;
-                mLastRrTime = date;
-            }
-            value = Double.NaN;
-            strValue = intent.getStringExtra(EXTRA_RR);
-            if (strValue != null && strValue.length() > 0) {
-                // boolean res = addRrValues(mRrSeries, date, strValue);
-                // Don't check for errors here to avoid error storms
-                addRrValues(mRrSeries, date, strValue);
-            }
+        if (sample.getType() != SampleBus.TYPE_HR) {
+            return;
+        }
+        long date = sample.getDate();
+        // Defer notifying the chart until the next frame
+        mUpdateScheduler.beginUpdate();
+        if (mPlotHr && mHrLive != null) {
+            int hr = sample.getHr();
+            mHrLive.add(date, hr == INVALID_INT ? Double.NaN : hr);
+        }
+        if (mPlotRr && mRrLive != null) {
+            addRrValues(mRrLive, sample);
         }
     }
 
     /**
-     * Creates the data sets and series.
+     * Creates the data sets and series. The rows are read into SampleSeries
+     * first. For a session these keep all the data, and the series get a
+     * downsampled copy of what is visible. Otherwise everything is copied
+     * into ring buffers sized for the plot interval, which take the live
+     * updates.
      */
     private void createDatasets() {
         Log.d(TAG, "Creating datasets");
         if (!mPlotHr && !mPlotRr) {
             Utils.errMsg(this, "Neither HR nor RR is selected to be plotted");
         }
+        mHrSeries = null;
+        mRrSeries = null;
+        mRmssdSeries = null;
+        mHrLive = null;
+        mRrLive = null;
+        mRmssdLive = null;
+        mHrSamples = null;
+        mRrSamples = null;
+        int intervalSec = mPlotInterval / 1000;
         if (mPlotHr) {
-            mHrSeries = new TimeSeries("HR");
-            if (!mIsSession) {
-                mHrSeries.setMaximumItemAge(mPlotInterval);
+            if (mIsSession) {
+                mHrSeries = new TimeSeries("HR");
+            } else {
+                mHrLive = new RingBufferXYDataset("HR", LIVE_HR_PER_SECOND
+                        * intervalSec, mPlotInterval);
             }
-        } else {
-            mHrSeries = null;
+            mHrSamples = new SampleSeries(1024);
         }
         if (mPlotRr) {
-            mRrSeries = new TimeSeries("RR");
-            if (!mIsSession) {
-                mRrSeries.setMaximumItemAge(mPlotInterval);
+            if (mIsSession) {
+                mRrSeries = new TimeSeries("RR");
+                if (mIsHistory) {
+                    mRmssdSeries = new TimeSeries("RMSSD");
+                }
+            } else {
+                mRrLive = new RingBufferXYDataset("RR", LIVE_RR_PER_SECOND
+                        * intervalSec, mPlotInterval);
+                // HRV is published about once a second
+                mRmssdLive = new RingBufferXYDataset("RMSSD",
+                        LIVE_HR_PER_SECOND * intervalSec, mPlotInterval);
             }
-        } else {
-            mRrSeries = null;
+            mRrSamples = new SampleSeries(1024);
         }
-        mLastRrTime = INVALID_DATE;
-        mLastRrUpdateTime = INVALID_DATE;
         Cursor cursor = null;
         int nHrItems = 0, nRrItems = 0;
-        int nErrors = 0;
-        boolean res;
         try {
-            if (mDbAdapter != null) {
+            // A range is read from the rollups when it is resampled
+            if (mDbAdapter != null && mPlotHr && !mIsHistory) {
                 if (mIsSession) {
                     cursor = mDbAdapter
                             .fetchAllHrRrDateDataForStartDate
@@ -621,62 +689,337 @@ public class PlotActivity extends Activity implements IConstants {
                             .fetchAllHrRrDateDataStartingAtDate(mPlotStartTime);
                 }
                 int indexDate = cursor.getColumnIndex(COL_DATE);
-                int indexHr = mPlotHr ? cursor.getColumnIndex(COL_HR) : -1;
-                int indexRr = mPlotRr ? cursor.getColumnIndex(COL_RR) : -1;
+                int indexHr = cursor.getColumnIndex(COL_HR);
 
                 // Loop over items
-                cursor.moveToFirst();
-                long date = INVALID_DATE;
                 double hr;
-                String rrString;
-                while (cursor.isAfterLast() == false) {
-                    date = cursor.getLong(indexDate);
-                    if (indexHr > -1) {
-                        hr = cursor.getInt(indexHr);
-                        if (hr == INVALID_INT) {
-                            hr = Double.NaN;
-                        }
-                        mHrSeries.addOrUpdate(new FixedMillisecond(date), hr);
-                        nHrItems++;
+                while (cursor.moveToNext()) {
+                    hr = cursor.getInt(indexHr);
+                    if (hr == INVALID_INT) {
+                        hr = Double.NaN;
                     }
-                    if (indexRr > -1) {
-                        rrString = cursor.getString(indexRr);
-                        if (nRrItems == 0) {
-                            mLastRrUpdateTime = date;
-                            mLastRrTime = date - INITIAL_RR_START_TIME;
-                        }
-                        res = addRrValues(mRrSeries, date, rrString);
-                        nRrItems++;
-                        if (!res) {
-                            nErrors++;
-                        }
+                    mHrSamples.add(cursor.getLong(indexDate), hr);
+                    nHrItems++;
+                }
+                cursor.close();
+                cursor = null;
+            }
+            if (mDbAdapter != null && mPlotRr && !mIsHistory) {
+                // The beats already have their dates
+                if (mIsSession) {
+                    cursor = mDbAdapter
+                            .fetchAllBeatsForStartDate(mPlotSessionStart);
+                } else {
+                    cursor = mDbAdapter
+                            .fetchAllBeatsStartingAtDate(mPlotStartTime);
+                }
+                int indexDate = cursor.getColumnIndex(COL_DATE);
+                int indexRr = cursor.getColumnIndex(COL_RR);
+                int indexFlags = cursor.getColumnIndex(COL_FLAGS);
+
+                // Loop over items
+                long date;
+                while (cursor.moveToNext()) {
+                    date = cursor.getLong(indexDate);
+                    if ((cursor.getInt(indexFlags)
+                            & BeatTimeline.FLAG_GAP) != 0 && nRrItems > 0) {
+                        // Break the line
+                        mRrSamples.add(date - 1, Double.NaN);
                     }
-                    cursor.moveToNext();
+                    mRrSamples.add(date, cursor.getInt(indexRr) / 1.024);
+                    nRrItems++;
                 }
             }
         } catch (Exception ex) {
             Utils.excMsg(this, "Error creating datasets", ex);
         } finally {
             try {
-                cursor.close();
+                if (cursor != null) {
+                    cursor.close();
+                }
             } catch (Exception ex) {
                 // Do nothing
             }
         }
-        if (nErrors > 0) {
-            Utils.errMsg(this, nErrors + " creating RR dataset");
+        if (mHrSamples != null) {
+            mHrSamples.finish();
+        }
+        if (mRrSamples != null) {
+            mRrSamples.finish();
+        }
+        if (mIsSession) {
+            resample(true);
+        } else {
+            copySamples(mHrSamples, mHrLive);
+            copySamples(mRrSamples, mRrLive);
+            mUpdateScheduler.setDatasets(mHrLive, mRrLive, mRmssdLive);
+            // The live updates go directly to the ring buffers
+            mHrSamples = null;
+            mRrSamples = null;
+        }
+        mHrDataset = null;
+        mRrDataset = null;
+        mRmssdDataset = mRmssdLive;
+        if (mRmssdSeries != null) {
+            TimeSeriesCollection dataset = new TimeSeriesCollection();
+            dataset.addSeries(mRmssdSeries);
+            mRmssdDataset = dataset;
         }
         if (mPlotHr) {
             Log.d(TAG, "HR dataset created with " + nHrItems + " items");
-            mHrDataset = new TimeSeriesCollection();
-            mHrDataset.addSeries(mHrSeries);
+            if (mIsSession) {
+                TimeSeriesCollection dataset = new TimeSeriesCollection();
+                dataset.addSeries(mHrSeries);
+                mHrDataset = dataset;
+            } else {
+                mHrDataset = mHrLive;
+            }
         }
         if (mPlotRr) {
-            Log.d(TAG, "RR dataset created with " + nRrItems
-                    + " items nErrors=" + nErrors);
-            mRrDataset = new TimeSeriesCollection();
-            mRrDataset.addSeries(mRrSeries);
+            Log.d(TAG, "RR dataset created with " + nRrItems + " items");
+            if (mIsSession) {
+                TimeSeriesCollection dataset = new TimeSeriesCollection();
+                dataset.addSeries(mRrSeries);
+                mRrDataset = dataset;
+            } else {
+                mRrDataset = mRrLive;
+            }
+        }
+    }
+
+    /**
+     * Replaces the items in the dataset with all the samples. Those older
+     * than the plot interval or beyond its capacity are evicted.
+     *
+     * @param samples The samples, which must be finished.
+     * @param dataset The dataset.
+     */
+    private static void copySamples(SampleSeries samples,
+                                    RingBufferXYDataset dataset) {
+        if (samples == null || dataset == null) {
+            return;
+        }
+        long[] times = samples.getTimes();
+        double[] values = samples.getValues();
+        int n = samples.size();
+        dataset.setNotify(false);
+        dataset.clear();
+        for (int i = 0; i < n; i++) {
+            dataset.add(times[i], values[i]);
+        }
+        dataset.setNotify(true);
+    }
+
+    /**
+     * Downsamples the session samples for the visible part of the domain
+     * axis into the series, using about 2 points per pixel of width. The
+     * whole session is used if the axis is auto ranging, which it is until
+     * it is zoomed.
+     *
+     * @param force Whether to resample even if the visible range and width
+     *              have not changed.
+     */
+    private void resample(boolean force) {
+        if (!mIsSession) {
+            return;
+        }
+        long lower = Long.MIN_VALUE;
+        long upper = Long.MAX_VALUE;
+        if (mChart != null) {
+            DateAxis axis = (DateAxis) ((XYPlot) mChart.getPlot())
+                    .getDomainAxis();
+            if (!axis.isAutoRange()) {
+                lower = (long) Math.floor(axis.getLowerBound());
+                upper = (long) Math.ceil(axis.getUpperBound());
+            }
+        }
+        int threshold = 2 * getPlotWidth();
+        if (!force && lower == mResampledLower && upper == mResampledUpper
+                && threshold == mResampledThreshold) {
+            return;
+        }
+        mResampledLower = lower;
+        mResampledUpper = upper;
+        mResampledThreshold = threshold;
+        if (mIsHistory) {
+            mResampling = true;
+            try {
+                loadRollups(lower, upper, threshold / 2);
+            } finally {
+                mResampling = false;
+            }
+            return;
+        }
+        int capacity = Downsampler.getOutputCapacity(threshold);
+        if (mDownTimes.length < capacity) {
+            mDownTimes = new long[capacity];
+            mDownValues = new double[capacity];
+        }
+        mResampling = true;
+        try {
+            resampleSeries(mHrSamples, mHrSeries, lower, upper, threshold);
+            resampleSeries(mRrSamples, mRrSeries, lower, upper, threshold);
+        } finally {
+            mResampling = false;
+        }
+    }
+
+    /**
+     * Replaces the items in the series with the rollups between the given
+     * times, at the coarsest resolution that gives at least one point per
+     * pixel. The rows for several sessions in the same bucket are combined,
+     * and a gap is left where there are no buckets.
+     *
+     * @param lower   The start of the visible range.
+     * @param upper   The end of the visible range.
+     * @param nPoints The number of points wanted.
+     */
+    private void loadRollups(long lower, long upper, int nPoints) {
+        if (mDbAdapter == null) {
+            return;
+        }
+        lower = Math.max(lower, mPlotSessionStart);
+        upper = Math.min(upper, mPlotSessionEnd);
+        long res = RollupBuilder.getResolution(lower, upper, nPoints);
+        if (mHrSeries != null) {
+            mHrSeries.setNotify(false);
+            mHrSeries.clear();
+        }
+        if (mRrSeries != null) {
+            mRrSeries.setNotify(false);
+            mRrSeries.clear();
+            mRmssdSeries.setNotify(false);
+            mRmssdSeries.clear();
+        }
+        Cursor cursor = null;
+        int nRows = 0;
+        try {
+            cursor = mDbAdapter.fetchRollupsForDates(lower, upper, nPoints);
+            long date = INVALID_DATE, lastDate = INVALID_DATE, rowDate;
+            long nHr = 0, hrSum = 0, nRr = 0, rrSum = 0, nDiff = 0;
+            double diffSumSq = 0, hr, rr;
+            boolean more = true;
+            while (more) {
+                more = cursor.moveToNext();
+                rowDate = more ? cursor.getLong(0) : INVALID_DATE;
+                if (date != INVALID_DATE && rowDate != date) {
+                    // Write the bucket, after a gap if one was skipped
+                    if (lastDate != INVALID_DATE && date - lastDate > res) {
+                        addRollup(lastDate + res, Double.NaN, Double.NaN,
+                                Double.NaN);
+                    }
+                    hr = nHr == 0 ? Double.NaN : (double) hrSum / nHr;
+                    rr = nRr == 0 ? Double.NaN : rrSum / 1.024 / nRr;
+                    addRollup(date, hr, rr, RollupBuilder.getRmssd(nDiff,
+                            diffSumSq));
+                    lastDate = date;
+                    nHr = hrSum = nRr = rrSum = nDiff = 0;
+                    diffSumSq = 0;
+                }
+                if (!more) {
+                    break;
+                }
+                date = rowDate;
+                nHr += cursor.getLong(1);
+                hrSum += cursor.getLong(4);
+                nRr += cursor.getLong(5);
+                rrSum += cursor.getLong(6);
+                nDiff += cursor.getLong(8);
+                diffSumSq += cursor.getDouble(9);
+                nRows++;
+            }
+        } catch (Exception ex) {
+            Utils.excMsg(this, "Error reading rollups", ex);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (mHrSeries != null) {
+            mHrSeries.setNotify(true);
+        }
+        if (mRrSeries != null) {
+            mRrSeries.setNotify(true);
+            mRmssdSeries.setNotify(true);
+        }
+        Log.d(TAG, "loadRollups: res=" + res + " rows=" + nRows);
+    }
+
+    /**
+     * Adds a bucket to the series for a range.
+     *
+     * @param date  The date.
+     * @param hr    The mean HR.
+     * @param rr    The mean R-R in ms.
+     * @param rmssd The RMSSD in ms.
+     */
+    private void addRollup(long date, double hr, double rr, double rmssd) {
+        FixedMillisecond period = new FixedMillisecond(date);
+        if (mHrSeries != null) {
+            mHrSeries.add(period, hr, false);
+        }
+        if (mRrSeries != null) {
+            mRrSeries.add(period, rr, false);
+            mRmssdSeries.add(period, rmssd, false);
+        }
+    }
+
+    /**
+     * Replaces the items in the series with the downsampled samples between
+     * the given times. The sample just outside each end of the range is
+     * included so the lines reach the edges, as are the first and last
+     * samples, so restoring the auto range still shows the whole session.
+     *
+     * @param samples   The samples, which must be finished.
+     * @param series    The series.
+     * @param lower     The start of the visible range.
+     * @param upper     The end of the visible range.
+     * @param threshold The number of points to use for the visible range.
+     */
+    private void resampleSeries(SampleSeries samples, TimeSeries series,
+                                long lower, long upper, int threshold) {
+        if (samples == null || series == null) {
+            return;
+        }
+        long[] times = samples.getTimes();
+        double[] values = samples.getValues();
+        int n = samples.size();
+        int from = Math.max(0, samples.indexAtOrAfter(lower) - 1);
+        int to = upper == Long.MAX_VALUE ? n : Math.min(n,
+                samples.indexAtOrAfter(upper + 1) + 1);
+        series.setNotify(false);
+        series.clear();
+        if (from > 0) {
+            series.add(new FixedMillisecond(times[0]), values[0], false);
+        }
+        if (to > from) {
+            int count = Downsampler.lttb(times, values, from, to, threshold,
+                    mDownTimes, mDownValues, 0);
+            for (int i = 0; i < count; i++) {
+                series.add(new FixedMillisecond(mDownTimes[i]),
+                        mDownValues[i], false);
+            }
+        }
+        if (to < n) {
+            series.add(new FixedMillisecond(times[n - 1]), values[n - 1],
+                    false);
+        }
+        series.setNotify(true);
+    }
+
+    /**
+     * Gets the width available for the plot.
+     *
+     * @return The width in pixels.
+     */
+    private int getPlotWidth() {
+        int width = mView != null ? mView.getWidth() : 0;
+        if (width <= 0) {
+            Point displaySize = new Point();
+            getWindowManager().getDefaultDisplay().getSize(displaySize);
+            width = displaySize.x;
         }
+        return width;
     }
 
 }
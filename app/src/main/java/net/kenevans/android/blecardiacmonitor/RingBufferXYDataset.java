@@ -0,0 +1,285 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.afree.data.DomainInfo;
+import org.afree.data.DomainOrder;
+import org.afree.data.Range;
+import org.afree.data.RangeInfo;
+import org.afree.data.xy.AbstractXYDataset;
+
+/**
+ * An XYDataset with a single series of (time, value) items held in
+ * fixed-capacity primitive ring buffers, for live plotting. Items are kept in
+ * time order. Appending an item later than the last and evicting the oldest
+ * are O(1) and allocate nothing. Items older than the maximum age relative to
+ * the newest are evicted as new ones arrive, as are the oldest when the
+ * buffer is full. An item earlier than the last is inserted in place, which
+ * only moves the few items after it, and an item at the same time as an
+ * existing one replaces its value, as TimeSeries.addOrUpdate does. An item
+ * that is already older than the maximum age is ignored.
+ * <p/>
+ * Renderers should use getXValue and getYValue. getX and getY box their
+ * values. Must only be used from one thread.
+ */
+public class RingBufferXYDataset extends AbstractXYDataset implements
+        DomainInfo, RangeInfo {
+    private static final long serialVersionUID = 1L;
+
+    private final Comparable<?> mKey;
+    private final long[] mTimes;
+    private final double[] mValues;
+    private final int mMask;
+    private final long mMaximumAge;
+    /**
+     * The physical index of the oldest item.
+     */
+    private int mHead;
+    private int mCount;
+    private boolean mNotify = true;
+    private boolean mChanged;
+
+    /**
+     * Constructor.
+     *
+     * @param key        The key for the series.
+     * @param capacity   The minimum number of items to hold. It is rounded up
+     *                   to a power of 2.
+     * @param maximumAge The maximum age of an item in ms relative to the
+     *                   newest or Long.MAX_VALUE to keep items until the
+     *                   buffer is full.
+     */
+    public RingBufferXYDataset(Comparable<?> key, int capacity,
+                               long maximumAge) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mKey = key;
+        mTimes = new long[size];
+        mValues = new double[size];
+        mMask = size - 1;
+        mMaximumAge = maximumAge;
+    }
+
+    /**
+     * Adds an item or replaces the value of the item at the same time, then
+     * evicts items that are too old. Listeners are notified unless
+     * notification is off.
+     *
+     * @param time  The time.
+     * @param value The value or NaN for a gap.
+     */
+    public void add(long time, double value) {
+        if (mCount > 0) {
+            long last = mTimes[(mHead + mCount - 1) & mMask];
+            if (time == last) {
+                mValues[(mHead + mCount - 1) & mMask] = value;
+                changed();
+                return;
+            }
+            if (time < last) {
+                // Ignore it if it is already too old
+                if (mMaximumAge == Long.MAX_VALUE
+                        || time >= last - mMaximumAge) {
+                    insert(time, value);
+                    changed();
+                }
+                return;
+            }
+        }
+        if (mCount == mTimes.length) {
+            // Overwrite the oldest
+            mHead = (mHead + 1) & mMask;
+            mCount--;
+        }
+        int index = (mHead + mCount) & mMask;
+        mTimes[index] = time;
+        mValues[index] = value;
+        mCount++;
+        long oldest = time - mMaximumAge;
+        if (mMaximumAge != Long.MAX_VALUE && oldest < time) {
+            while (mCount > 1 && mTimes[mHead] < oldest) {
+                mHead = (mHead + 1) & mMask;
+                mCount--;
+            }
+        }
+        changed();
+    }
+
+    /**
+     * Inserts an item earlier than the last one, keeping the items in time
+     * order.
+     *
+     * @param time  The time.
+     * @param value The value.
+     */
+    private void insert(long time, double value) {
+        // Find where it goes, searching back from the newest
+        int pos = mCount - 1;
+        while (pos >= 0 && mTimes[(mHead + pos) & mMask] > time) {
+            pos--;
+        }
+        if (pos >= 0 && mTimes[(mHead + pos) & mMask] == time) {
+            mValues[(mHead + pos) & mMask] = value;
+            return;
+        }
+        if (pos < 0 && mCount == mTimes.length) {
+            // Older than everything in a full buffer
+            return;
+        }
+        if (mCount == mTimes.length) {
+            // Drop the oldest to make room
+            mHead = (mHead + 1) & mMask;
+            mCount--;
+            pos--;
+        }
+        // Shift the newer items up one
+        int to, from;
+        for (int i = mCount - 1; i > pos; i--) {
+            from = (mHead + i) & mMask;
+            to = (from + 1) & mMask;
+            mTimes[to] = mTimes[from];
+            mValues[to] = mValues[from];
+        }
+        int index = (mHead + pos + 1) & mMask;
+        mTimes[index] = time;
+        mValues[index] = value;
+        mCount++;
+    }
+
+    /**
+     * Removes all the items.
+     */
+    public void clear() {
+        mHead = 0;
+        mCount = 0;
+        changed();
+    }
+
+    /**
+     * Sets whether listeners are notified of changes. When it is turned back
+     * on, they are notified once if anything changed in between.
+     *
+     * @param notify Whether to notify.
+     */
+    public void setNotify(boolean notify) {
+        mNotify = notify;
+        if (notify && mChanged) {
+            mChanged = false;
+            fireDatasetChanged();
+        }
+    }
+
+    /**
+     * @return Whether listeners are notified of changes.
+     */
+    public boolean getNotify() {
+        return mNotify;
+    }
+
+    /**
+     * @return The maximum number of items.
+     */
+    public int getCapacity() {
+        return mTimes.length;
+    }
+
+    private void changed() {
+        if (mNotify) {
+            fireDatasetChanged();
+        } else {
+            mChanged = true;
+        }
+    }
+
+    @Override
+    public int getSeriesCount() {
+        return 1;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Comparable getSeriesKey(int series) {
+        return mKey;
+    }
+
+    @Override
+    public DomainOrder getDomainOrder() {
+        return DomainOrder.ASCENDING;
+    }
+
+    @Override
+    public int getItemCount(int series) {
+        return mCount;
+    }
+
+    @Override
+    public double getXValue(int series, int item) {
+        return mTimes[(mHead + item) & mMask];
+    }
+
+    @Override
+    public double getYValue(int series, int item) {
+        return mValues[(mHead + item) & mMask];
+    }
+
+    @Override
+    public Number getX(int series, int item) {
+        return mTimes[(mHead + item) & mMask];
+    }
+
+    @Override
+    public Number getY(int series, int item) {
+        return mValues[(mHead + item) & mMask];
+    }
+
+    @Override
+    public double getDomainLowerBound(boolean includeInterval) {
+        return mCount == 0 ? Double.NaN : mTimes[mHead];
+    }
+
+    @Override
+    public double getDomainUpperBound(boolean includeInterval) {
+        return mCount == 0 ? Double.NaN : mTimes[(mHead + mCount - 1)
+                & mMask];
+    }
+
+    @Override
+    public Range getDomainBounds(boolean includeInterval) {
+        if (mCount == 0) {
+            return null;
+        }
+        return new Range(getDomainLowerBound(includeInterval),
+                getDomainUpperBound(includeInterval));
+    }
+
+    @Override
+    public double getRangeLowerBound(boolean includeInterval) {
+        Range range = getRangeBounds(includeInterval);
+        return range == null ? Double.NaN : range.getLowerBound();
+    }
+
+    @Override
+    public double getRangeUpperBound(boolean includeInterval) {
+        Range range = getRangeBounds(includeInterval);
+        return range == null ? Double.NaN : range.getUpperBound();
+    }
+
+    @Override
+    public Range getRangeBounds(boolean includeInterval) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double value;
+        for (int i = 0; i < mCount; i++) {
+            value = mValues[(mHead + i) & mMask];
+            // NaN fails both
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+        }
+        if (min > max) {
+            return null;
+        }
+        return new Range(min, max);
+    }
+
+}
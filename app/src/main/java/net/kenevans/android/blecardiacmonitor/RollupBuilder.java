@@ -0,0 +1,209 @@
+package net.kenevans.android.blecardiacmonitor;
+
+/**
+ * Summarizes the rows of one session into buckets of each of the
+ * ROLLUP_RESOLUTIONS and writes them to the rollup table. The rows must be
+ * added in order of date. A bucket is written when a row falls in a later
+ * one and by flush, which should be called at the end of each batch. The
+ * written values are added to those already in the table, so a bucket may
+ * be written in several parts.
+ * <p/>
+ * Each bucket has the count, min, max, and sum of the valid heart rates,
+ * and for the HRV the count, sum, and sum of squares of the R-R values and
+ * of their successive differences. R-R values rejected by an RrFilter are
+ * left out, and a rejected value or a gap row breaks the chain of
+ * differences. A difference is put in the bucket of the later value.
+ * <p/>
+ * Must only be used from one thread.
+ */
+public class RollupBuilder implements IConstants {
+    private static final int N_RES = ROLLUP_RESOLUTIONS.length;
+
+    private final long mStartDate;
+    private final RrFilter mFilter = new RrFilter();
+    /**
+     * The last accepted R-R value or 0 if the chain is broken.
+     */
+    private int mLastRr;
+    private final int[] mRr = new int[HeartRateValues.MAX_RR];
+
+    // The current bucket for each resolution, INVALID_DATE if empty
+    private final long[] mBucket = new long[N_RES];
+    private final int[] mNSamples = new int[N_RES];
+    private final int[] mNHr = new int[N_RES];
+    private final int[] mHrMin = new int[N_RES];
+    private final int[] mHrMax = new int[N_RES];
+    private final long[] mHrSum = new long[N_RES];
+    private final int[] mNRr = new int[N_RES];
+    private final long[] mRrSum = new long[N_RES];
+    private final long[] mRrSumSq = new long[N_RES];
+    private final int[] mNDiff = new int[N_RES];
+    private final long[] mDiffSumSq = new long[N_RES];
+
+    /**
+     * Constructor.
+     *
+     * @param startDate The start date of the session.
+     */
+    public RollupBuilder(long startDate) {
+        mStartDate = startDate;
+        for (int r = 0; r < N_RES; r++) {
+            mBucket[r] = INVALID_DATE;
+        }
+    }
+
+    /**
+     * Adds a row. A row with an invalid HR and no R-R values is a gap.
+     *
+     * @param db      The database to write completed buckets to.
+     * @param date    The date.
+     * @param hr      The heart rate.
+     * @param rr      The array holding the R-R values.
+     * @param offset  The index of the first R-R value.
+     * @param rrCount The number of R-R values or RrUtils.RR_NOT_PRESENT.
+     */
+    public void add(MigrationDb db, long date, int hr, int[] rr, int offset,
+                    int rrCount) {
+        for (int r = 0; r < N_RES; r++) {
+            long bucket = date - date % ROLLUP_RESOLUTIONS[r];
+            if (bucket != mBucket[r]) {
+                write(db, r);
+                mBucket[r] = bucket;
+            }
+            mNSamples[r]++;
+            if (hr > 0) {
+                if (mNHr[r] == 0 || hr < mHrMin[r]) {
+                    mHrMin[r] = hr;
+                }
+                if (mNHr[r] == 0 || hr > mHrMax[r]) {
+                    mHrMax[r] = hr;
+                }
+                mNHr[r]++;
+                mHrSum[r] += hr;
+            }
+        }
+        if (rrCount < 0 && hr == INVALID_INT) {
+            mLastRr = 0;
+            mFilter.reset();
+            return;
+        }
+        int value, diff;
+        for (int i = offset; i < offset + rrCount; i++) {
+            value = rr[i];
+            if (!mFilter.accept(value)) {
+                mLastRr = 0;
+                continue;
+            }
+            diff = mLastRr == 0 ? 0 : value - mLastRr;
+            for (int r = 0; r < N_RES; r++) {
+                mNRr[r]++;
+                mRrSum[r] += value;
+                mRrSumSq[r] += (long) value * value;
+                if (mLastRr != 0) {
+                    mNDiff[r]++;
+                    mDiffSumSq[r] += (long) diff * diff;
+                }
+            }
+            mLastRr = value;
+        }
+    }
+
+    /**
+     * Adds a row with the R-R values in a blob.
+     *
+     * @param db   The database to write completed buckets to.
+     * @param date The date.
+     * @param hr   The heart rate.
+     * @param blob The R-R blob, null if not present.
+     * @see RrUtils
+     */
+    public void add(MigrationDb db, long date, int hr, byte[] blob) {
+        add(db, date, hr, mRr, 0, RrUtils.fromBlob(blob, mRr));
+    }
+
+    /**
+     * Writes the current buckets, which may be added to later.
+     *
+     * @param db The database.
+     */
+    public void flush(MigrationDb db) {
+        for (int r = 0; r < N_RES; r++) {
+            write(db, r);
+        }
+    }
+
+    /**
+     * @return The start date of the session.
+     */
+    public long getStartDate() {
+        return mStartDate;
+    }
+
+    /**
+     * Writes the current bucket for a resolution if it is not empty and
+     * empties it.
+     *
+     * @param db The database.
+     * @param r  The index of the resolution.
+     */
+    private void write(MigrationDb db, int r) {
+        if (mNSamples[r] == 0) {
+            return;
+        }
+        long res = ROLLUP_RESOLUTIONS[r];
+        long bucket = mBucket[r];
+        db.execSQL(BCMSchema.DB_INSERT_ROLLUP, res, bucket, mStartDate);
+        db.execSQL(BCMSchema.DB_UPDATE_ROLLUP, mNSamples[r], mNHr[r],
+                mNHr[r] > 0 ? mHrMin[r] : null,
+                mNHr[r] > 0 ? mHrMax[r] : null, mHrSum[r], mNRr[r],
+                mRrSum[r], mRrSumSq[r], mNDiff[r], mDiffSumSq[r], res,
+                bucket, mStartDate);
+        mNSamples[r] = 0;
+        mNHr[r] = 0;
+        mHrSum[r] = 0;
+        mNRr[r] = 0;
+        mRrSum[r] = 0;
+        mRrSumSq[r] = 0;
+        mNDiff[r] = 0;
+        mDiffSumSq[r] = 0;
+    }
+
+    /**
+     * Gets the resolution to use for a range of dates. This is the coarsest
+     * one that still gives at least the given number of buckets, or the
+     * finest if none does.
+     *
+     * @param start   The start of the range.
+     * @param end     The end of the range.
+     * @param nPoints The number of points wanted, typically the width in
+     *                pixels.
+     * @return The resolution in ms.
+     */
+    public static long getResolution(long start, long end, int nPoints) {
+        long span = end - start;
+        long res = ROLLUP_RESOLUTIONS[0];
+        for (int r = 1; r < N_RES; r++) {
+            if (span / ROLLUP_RESOLUTIONS[r] < nPoints) {
+                break;
+            }
+            res = ROLLUP_RESOLUTIONS[r];
+        }
+        return res;
+    }
+
+    /**
+     * Gets the RMSSD from the columns of a rollup.
+     *
+     * @param nDiff     The number of differences.
+     * @param diffSumSq The sum of the squared differences in units of
+     *                  (1/1024 sec)^2.
+     * @return The RMSSD in ms or NaN if there are no differences.
+     */
+    public static double getRmssd(long nDiff, double diffSumSq) {
+        if (nDiff == 0) {
+            return Double.NaN;
+        }
+        return Math.sqrt(diffSumSq / nDiff) / 1.024;
+    }
+
+}
@@ -0,0 +1,83 @@
+package net.kenevans.android.blecardiacmonitor;
+
+/**
+ * Rejects R-R intervals that are artifacts, such as missed or extra beats.
+ * Intervals outside HRV_RR_MIN to HRV_RR_MAX, or that differ from the recent
+ * average by more than HRV_ARTIFACT_PERCENT, are rejected. After
+ * HRV_MAX_REJECTS in a row the rhythm is assumed to have changed, and the
+ * next interval is accepted as the new reference.
+ * <p/>
+ * Must only be used from one thread.
+ */
+public class RrFilter implements IConstants {
+    private int mRefRr;
+    private int mNRejectedInRow;
+    private long mNAccepted;
+    private long mNRejected;
+
+    /**
+     * Checks an interval and updates the recent average if it is accepted.
+     *
+     * @param rr The interval in units of 1/1024 sec.
+     * @return If it is accepted.
+     */
+    public boolean accept(int rr) {
+        if (isArtifact(rr)) {
+            mNRejected++;
+            return false;
+        }
+        mNAccepted++;
+        // Track the recent average
+        mRefRr = mRefRr == 0 ? rr : mRefRr + (rr - mRefRr) / 8;
+        return true;
+    }
+
+    /**
+     * Forgets the recent average, for example for a new session. The counts
+     * are kept.
+     */
+    public void reset() {
+        mRefRr = 0;
+        mNRejectedInRow = 0;
+    }
+
+    /**
+     * Checks a new interval against the valid range and the recent average.
+     *
+     * @param rr The interval in units of 1/1024 sec.
+     * @return If it is an artifact.
+     */
+    private boolean isArtifact(int rr) {
+        long rrScaled = rr * 1000L;
+        if (rrScaled < HRV_RR_MIN * 1024L || rrScaled > HRV_RR_MAX * 1024L) {
+            return true;
+        }
+        if (mRefRr == 0 || Math.abs(rr - mRefRr) * 100L
+                <= (long) HRV_ARTIFACT_PERCENT * mRefRr) {
+            mNRejectedInRow = 0;
+            return false;
+        }
+        if (++mNRejectedInRow > HRV_MAX_REJECTS) {
+            // The rhythm has changed. Start again from this one.
+            mNRejectedInRow = 0;
+            mRefRr = 0;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of intervals accepted.
+     */
+    public long getNAccepted() {
+        return mNAccepted;
+    }
+
+    /**
+     * @return The number of intervals rejected as artifacts.
+     */
+    public long getNRejected() {
+        return mNRejected;
+    }
+
+}
@@ -0,0 +1,172 @@
+package net.kenevans.android.blecardiacmonitor;
+
+/**
+ * Conversions for R-R values. In the database the R-R values for a row are
+ * stored as a blob of little-endian UINT16 values in units of 1/1024 sec. A
+ * null blob means the R-R field was not present, and an empty blob means it
+ * was present with no values. In files and Intents they are a String of
+ * space-separated values, with INVALID_STRING meaning not present.
+ */
+public class RrUtils implements IConstants {
+    /**
+     * Value returned for the count when the R-R values are not present.
+     */
+    public static final int RR_NOT_PRESENT = INVALID_INT;
+
+    /**
+     * Creates a blob from the given R-R values.
+     *
+     * @param rr     The array holding the R-R values.
+     * @param offset The offset of the first value.
+     * @param count  The number of values or RR_NOT_PRESENT.
+     * @return The blob or null if count is RR_NOT_PRESENT.
+     */
+    public static byte[] toBlob(int[] rr, int offset, int count) {
+        if (count < 0) {
+            return null;
+        }
+        byte[] blob = new byte[2 * count];
+        toBlob(rr, offset, count, blob);
+        return blob;
+    }
+
+    /**
+     * Writes the given R-R values into the given blob, which must be at least
+     * 2 * count long.
+     *
+     * @param rr     The array holding the R-R values.
+     * @param offset The offset of the first value.
+     * @param count  The number of values.
+     * @param blob   The blob.
+     */
+    public static void toBlob(int[] rr, int offset, int count, byte[] blob) {
+        int val;
+        for (int i = 0, j = 0; i < count; i++) {
+            val = rr[offset + i];
+            blob[j++] = (byte) val;
+            blob[j++] = (byte) (val >> 8);
+        }
+    }
+
+    /**
+     * Gets the number of R-R values in a blob.
+     *
+     * @param blob The blob.
+     * @return The number of values or RR_NOT_PRESENT if the blob is null.
+     */
+    public static int count(byte[] blob) {
+        if (blob == null) {
+            return RR_NOT_PRESENT;
+        }
+        return blob.length / 2;
+    }
+
+    /**
+     * Copies the R-R values in a blob into the given array. Values that do
+     * not fit are ignored.
+     *
+     * @param blob The blob.
+     * @param rr   The array to hold the values.
+     * @return The number of values copied or RR_NOT_PRESENT if the blob is
+     * null.
+     */
+    public static int fromBlob(byte[] blob, int[] rr) {
+        if (blob == null) {
+            return RR_NOT_PRESENT;
+        }
+        int count = Math.min(blob.length / 2, rr.length);
+        for (int i = 0, j = 0; i < count; i++, j += 2) {
+            rr[i] = (blob[j] & 0xFF) | ((blob[j + 1] & 0xFF) << 8);
+        }
+        return count;
+    }
+
+    /**
+     * Parses a String of space-separated R-R values into the given array
+     * without creating intermediate Strings. Values that do not fit are
+     * ignored.
+     *
+     * @param string The String.
+     * @param rr     The array to hold the values.
+     * @return The number of values or RR_NOT_PRESENT if the String is null or
+     * INVALID_STRING.
+     * @throws NumberFormatException If a value is not a non-negative integer.
+     */
+    public static int parse(String string, int[] rr) {
+        if (string == null || string.equals(INVALID_STRING)) {
+            return RR_NOT_PRESENT;
+        }
+        int count = 0;
+        int len = string.length();
+        int i = 0;
+        char c;
+        while (i < len) {
+            c = string.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            int val = 0;
+            int start = i;
+            while (i < len && !Character.isWhitespace(c = string.charAt(i))) {
+                if (c < '0' || c > '9') {
+                    throw new NumberFormatException("Invalid R-R value: "
+                            + string.substring(start, i + 1));
+                }
+                val = 10 * val + (c - '0');
+                i++;
+            }
+            if (count < rr.length) {
+                rr[count++] = val;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Parses a String of space-separated R-R values into a blob.
+     *
+     * @param string The String.
+     * @param rr     Scratch array to use for the values.
+     * @return The blob or null if the String is null or INVALID_STRING.
+     * @throws NumberFormatException If a value is not a non-negative integer.
+     */
+    public static byte[] parseToBlob(String string, int[] rr) {
+        return toBlob(rr, 0, parse(string, rr));
+    }
+
+    /**
+     * Appends the R-R values in a blob to the given StringBuilder as
+     * space-separated values, or INVALID_STRING if the blob is null.
+     *
+     * @param sb   The StringBuilder.
+     * @param blob The blob.
+     * @return The StringBuilder.
+     */
+    public static StringBuilder append(StringBuilder sb, byte[] blob) {
+        if (blob == null) {
+            return sb.append(INVALID_STRING);
+        }
+        for (int j = 0; j + 1 < blob.length; j += 2) {
+            if (j > 0) {
+                sb.append(' ');
+            }
+            sb.append((blob[j] & 0xFF) | ((blob[j + 1] & 0xFF) << 8));
+        }
+        return sb;
+    }
+
+    /**
+     * Gets the R-R values in a blob as a String of space-separated values.
+     *
+     * @param blob The blob.
+     * @return The String or INVALID_STRING if the blob is null.
+     */
+    public static String toString(byte[] blob) {
+        if (blob == null) {
+            return INVALID_STRING;
+        }
+        return append(new StringBuilder(3 * blob.length), blob).toString();
+    }
+
+}
@@ -0,0 +1,112 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * MigrationDb for an Android SQLiteDatabase.
+ */
+public class SQLiteMigrationDb implements MigrationDb {
+    private final SQLiteDatabase mDb;
+
+    /**
+     * Constructor.
+     *
+     * @param db The database.
+     */
+    public SQLiteMigrationDb(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    @Override
+    public void beginTransaction() {
+        mDb.beginTransaction();
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        mDb.setTransactionSuccessful();
+    }
+
+    @Override
+    public void endTransaction() {
+        mDb.endTransaction();
+    }
+
+    @Override
+    public void execSQL(String sql, Object... args) {
+        if (args.length == 0) {
+            mDb.execSQL(sql);
+        } else {
+            mDb.execSQL(sql, args);
+        }
+    }
+
+    @Override
+    public Rows query(String sql, Object... args) {
+        final Cursor cursor = mDb.rawQuery(sql, toStrings(args));
+        return new Rows() {
+            @Override
+            public boolean next() {
+                return cursor.moveToNext();
+            }
+
+            @Override
+            public boolean isNull(int column) {
+                return cursor.isNull(column);
+            }
+
+            @Override
+            public long getLong(int column) {
+                return cursor.getLong(column);
+            }
+
+            @Override
+            public String getString(int column) {
+                return cursor.getString(column);
+            }
+
+            @Override
+            public byte[] getBlob(int column) {
+                return cursor.getBlob(column);
+            }
+
+            @Override
+            public void close() {
+                cursor.close();
+            }
+        };
+    }
+
+    @Override
+    public long queryLong(String sql, long defaultValue, Object... args) {
+        Cursor cursor = mDb.rawQuery(sql, toStrings(args));
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+            return defaultValue;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Converts query arguments to Strings, since rawQuery only takes Strings.
+     * SQLite converts them back using the column affinity.
+     *
+     * @param args The arguments.
+     * @return The Strings or null if there are no arguments.
+     */
+    private static String[] toStrings(Object[] args) {
+        if (args.length == 0) {
+            return null;
+        }
+        String[] strings = new String[args.length];
+        for (int i = 0; i < args.length; i++) {
+            strings[i] = args[i] == null ? null : args[i].toString();
+        }
+        return strings;
+    }
+
+}
@@ -0,0 +1,604 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.os.Handler;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process publish/subscribe bus for decoded samples. It replaces sending
+ * each measurement as a broadcast Intent with string extras. Samples are
+ * copied as primitives into a fixed ring of slots, and each subscriber reads
+ * them from its own cursor, so nothing is allocated per sample and no
+ * subscriber can hold up the producer or another subscriber.
+ * <p/>
+ * Samples from several devices share the bus. Each device is a source with a
+ * small id, which subscribers use to tell them apart. Publishers are
+ * serialized by a lock, so there is a single producer at any time, and the
+ * lock is uncontended unless two devices notify at once. Subscribers never
+ * take a lock. Each slot starts with the sequence number of the sample in
+ * it, which the producer clears before overwriting the slot and sets after.
+ * A reader checks it before and after copying, so a sample overwritten while
+ * being read is detected and counted as dropped instead of being delivered
+ * torn. All the slot words are accessed as volatiles for this to hold.
+ * <p/>
+ * The producer never waits. A subscriber that falls more than the capacity
+ * behind loses the oldest samples. This backpressure is reported by
+ * Subscription.getLag and Subscription.getNDropped.
+ * <p/>
+ * A subscriber either calls poll itself or gives an Executor, in which case
+ * the bus runs a drain task on it when samples arrive. At most one drain
+ * task per subscription is queued or running at a time.
+ */
+public class SampleBus implements IConstants {
+    /**
+     * Type of a Heart Rate Measurement sample.
+     */
+    public static final int TYPE_HR = 1;
+    /**
+     * Type of a Battery Level sample.
+     */
+    public static final int TYPE_BATTERY = 2;
+    /**
+     * Type of an HRV sample, with the metrics packed by HrvCalculator in
+     * place of the R-R values, followed by those packed by SpectralHrv.
+     */
+    public static final int TYPE_HRV = 3;
+    /**
+     * The maximum number of R-R values in a sample.
+     */
+    public static final int MAX_RR = HeartRateValues.MAX_RR;
+    /**
+     * The maximum number of sources.
+     */
+    public static final int MAX_SOURCES = 256;
+
+    // Slot layout: sequence + 1 (0 while being written), date, packed
+    // type, source, R-R count and value, date of the last beat, then the R-R
+    // values, four 16-bit values per word
+    private static final int SLOT_SEQUENCE = 0;
+    private static final int SLOT_DATE = 1;
+    private static final int SLOT_HEADER = 2;
+    private static final int SLOT_BEAT_DATE = 3;
+    private static final int SLOT_RR = 4;
+    private static final int SLOT_SIZE = SLOT_RR + (MAX_RR + 3) / 4;
+
+    private static final SampleBus sDefault = new SampleBus(
+            SAMPLE_BUS_CAPACITY);
+
+    private final int mCapacity;
+    private final int mMask;
+    private final AtomicLongArray mSlots;
+    /**
+     * The number of samples published, which is the sequence number of the
+     * next one.
+     */
+    private final AtomicLong mPublished = new AtomicLong();
+    private volatile Subscription[] mSubscriptions = new Subscription[0];
+    private final Object mSubscriptionsLock = new Object();
+    private final Object mPublishLock = new Object();
+    private final String[] mSourceNames = new String[MAX_SOURCES];
+    private int mNSources;
+
+    /**
+     * Listener for samples.
+     */
+    public interface Listener {
+        /**
+         * Called for each sample.
+         *
+         * @param sample The sample. It is reused for the next one, so the
+         *               values must be copied if they are kept.
+         */
+        void onSample(Sample sample);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The minimum number of samples held for subscribers
+     *                 that are behind. It is rounded up to a power of 2.
+     */
+    public SampleBus(int capacity) {
+        mCapacity = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mMask = mCapacity - 1;
+        mSlots = new AtomicLongArray(mCapacity * SLOT_SIZE);
+    }
+
+    /**
+     * @return The bus shared by the service and the activities.
+     */
+    public static SampleBus getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Gets the id for a source, assigning the next one if it is new. The ids
+     * stay the same for the life of the bus.
+     *
+     * @param name The name of the source, typically the device address.
+     * @return The id or -1 if there are already MAX_SOURCES.
+     */
+    public int getSourceId(String name) {
+        synchronized (mSourceNames) {
+            for (int i = 0; i < mNSources; i++) {
+                if (mSourceNames[i].equals(name)) {
+                    return i;
+                }
+            }
+            if (mNSources == MAX_SOURCES) {
+                return -1;
+            }
+            mSourceNames[mNSources] = name;
+            return mNSources++;
+        }
+    }
+
+    /**
+     * Gets the name of a source.
+     *
+     * @param id The id.
+     * @return The name or null if there is no source with that id.
+     */
+    public String getSourceName(int id) {
+        synchronized (mSourceNames) {
+            return id >= 0 && id < mNSources ? mSourceNames[id] : null;
+        }
+    }
+
+    /**
+     * Publishes a Heart Rate Measurement.
+     *
+     * @param source   The source id.
+     * @param date     The date.
+     * @param hr       The HR.
+     * @param rr       The R-R values in units of 1/1024 sec.
+     * @param rrCount  The number of R-R values or RrUtils.RR_NOT_PRESENT.
+     * @param beatDate The date of the last beat as found by a BeatTimeline
+     *                 or INVALID_DATE if there are no beats.
+     */
+    public void publishHr(int source, long date, int hr, int[] rr,
+                          int rrCount, long beatDate) {
+        publish(TYPE_HR, source, date, hr, rr, rrCount, beatDate);
+    }
+
+    /**
+     * Publishes a Battery Level.
+     *
+     * @param source The source id.
+     * @param date   The date.
+     * @param level  The level in percent.
+     */
+    public void publishBattery(int source, long date, int level) {
+        publish(TYPE_BATTERY, source, date, level, null,
+                RrUtils.RR_NOT_PRESENT, INVALID_DATE);
+    }
+
+    /**
+     * Publishes HRV metrics.
+     *
+     * @param source The source id.
+     * @param date   The date.
+     * @param values The metrics packed by HrvCalculator.pack, optionally
+     *               followed by those packed by SpectralHrv.pack.
+     * @param count  The number of values.
+     */
+    public void publishHrv(int source, long date, int[] values, int count) {
+        publish(TYPE_HRV, source, date, count / HrvCalculator.N_METRICS,
+                values, count, INVALID_DATE);
+    }
+
+    private void publish(int type, int source, long date, int value,
+                         int[] rr, int rrCount, long beatDate) {
+        rrCount = Math.min(rrCount, MAX_RR);
+        synchronized (mPublishLock) {
+            long sequence = mPublished.get();
+            int base = (int) (sequence & mMask) * SLOT_SIZE;
+            AtomicLongArray slots = mSlots;
+            slots.set(base + SLOT_SEQUENCE, 0);
+            slots.set(base + SLOT_DATE, date);
+            slots.set(base + SLOT_HEADER, (long) type << 56
+                    | (source & 0xFFL) << 48 | (rrCount & 0xFFFFL) << 32
+                    | (value & 0xFFFFFFFFL));
+            slots.set(base + SLOT_BEAT_DATE, beatDate);
+            long word;
+            for (int i = 0; i < rrCount; i += 4) {
+                word = 0;
+                for (int j = 0; j < 4 && i + j < rrCount; j++) {
+                    word |= (rr[i + j] & 0xFFFFL) << (16 * j);
+                }
+                slots.set(base + SLOT_RR + i / 4, word);
+            }
+            slots.set(base + SLOT_SEQUENCE, sequence + 1);
+            mPublished.set(sequence + 1);
+        }
+
+        // Wake the subscribers that use an Executor
+        for (Subscription subscription : mSubscriptions) {
+            subscription.schedule();
+        }
+    }
+
+    /**
+     * Copies a sample into the given Sample.
+     *
+     * @param sequence The sequence number of the sample.
+     * @param sample   The Sample to fill.
+     * @return If the sample was still there. If not, it has been overwritten
+     * by a later one.
+     */
+    private boolean read(long sequence, Sample sample) {
+        int base = (int) (sequence & mMask) * SLOT_SIZE;
+        AtomicLongArray slots = mSlots;
+        if (slots.get(base + SLOT_SEQUENCE) != sequence + 1) {
+            return false;
+        }
+        long date = slots.get(base + SLOT_DATE);
+        long header = slots.get(base + SLOT_HEADER);
+        long beatDate = slots.get(base + SLOT_BEAT_DATE);
+        int rrCount = (short) (header >>> 32);
+        long word = 0;
+        for (int i = 0; i < rrCount; i++) {
+            if ((i & 3) == 0) {
+                word = slots.get(base + SLOT_RR + i / 4);
+            }
+            sample.mRr[i] = (int) (word >>> (16 * (i & 3))) & 0xFFFF;
+        }
+        if (slots.get(base + SLOT_SEQUENCE) != sequence + 1) {
+            return false;
+        }
+        sample.mSequence = sequence;
+        sample.mType = (int) (header >>> 56);
+        sample.mSource = (int) (header >>> 48) & 0xFF;
+        sample.mDate = date;
+        sample.mValue = (int) header;
+        sample.mRrCount = rrCount;
+        sample.mBeatDate = beatDate;
+        return true;
+    }
+
+    /**
+     * Subscribes to samples published from now on. The caller must call
+     * poll to receive them.
+     *
+     * @return The Subscription.
+     */
+    public Subscription subscribe() {
+        return subscribe(null, null);
+    }
+
+    /**
+     * Subscribes to samples published from now on, which are delivered to
+     * the listener by tasks run on the executor.
+     *
+     * @param listener The listener or null to poll instead.
+     * @param executor The executor. Must not be null if listener is not.
+     * @return The Subscription.
+     */
+    public Subscription subscribe(Listener listener, Executor executor) {
+        if (listener != null && executor == null) {
+            throw new IllegalArgumentException("No executor for the listener");
+        }
+        Subscription subscription = new Subscription(listener, executor);
+        if (listener != null) {
+            synchronized (mSubscriptionsLock) {
+                Subscription[] old = mSubscriptions;
+                Subscription[] subscriptions = new Subscription[old.length
+                        + 1];
+                System.arraycopy(old, 0, subscriptions, 0, old.length);
+                subscriptions[old.length] = subscription;
+                mSubscriptions = subscriptions;
+            }
+        }
+        return subscription;
+    }
+
+    private void remove(Subscription subscription) {
+        synchronized (mSubscriptionsLock) {
+            Subscription[] old = mSubscriptions;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i] == subscription) {
+                    Subscription[] subscriptions = new Subscription[old.length
+                            - 1];
+                    System.arraycopy(old, 0, subscriptions, 0, i);
+                    System.arraycopy(old, i + 1, subscriptions, i,
+                            old.length - i - 1);
+                    mSubscriptions = subscriptions;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of samples the bus holds for subscribers that are
+     * behind.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return The number of samples published.
+     */
+    public long getNPublished() {
+        return mPublished.get();
+    }
+
+    /**
+     * A sample as seen by a subscriber. Each Subscription reuses one.
+     */
+    public static class Sample {
+        private final int[] mRr = new int[MAX_RR];
+        private long mSequence;
+        private int mType;
+        private int mSource;
+        private long mDate;
+        private int mValue;
+        private int mRrCount;
+        private long mBeatDate;
+
+        /**
+         * @return The sequence number, which counts the samples published.
+         */
+        public long getSequence() {
+            return mSequence;
+        }
+
+        /**
+         * @return The type, TYPE_HR, TYPE_BATTERY, or TYPE_HRV.
+         */
+        public int getType() {
+            return mType;
+        }
+
+        /**
+         * @return The source id.
+         */
+        public int getSource() {
+            return mSource;
+        }
+
+        /**
+         * @return The date.
+         */
+        public long getDate() {
+            return mDate;
+        }
+
+        /**
+         * @return The HR for TYPE_HR.
+         */
+        public int getHr() {
+            return mValue;
+        }
+
+        /**
+         * @return The battery level for TYPE_BATTERY.
+         */
+        public int getBatteryLevel() {
+            return mValue;
+        }
+
+        /**
+         * @return The number of windows for TYPE_HRV.
+         */
+        public int getHrvWindowCount() {
+            return mValue;
+        }
+
+        /**
+         * @return The HRV metrics for TYPE_HRV, to be read with
+         * HrvCalculator.unpack, followed by the spectral metrics, if
+         * getHrvSpectralOffset is not -1.
+         */
+        public int[] getHrvValues() {
+            return mRr;
+        }
+
+        /**
+         * @return The index in the HRV values of the spectral metrics, to be
+         * read with SpectralHrv.unpack, or -1 if there are none.
+         */
+        public int getHrvSpectralOffset() {
+            int offset = mValue * HrvCalculator.N_METRICS;
+            return mRrCount >= offset + SpectralHrv.N_METRICS ? offset : -1;
+        }
+
+        /**
+         * @return The number of R-R values or RrUtils.RR_NOT_PRESENT.
+         */
+        public int getRrCount() {
+            return mRrCount;
+        }
+
+        /**
+         * @return The R-R values in units of 1/1024 sec, valid up to
+         * getRrCount.
+         */
+        public int[] getRrValues() {
+            return mRr;
+        }
+
+        /**
+         * @return The date of the last beat for TYPE_HR or INVALID_DATE if
+         * there are no beats.
+         */
+        public long getBeatDate() {
+            return mBeatDate;
+        }
+
+        /**
+         * Gets the dates of the beats for TYPE_HR by counting back the R-R
+         * values from the last one.
+         *
+         * @param beatDates The array to hold the dates, valid up to
+         *                  getRrCount.
+         * @return If there are beats.
+         */
+        public boolean getBeatDates(long[] beatDates) {
+            if (mBeatDate == INVALID_DATE || mRrCount <= 0) {
+                return false;
+            }
+            // In units of 1/1024 ms, in which the R-R values are exact
+            long time = mBeatDate * 1024;
+            for (int i = mRrCount - 1; i >= 0; i--) {
+                beatDates[i] = (time + 512) / 1024;
+                time -= mRr[i] * 1000L;
+            }
+            return true;
+        }
+
+        /**
+         * Appends the R-R values separated by spaces to the given
+         * StringBuilder, as HeartRateValues.getRr formats them.
+         *
+         * @param sb The StringBuilder.
+         * @return The StringBuilder.
+         */
+        public StringBuilder appendRr(StringBuilder sb) {
+            if (mRrCount == RrUtils.RR_NOT_PRESENT) {
+                return sb.append(INVALID_STRING);
+            }
+            for (int i = 0; i < mRrCount; i++) {
+                if (i > 0) {
+                    sb.append(' ');
+                }
+                sb.append(mRr[i]);
+            }
+            return sb;
+        }
+    }
+
+    /**
+     * A subscriber's position in the bus. poll must only be called from one
+     * thread at a time, or not at all if there is a listener.
+     */
+    public class Subscription {
+        private final Sample mSample = new Sample();
+        private final Listener mListener;
+        private final Executor mExecutor;
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
+        private final Runnable mDrainTask;
+        private volatile boolean mClosed;
+        private volatile long mCursor;
+        private volatile long mNDropped;
+
+        private Subscription(Listener listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+            mCursor = mPublished.get();
+            mDrainTask = listener == null ? null : new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            };
+        }
+
+        /**
+         * Delivers the samples that are available to the listener.
+         *
+         * @param listener The listener.
+         * @param limit    The maximum number to deliver.
+         * @return The number delivered.
+         */
+        public int poll(Listener listener, int limit) {
+            int n = 0;
+            long published, cursor;
+            while (n < limit && !mClosed) {
+                published = mPublished.get();
+                cursor = mCursor;
+                if (cursor >= published) {
+                    break;
+                }
+                if (published - cursor > mCapacity) {
+                    // Overrun, skip to the oldest still held
+                    mNDropped += published - mCapacity - cursor;
+                    cursor = published - mCapacity;
+                }
+                if (!read(cursor, mSample)) {
+                    // Overwritten while it was being read
+                    mNDropped++;
+                    mCursor = cursor + 1;
+                    continue;
+                }
+                mCursor = cursor + 1;
+                listener.onSample(mSample);
+                n++;
+            }
+            return n;
+        }
+
+        /**
+         * Runs the drain task on the executor unless it is already queued
+         * or running.
+         */
+        private void schedule() {
+            if (!mClosed && mScheduled.compareAndSet(false, true)) {
+                mExecutor.execute(mDrainTask);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                poll(mListener, Integer.MAX_VALUE);
+                mScheduled.set(false);
+                // Go again if one came after the poll and its schedule was
+                // skipped
+                if (mClosed || getLag() == 0
+                        || !mScheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Stops delivery. Samples not yet delivered are discarded.
+         */
+        public void close() {
+            mClosed = true;
+            remove(this);
+        }
+
+        /**
+         * @return The number of samples published but not yet delivered.
+         */
+        public long getLag() {
+            return Math.max(0, mPublished.get() - mCursor);
+        }
+
+        /**
+         * @return The number of samples lost because this subscriber fell
+         * too far behind.
+         */
+        public long getNDropped() {
+            return mNDropped;
+        }
+    }
+
+    /**
+     * An Executor that runs tasks on the thread of a Handler, typically the
+     * UI thread.
+     */
+    public static class HandlerExecutor implements Executor {
+        private final Handler mHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param handler The Handler.
+         */
+        public HandlerExecutor(Handler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.os.SystemClock;
+
+/**
+ * Timestamps samples in microseconds from the monotonic elapsed-realtime
+ * clock, which keeps running in deep sleep and is not changed by NTP or the
+ * user. The times are mapped to the wall clock by an anchor, a reading of
+ * both clocks taken together, so they look like ordinary dates but never
+ * jump. Taking the time does not allocate.
+ * <p/>
+ * The wall clock is only read for the anchor and for getOffset, which shows
+ * how far it has moved from the sample clock since then, whether from
+ * drift, NTP, or the user changing it. The anchor is meant to be kept for
+ * as long as any session is recording, so all the devices share one
+ * timeline, and the offsets recorded as corrections.
+ * <p/>
+ * Thread safe.
+ */
+public class SampleClock {
+    private volatile Anchor mAnchor;
+
+    /**
+     * Constructor. Anchors the clock.
+     */
+    public SampleClock() {
+        anchor();
+    }
+
+    /**
+     * Anchors the clock to the wall clock now. The times may jump, so this
+     * should not be called while any session is recording.
+     */
+    public void anchor() {
+        mAnchor = new Anchor(System.currentTimeMillis(),
+                SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * @return The current time in microseconds.
+     */
+    public long now() {
+        return toTime(SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Converts a reading of SystemClock.elapsedRealtimeNanos to a time.
+     *
+     * @param elapsedNanos The elapsed realtime in ns.
+     * @return The time in microseconds.
+     */
+    public long toTime(long elapsedNanos) {
+        Anchor anchor = mAnchor;
+        return anchor.mWall * 1000 + (elapsedNanos - anchor.mElapsed) / 1000;
+    }
+
+    /**
+     * Gets how far the wall clock is ahead of the sample clock. This is 0 at
+     * the anchor, to within a ms.
+     *
+     * @param time A time from now that was just taken.
+     * @param wall The wall clock date, taken at the same time.
+     * @return The offset in ms.
+     */
+    public static long getOffset(long time, long wall) {
+        return wall - time / 1000;
+    }
+
+    /**
+     * @return The wall clock date of the anchor.
+     */
+    public long getAnchorDate() {
+        return mAnchor.mWall;
+    }
+
+    /**
+     * A reading of the wall clock and the elapsed realtime taken together.
+     */
+    private static class Anchor {
+        private final long mWall;
+        private final long mElapsed;
+
+        Anchor(long wall, long elapsed) {
+            mWall = wall;
+            mElapsed = elapsed;
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A growable series of (time, value) samples held in primitive arrays. Samples
+ * may be added in any order. Call finish after the last one to sort them by
+ * time, keeping only the last value added for each time, which is what
+ * TimeSeries.addOrUpdate does. A value of NaN marks a gap.
+ */
+public class SampleSeries {
+    private long[] mTimes;
+    private double[] mValues;
+    private int mSize;
+    private boolean mSorted = true;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The initial capacity.
+     */
+    public SampleSeries(int capacity) {
+        capacity = Math.max(capacity, 16);
+        mTimes = new long[capacity];
+        mValues = new double[capacity];
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @param time  The time.
+     * @param value The value or NaN for a gap.
+     */
+    public void add(long time, double value) {
+        if (mSize == mTimes.length) {
+            int capacity = 2 * mSize;
+            mTimes = Arrays.copyOf(mTimes, capacity);
+            mValues = Arrays.copyOf(mValues, capacity);
+        }
+        if (mSize > 0 && time <= mTimes[mSize - 1]) {
+            mSorted = false;
+        }
+        mTimes[mSize] = time;
+        mValues[mSize] = value;
+        mSize++;
+    }
+
+    /**
+     * Removes all the samples.
+     */
+    public void clear() {
+        mSize = 0;
+        mSorted = true;
+    }
+
+    /**
+     * Sorts the samples by time and removes all but the last value added for
+     * each time. Does nothing if they were added in increasing order.
+     */
+    public void finish() {
+        if (mSorted) {
+            return;
+        }
+        // Stable sort of the indices so the last one added for a time stays
+        // last
+        Integer[] order = new Integer[mSize];
+        for (int i = 0; i < mSize; i++) {
+            order[i] = i;
+        }
+        final long[] times = mTimes;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                long l = times[lhs], r = times[rhs];
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        long[] newTimes = new long[mTimes.length];
+        double[] newValues = new double[mValues.length];
+        int n = 0;
+        int index;
+        for (int i = 0; i < mSize; i++) {
+            index = order[i];
+            if (n > 0 && newTimes[n - 1] == times[index]) {
+                n--;
+            }
+            newTimes[n] = times[index];
+            newValues[n] = mValues[index];
+            n++;
+        }
+        mTimes = newTimes;
+        mValues = newValues;
+        mSize = n;
+        mSorted = true;
+    }
+
+    /**
+     * Gets the index of the first sample at or after the given time. The
+     * samples must be finished.
+     *
+     * @param time The time.
+     * @return The index, which is size if there is none.
+     */
+    public int indexAtOrAfter(long time) {
+        int index = Arrays.binarySearch(mTimes, 0, mSize, time);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * @return The number of samples.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return The array of times, which is valid up to size and is replaced
+     * when the series grows or is finished.
+     */
+    public long[] getTimes() {
+        return mTimes;
+    }
+
+    /**
+     * @return The array of values, which is valid up to size and is replaced
+     * when the series grows or is finished.
+     */
+    public double[] getValues() {
+        return mValues;
+    }
+
+}
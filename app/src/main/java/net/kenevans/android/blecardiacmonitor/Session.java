@@ -6,6 +6,11 @@ public class Session implements IConstants {
 	private String name;
 	private long startDate = INVALID_DATE;
 	private long endDate = INVALID_DATE;
+	private int nSamples;
+	private int hrMin = INVALID_INT;
+	private int hrMax = INVALID_INT;
+	private int hrAvg = INVALID_INT;
+	private int nRr;
 	private boolean checked = false;
 	private CheckBox checkBox;
 
@@ -43,6 +48,55 @@ public class Session implements IConstants {
 		return endDate - startDate;
 	}
 
+	public int getNSamples() {
+		return nSamples;
+	}
+
+	public void setNSamples(int nSamples) {
+		this.nSamples = nSamples;
+	}
+
+	/**
+	 * @return The minimum valid heart rate or INVALID_INT if there are none.
+	 */
+	public int getHrMin() {
+		return hrMin;
+	}
+
+	public void setHrMin(int hrMin) {
+		this.hrMin = hrMin;
+	}
+
+	/**
+	 * @return The maximum valid heart rate or INVALID_INT if there are none.
+	 */
+	public int getHrMax() {
+		return hrMax;
+	}
+
+	public void setHrMax(int hrMax) {
+		this.hrMax = hrMax;
+	}
+
+	/**
+	 * @return The average valid heart rate or INVALID_INT if there are none.
+	 */
+	public int getHrAvg() {
+		return hrAvg;
+	}
+
+	public void setHrAvg(int hrAvg) {
+		this.hrAvg = hrAvg;
+	}
+
+	public int getNRr() {
+		return nRr;
+	}
+
+	public void setNRr(int nRr) {
+		this.nRr = nRr;
+	}
+
 	public boolean isChecked() {
 		return checked;
 	}
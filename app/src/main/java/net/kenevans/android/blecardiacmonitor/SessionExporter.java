@@ -0,0 +1,386 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * Exports sessions as CSV, GPX, or TCX files. Independent sessions are
+ * exported in parallel on a bounded executor with one thread per core, each
+ * reading a single cursor for its session and writing through its own
+ * TimestampFormatter and ChannelWriter. A combined CSV file is made by
+ * exporting the sessions in parallel to temporary parts, which are then
+ * concatenated in order with FileChannel.transferTo. Call from a background
+ * thread.
+ */
+public class SessionExporter implements IConstants {
+    /**
+     * The export formats.
+     */
+    public enum Format {
+        CSV(".csv"), GPX(".gpx"), TCX(".tcx");
+
+        private final String mExtension;
+
+        Format(String extension) {
+            mExtension = extension;
+        }
+
+        /**
+         * Gets the file extension, with a .gz suffix if compressed.
+         *
+         * @param gzip Whether the file is compressed.
+         * @return The extension, including the leading dot.
+         */
+        public String getExtension(boolean gzip) {
+            return gzip ? mExtension + ".gz" : mExtension;
+        }
+    }
+
+    /**
+     * Callback for progress. Called from the executor threads.
+     */
+    public interface ProgressListener {
+        /**
+         * Called when a session has been exported.
+         *
+         * @param nDone  The number of sessions exported so far.
+         * @param nTotal The total number of sessions.
+         */
+        void onProgress(int nDone, int nTotal);
+    }
+
+    /**
+     * The result of exporting one session.
+     */
+    public static class Result {
+        /**
+         * The session.
+         */
+        public final Session session;
+        /**
+         * The file written.
+         */
+        public final File file;
+        /**
+         * The number of rows written.
+         */
+        public long nRows;
+        /**
+         * The exception if the export failed, otherwise null.
+         */
+        public Exception exception;
+
+        Result(Session session, File file) {
+            this.session = session;
+            this.file = file;
+        }
+    }
+
+    private final BCMDbAdapter mDbAdapter;
+    private final ProgressListener mListener;
+    private final Format mFormat;
+    private final boolean mGzip;
+    private final String mCreator;
+
+    /**
+     * Constructor for uncompressed CSV files.
+     *
+     * @param adapter  The adapter for the database.
+     * @param listener The listener for progress or null.
+     */
+    public SessionExporter(BCMDbAdapter adapter, ProgressListener listener) {
+        this(adapter, listener, Format.CSV, false, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param adapter  The adapter for the database.
+     * @param listener The listener for progress or null.
+     * @param format   The format.
+     * @param gzip     Whether to compress the files with gzip. Not used for
+     *                 a combined file.
+     * @param creator  The name of the program written to GPX files.
+     */
+    public SessionExporter(BCMDbAdapter adapter, ProgressListener listener,
+                           Format format, boolean gzip, String creator) {
+        mDbAdapter = adapter;
+        mListener = listener;
+        mFormat = format;
+        mGzip = gzip;
+        mCreator = creator;
+    }
+
+    /**
+     * Exports each session to its own file in parallel.
+     *
+     * @param sessions The sessions.
+     * @param files    The file for each session.
+     * @return The results in the same order as the sessions.
+     */
+    public List<Result> exportSessions(List<Session> sessions,
+                                       List<File> files) {
+        final int nTotal = sessions.size();
+        final AtomicInteger nDone = new AtomicInteger();
+        List<Result> results = new ArrayList<Result>(nTotal);
+        List<Future<?>> futures = new ArrayList<Future<?>>(nTotal);
+        ExecutorService executor = createExecutor(nTotal);
+        try {
+            for (int i = 0; i < nTotal; i++) {
+                final Result result = new Result(sessions.get(i),
+                        files.get(i));
+                results.add(result);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        exportSession(result);
+                        if (mListener != null) {
+                            mListener.onProgress(nDone.incrementAndGet(),
+                                    nTotal);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < nTotal; i++) {
+                waitFor(futures.get(i), results.get(i));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Exports the sessions into one uncompressed CSV file, in the given
+     * order, with a blank line between sessions. The format and gzip setting
+     * are ignored, since XML documents cannot be concatenated.
+     *
+     * @param sessions The sessions.
+     * @param file     The file.
+     * @return The results for each session. The file of each is the
+     * temporary part, which has been deleted.
+     * @throws IOException If writing the combined file fails.
+     */
+    public List<Result> exportCombined(List<Session> sessions, File file)
+            throws IOException {
+        List<File> parts = new ArrayList<File>(sessions.size());
+        for (int i = 0; i < sessions.size(); i++) {
+            parts.add(new File(file.getPath() + ".part" + i));
+        }
+        List<Result> results = new SessionExporter(mDbAdapter, mListener)
+                .exportSessions(sessions, parts);
+        FileChannel out = null;
+        try {
+            out = new FileOutputStream(file).getChannel();
+            ChannelWriter separator = new ChannelWriter(out, 16);
+            boolean first = true;
+            for (Result result : results) {
+                if (result.exception != null) {
+                    continue;
+                }
+                if (first) {
+                    first = false;
+                } else {
+                    separator.write('\n');
+                    separator.flush();
+                }
+                appendFile(result.file, out);
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+            for (File part : parts) {
+                part.delete();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Writes the data for one session in the format for this exporter.
+     *
+     * @param result The result, which gives the session and the file.
+     */
+    private void exportSession(Result result) {
+        if (mFormat == Format.CSV) {
+            exportCsv(result);
+        } else {
+            exportTrack(result);
+        }
+    }
+
+    /**
+     * Writes the data for one session, in the same format as the original
+     * Save Sessions.
+     *
+     * @param result The result, which gives the session and the file.
+     */
+    private void exportCsv(Result result) {
+        Cursor cursor = null;
+        ChannelWriter out = null;
+        TimestampFormatter formatter = new TimestampFormatter();
+        char[] dateChars = new char[TimestampFormatter.LENGTH];
+        char delim = SAVE_SESSION_DELIM.charAt(0);
+        int[] rr = new int[HeartRateValues.MAX_RR];
+        int rrCount;
+        try {
+            out = ChannelWriter.open(result.file, mGzip);
+            cursor = mDbAdapter.fetchAllHrRrDateDataForStartDate(result
+                    .session.getStartDate());
+            int indexDate = cursor.getColumnIndexOrThrow(COL_DATE);
+            int indexHr = cursor.getColumnIndexOrThrow(COL_HR);
+            int indexRr = cursor.getColumnIndexOrThrow(COL_RR);
+            while (cursor.moveToNext()) {
+                formatter.format(cursor.getLong(indexDate), dateChars, 0);
+                out.write(dateChars, 0, dateChars.length);
+                out.write(delim);
+                out.writeLong(cursor.getInt(indexHr));
+                out.write(delim);
+                rrCount = RrUtils.fromBlob(cursor.getBlob(indexRr), rr);
+                if (rrCount == RrUtils.RR_NOT_PRESENT) {
+                    out.write(INVALID_STRING);
+                } else {
+                    for (int i = 0; i < rrCount; i++) {
+                        if (i > 0) {
+                            out.write(' ');
+                        }
+                        out.writeLong(rr[i]);
+                    }
+                }
+                out.write('\n');
+                result.nRows++;
+            }
+        } catch (Exception ex) {
+            result.exception = ex;
+            Log.e(TAG, "Error exporting " + result.session.getName(), ex);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    if (result.exception == null) {
+                        result.exception = ex;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the data for one session as a GPX or TCX track.
+     *
+     * @param result The result, which gives the session and the file.
+     */
+    private void exportTrack(Result result) {
+        Cursor cursor = null;
+        TrackWriter out = null;
+        try {
+            out = new TrackWriter(ChannelWriter.open(result.file, mGzip),
+                    mFormat);
+            out.begin(mCreator, result.session, System.currentTimeMillis());
+            cursor = mDbAdapter.fetchAllHrDateDataForStartDate(result
+                    .session.getStartDate());
+            int indexDate = cursor.getColumnIndexOrThrow(COL_DATE);
+            int indexHr = cursor.getColumnIndexOrThrow(COL_HR);
+            while (cursor.moveToNext()) {
+                out.writePoint(cursor.getLong(indexDate),
+                        cursor.getInt(indexHr));
+            }
+            out.end();
+            result.nRows = out.getNPoints();
+        } catch (Exception ex) {
+            result.exception = ex;
+            Log.e(TAG, "Error exporting " + result.session.getName(), ex);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    if (result.exception == null) {
+                        result.exception = ex;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates an executor with at most one thread per core.
+     *
+     * @param nTasks The number of tasks.
+     * @return The executor.
+     */
+    private static ExecutorService createExecutor(int nTasks) {
+        int nThreads = Math.max(1, Math.min(nTasks, Runtime.getRuntime()
+                .availableProcessors()));
+        return new ThreadPoolExecutor(nThreads, nThreads, 0,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    }
+
+    /**
+     * Waits for a task, recording any failure in its result.
+     *
+     * @param future The future for the task.
+     * @param result The result.
+     */
+    private static void waitFor(Future<?> future, Result result) {
+        try {
+            future.get();
+        } catch (ExecutionException ex) {
+            if (result.exception == null) {
+                Throwable cause = ex.getCause();
+                result.exception = cause instanceof Exception ? (Exception)
+                        cause : ex;
+            }
+        } catch (InterruptedException ex) {
+            result.exception = ex;
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Appends a file to a channel.
+     *
+     * @param file The file.
+     * @param out  The channel.
+     * @throws IOException If copying fails.
+     */
+    private static void appendFile(File file, FileChannel out)
+            throws IOException {
+        FileChannel in = new FileInputStream(file).getChannel();
+        try {
+            long size = in.size();
+            long pos = 0;
+            while (pos < size) {
+                pos += in.transferTo(pos, size - pos, out);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+}
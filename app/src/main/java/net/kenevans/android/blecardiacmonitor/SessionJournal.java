@@ -0,0 +1,697 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Append-only journal of the rows of one session, kept in memory-mapped
+ * files so that appending a row is only a write to memory. The rows are in
+ * the page cache as soon as they are appended, so they survive the process
+ * being killed before they reach the database, and are replayed from the
+ * journal the next time the database is written.
+ * <p/>
+ * The journal is a sequence of segment files of JOURNAL_SEGMENT_SIZE bytes
+ * named &lt;start date&gt;-&lt;sequence&gt;.jnl, each holding fixed-size
+ * records of RECORD_SIZE bytes. A row takes one record, and more for R-R
+ * values that do not fit in it. The type of a record is written last, and
+ * the rest of a segment is zero, so reading stops at the first record that
+ * was not completed. A crash can then lose at most the record being written
+ * when the page holding it did not reach the disk.
+ * <p/>
+ * The rows are counted as they are appended and as they are committed to
+ * the database, in the same order. A segment is deleted once all of its rows
+ * are committed and it is full, or the journal was closed. If rows could not
+ * be written, the journal is kept, and none of it is deleted, so they are
+ * replayed from it later.
+ * <p/>
+ * The next segment can be created and mapped ahead of time with
+ * nextSegmentFile, mapSegment, and setNextSegment, so that appending does
+ * not wait on the file system when a segment is full. It is otherwise
+ * created when it is needed.
+ * <p/>
+ * Not thread safe. The caller must synchronize the use of a journal, except
+ * for mapSegment.
+ */
+public class SessionJournal implements IConstants {
+    private static final String TAG = "SessionJournal";
+    /**
+     * The suffix of the segment files.
+     */
+    private static final String SUFFIX = ".jnl";
+    /**
+     * The size of a record in bytes.
+     */
+    public static final int RECORD_SIZE = 64;
+    /**
+     * Record types. 0 is the end of the records in a segment.
+     */
+    private static final byte TYPE_ROW = 1;
+    private static final byte TYPE_RR = 2;
+    private static final byte TYPE_CLOCK = 3;
+    private static final byte TYPE_DEVICE = 4;
+    /**
+     * Flag in a row record for rows with beat times.
+     */
+    private static final int FLAG_BEATS = 0x100;
+    /**
+     * Number of R-R values in a row record and where they and the offsets of
+     * their beat times from the row time are.
+     */
+    private static final int ROW_RR_SLOTS = 6;
+    private static final int ROW_RR_POS = 28;
+    private static final int ROW_BEAT_POS = ROW_RR_POS + 2 * ROW_RR_SLOTS;
+    /**
+     * Number of R-R values in a continuation record and where they are.
+     */
+    private static final int RR_SLOTS = 10;
+    private static final int RR_POS = 4;
+    private static final int RR_BEAT_POS = RR_POS + 2 * RR_SLOTS;
+    /**
+     * Device length for a null device.
+     */
+    private static final int NULL_DEVICE = 0xFF;
+    /**
+     * Maximum length of a device address.
+     */
+    private static final int MAX_DEVICE_LENGTH = RECORD_SIZE - 2;
+
+    private final File mDir;
+    private final long mStartDate;
+    /**
+     * The full segments that are not deleted yet.
+     */
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+    /**
+     * The segment being appended to or null.
+     */
+    private Segment mCurrent;
+    private MappedByteBuffer mBuffer;
+    private int mPosition;
+    private int mNextSeq;
+    /**
+     * The device of the last row in the current segment.
+     */
+    private String mDevice;
+    private long mNRows;
+    private long mNClocks;
+    private long mNCommittedRows;
+    private long mNCommittedClocks;
+    /**
+     * The next segment, created ahead of time, and its buffer, or null.
+     */
+    private File mNextFile;
+    private MappedByteBuffer mNextBuffer;
+    /**
+     * The file given out for the next segment that has not been set yet or
+     * null.
+     */
+    private File mPendingFile;
+    private boolean mClosed;
+    /**
+     * Set if rows were not written to the database, after which no segments
+     * are deleted.
+     */
+    private boolean mKept;
+    /**
+     * Set if a segment could not be created, after which nothing more is
+     * appended.
+     */
+    private boolean mFailed;
+
+    /**
+     * Constructor. No files are created until the first row is appended.
+     *
+     * @param dir       The directory for the journal.
+     * @param startDate The start date of the session.
+     */
+    public SessionJournal(File dir, long startDate) {
+        mDir = dir;
+        mStartDate = startDate;
+    }
+
+    /**
+     * @return The start date of the session.
+     */
+    public long getStartDate() {
+        return mStartDate;
+    }
+
+    /**
+     * Appends a row.
+     *
+     * @param device    The device address or null if not known.
+     * @param date      The date.
+     * @param time      The time in us or INVALID_DATE if not known.
+     * @param hr        The heart rate.
+     * @param rr        The array holding the R-R values.
+     * @param rrCount   The number of R-R values or RrUtils.RR_NOT_PRESENT.
+     * @param beatTimes The array holding the time of the beat for each R-R
+     *                  value in us or null if there are no beats. They must
+     *                  be within about half an hour of the row time.
+     * @param beatFlags The BeatTimeline flags for the first beat.
+     * @return False if the row could not be appended.
+     */
+    public boolean appendRow(String device, long date, long time, int hr,
+                             int[] rr, int rrCount, long[] beatTimes,
+                             int beatFlags) {
+        int nRr = rrCount < 0 ? 0 : rrCount;
+        boolean beats = beatTimes != null && time != INVALID_DATE;
+        int nRecords = 1;
+        if (nRr > ROW_RR_SLOTS) {
+            nRecords += (nRr - ROW_RR_SLOTS + RR_SLOTS - 1) / RR_SLOTS;
+        }
+        if (!reserve(nRecords + 1)) {
+            return false;
+        }
+        if (mPosition == 0 || !equals(device, mDevice)) {
+            putDevice(device);
+        }
+        ByteBuffer buf = mBuffer;
+        int pos = mPosition;
+        int n = Math.min(nRr, ROW_RR_SLOTS);
+        buf.put(pos + 1, (byte) n);
+        int flags = (beats ? FLAG_BEATS : 0) | beatFlags;
+        buf.putShort(pos + 2, (short) flags);
+        buf.putInt(pos + 4, hr);
+        buf.putLong(pos + 8, date);
+        buf.putLong(pos + 16, time);
+        buf.putInt(pos + 24, rrCount);
+        putRr(pos, ROW_RR_POS, ROW_BEAT_POS, rr, beats ? beatTimes : null,
+                time, 0, n);
+        // Write the type last so an incomplete record is not read
+        buf.put(pos, TYPE_ROW);
+        pos += RECORD_SIZE;
+        for (int i = n; i < nRr; i += RR_SLOTS) {
+            n = Math.min(nRr - i, RR_SLOTS);
+            buf.put(pos + 1, (byte) n);
+            putRr(pos, RR_POS, RR_BEAT_POS, rr, beats ? beatTimes : null,
+                    time, i, n);
+            buf.put(pos, TYPE_RR);
+            pos += RECORD_SIZE;
+        }
+        mPosition = pos;
+        mNRows++;
+        mCurrent.mEndRows = mNRows;
+        return true;
+    }
+
+    /**
+     * Appends a row for the clock table.
+     *
+     * @param time The time on the sample clock in us.
+     * @param wall The wall-clock date at that time.
+     * @return False if the row could not be appended.
+     */
+    public boolean appendClock(long time, long wall) {
+        if (!reserve(1)) {
+            return false;
+        }
+        ByteBuffer buf = mBuffer;
+        int pos = mPosition;
+        buf.putLong(pos + 8, time);
+        buf.putLong(pos + 16, wall);
+        buf.put(pos, TYPE_CLOCK);
+        mPosition = pos + RECORD_SIZE;
+        mNClocks++;
+        mCurrent.mEndClocks = mNClocks;
+        return true;
+    }
+
+    /**
+     * Counts the oldest appended rows as written to the database.
+     *
+     * @param nRows   The number of data rows.
+     * @param nClocks The number of clock rows.
+     */
+    public void commit(int nRows, int nClocks) {
+        mNCommittedRows += nRows;
+        mNCommittedClocks += nClocks;
+    }
+
+    /**
+     * Keeps all of the journal from now on, because rows that were appended
+     * to it could not be written to the database. They are replayed from it
+     * the next time the writer starts, skipping those that were written.
+     */
+    public void keep() {
+        mKept = true;
+    }
+
+    /**
+     * @return If the journal is being kept.
+     */
+    public boolean isKept() {
+        return mKept;
+    }
+
+    /**
+     * Closes the journal, so it is deleted once all of it is committed. It
+     * is opened again if more rows are appended.
+     */
+    public void close() {
+        mClosed = true;
+    }
+
+    /**
+     * @return If the journal is closed and all of its rows are committed,
+     * and it is not being kept.
+     */
+    public boolean isDone() {
+        return mClosed && !mKept && isCommitted();
+    }
+
+    /**
+     * @return If all the appended rows are committed.
+     */
+    public boolean isCommitted() {
+        return mNCommittedRows == mNRows && mNCommittedClocks == mNClocks;
+    }
+
+    /**
+     * Deletes the segments whose rows are all committed and that will not
+     * be appended to, which is all of them if the journal is done.
+     *
+     * @return The number of segments deleted.
+     */
+    public int deleteCommitted() {
+        int nDeleted = 0;
+        if (mClosed && mNextFile != null) {
+            // It has no rows and is created again if the journal is opened
+            delete(mNextFile);
+            mNextFile = null;
+            mNextBuffer = null;
+        }
+        if (mKept) {
+            return nDeleted;
+        }
+        while (!mSegments.isEmpty()) {
+            Segment segment = mSegments.get(0);
+            if (segment.mEndRows > mNCommittedRows
+                    || segment.mEndClocks > mNCommittedClocks) {
+                break;
+            }
+            mSegments.remove(0);
+            delete(segment.mFile);
+            nDeleted++;
+        }
+        if (mCurrent != null && mSegments.isEmpty() && isDone()) {
+            delete(mCurrent.mFile);
+            mCurrent = null;
+            mBuffer = null;
+            nDeleted++;
+        }
+        return nDeleted;
+    }
+
+    /**
+     * Makes sure there is room for the given number of records, starting a
+     * new segment if necessary.
+     *
+     * @param nRecords The number of records.
+     * @return False if there is no room, because a segment could not be
+     * created.
+     */
+    private boolean reserve(int nRecords) {
+        mClosed = false;
+        if (mFailed) {
+            return false;
+        }
+        if (mBuffer != null
+                && mPosition + nRecords * RECORD_SIZE <= mBuffer.capacity()) {
+            return true;
+        }
+        if (mCurrent != null) {
+            mSegments.add(mCurrent);
+            mCurrent = null;
+            mBuffer = null;
+        }
+        File file;
+        if (mNextFile != null) {
+            file = mNextFile;
+            mBuffer = mNextBuffer;
+            mNextFile = null;
+            mNextBuffer = null;
+        } else {
+            // Not created ahead of time. One being created now would come
+            // after this one, so it is not used.
+            mPendingFile = null;
+            file = newSegmentFile();
+            try {
+                mBuffer = mapSegment(file);
+            } catch (IOException ex) {
+                Log.e(TAG, "Error creating " + file, ex);
+                delete(file);
+                mFailed = true;
+                return false;
+            }
+        }
+        mCurrent = new Segment(file);
+        mCurrent.mEndRows = mNRows;
+        mCurrent.mEndClocks = mNClocks;
+        mPosition = 0;
+        mDevice = null;
+        return nRecords * RECORD_SIZE <= JOURNAL_SEGMENT_SIZE;
+    }
+
+    /**
+     * @return If the next segment should be created ahead of time, because
+     * the journal is open and there is none.
+     */
+    public boolean needsSegment() {
+        return !mClosed && !mFailed && mNextFile == null
+                && mPendingFile == null;
+    }
+
+    /**
+     * Gives out the file for the next segment, to be created ahead of time
+     * with mapSegment and then given to setNextSegment.
+     *
+     * @return The file.
+     */
+    public File nextSegmentFile() {
+        mPendingFile = newSegmentFile();
+        return mPendingFile;
+    }
+
+    /**
+     * Sets the next segment, created ahead of time, to be used when the
+     * current one is full. It is deleted instead if the journal has created
+     * a segment of its own meanwhile. If it could not be created, nothing
+     * more is appended, as when the journal cannot create a segment itself.
+     *
+     * @param file   The file from nextSegmentFile.
+     * @param buffer The buffer from mapSegment or null if it failed.
+     * @return If it was set.
+     */
+    public boolean setNextSegment(File file, MappedByteBuffer buffer) {
+        if (buffer == null || !file.equals(mPendingFile)) {
+            if (buffer == null && file.equals(mPendingFile)) {
+                mPendingFile = null;
+                mFailed = true;
+            }
+            delete(file);
+            return false;
+        }
+        mPendingFile = null;
+        mNextFile = file;
+        mNextBuffer = buffer;
+        return true;
+    }
+
+    /**
+     * Creates a segment file and maps it into memory. Does not use the
+     * journal, so it may be called without synchronizing.
+     *
+     * @param file The file.
+     * @return The buffer, in native byte order.
+     * @throws IOException If it cannot be created.
+     */
+    public static MappedByteBuffer mapSegment(File file) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(JOURNAL_SEGMENT_SIZE);
+            // The mapping stays valid after the file is closed
+            MappedByteBuffer buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, JOURNAL_SEGMENT_SIZE);
+            buffer.order(ByteOrder.nativeOrder());
+            return buffer;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Makes the file for the next segment, skipping any left from a journal
+     * for the same session that is still to be replayed.
+     *
+     * @return The file.
+     */
+    private File newSegmentFile() {
+        File file;
+        do {
+            file = new File(mDir, mStartDate + "-" + mNextSeq++ + SUFFIX);
+        } while (file.exists());
+        return file;
+    }
+
+    /**
+     * Writes a device record.
+     *
+     * @param device The device address or null.
+     */
+    private void putDevice(String device) {
+        ByteBuffer buf = mBuffer;
+        int pos = mPosition;
+        if (device == null) {
+            buf.put(pos + 1, (byte) NULL_DEVICE);
+        } else {
+            int len = Math.min(device.length(), MAX_DEVICE_LENGTH);
+            buf.put(pos + 1, (byte) len);
+            for (int i = 0; i < len; i++) {
+                buf.put(pos + 2 + i, (byte) device.charAt(i));
+            }
+        }
+        buf.put(pos, TYPE_DEVICE);
+        mPosition = pos + RECORD_SIZE;
+        mDevice = device;
+    }
+
+    /**
+     * Writes R-R values and the offsets of their beat times to a record.
+     *
+     * @param pos       The position of the record.
+     * @param rrPos     The position of the values in the record.
+     * @param beatPos   The position of the offsets in the record.
+     * @param rr        The R-R values.
+     * @param beatTimes The beat times or null.
+     * @param time      The time of the row.
+     * @param offset    The index of the first value to write.
+     * @param n         The number of values to write.
+     */
+    private void putRr(int pos, int rrPos, int beatPos, int[] rr,
+                       long[] beatTimes, long time, int offset, int n) {
+        ByteBuffer buf = mBuffer;
+        for (int i = 0; i < n; i++) {
+            buf.putChar(pos + rrPos + 2 * i, (char) rr[offset + i]);
+            if (beatTimes != null) {
+                buf.putInt(pos + beatPos + 4 * i,
+                        (int) (beatTimes[offset + i] - time));
+            }
+        }
+    }
+
+    /**
+     * Deletes a file, logging if it could not be.
+     *
+     * @param file The file.
+     */
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            Log.e(TAG, "Cannot delete " + file);
+        }
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Lists the segment files in a directory in the order they were written.
+     *
+     * @param dir The directory.
+     * @return The files, empty if there are none.
+     */
+    public static File[] listFiles(File dir) {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(SUFFIX)
+                        && parseName(file.getName()) != null;
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long[] a = parseName(lhs.getName());
+                long[] b = parseName(rhs.getName());
+                if (a[0] != b[0]) {
+                    return a[0] < b[0] ? -1 : 1;
+                }
+                return a[1] < b[1] ? -1 : a[1] == b[1] ? 0 : 1;
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Gets the start date of the session a segment file is for.
+     *
+     * @param file The file.
+     * @return The start date or INVALID_DATE if it is not a segment file.
+     */
+    public static long getStartDate(File file) {
+        long[] parts = parseName(file.getName());
+        return parts == null ? INVALID_DATE : parts[0];
+    }
+
+    /**
+     * Parses the name of a segment file.
+     *
+     * @param name The name.
+     * @return The start date and sequence number or null if it is not the
+     * name of a segment file.
+     */
+    private static long[] parseName(String name) {
+        if (!name.endsWith(SUFFIX)) {
+            return null;
+        }
+        int dash = name.lastIndexOf('-');
+        if (dash <= 0) {
+            return null;
+        }
+        try {
+            return new long[]{Long.parseLong(name.substring(0, dash)),
+                    Long.parseLong(name.substring(dash + 1,
+                            name.length() - SUFFIX.length()))};
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the records of a segment file.
+     *
+     * @param file    The file.
+     * @param visitor The visitor to give the rows to.
+     * @throws IOException If the file cannot be read.
+     */
+    public static void read(File file, Visitor visitor) throws IOException {
+        ByteBuffer buf;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    raf.length());
+        } finally {
+            raf.close();
+        }
+        buf.order(ByteOrder.nativeOrder());
+        int[] rr = new int[HeartRateValues.MAX_RR];
+        long[] beatTimes = new long[HeartRateValues.MAX_RR];
+        char[] chars = new char[MAX_DEVICE_LENGTH];
+        String device = null;
+        int limit = buf.capacity() - RECORD_SIZE;
+        int pos = 0;
+        while (pos <= limit) {
+            byte type = buf.get(pos);
+            if (type == TYPE_DEVICE) {
+                int len = buf.get(pos + 1) & 0xFF;
+                if (len == NULL_DEVICE) {
+                    device = null;
+                } else {
+                    for (int i = 0; i < len; i++) {
+                        chars[i] = (char) (buf.get(pos + 2 + i) & 0xFF);
+                    }
+                    device = new String(chars, 0, len);
+                }
+                pos += RECORD_SIZE;
+            } else if (type == TYPE_CLOCK) {
+                visitor.clock(buf.getLong(pos + 8), buf.getLong(pos + 16));
+                pos += RECORD_SIZE;
+            } else if (type == TYPE_ROW) {
+                int flags = buf.getShort(pos + 2) & 0xFFFF;
+                int hr = buf.getInt(pos + 4);
+                long date = buf.getLong(pos + 8);
+                long time = buf.getLong(pos + 16);
+                int rrCount = buf.getInt(pos + 24);
+                int nRr = rrCount < 0 ? 0
+                        : Math.min(rrCount, HeartRateValues.MAX_RR);
+                int n = getRr(buf, pos, ROW_RR_POS, ROW_BEAT_POS, rr,
+                        beatTimes, time, 0,
+                        Math.min(buf.get(pos + 1) & 0xFF, nRr));
+                pos += RECORD_SIZE;
+                while (n < nRr && pos <= limit
+                        && buf.get(pos) == TYPE_RR) {
+                    n += getRr(buf, pos, RR_POS, RR_BEAT_POS, rr, beatTimes,
+                            time, n, Math.min(buf.get(pos + 1) & 0xFF,
+                                    nRr - n));
+                    pos += RECORD_SIZE;
+                }
+                if (n < nRr) {
+                    // The row was not completed
+                    break;
+                }
+                visitor.row(device, date, time, hr, rr, rrCount,
+                        (flags & FLAG_BEATS) != 0 ? beatTimes : null,
+                        flags & 0xFF);
+            } else {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reads R-R values and their beat times from a record.
+     *
+     * @return The number of values read.
+     */
+    private static int getRr(ByteBuffer buf, int pos, int rrPos, int beatPos,
+                             int[] rr, long[] beatTimes, long time,
+                             int offset, int n) {
+        for (int i = 0; i < n; i++) {
+            rr[offset + i] = buf.getChar(pos + rrPos + 2 * i);
+            beatTimes[offset + i] = time + buf.getInt(pos + beatPos + 4 * i);
+        }
+        return n;
+    }
+
+    /**
+     * Receives the rows read from a segment file, in the order they were
+     * appended. The arrays are reused for the next row.
+     */
+    public interface Visitor {
+        /**
+         * Receives a data row, with the arguments it was appended with.
+         */
+        void row(String device, long date, long time, int hr, int[] rr,
+                 int rrCount, long[] beatTimes, int beatFlags);
+
+        /**
+         * Receives a clock row, with the arguments it was appended with.
+         */
+        void clock(long time, long wall);
+    }
+
+    /**
+     * A segment file and the number of rows of each kind appended up to its
+     * end.
+     */
+    private static class Segment {
+        private final File mFile;
+        private long mEndRows;
+        private long mEndClocks;
+
+        Segment(File file) {
+            mFile = file;
+        }
+    }
+
+}
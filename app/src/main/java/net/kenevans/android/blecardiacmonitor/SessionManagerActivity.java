@@ -1,10 +1,8 @@
 package net.kenevans.android.blecardiacmonitor;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -12,21 +10,24 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
-import java.util.TimeZone;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.ListActivity;
 import android.app.ProgressDialog;
+import android.content.ComponentName;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -44,7 +45,35 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
     private SessionListAdapter mSessionListAdapter;
     private BCMDbAdapter mDbAdapter;
     private File mDataDir;
+    private BackupTask mBackupTask;
     private RestoreTask mRestoreTask;
+    private ExportTask mExportTask;
+    private BenchmarkTask mBenchmarkTask;
+    private SpectralTask mSpectralTask;
+    /**
+     * The service, if it is running, which records to the same database.
+     */
+    private BCMBleService mService;
+    private boolean mServiceBound;
+
+    /**
+     * Connects to the service only while it is running, so restores and
+     * deletes can be coordinated with its recording.
+     */
+    private final ServiceConnection mServiceConnection = new
+            ServiceConnection() {
+                @Override
+                public void onServiceConnected(ComponentName componentName,
+                                               IBinder service) {
+                    mService = ((BCMBleService.LocalBinder) service)
+                            .getService();
+                }
+
+                @Override
+                public void onServiceDisconnected(ComponentName componentName) {
+                    mService = null;
+                }
+            };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -76,6 +105,10 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
         }
         mDbAdapter = new BCMDbAdapter(this, mDataDir);
         mDbAdapter.open();
+
+        // Does not start the service if it is not running
+        mServiceBound = bindService(new Intent(this, BCMBleService.class),
+                mServiceConnection, 0);
     }
 
     @Override
@@ -98,6 +131,11 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
     protected void onDestroy() {
         Log.d(TAG, this.getClass().getSimpleName() + ": onDestroy");
         super.onDestroy();
+        if (mServiceBound) {
+            unbindService(mServiceConnection);
+            mServiceBound = false;
+            mService = null;
+        }
         if (mDbAdapter != null) {
             mDbAdapter.close();
             mDbAdapter = null;
@@ -130,7 +168,10 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
                 saveCombinedSessions();
                 return true;
             case R.id.menu_save_gpx:
-                saveSessionsAsGpx();
+                saveSessionsAsTrack(SessionExporter.Format.GPX);
+                return true;
+            case R.id.menu_save_tcx:
+                saveSessionsAsTrack(SessionExporter.Format.TCX);
                 return true;
             case R.id.menu_refresh:
                 refresh();
@@ -144,18 +185,25 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
             case R.id.menu_save_database:
                 saveDatabase();
                 return true;
+            case R.id.menu_export_database_csv:
+                exportDatabaseCsv();
+                return true;
             case R.id.menu_restore_database:
                 checkRestoreDatabase();
                 return true;
+            case R.id.menu_benchmark_database:
+                benchmarkDatabase();
+                return true;
+            case R.id.menu_spectral_hrv:
+                analyzeSpectralHrv();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
     /**
-     * Calls the plot activity for the selected sessions.
-     */
-    /**
-     * Calls the plot activity.
+     * Calls the plot activity for the selected sessions. If more than one is
+     * checked, the whole range they cover is plotted from the rollups.
      */
     public void plot() {
         ArrayList<Session> checkedSessions = mSessionListAdapter
@@ -164,21 +212,21 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
             Utils.errMsg(this, "There are no sessions to plot");
             return;
         }
-        if (checkedSessions.size() > 1) {
-            Utils.errMsg(this,
-                    "Only one session may be checked for this operation");
-            return;
-        }
         Session session = checkedSessions.get(0);
         long startDate = session.getStartDate();
-        // long endDate = session.getEndDate();
         Intent intent = new Intent(SessionManagerActivity.this,
                 PlotActivity.class);
         // Plot the session
         intent.putExtra(PLOT_SESSION_CODE, true);
+        if (checkedSessions.size() > 1) {
+            long endDate = session.getEndDate();
+            for (Session checked : checkedSessions) {
+                startDate = Math.min(startDate, checked.getStartDate());
+                endDate = Math.max(endDate, checked.getEndDate());
+            }
+            intent.putExtra(PLOT_SESSION_END_TIME_CODE, endDate);
+        }
         intent.putExtra(PLOT_SESSION_START_TIME_CODE, startDate);
-        // // This is not currently used
-        // intent.putExtra(PLOT_SESSION_END_TIME_CODE, endDate);
         startActivityForResult(intent, REQUEST_PLOT_CODE);
     }
 
@@ -197,7 +245,7 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
     }
 
     /**
-     * Saves the selected sessions.
+     * Saves the selected sessions, each to its own file, in the background.
      */
     public void saveSessions() {
         ArrayList<Session> checkedSessions = mSessionListAdapter
@@ -210,54 +258,16 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
             Utils.errMsg(this, "Cannot determine directory for save");
             return;
         }
-        int nErrors = 0;
-        int nWriteErrors = 0;
-        String errMsg = "Error saving sessions:\n";
-        String fileNames = "Saved to:\n";
-        BufferedWriter out = null;
-        String fileName = null;
-        long startDate = INVALID_DATE;
-        File file = null;
-        FileWriter writer = null;
-        for (Session session : checkedSessions) {
-            startDate = session.getStartDate();
-            fileName = session.getName() + ".csv";
-            try {
-                file = new File(mDataDir, fileName);
-                writer = new FileWriter(file);
-                out = new BufferedWriter(writer);
-                // Write the session data
-                nWriteErrors = writeSessionDataToCvsFile(startDate, out);
-                if (nWriteErrors > 0) {
-                    nErrors += nWriteErrors;
-                    errMsg += "  " + session.getName();
-                }
-                fileNames += "  " + file.getName() + "\n";
-            } catch (Exception ex) {
-                nErrors++;
-                errMsg += "  " + session.getName();
-            } finally {
-                try {
-                    out.close();
-                } catch (Exception ex) {
-                    // Do nothing
-                }
-            }
-        }
-        String msg = "Directory:\n" + mDataDir + "\n";
-        if (nErrors > 0) {
-            msg += errMsg;
-        }
-        msg += fileNames;
-        if (nErrors > 0) {
-            Utils.errMsg(this, msg);
-        } else {
-            Utils.infoMsg(this, msg);
+        if (mExportTask != null) {
+            // Don't do anything if we are already exporting
+            return;
         }
+        mExportTask = new ExportTask(checkedSessions, null);
+        mExportTask.execute();
     }
 
     /**
-     * Saves the selected sessions as a combined session.
+     * Saves the selected sessions as a combined session in the background.
      */
     public void saveCombinedSessions() {
         ArrayList<Session> checkedSessions = mSessionListAdapter
@@ -270,6 +280,10 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
             Utils.errMsg(this, "Cannot determine directory for combined save");
             return;
         }
+        if (mExportTask != null) {
+            // Don't do anything if we are already exporting
+            return;
+        }
         // Need to sort in order of increasing startTime
         Collections.sort(checkedSessions, new Comparator<Session>() {
             @Override
@@ -283,114 +297,20 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
                 }
             }
         });
-        int nErrors = 0;
-        int nWriteErrors = 0;
-        String errMsg = "Error saving combined sessions:\n";
-        String fileNames = "Saved to:\n";
-        BufferedWriter out = null;
         // Use the name of the first session
         String fileName = checkedSessions.get(0).getName() + "-Combined.csv";
-        long startDate = INVALID_DATE;
-        File file = null;
-        FileWriter writer = null;
-        try {
-            file = new File(mDataDir, fileName);
-            writer = new FileWriter(file);
-            out = new BufferedWriter(writer);
-            boolean first = true;
-            for (Session session : checkedSessions) {
-                startDate = session.getStartDate();
-                // Write a blank line to separate sessions
-                if (first) {
-                    first = false;
-                } else {
-                    out.write("\n");
-                }
-                // Write the session data
-                nWriteErrors = writeSessionDataToCvsFile(startDate, out);
-                if (nWriteErrors > 0) {
-                    nErrors += nWriteErrors;
-                    errMsg += "  " + session.getName();
-                }
-            }
-            fileNames += "  " + file.getName() + "\n";
-        } catch (Exception ex) {
-            nErrors++;
-            errMsg += "  " + "Writing combined file";
-        } finally {
-            try {
-                out.close();
-            } catch (Exception ex) {
-                // Do nothing
-            }
-        }
-        String msg = "Directory:\n" + mDataDir + "\n";
-        if (nErrors > 0) {
-            msg += errMsg;
-        }
-        msg += fileNames;
-        if (nErrors > 0) {
-            Utils.errMsg(this, msg);
-        } else {
-            Utils.infoMsg(this, msg);
-        }
+        mExportTask = new ExportTask(checkedSessions, new File(mDataDir,
+                fileName));
+        mExportTask.execute();
     }
 
     /**
-     * Writes the session data for the given startDate to the given
-     * BufferedWriter.
+     * Saves the selected sessions as GPX or TCX files in the background,
+     * compressed if set in the preferences.
      *
-     * @param startDate
-     * @param out
-     * @return
+     * @param format The format, either GPX or TCX.
      */
-    private int writeSessionDataToCvsFile(long startDate, BufferedWriter out) {
-        Cursor cursor = null;
-        int nErrors = 0;
-        try {
-            cursor = mDbAdapter.fetchAllHrRrDateDataForStartDate(startDate);
-            int indexDate = cursor.getColumnIndex(COL_DATE);
-            int indexHr = cursor.getColumnIndex(COL_HR);
-            int indexRr = cursor.getColumnIndex(COL_RR);
-            // Loop over items
-            cursor.moveToFirst();
-            String dateStr, hrStr, rrStr, line;
-            long dateNum = INVALID_DATE;
-            while (cursor.isAfterLast() == false) {
-                dateStr = INVALID_STRING;
-                if (indexDate > -1) {
-                    dateNum = cursor.getLong(indexDate);
-                    dateStr = sessionSaveFormatter.format(new Date(dateNum));
-                }
-                hrStr = INVALID_STRING;
-                if (indexHr > -1) {
-                    hrStr = cursor.getString(indexHr);
-                }
-                rrStr = INVALID_STRING;
-                if (indexRr > -1) {
-                    rrStr = cursor.getString(indexRr);
-                }
-                line = dateStr + SAVE_SESSION_DELIM + hrStr
-                        + SAVE_SESSION_DELIM + rrStr + "\n";
-                out.write(line);
-                cursor.moveToNext();
-            }
-        } catch (Exception ex) {
-            nErrors++;
-        } finally {
-            try {
-                cursor.close();
-            } catch (Exception ex) {
-                // Do nothing
-            }
-        }
-        return nErrors;
-    }
-
-    /**
-     * Saves the selected sessions as GPX files.
-     */
-    public void saveSessionsAsGpx() {
+    public void saveSessionsAsTrack(SessionExporter.Format format) {
         ArrayList<Session> checkedSessions = mSessionListAdapter
                 .getCheckedSessions();
         if (checkedSessions == null || checkedSessions.size() == 0) {
@@ -401,87 +321,15 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
             Utils.errMsg(this, "Cannot determine directory for save");
             return;
         }
-        int nErrors = 0;
-        String errMsg = "Error saving sessions:\n";
-        String fileNames = "Saved to:\n";
-        BufferedWriter out = null;
-        Cursor cursor = null;
-        String fileName = null;
-        long startDate = INVALID_DATE;
-        File file = null;
-        FileWriter writer = null;
-        String name = "BLE Cardiac Monitor";
-        SimpleDateFormat formatter = new SimpleDateFormat(
-                "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
-        formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
-        try {
-            PackageManager pm = getPackageManager();
-            PackageInfo po = pm.getPackageInfo(this.getPackageName(), 0);
-            name = "BLE Cardiac Monitor" + " " + po.versionName;
-        } catch (Exception ex) {
-            name = "BLE Cardiac Monitor";
-        }
-        for (Session session : checkedSessions) {
-            startDate = session.getStartDate();
-            fileName = session.getName() + ".gpx";
-            try {
-                file = new File(mDataDir, fileName);
-                writer = new FileWriter(file);
-                out = new BufferedWriter(writer);
-                // Write the beginning lines
-                out.write(String.format(GPXUtils.GPX_FILE_START_LINES, name,
-                        formatter.format(new Date())));
-                cursor = mDbAdapter.fetchAllHrDateDataForStartDate(startDate);
-                int indexDate = cursor.getColumnIndex(COL_DATE);
-                int indexHr = cursor.getColumnIndex(COL_HR);
-                // Loop over items
-                cursor.moveToFirst();
-                String hrStr, line;
-                long dateNum = INVALID_DATE;
-                while (cursor.isAfterLast() == false) {
-                    if (indexDate > -1) {
-                        dateNum = cursor.getLong(indexDate);
-                    }
-                    hrStr = INVALID_STRING;
-                    if (indexHr > -1) {
-                        hrStr = cursor.getString(indexHr);
-                    }
-                    if (hrStr.equals(INVALID_STRING)) {
-                        continue;
-                    }
-                    line = String.format(GPXUtils.GPX_FILE_TRACK_LINES,
-                            formatter.format(new Date(dateNum)), hrStr);
-                    out.write(line);
-                    cursor.moveToNext();
-                }
-                out.write(GPXUtils.GPX_FILE_END_LINES);
-                fileNames += "  " + file.getName() + "\n";
-            } catch (Exception ex) {
-                nErrors++;
-                errMsg += "  " + session.getName();
-            } finally {
-                try {
-                    cursor.close();
-                } catch (Exception ex) {
-                    // Do nothing
-                }
-                try {
-                    out.close();
-                } catch (Exception ex) {
-                    // Do nothing
-                }
-            }
-        }
-        String msg = "Directory:\n" + mDataDir + "\n";
-        if (nErrors > 0) {
-            msg += errMsg;
-        }
-        msg += fileNames;
-        if (nErrors > 0) {
-            Utils.errMsg(this, msg);
-        } else {
-            Utils.infoMsg(this, msg);
+        if (mExportTask != null) {
+            // Don't do anything if we are already exporting
+            return;
         }
+        SharedPreferences prefs = PreferenceManager
+                .getDefaultSharedPreferences(this);
+        boolean gzip = prefs.getBoolean(PREF_GZIP_EXPORT, false);
+        mExportTask = new ExportTask(checkedSessions, format, gzip);
+        mExportTask.execute();
     }
 
     /**
@@ -525,17 +373,48 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
             return;
         }
         long startDate = INVALID_DATE;
+        int nRecording = 0;
         for (Session session : checkedSessions) {
             startDate = session.getStartDate();
+            // The service would keep adding to it
+            if (mService != null && mService.isRecordingSession(startDate)) {
+                nRecording++;
+                continue;
+            }
             mDbAdapter.deleteAllDataForStartDate(startDate);
         }
         refresh();
+        if (nRecording > 0) {
+            Utils.errMsg(this, "Did not discard " + nRecording
+                    + " session(s) that are being recorded");
+        }
     }
 
     /**
-     * Saves the database as a CSV file with a .txt extension.
+     * Saves the database in the BackupFormat, which is done in the
+     * background.
      */
     private void saveDatabase() {
+        if (mDataDir == null) {
+            Utils.errMsg(this, "Cannot determine directory for save");
+            return;
+        }
+        if (mBackupTask != null) {
+            // Don't do anything if we are already saving
+            return;
+        }
+        String format = "yyyy-MM-dd-HHmmss";
+        SimpleDateFormat df = new SimpleDateFormat(format, Locale.US);
+        String fileName = String.format(SAVE_DATABASE_BACKUP_TEMPLATE,
+                df.format(new Date()));
+        mBackupTask = new BackupTask(new File(mDataDir, fileName));
+        mBackupTask.execute();
+    }
+
+    /**
+     * Exports the database as a CSV file, which can also be restored.
+     */
+    private void exportDatabaseCsv() {
         BufferedWriter out = null;
         Cursor cursor = null;
         try {
@@ -588,7 +467,7 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
                 }
                 if (indexRr > -1) {
                     try {
-                        rr = cursor.getString(indexRr);
+                        rr = RrUtils.toString(cursor.getBlob(indexRr));
                     } catch (Exception ex) {
                         // Do nothing
                     }
@@ -631,7 +510,7 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
             return;
         }
 
-        // Find the .txt files in the data directory
+        // Find the saved and exported files in the data directory
         final File[] files = mDataDir.listFiles(new FileFilter() {
             @Override
             public boolean accept(File file) {
@@ -640,7 +519,8 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
                 }
                 String name = file.getName();
                 if (name.startsWith(SAVE_DATABASE_FILENAME_PREFIX)
-                        && name.endsWith(SAVE_DATABASE_FILENAME_SUFFIX)) {
+                        && (name.endsWith(SAVE_DATABASE_BACKUP_SUFFIX)
+                        || name.endsWith(SAVE_DATABASE_FILENAME_SUFFIX))) {
                     return true;
                 }
                 return false;
@@ -718,10 +598,59 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
             return;
         }
 
-        mRestoreTask = new RestoreTask(file);
+        // The restore recreates the tables, so the service must not be
+        // writing to them
+        boolean restartDatabase = false;
+        if (mService != null) {
+            if (mService.isRecording()) {
+                Utils.errMsg(this, "Cannot restore while recording. "
+                        + "Disconnect all devices first.");
+                return;
+            }
+            restartDatabase = mService.isDatabaseStarted();
+            mService.stopDatabase();
+        }
+
+        mRestoreTask = new RestoreTask(file, restartDatabase);
         mRestoreTask.execute();
     }
 
+    /**
+     * Runs the database benchmark in a scratch database in the data
+     * directory. The real database is not used.
+     */
+    private void benchmarkDatabase() {
+        if (mDataDir == null) {
+            Utils.errMsg(this, "Cannot determine directory for benchmark");
+            return;
+        }
+        if (mBenchmarkTask != null) {
+            // Don't do anything if we are already running
+            return;
+        }
+        mBenchmarkTask = new BenchmarkTask();
+        mBenchmarkTask.execute();
+    }
+
+    /**
+     * Shows the frequency-domain HRV of the selected sessions, which is
+     * computed in the background.
+     */
+    private void analyzeSpectralHrv() {
+        ArrayList<Session> checkedSessions = mSessionListAdapter
+                .getCheckedSessions();
+        if (checkedSessions == null || checkedSessions.size() == 0) {
+            Utils.errMsg(this, "There are no sessions to analyze");
+            return;
+        }
+        if (mSpectralTask != null) {
+            // Don't do anything if we are already analyzing
+            return;
+        }
+        mSpectralTask = new SpectralTask(checkedSessions);
+        mSpectralTask.execute();
+    }
+
     /**
      * Refreshes the sessions by recreating the list adapter.
      */
@@ -732,19 +661,17 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
     }
 
     /**
-     * Class to handle getting the bitmap from the web using a progress bar that
-     * can be cancelled.<br>
-     * <br>
-     * Call with <b>Bitmap bitmap = new MyUpdateTask().execute(String)<b>
+     * Class to save the database using a progress dialog that can be
+     * cancelled. The work is done by a BackupWriter.
      */
-    private class RestoreTask extends AsyncTask<Void, Void, Boolean> {
+    private class BackupTask extends AsyncTask<Void, String, Boolean> {
         private ProgressDialog dialog;
         private File file;
-        private int mErrors;
-        private int mLineNumber;
+        private volatile BackupWriter mWriter;
+        private volatile boolean mCancelRequested;
         private String mExceptionMsg;
 
-        public RestoreTask(File file) {
+        public BackupTask(File file) {
             super();
             this.file = file;
         }
@@ -753,119 +680,572 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
         protected void onPreExecute() {
             dialog = new ProgressDialog(SessionManagerActivity.this);
             dialog.setMessage(getString(R.string
-                    .restoring_database_progress_text));
-            dialog.setCancelable(false);
+                    .saving_database_progress_text));
+            dialog.setCancelable(true);
             dialog.setIndeterminate(true);
+            dialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+                @Override
+                public void onCancel(DialogInterface dialog) {
+                    mCancelRequested = true;
+                    if (mWriter != null) {
+                        mWriter.cancel();
+                    }
+                }
+            });
             dialog.show();
         }
 
         @Override
         protected Boolean doInBackground(Void... dummy) {
-            Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-            BufferedReader in = null;
+            mWriter = new BackupWriter(mDbAdapter, file,
+                    new BackupWriter.ProgressListener() {
+                        @Override
+                        public void onProgress(long nRows, double fraction) {
+                            publishProgress(String.format(Locale.US,
+                                    "Saving %,d rows (%.0f%%)", nRows,
+                                    100 * fraction));
+                        }
+                    });
+            if (mCancelRequested) {
+                // Cancelled before the writer was created
+                mWriter.cancel();
+            }
             try {
-                // Delete all the data and recreate the table
-                mDbAdapter.recreateDataTable();
-
-                // Read the file and get the data to restore
-                in = new BufferedReader(new FileReader(file));
-                String rr;
-                long dateNum, startDateNum;
-                int hr;
-                String[] tokens = null;
-                String line = null;
-                while ((line = in.readLine()) != null) {
-                    dateNum = startDateNum = INVALID_DATE;
-                    hr = INVALID_INT;
-                    rr = " ";
-                    mLineNumber++;
-                    tokens = line.trim().split(SAVE_DATABASE_DELIM);
-                    // Skip blank lines
-                    if (line.trim().length() == 0) {
-                        continue;
-                    }
-                    // Skip lines starting with #
-                    if (tokens[0].trim().startsWith("#")) {
-                        continue;
-                    }
-                    hr = 0;
-                    rr = "";
-                    if (tokens.length < 4) {
-                        // Utils.errMsg(this, "Found " + tokens.length
-                        // + " tokens for line " + lineNum
-                        // + "\nShould be 5 or more tokens");
-                        mErrors++;
-                        Log.d(TAG, "tokens.length=" + tokens.length
-                                + " @ line " + mLineNumber);
-                        Log.d(TAG, line);
-                        continue;
+                mWriter.run();
+            } catch (Exception ex) {
+                mExceptionMsg = "Got Exception saving the database\n"
+                        + ex.getMessage();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        protected void onProgressUpdate(String... msg) {
+            if (dialog != null) {
+                dialog.setMessage(msg[0]);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean result) {
+            Log.d(TAG, this.getClass().getSimpleName()
+                    + ": onPostExecute: result=" + result);
+            if (dialog != null) {
+                dialog.dismiss();
+            }
+            mBackupTask = null;
+            BackupWriter writer = mWriter;
+            if (mExceptionMsg != null) {
+                Utils.errMsg(SessionManagerActivity.this, mExceptionMsg);
+            } else if (writer.isCancelled()) {
+                Utils.infoMsg(SessionManagerActivity.this,
+                        "Cancelled. Nothing was saved.");
+            } else {
+                Utils.infoMsg(SessionManagerActivity.this, String.format(
+                        Locale.US, "Saved %,d rows in %.1f sec (%,d KB)\n%s",
+                        writer.getNRows(), writer.getElapsed() / 1000.,
+                        (file.length() + 1023) / 1024, file.getPath()));
+            }
+        }
+    }
+
+    /**
+     * Class to restore the database using a progress dialog that can be
+     * cancelled. The work is done by a BackupRestorer or, for CSV files, a
+     * CsvRestorer.
+     */
+    private class RestoreTask extends AsyncTask<Void, String, Boolean> {
+        private ProgressDialog dialog;
+        private File file;
+        private boolean mRestartDatabase;
+        private volatile DatabaseRestorer mRestorer;
+        private volatile boolean mCancelRequested;
+        private String mExceptionMsg;
+
+        /**
+         * Constructor.
+         *
+         * @param file            The file to restore.
+         * @param restartDatabase Whether to start the service's database
+         *                        when done.
+         */
+        public RestoreTask(File file, boolean restartDatabase) {
+            super();
+            this.file = file;
+            mRestartDatabase = restartDatabase;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            dialog = new ProgressDialog(SessionManagerActivity.this);
+            dialog.setMessage(getString(R.string
+                    .restoring_database_progress_text));
+            dialog.setCancelable(true);
+            dialog.setIndeterminate(true);
+            dialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+                @Override
+                public void onCancel(DialogInterface dialog) {
+                    mCancelRequested = true;
+                    if (mRestorer != null) {
+                        mRestorer.cancel();
                     }
-                    try {
-                        dateNum = Long.parseLong(tokens[0]);
-                    } catch (Exception ex) {
-                        Log.d(TAG, "Long.parseLong failed for dateNum @ line "
-                                + mLineNumber);
+                }
+            });
+            dialog.show();
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... dummy) {
+            DatabaseRestorer.ProgressListener listener = new
+                    DatabaseRestorer.ProgressListener() {
+                        @Override
+                        public void onProgress(long nRows, double fraction,
+                                               double rowsPerSec, long etaMs) {
+                            String msg = String.format(Locale.US,
+                                    "Restoring %,d rows (%.0f%%)\n"
+                                            + "%,.0f rows/sec", nRows,
+                                    100 * fraction, rowsPerSec);
+                            if (etaMs >= 0) {
+                                long etaSec = (etaMs + 999) / 1000;
+                                msg += String.format(Locale.US,
+                                        "\n%d:%02d remaining", etaSec / 60,
+                                        etaSec % 60);
+                            }
+                            publishProgress(msg);
+                        }
+
+                        @Override
+                        public void onIndexing() {
+                            publishProgress("Indexing...");
+                        }
+                    };
+            if (file.getName().endsWith(SAVE_DATABASE_FILENAME_SUFFIX)) {
+                mRestorer = new CsvRestorer(mDbAdapter, file, listener);
+            } else {
+                mRestorer = new BackupRestorer(mDbAdapter, file, listener);
+            }
+            if (mCancelRequested) {
+                // Cancelled before the restorer was created
+                mRestorer.cancel();
+            }
+            try {
+                mRestorer.run();
+            } catch (Exception ex) {
+                mExceptionMsg = "Got Exception restoring at "
+                        + mRestorer.getPosition() + "\n" + ex.getMessage();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        protected void onProgressUpdate(String... msg) {
+            if (dialog != null) {
+                dialog.setMessage(msg[0]);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean result) {
+            Log.d(TAG, this.getClass().getSimpleName()
+                    + ": onPostExecute: result=" + result);
+            if (dialog != null) {
+                dialog.dismiss();
+            }
+            mRestoreTask = null;
+            if (mRestartDatabase && mService != null) {
+                mService.startDatabase();
+            }
+            DatabaseRestorer restorer = mRestorer;
+            String info = String.format(Locale.US,
+                    "Restored %,d rows in %.1f sec\n%s",
+                    restorer.getNRows(), restorer.getElapsed() / 1000.,
+                    file.getPath());
+            if (restorer.getNErrors() > 0) {
+                info += "\nGot " + restorer.getNErrors() + " errors";
+            }
+            if (restorer.isCancelled()) {
+                info += "\nCancelled. Only the rows restored so far are in "
+                        + "the database.";
+            }
+            if (mExceptionMsg != null) {
+                info += "\n" + mExceptionMsg;
+            }
+            if (mExceptionMsg != null || restorer.getNErrors() > 0) {
+                Utils.errMsg(SessionManagerActivity.this, info);
+            } else {
+                Utils.infoMsg(SessionManagerActivity.this, info);
+            }
+            refresh();
+        }
+    }
+
+    /**
+     * Gets the name of the program with its version for use as the creator
+     * in exported files.
+     *
+     * @return The name.
+     */
+    private String getCreatorName() {
+        String name = "BLE Cardiac Monitor";
+        try {
+            PackageManager pm = getPackageManager();
+            PackageInfo po = pm.getPackageInfo(this.getPackageName(), 0);
+            name += " " + po.versionName;
+        } catch (Exception ex) {
+            // Do nothing
+        }
+        return name;
+    }
+
+    /**
+     * Class to export sessions as CSV, GPX, or TCX files using a progress
+     * dialog. The work is done by a SessionExporter.
+     */
+    private class ExportTask extends AsyncTask<Void, Integer, Void> {
+        private ProgressDialog dialog;
+        private final List<Session> sessions;
+        private final File combinedFile;
+        private final SessionExporter.Format format;
+        private final boolean gzip;
+        private List<SessionExporter.Result> mResults;
+        private String mExceptionMsg;
+
+        /**
+         * Constructor for CSV files.
+         *
+         * @param sessions     The sessions.
+         * @param combinedFile The file for a combined save or null to save
+         *                     each session to its own file.
+         */
+        public ExportTask(List<Session> sessions, File combinedFile) {
+            super();
+            this.sessions = sessions;
+            this.combinedFile = combinedFile;
+            this.format = SessionExporter.Format.CSV;
+            this.gzip = false;
+        }
+
+        /**
+         * Constructor for saving each session to its own file.
+         *
+         * @param sessions The sessions.
+         * @param format   The format.
+         * @param gzip     Whether to compress the files.
+         */
+        public ExportTask(List<Session> sessions,
+                          SessionExporter.Format format, boolean gzip) {
+            super();
+            this.sessions = sessions;
+            this.combinedFile = null;
+            this.format = format;
+            this.gzip = gzip;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            dialog = new ProgressDialog(SessionManagerActivity.this);
+            dialog.setMessage(getString(R.string
+                    .exporting_sessions_progress_text));
+            dialog.setCancelable(false);
+            dialog.setIndeterminate(true);
+            dialog.show();
+        }
+
+        @Override
+        protected Void doInBackground(Void... dummy) {
+            SessionExporter exporter = new SessionExporter(mDbAdapter,
+                    new SessionExporter.ProgressListener() {
+                        @Override
+                        public void onProgress(int nDone, int nTotal) {
+                            publishProgress(nDone, nTotal);
+                        }
+                    }, format, gzip, getCreatorName());
+            if (combinedFile != null) {
+                try {
+                    mResults = exporter.exportCombined(sessions,
+                            combinedFile);
+                } catch (Exception ex) {
+                    mExceptionMsg = ex.getMessage();
+                }
+            } else {
+                List<File> files = new ArrayList<File>(sessions.size());
+                for (Session session : sessions) {
+                    files.add(new File(mDataDir, session.getName()
+                            + format.getExtension(gzip)));
+                }
+                mResults = exporter.exportSessions(sessions, files);
+            }
+            return null;
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... progress) {
+            if (dialog != null) {
+                dialog.setMessage("Exported " + progress[0] + " of "
+                        + progress[1] + " sessions");
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            if (dialog != null) {
+                dialog.dismiss();
+            }
+            mExportTask = null;
+            int nErrors = 0;
+            String errMsg = combinedFile != null ? "Error saving combined "
+                    + "sessions:\n" : "Error saving sessions:\n";
+            String fileNames = "Saved to:\n";
+            if (mResults != null) {
+                for (SessionExporter.Result res : mResults) {
+                    if (res.exception != null) {
+                        nErrors++;
+                        errMsg += "  " + res.session.getName() + "\n";
+                    } else if (combinedFile == null) {
+                        fileNames += "  " + res.file.getName() + "\n";
                     }
-                    try {
-                        startDateNum = Long.parseLong(tokens[1]);
-                    } catch (Exception ex) {
-                        Log.d(TAG,
-                                "Long.parseLong failed for startDateNum @ line "
-                                        + mLineNumber);
+                }
+            }
+            if (mExceptionMsg != null) {
+                nErrors++;
+                errMsg += "  Writing combined file: " + mExceptionMsg + "\n";
+            } else if (combinedFile != null) {
+                fileNames += "  " + combinedFile.getName() + "\n";
+            }
+            String msg = "Directory:\n" + mDataDir + "\n";
+            if (nErrors > 0) {
+                msg += errMsg;
+            }
+            msg += fileNames;
+            if (nErrors > 0) {
+                Utils.errMsg(SessionManagerActivity.this, msg);
+            } else {
+                Utils.infoMsg(SessionManagerActivity.this, msg);
+            }
+        }
+    }
+
+    /**
+     * Class to compute the spectral HRV of sessions using a progress dialog.
+     * The beats are read from the database and fed to a SpectralHrv one
+     * session at a time.
+     */
+    private class SpectralTask extends AsyncTask<Void, Integer, String> {
+        private ProgressDialog dialog;
+        private final List<Session> sessions;
+
+        /**
+         * Constructor.
+         *
+         * @param sessions The sessions.
+         */
+        public SpectralTask(List<Session> sessions) {
+            super();
+            this.sessions = sessions;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            dialog = new ProgressDialog(SessionManagerActivity.this);
+            dialog.setMessage(getString(R.string
+                    .spectral_hrv_progress_text));
+            dialog.setCancelable(false);
+            dialog.setIndeterminate(true);
+            dialog.show();
+        }
+
+        @Override
+        protected String doInBackground(Void... dummy) {
+            SpectralHrv spectral = new SpectralHrv();
+            RrFilter filter;
+            StringBuilder sb = new StringBuilder();
+            int nDone = 0;
+            for (Session session : sessions) {
+                if (nDone > 0) {
+                    sb.append('\n');
+                }
+                sb.append(session.getName()).append('\n');
+                spectral.reset();
+                filter = new RrFilter();
+                try {
+                    analyze(session, spectral, filter);
+                } catch (Exception ex) {
+                    Log.e(TAG, "Error analyzing " + session.getName(), ex);
+                    sb.append("  Error: ").append(ex.getMessage())
+                            .append('\n');
+                    continue;
+                } finally {
+                    publishProgress(++nDone, sessions.size());
+                }
+                appendResult(sb, spectral, filter);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Feeds the beats of a session to a SpectralHrv. A beat that follows
+         * a gap ends the current run.
+         *
+         * @param session  The session.
+         * @param spectral The SpectralHrv.
+         * @param filter   The RrFilter for rejecting artifacts.
+         */
+        private void analyze(Session session, SpectralHrv spectral,
+                             RrFilter filter) {
+            Cursor cursor = null;
+            try {
+                cursor = mDbAdapter.fetchAllBeatsForStartDate(session
+                        .getStartDate());
+                int indexRr = cursor.getColumnIndexOrThrow(COL_RR);
+                int indexFlags = cursor.getColumnIndexOrThrow(COL_FLAGS);
+                int rr;
+                while (cursor.moveToNext()) {
+                    if ((cursor.getInt(indexFlags)
+                            & BeatTimeline.FLAG_GAP) != 0) {
+                        spectral.addGap();
+                        filter.reset();
                     }
-                    try {
-                        hr = Integer.parseInt(tokens[2]);
-                    } catch (Exception ex) {
-                        Log.d(TAG, "Integer.parseInt failed for hr @ line "
-                                + mLineNumber);
+                    rr = cursor.getInt(indexRr);
+                    if (filter.accept(rr)) {
+                        spectral.add(rr);
+                    } else {
+                        spectral.skip(rr);
                     }
-                    rr = tokens[3].trim();
-                    // Write the row
-                    long id = mDbAdapter.createData(dateNum, startDateNum, hr,
-                            rr);
-                    if (id < 0) {
-                        mErrors++;
+                }
+                spectral.addGap();
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        /**
+         * Appends the result for a session.
+         *
+         * @param sb       The StringBuilder.
+         * @param spectral The SpectralHrv with the session analyzed.
+         * @param filter   The RrFilter used for the session.
+         */
+        private void appendResult(StringBuilder sb, SpectralHrv spectral,
+                                  RrFilter filter) {
+            sb.append("  R-R values: ").append(filter.getNAccepted())
+                    .append(" (").append(filter.getNRejected())
+                    .append(" rejected)\n");
+            if (spectral.getSegmentCount() == 0) {
+                sb.append("  Not enough R-R values without gaps\n");
+                return;
+            }
+            sb.append("  Segments: ").append(spectral.getSegmentCount())
+                    .append('\n');
+            sb.append(String.format(Locale.US,
+                    "  VLF: %.0f ms2\n  LF: %.0f ms2 (%.1f nu)\n"
+                            + "  HF: %.0f ms2 (%.1f nu)\n  LF/HF: %.2f\n"
+                            + "  Total: %.0f ms2\n",
+                    spectral.getVlf(), spectral.getLf(), spectral.getLfNu(),
+                    spectral.getHf(), spectral.getHfNu(), spectral.getLfHf(),
+                    spectral.getTotal()));
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... progress) {
+            if (dialog != null) {
+                dialog.setMessage("Analyzed " + progress[0] + " of "
+                        + progress[1] + " sessions");
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String result) {
+            if (dialog != null) {
+                dialog.dismiss();
+            }
+            mSpectralTask = null;
+            Utils.infoMsg(SessionManagerActivity.this, result);
+        }
+    }
+
+    /**
+     * Class to run the database benchmark using a progress dialog that can be
+     * cancelled.
+     */
+    private class BenchmarkTask extends AsyncTask<Void, String, String> {
+        private ProgressDialog dialog;
+        private volatile DbBenchmark benchmark;
+        private volatile boolean cancelRequested;
+
+        @Override
+        protected void onPreExecute() {
+            dialog = new ProgressDialog(SessionManagerActivity.this);
+            dialog.setMessage(getString(R.string
+                    .benchmark_database_progress_text));
+            dialog.setCancelable(true);
+            dialog.setIndeterminate(true);
+            dialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+                @Override
+                public void onCancel(DialogInterface dialog) {
+                    cancelRequested = true;
+                    if (benchmark != null) {
+                        benchmark.cancel();
                     }
                 }
+            });
+            dialog.show();
+        }
+
+        @Override
+        protected String doInBackground(Void... dummy) {
+            File file = new File(mDataDir, DB_BENCHMARK_NAME);
+            BCMDbAdapter adapter = new BCMDbAdapter(
+                    SessionManagerActivity.this, mDataDir, DB_BENCHMARK_NAME);
+            try {
+                if (adapter.open() == null) {
+                    return "Could not open the benchmark database";
+                }
+                benchmark = new DbBenchmark(adapter,
+                        new DbBenchmark.ProgressListener() {
+                            @Override
+                            public void onProgress(String msg) {
+                                publishProgress(msg);
+                            }
+                        });
+                if (cancelRequested) {
+                    // Cancelled before the benchmark was created
+                    benchmark.cancel();
+                }
+                return benchmark.run(DbBenchmark.DEFAULT_SIZES,
+                        DbBenchmark.DEFAULT_REPEATS);
             } catch (Exception ex) {
-                mExceptionMsg = "Got Exception restoring at line "
-                        + mLineNumber + "\n" + ex.getMessage();
+                return "Error running benchmark\n" + ex.getMessage();
             } finally {
                 try {
-                    if (in != null) {
-                        in.close();
-                    }
+                    adapter.close();
                 } catch (Exception ex) {
                     // Do nothing
                 }
+                if (!file.delete()) {
+                    Log.d(TAG, "Could not delete " + file.getPath());
+                }
+                new File(file.getPath() + "-journal").delete();
             }
-            return true;
         }
 
         @Override
-        protected void onPostExecute(Boolean result) {
-            if (mExceptionMsg != null) {
-
+        protected void onProgressUpdate(String... msg) {
+            if (dialog != null) {
+                dialog.setMessage(msg[0]);
             }
-            Log.d(TAG, this.getClass().getSimpleName()
-                    + ": onPostExecute: result=" + result);
+        }
+
+        @Override
+        protected void onPostExecute(String result) {
             if (dialog != null) {
                 dialog.dismiss();
             }
-            mRestoreTask = null;
-            String info;
-            if (mErrors == 0) {
-                info = "Restored " + mLineNumber + " lines from "
-                        + file.getPath();
-            } else {
-                info = "Got " + mErrors + " errors processing " + mLineNumber
-                        + " lines from " + file.getPath();
-                if (mExceptionMsg != null) {
-                    info += "\n" + mExceptionMsg;
-                }
-            }
-            Utils.infoMsg(SessionManagerActivity.this, info);
-            refresh();
+            mBenchmarkTask = null;
+            Utils.infoMsg(SessionManagerActivity.this, result);
         }
     }
 
@@ -909,7 +1289,7 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
             int nItems = 0;
             try {
                 if (mDbAdapter != null) {
-                    cursor = mDbAdapter.fetchAllSessionStartEndData();
+                    cursor = mDbAdapter.fetchAllSessionSummaryData();
                     // // DEBUG
                     // Log.d(TAG,
                     // this.getClass().getSimpleName()
@@ -925,6 +1305,13 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
                             .getColumnIndexOrThrow(COL_START_DATE);
                     int indexEndDate = cursor
                             .getColumnIndexOrThrow(COL_END_DATE);
+                    int indexNSamples = cursor
+                            .getColumnIndexOrThrow(COL_N_SAMPLES);
+                    int indexNHr = cursor.getColumnIndexOrThrow(COL_N_HR);
+                    int indexHrMin = cursor.getColumnIndexOrThrow(COL_HR_MIN);
+                    int indexHrMax = cursor.getColumnIndexOrThrow(COL_HR_MAX);
+                    int indexHrSum = cursor.getColumnIndexOrThrow(COL_HR_SUM);
+                    int indexNRr = cursor.getColumnIndexOrThrow(COL_N_RR);
                     // int indexTmp = cursor.getColumnIndexOrThrow(COL_TMP);
 
                     // Loop over items
@@ -932,6 +1319,8 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
                     long startDate = INVALID_DATE;
                     long endDate = INVALID_DATE;
                     String name;
+                    Session session;
+                    int nHr;
                     while (cursor.isAfterLast() == false) {
                         nItems++;
                         startDate = cursor.getLong(indexStartDate);
@@ -955,7 +1344,17 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
                         // name = "Temporary Session ";
                         // }
                         name = sessionNameFromDate(startDate);
-                        addSession(new Session(name, startDate, endDate));
+                        session = new Session(name, startDate, endDate);
+                        session.setNSamples(cursor.getInt(indexNSamples));
+                        session.setNRr(cursor.getInt(indexNRr));
+                        nHr = cursor.getInt(indexNHr);
+                        if (nHr > 0) {
+                            session.setHrMin(cursor.getInt(indexHrMin));
+                            session.setHrMax(cursor.getInt(indexHrMax));
+                            session.setHrAvg((int) Math.round(cursor
+                                    .getDouble(indexHrSum) / nHr));
+                        }
+                        addSession(session);
                         cursor.moveToNext();
                     }
                 }
@@ -1065,6 +1464,11 @@ public class SessionManagerActivity extends ListActivity implements IConstants {
                     durString += durationMin + " min ";
                 }
                 durString += durationSec + " sec";
+                if (session.getHrAvg() != INVALID_INT) {
+                    startStr += "  HR " + session.getHrMin() + "-"
+                            + session.getHrMax() + " avg "
+                            + session.getHrAvg();
+                }
                 viewHolder.sessionStart.setText(startStr);
                 viewHolder.sessionDuration.setText(durString);
             } else {
@@ -0,0 +1,518 @@
+package net.kenevans.android.blecardiacmonitor;
+
+/**
+ * Frequency-domain heart rate variability. The power in the VLF, LF, and HF
+ * bands is estimated from a series of R-R intervals by Welch's method.
+ * <p/>
+ * The beats are placed in time by adding up the intervals, so the series is
+ * not tied to the dates of the notifications, and it is resampled at
+ * SPECTRAL_RATE by cubic Hermite interpolation, with the slope at each beat
+ * taken from its neighbors. Linear interpolation would attenuate the HF band
+ * noticeably at low heart rates. The last interval of a run is dropped,
+ * since there is no slope at its end. The time is kept in the sensor's
+ * units of 1/1024 sec, in which the resampling interval is exact. The
+ * resampled series is cut into segments of SPECTRAL_SEGMENT that overlap by
+ * half. Each one has its linear trend removed and a Hann window applied, and
+ * its periodogram is found by a radix-2 FFT. The band powers are integrated
+ * from each periodogram and averaged over the segments.
+ * <p/>
+ * Intervals are fed one at a time and only the current segment is held, so
+ * a series of any length is analyzed in constant memory. All the arrays,
+ * including the FFT tables, are allocated by the constructor, and nothing is
+ * allocated while analyzing.
+ * <p/>
+ * Rejected intervals are skipped, and the series is interpolated across
+ * them, as long as they take no more than SPECTRAL_MAX_SKIP. Longer runs of
+ * them and gaps end the current run of the series. No segment spans a gap.
+ * A run that is too short to give a segment is analyzed as a shorter segment
+ * if it is at least SPECTRAL_MIN_SEGMENT.
+ * <p/>
+ * Must only be used from one thread.
+ */
+public class SpectralHrv implements IConstants {
+    /**
+     * Index of the LF power in the packed values.
+     */
+    public static final int METRIC_LF = 0;
+    /**
+     * Index of the HF power in the packed values.
+     */
+    public static final int METRIC_HF = 1;
+    /**
+     * Index of the LF/HF ratio in the packed values.
+     */
+    public static final int METRIC_LF_HF = 2;
+    /**
+     * Number of packed values.
+     */
+    public static final int N_METRICS = 3;
+    /**
+     * Packed value for a metric that is not available.
+     */
+    private static final int PACKED_NAN = 0xFFFF;
+    /**
+     * Scale of each packed metric, which is ms^2, ms^2, and 100 * ratio.
+     */
+    private static final double[] PACK_SCALE = {1, 1, 100};
+    /**
+     * The resampling interval in units of 1/1024 sec.
+     */
+    private static final int STEP = 1024 / SPECTRAL_RATE;
+
+    private final int mSegmentLength;
+    private final int mMinSegmentLength;
+    private final int mMaxSkip;
+    /**
+     * The number of points in the FFT, a power of 2 at least the segment
+     * length.
+     */
+    private final int mN;
+    private final double[] mCos;
+    private final double[] mSin;
+    private final int[] mReverse;
+    private final double[] mWindow;
+    private final double[] mRe;
+    private final double[] mIm;
+    /**
+     * The first FFT bin of each band and the bin after the last.
+     */
+    private final int mVlfStart;
+    private final int mLfStart;
+    private final int mHfStart;
+    private final int mHfEnd;
+
+    // The current run
+    private final double[] mSegment;
+    private int mNSegment;
+    private int mNRunSegments;
+    /**
+     * The number of beats held for the interpolation, up to 3.
+     */
+    private int mNBeatsHeld;
+    private long mTime;
+    // The beat before the interval being interpolated and its ends
+    private long mTimeA;
+    private double mValueA;
+    private long mTimeB;
+    private double mValueB;
+    private long mTimeC;
+    private double mValueC;
+    private long mNextTime;
+    private int mSkipped;
+
+    // The sums over the segments
+    private int mNSegments;
+    private double mVlfSum;
+    private double mLfSum;
+    private double mHfSum;
+    private double mTotalSum;
+    private long mNBeats;
+
+    /**
+     * Constructor.
+     */
+    public SpectralHrv() {
+        mSegmentLength = (int) (SPECTRAL_SEGMENT * SPECTRAL_RATE / 1000);
+        mMinSegmentLength = (int) (SPECTRAL_MIN_SEGMENT * SPECTRAL_RATE
+                / 1000);
+        mMaxSkip = (int) (SPECTRAL_MAX_SKIP * 1024 / 1000);
+        int n = 2;
+        while (n < mSegmentLength) {
+            n <<= 1;
+        }
+        mN = n;
+        int bits = Integer.numberOfTrailingZeros(n);
+        mCos = new double[n / 2];
+        mSin = new double[n / 2];
+        for (int i = 0; i < n / 2; i++) {
+            mCos[i] = Math.cos(2 * Math.PI * i / n);
+            mSin[i] = Math.sin(2 * Math.PI * i / n);
+        }
+        mReverse = new int[n];
+        for (int i = 0; i < n; i++) {
+            mReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+        mWindow = new double[mSegmentLength];
+        hann(mWindow, mSegmentLength);
+        mRe = new double[n];
+        mIm = new double[n];
+        mSegment = new double[mSegmentLength];
+        double df = (double) SPECTRAL_RATE / n;
+        mVlfStart = (int) Math.ceil(SPECTRAL_VLF_MIN / df);
+        mLfStart = (int) Math.ceil(SPECTRAL_LF_MIN / df);
+        mHfStart = (int) Math.ceil(SPECTRAL_HF_MIN / df);
+        mHfEnd = (int) Math.ceil(SPECTRAL_HF_MAX / df);
+    }
+
+    /**
+     * Fills an array with a Hann window.
+     *
+     * @param window The array.
+     * @param length The length of the window.
+     */
+    private static void hann(double[] window, int length) {
+        for (int i = 0; i < length; i++) {
+            window[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (length - 1));
+        }
+    }
+
+    /**
+     * Removes everything, to start a new analysis.
+     */
+    public void reset() {
+        mNSegment = 0;
+        mNRunSegments = 0;
+        mNBeatsHeld = 0;
+        mSkipped = 0;
+        mNSegments = 0;
+        mVlfSum = 0;
+        mLfSum = 0;
+        mHfSum = 0;
+        mTotalSum = 0;
+        mNBeats = 0;
+    }
+
+    /**
+     * Adds an accepted interval.
+     *
+     * @param rr The interval in units of 1/1024 sec.
+     */
+    public void add(int rr) {
+        mNBeats++;
+        long time = mTime + rr;
+        double value = rr / 1.024;
+        mTime = time;
+        mSkipped = 0;
+        switch (mNBeatsHeld) {
+            case 0:
+                // Start a run here
+                mTimeB = time;
+                mValueB = value;
+                mNextTime = time;
+                mNBeatsHeld = 1;
+                return;
+            case 1:
+                mTimeC = time;
+                mValueC = value;
+                mNBeatsHeld = 2;
+                return;
+        }
+        // Interpolate from B to C, now that the slope at C is known
+        double h = mTimeC - mTimeB;
+        double slopeB = mNBeatsHeld == 2 ? (mValueC - mValueB) / h
+                : (mValueC - mValueA) / (mTimeC - mTimeA);
+        double slopeC = (value - mValueB) / (time - mTimeB);
+        double x, x2, x3;
+        while (mNextTime < mTimeC) {
+            x = (mNextTime - mTimeB) / h;
+            x2 = x * x;
+            x3 = x2 * x;
+            addPoint((2 * x3 - 3 * x2 + 1) * mValueB
+                    + (x3 - 2 * x2 + x) * h * slopeB
+                    + (3 * x2 - 2 * x3) * mValueC
+                    + (x3 - x2) * h * slopeC);
+            mNextTime += STEP;
+        }
+        mTimeA = mTimeB;
+        mValueA = mValueB;
+        mTimeB = mTimeC;
+        mValueB = mValueC;
+        mTimeC = time;
+        mValueC = value;
+        mNBeatsHeld = 3;
+    }
+
+    /**
+     * Skips a rejected interval. Its time is kept, and the series is
+     * interpolated across it.
+     *
+     * @param rr The interval in units of 1/1024 sec.
+     */
+    public void skip(int rr) {
+        if (mNBeatsHeld == 0) {
+            return;
+        }
+        mSkipped += rr;
+        mTime += rr;
+        if (mSkipped > mMaxSkip) {
+            addGap();
+        }
+    }
+
+    /**
+     * Ends the current run, for example when the connection was lost.
+     */
+    public void addGap() {
+        if (mNRunSegments == 0 && mNSegment >= mMinSegmentLength) {
+            addSegment(mSegment, mNSegment);
+        }
+        mNSegment = 0;
+        mNRunSegments = 0;
+        mNBeatsHeld = 0;
+        mSkipped = 0;
+    }
+
+    /**
+     * Adds beats in the form given by HrvCalculator.copyBeats and ends the
+     * run.
+     *
+     * @param rr     The intervals in units of 1/1024 sec.
+     * @param before The time taken by rejected intervals before each beat or
+     *               HrvCalculator.BEFORE_GAP.
+     * @param count  The number of beats.
+     */
+    public void addBeats(int[] rr, int[] before, int count) {
+        for (int i = 0; i < count; i++) {
+            if (before[i] == HrvCalculator.BEFORE_GAP) {
+                addGap();
+            } else if (before[i] > 0) {
+                skip(before[i]);
+            }
+            add(rr[i]);
+        }
+        addGap();
+    }
+
+    /**
+     * Adds a point of the resampled series, analyzing the segment when it is
+     * full and keeping the second half of it for the next one.
+     *
+     * @param value The value in ms.
+     */
+    private void addPoint(double value) {
+        mSegment[mNSegment++] = value;
+        if (mNSegment == mSegmentLength) {
+            addSegment(mSegment, mSegmentLength);
+            mNRunSegments++;
+            int half = mSegmentLength / 2;
+            System.arraycopy(mSegment, half, mSegment, 0,
+                    mSegmentLength - half);
+            mNSegment = mSegmentLength - half;
+        }
+    }
+
+    /**
+     * Finds the periodogram of a segment and adds its band powers to the
+     * sums.
+     *
+     * @param x      The resampled series in ms.
+     * @param length The number of points.
+     */
+    private void addSegment(double[] x, int length) {
+        // Least-squares line through the points, with i centered
+        double mid = (length - 1) / 2.0;
+        double sum = 0, sumXi = 0, sumIi = 0, di;
+        for (int i = 0; i < length; i++) {
+            di = i - mid;
+            sum += x[i];
+            sumXi += x[i] * di;
+            sumIi += di * di;
+        }
+        double mean = sum / length;
+        double slope = sumIi == 0 ? 0 : sumXi / sumIi;
+
+        double[] re = mRe;
+        double[] im = mIm;
+        double[] window = mWindow;
+        boolean full = length == mSegmentLength;
+        double w, u = 0;
+        for (int i = 0; i < length; i++) {
+            w = full ? window[i] : 0.5 - 0.5 * Math.cos(2 * Math.PI * i
+                    / (length - 1));
+            re[i] = (x[i] - mean - slope * (i - mid)) * w;
+            u += w * w;
+        }
+        for (int i = length; i < mN; i++) {
+            re[i] = 0;
+        }
+        for (int i = 0; i < mN; i++) {
+            im[i] = 0;
+        }
+        fft(re, im);
+
+        // One-sided power in ms^2 of each bin, which is the density times
+        // the bin width of SPECTRAL_RATE / N
+        double scale = 2 / (u * mN);
+        double vlf = 0, lf = 0, hf = 0, p;
+        for (int k = mVlfStart; k < mHfEnd && k < mN / 2; k++) {
+            p = (re[k] * re[k] + im[k] * im[k]) * scale;
+            if (k < mLfStart) {
+                vlf += p;
+            } else if (k < mHfStart) {
+                lf += p;
+            } else {
+                hf += p;
+            }
+        }
+        mVlfSum += vlf;
+        mLfSum += lf;
+        mHfSum += hf;
+        mTotalSum += vlf + lf + hf;
+        mNSegments++;
+    }
+
+    /**
+     * In-place iterative radix-2 FFT using the preallocated tables.
+     *
+     * @param re The real parts, of length N.
+     * @param im The imaginary parts, of length N.
+     */
+    private void fft(double[] re, double[] im) {
+        int n = mN;
+        int j;
+        double t;
+        for (int i = 0; i < n; i++) {
+            j = mReverse[i];
+            if (j > i) {
+                t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        double[] cos = mCos;
+        double[] sin = mSin;
+        int half, step, a, b;
+        double c, s, tr, ti;
+        for (int size = 2; size <= n; size <<= 1) {
+            half = size >> 1;
+            step = n / size;
+            for (int start = 0; start < n; start += size) {
+                for (int k = 0; k < half; k++) {
+                    c = cos[k * step];
+                    s = sin[k * step];
+                    a = start + k;
+                    b = a + half;
+                    tr = re[b] * c + im[b] * s;
+                    ti = im[b] * c - re[b] * s;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of segments analyzed.
+     */
+    public int getSegmentCount() {
+        return mNSegments;
+    }
+
+    /**
+     * @return The number of intervals added.
+     */
+    public long getBeatCount() {
+        return mNBeats;
+    }
+
+    /**
+     * @return The VLF power in ms^2 or NaN if no segments were analyzed.
+     */
+    public double getVlf() {
+        return average(mVlfSum);
+    }
+
+    /**
+     * @return The LF power in ms^2 or NaN if no segments were analyzed.
+     */
+    public double getLf() {
+        return average(mLfSum);
+    }
+
+    /**
+     * @return The HF power in ms^2 or NaN if no segments were analyzed.
+     */
+    public double getHf() {
+        return average(mHfSum);
+    }
+
+    /**
+     * @return The power from the bottom of the VLF band to the top of the HF
+     * band in ms^2 or NaN if no segments were analyzed.
+     */
+    public double getTotal() {
+        return average(mTotalSum);
+    }
+
+    /**
+     * @return The LF/HF ratio or NaN if it is not available.
+     */
+    public double getLfHf() {
+        if (mNSegments == 0 || mHfSum == 0) {
+            return Double.NaN;
+        }
+        return mLfSum / mHfSum;
+    }
+
+    /**
+     * @return The LF power in normalized units, which is a percentage of LF +
+     * HF, or NaN if it is not available.
+     */
+    public double getLfNu() {
+        if (mNSegments == 0 || mLfSum + mHfSum == 0) {
+            return Double.NaN;
+        }
+        return 100 * mLfSum / (mLfSum + mHfSum);
+    }
+
+    /**
+     * @return The HF power in normalized units, which is a percentage of LF +
+     * HF, or NaN if it is not available.
+     */
+    public double getHfNu() {
+        if (mNSegments == 0 || mLfSum + mHfSum == 0) {
+            return Double.NaN;
+        }
+        return 100 * mHfSum / (mLfSum + mHfSum);
+    }
+
+    private double average(double sum) {
+        return mNSegments == 0 ? Double.NaN : sum / mNSegments;
+    }
+
+    /**
+     * Packs the LF and HF power and the LF/HF ratio into 16-bit values, for
+     * publishing on the SampleBus after the values from HrvCalculator.pack.
+     *
+     * @param values The array to fill. Must hold N_METRICS values after the
+     *               offset.
+     * @param offset The index of the first value.
+     * @return The index after the last value.
+     */
+    public int pack(int[] values, int offset) {
+        values[offset + METRIC_LF] = pack(getLf(), METRIC_LF);
+        values[offset + METRIC_HF] = pack(getHf(), METRIC_HF);
+        values[offset + METRIC_LF_HF] = pack(getLfHf(), METRIC_LF_HF);
+        return offset + N_METRICS;
+    }
+
+    private static int pack(double value, int metric) {
+        if (Double.isNaN(value)) {
+            return PACKED_NAN;
+        }
+        return (int) Math.min(Math.round(value * PACK_SCALE[metric]),
+                PACKED_NAN - 1);
+    }
+
+    /**
+     * Gets a metric from packed values.
+     *
+     * @param values The packed values.
+     * @param offset The index of the first value.
+     * @param metric One of the METRIC values.
+     * @return The value or NaN if it is not available.
+     */
+    public static double unpack(int[] values, int offset, int metric) {
+        int value = values[offset + metric];
+        if (value == PACKED_NAN) {
+            return Double.NaN;
+        }
+        return value / PACK_SCALE[metric];
+    }
+
+}
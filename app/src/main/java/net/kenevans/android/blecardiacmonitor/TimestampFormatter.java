@@ -0,0 +1,121 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Formats dates as yyyy-MM-dd HH:mm:ss.SSS (or with another separator in
+ * place of the space) into a char array. The Calendar is only consulted when
+ * the minute changes, and nothing is allocated per call, so it is much
+ * cheaper than SimpleDateFormat for consecutive samples. It assumes the time
+ * zone offset is a whole number of minutes, which is true for all current
+ * zones. An instance is not thread safe, but instances are cheap.
+ */
+public class TimestampFormatter {
+    /**
+     * The number of characters written by format.
+     */
+    public static final int LENGTH = 23;
+    private static final long MS_PER_MINUTE = 60000;
+
+    private final Calendar mCalendar;
+    private final char mSeparator;
+    private final char[] mMinuteChars = new char[16];
+    private long mMinuteStart = Long.MIN_VALUE;
+
+    /**
+     * Constructor for the default time zone and a space separator, which is
+     * the same format as sessionSaveFormatter.
+     */
+    public TimestampFormatter() {
+        this(TimeZone.getDefault(), ' ');
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param timeZone  The time zone.
+     * @param separator The character between the date and the time.
+     */
+    public TimestampFormatter(TimeZone timeZone, char separator) {
+        mCalendar = Calendar.getInstance(timeZone);
+        mSeparator = separator;
+    }
+
+    /**
+     * Writes the formatted date into the given array.
+     *
+     * @param date   The date.
+     * @param buf    The array. Must have LENGTH chars from offset.
+     * @param offset The offset to start at.
+     * @return The offset after the last char written.
+     */
+    public int format(long date, char[] buf, int offset) {
+        long msInMinute = date % MS_PER_MINUTE;
+        if (msInMinute < 0) {
+            msInMinute += MS_PER_MINUTE;
+        }
+        long minuteStart = date - msInMinute;
+        if (minuteStart != mMinuteStart) {
+            setMinute(minuteStart);
+        }
+        System.arraycopy(mMinuteChars, 0, buf, offset, mMinuteChars.length);
+        int pos = offset + mMinuteChars.length;
+        int sec = (int) (msInMinute / 1000);
+        int ms = (int) (msInMinute % 1000);
+        buf[pos++] = ':';
+        buf[pos++] = (char) ('0' + sec / 10);
+        buf[pos++] = (char) ('0' + sec % 10);
+        buf[pos++] = '.';
+        buf[pos++] = (char) ('0' + ms / 100);
+        buf[pos++] = (char) ('0' + ms / 10 % 10);
+        buf[pos++] = (char) ('0' + ms % 10);
+        return pos;
+    }
+
+    /**
+     * Gets the formatted date as a String. This allocates, so it is meant
+     * for occasional use.
+     *
+     * @param date The date.
+     * @return The String.
+     */
+    public String format(long date) {
+        char[] buf = new char[LENGTH];
+        format(date, buf, 0);
+        return new String(buf);
+    }
+
+    /**
+     * Caches yyyy-MM-dd HH:mm for the minute starting at the given date.
+     *
+     * @param minuteStart The start of the minute.
+     */
+    private void setMinute(long minuteStart) {
+        mCalendar.setTimeInMillis(minuteStart);
+        char[] c = mMinuteChars;
+        int year = mCalendar.get(Calendar.YEAR);
+        int month = mCalendar.get(Calendar.MONTH) + 1;
+        int day = mCalendar.get(Calendar.DAY_OF_MONTH);
+        int hour = mCalendar.get(Calendar.HOUR_OF_DAY);
+        int minute = mCalendar.get(Calendar.MINUTE);
+        c[0] = (char) ('0' + year / 1000 % 10);
+        c[1] = (char) ('0' + year / 100 % 10);
+        c[2] = (char) ('0' + year / 10 % 10);
+        c[3] = (char) ('0' + year % 10);
+        c[4] = '-';
+        c[5] = (char) ('0' + month / 10);
+        c[6] = (char) ('0' + month % 10);
+        c[7] = '-';
+        c[8] = (char) ('0' + day / 10);
+        c[9] = (char) ('0' + day % 10);
+        c[10] = mSeparator;
+        c[11] = (char) ('0' + hour / 10);
+        c[12] = (char) ('0' + hour % 10);
+        c[13] = ':';
+        c[14] = (char) ('0' + minute / 10);
+        c[15] = (char) ('0' + minute % 10);
+        mMinuteStart = minuteStart;
+    }
+
+}
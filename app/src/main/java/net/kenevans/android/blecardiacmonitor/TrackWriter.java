@@ -0,0 +1,239 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.TimeZone;
+
+/**
+ * Streams a session as a GPX 1.1 or TCX v2 track. The namespaces are declared
+ * once on the root element, and each point is written straight into the
+ * ChannelWriter from constant fragments, a reused timestamp buffer, and the
+ * digits of the HR, so nothing is allocated per point. Call begin, then
+ * writePoint for each sample in order, then end. An instance is not thread
+ * safe.
+ */
+public class TrackWriter implements Closeable, IConstants {
+    private static final String XML_DECLARATION = "<?xml version=\"1.0\" "
+            + "encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+
+    private static final String GPX_START = "<gpx xmlns=\""
+            + GPXUtils.GPX_NAMESPACE + "\" xmlns:gpxtpx=\""
+            + GPXUtils.GPXTPX_NAMESPACE + "\" xmlns:xsi=\""
+            + GPXUtils.XSI_NAMESPACE + "\" xsi:schemaLocation=\""
+            + GPXUtils.GPX_NAMESPACE + " " + GPXUtils.GPX_SCHEMA_LOCATION + " "
+            + GPXUtils.GPXTPX_NAMESPACE + " " + GPXUtils.GPXTPX_SCHEMA_LOCATION
+            + "\" version=\"1.1\" creator=\"";
+    private static final String GPX_POINT_START = "<trkpt lat=\"0\" "
+            + "lon=\"0\"><time>";
+    private static final String GPX_POINT_HR = "Z</time><extensions>"
+            + "<gpxtpx:TrackPointExtension><gpxtpx:hr>";
+    private static final String GPX_POINT_END = "</gpxtpx:hr>"
+            + "</gpxtpx:TrackPointExtension></extensions></trkpt>\n";
+    private static final String GPX_END = "</trkseg>\n</trk>\n</gpx>\n";
+
+    private static final String TCX_START = "<TrainingCenterDatabase xmlns=\""
+            + GPXUtils.TCX_NAMESPACE + "\" xmlns:xsi=\""
+            + GPXUtils.XSI_NAMESPACE + "\" xsi:schemaLocation=\""
+            + GPXUtils.TCX_NAMESPACE + " " + GPXUtils.TCX_SCHEMA_LOCATION
+            + "\">\n<Activities>\n<Activity Sport=\"Other\">\n<Id>";
+    private static final String TCX_POINT_START = "<Trackpoint><Time>";
+    private static final String TCX_POINT_HR = "Z</Time><HeartRateBpm><Value>";
+    private static final String TCX_POINT_END = "</Value></HeartRateBpm>"
+            + "</Trackpoint>\n";
+    private static final String TCX_END = "</Lap>\n</Activity>\n"
+            + "</Activities>\n</TrainingCenterDatabase>\n";
+
+    private final ChannelWriter mOut;
+    private final boolean mTcx;
+    private final TimestampFormatter mFormatter = new TimestampFormatter(
+            TimeZone.getTimeZone("UTC"), 'T');
+    private final char[] mDateChars = new char[TimestampFormatter.LENGTH];
+    private boolean mTrackStarted;
+    private long mNPoints;
+
+    /**
+     * Constructor.
+     *
+     * @param out    The writer, which is closed by close.
+     * @param format The format, either GPX or TCX.
+     */
+    public TrackWriter(ChannelWriter out, SessionExporter.Format format) {
+        if (format != SessionExporter.Format.GPX
+                && format != SessionExporter.Format.TCX) {
+            throw new IllegalArgumentException("Not a track format: "
+                    + format);
+        }
+        mOut = out;
+        mTcx = format == SessionExporter.Format.TCX;
+    }
+
+    /**
+     * Writes everything before the first point.
+     *
+     * @param creator The name of the program, used for the GPX creator.
+     * @param session The session, which gives the start and end dates and,
+     *                for TCX, the HR summary if present.
+     * @param now     The time the file is written, used for the GPX
+     *                metadata.
+     * @throws IOException If writing fails.
+     */
+    public void begin(String creator, Session session, long now)
+            throws IOException {
+        mOut.write(XML_DECLARATION);
+        if (mTcx) {
+            mOut.write(TCX_START);
+            writeTime(session.getStartDate());
+            mOut.write("</Id>\n<Lap StartTime=\"");
+            writeTime(session.getStartDate());
+            mOut.write("\">\n<TotalTimeSeconds>");
+            long duration = session.getEndDate() == INVALID_DATE ? 0
+                    : Math.max(0, session.getDuration());
+            mOut.writeLong(duration / 1000);
+            mOut.write("</TotalTimeSeconds>\n<DistanceMeters>0"
+                    + "</DistanceMeters>\n<Calories>0</Calories>\n");
+            if (isValidHr(session.getHrAvg())) {
+                mOut.write("<AverageHeartRateBpm><Value>");
+                mOut.writeLong(session.getHrAvg());
+                mOut.write("</Value></AverageHeartRateBpm>\n");
+            }
+            if (isValidHr(session.getHrMax())) {
+                mOut.write("<MaximumHeartRateBpm><Value>");
+                mOut.writeLong(session.getHrMax());
+                mOut.write("</Value></MaximumHeartRateBpm>\n");
+            }
+            mOut.write("<Intensity>Active</Intensity>\n"
+                    + "<TriggerMethod>Manual</TriggerMethod>\n");
+        } else {
+            mOut.write(GPX_START);
+            writeEscaped(creator);
+            mOut.write("\">\n<metadata><time>");
+            writeTime(now);
+            mOut.write("</time></metadata>\n<trk>\n<name>");
+            writeEscaped(session.getName());
+            mOut.write("</name>\n<trkseg>\n");
+        }
+    }
+
+    /**
+     * Writes a point. Points without a valid HR are skipped, since both
+     * schemas require an HR from 1 to 255 when it is present and a point
+     * with no HR carries no information here.
+     *
+     * @param date The date.
+     * @param hr   The HR.
+     * @return If the point was written.
+     * @throws IOException If writing fails.
+     */
+    public boolean writePoint(long date, int hr) throws IOException {
+        if (!isValidHr(hr)) {
+            return false;
+        }
+        if (mTcx) {
+            if (!mTrackStarted) {
+                // Track must have at least one Trackpoint, so it is only
+                // started when there is one
+                mOut.write("<Track>\n");
+                mTrackStarted = true;
+            }
+            mOut.write(TCX_POINT_START);
+            mFormatter.format(date, mDateChars, 0);
+            mOut.write(mDateChars, 0, mDateChars.length);
+            mOut.write(TCX_POINT_HR);
+            mOut.writeLong(hr);
+            mOut.write(TCX_POINT_END);
+        } else {
+            mOut.write(GPX_POINT_START);
+            mFormatter.format(date, mDateChars, 0);
+            mOut.write(mDateChars, 0, mDateChars.length);
+            mOut.write(GPX_POINT_HR);
+            mOut.writeLong(hr);
+            mOut.write(GPX_POINT_END);
+        }
+        mNPoints++;
+        return true;
+    }
+
+    /**
+     * Writes everything after the last point.
+     *
+     * @throws IOException If writing fails.
+     */
+    public void end() throws IOException {
+        if (mTcx) {
+            if (mTrackStarted) {
+                mOut.write("</Track>\n");
+            }
+            mOut.write(TCX_END);
+        } else {
+            mOut.write(GPX_END);
+        }
+    }
+
+    /**
+     * @return The number of points written.
+     */
+    public long getNPoints() {
+        return mNPoints;
+    }
+
+    /**
+     * Flushes and closes the underlying writer.
+     *
+     * @throws IOException If writing or closing fails.
+     */
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    /**
+     * Writes a UTC time in the xsd:dateTime form.
+     *
+     * @param date The date.
+     * @throws IOException If writing fails.
+     */
+    private void writeTime(long date) throws IOException {
+        mFormatter.format(date, mDateChars, 0);
+        mOut.write(mDateChars, 0, mDateChars.length);
+        mOut.write('Z');
+    }
+
+    /**
+     * Writes text escaped for use in an element or attribute value.
+     *
+     * @param text The text.
+     * @throws IOException If writing fails.
+     */
+    private void writeEscaped(String text) throws IOException {
+        int len = text.length();
+        char c;
+        for (int i = 0; i < len; i++) {
+            c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    mOut.write("&amp;");
+                    break;
+                case '<':
+                    mOut.write("&lt;");
+                    break;
+                case '>':
+                    mOut.write("&gt;");
+                    break;
+                case '"':
+                    mOut.write("&quot;");
+                    break;
+                default:
+                    mOut.write(c);
+            }
+        }
+    }
+
+    /**
+     * @param hr The HR.
+     * @return If the HR can be written.
+     */
+    private static boolean isValidHr(int hr) {
+        return hr >= 1 && hr <= 255;
+    }
+
+}
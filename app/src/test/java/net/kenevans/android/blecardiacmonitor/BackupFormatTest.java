@@ -0,0 +1,430 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for BackupFormat, encoding and decoding blocks, and writing and
+ * reading the header and index as BackupWriter and BackupRestorer do.
+ */
+public class BackupFormatTest implements IConstants {
+    private static final long START_DATE = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Makes a batch of random rows with dates, heart rates, and R-R values
+     * that go down as well as up, some with no time, device, or R-R values.
+     *
+     * @param n        The number of rows.
+     * @param nDevices The number of devices.
+     * @param seed     The seed.
+     * @return The batch.
+     */
+    private static DataBatch batch(int n, int nDevices, long seed) {
+        Random random = new Random(seed);
+        DataBatch batch = new DataBatch(n);
+        int[] rr = new int[HeartRateValues.MAX_RR];
+        long date = START_DATE;
+        for (int i = 0; i < n; i++) {
+            date += random.nextInt(4000) - 1000;
+            long time = random.nextInt(5) == 0 ? INVALID_DATE
+                    : 1000 * date + random.nextInt(2000000) - 1000000;
+            int hr = random.nextInt(10) == 0 ? INVALID_INT
+                    : 40 + random.nextInt(160);
+            int rrCount;
+            switch (random.nextInt(6)) {
+                case 0:
+                    rrCount = RrUtils.RR_NOT_PRESENT;
+                    break;
+                case 1:
+                    rrCount = 0;
+                    break;
+                case 2:
+                    rrCount = HeartRateValues.MAX_RR;
+                    break;
+                default:
+                    rrCount = 1 + random.nextInt(4);
+                    break;
+            }
+            for (int j = 0; j < rrCount; j++) {
+                rr[j] = random.nextInt(65536);
+            }
+            String device = random.nextInt(7) == 0 ? null
+                    : "00:11:22:33:44:" + (10 + random.nextInt(nDevices));
+            batch.add(date, time, START_DATE + i / 100, hr, rr, rrCount,
+                    device);
+        }
+        return batch;
+    }
+
+    private static BackupFormat.Block encode(DataBatch batch) {
+        BackupFormat.Block block = new BackupFormat.Block();
+        block.batch = batch;
+        block.encode();
+        return block;
+    }
+
+    /**
+     * Decodes a block from its index entry and compressed bytes, as
+     * BackupRestorer does.
+     */
+    private static DataBatch decode(BackupFormat.Block block)
+            throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(BackupFormat.INDEX_ENTRY_SIZE);
+        block.putEntry(buf);
+        buf.flip();
+        BackupFormat.Block read = new BackupFormat.Block();
+        read.getEntry(buf);
+        read.data = Arrays.copyOf(block.data, block.compressedLength);
+        read.decode();
+        return read.batch;
+    }
+
+    private static void assertBatchEquals(DataBatch expected,
+                                          DataBatch actual) {
+        int n = expected.count;
+        assertEquals(n, actual.count);
+        assertEquals(expected.nRr, actual.nRr);
+        assertArrayEquals(Arrays.copyOf(expected.dates, n),
+                Arrays.copyOf(actual.dates, n));
+        assertArrayEquals(Arrays.copyOf(expected.times, n),
+                Arrays.copyOf(actual.times, n));
+        assertArrayEquals(Arrays.copyOf(expected.startDates, n),
+                Arrays.copyOf(actual.startDates, n));
+        assertArrayEquals(Arrays.copyOf(expected.hrs, n),
+                Arrays.copyOf(actual.hrs, n));
+        assertArrayEquals(Arrays.copyOf(expected.rrCounts, n),
+                Arrays.copyOf(actual.rrCounts, n));
+        assertArrayEquals(Arrays.copyOf(expected.devices, n),
+                Arrays.copyOf(actual.devices, n));
+        assertArrayEquals(Arrays.copyOf(expected.rrValues, expected.nRr),
+                Arrays.copyOf(actual.rrValues, actual.nRr));
+    }
+
+    @Test
+    public void blockRoundTrip() throws Exception {
+        DataBatch batch = batch(BackupFormat.BLOCK_ROWS, 9, 1);
+        BackupFormat.Block block = encode(batch);
+        assertEquals(batch.count, block.nRows);
+        assertEquals(batch.dates[0], block.firstDate);
+        assertEquals(batch.dates[batch.count - 1], block.lastDate);
+        assertBatchEquals(batch, decode(block));
+    }
+
+    @Test
+    public void blockEdgeCases() throws Exception {
+        DataBatch batch = new DataBatch(8);
+        int[] rr = {1000, 0, 65535};
+        // Dates and times that go back, with none, and before the epoch
+        batch.add(START_DATE, 1000 * START_DATE - 1, START_DATE, 60, rr,
+                RrUtils.RR_NOT_PRESENT, null);
+        batch.add(START_DATE - 5000, INVALID_DATE, START_DATE, INVALID_INT,
+                rr, 0, "A");
+        batch.add(-1000, -999999, START_DATE - 1, 0, rr, 3, "B");
+        batch.add(START_DATE, 1000 * START_DATE + 999, 0, 255, rr, 1, "C");
+        batch.add(START_DATE, 1000 * START_DATE, 0, 30, rr, 2, "D");
+        batch.add(START_DATE, 1000 * START_DATE, 0, 30, rr, 0, "E");
+        batch.add(START_DATE, 1000 * START_DATE, 0, 30, rr,
+                RrUtils.RR_NOT_PRESENT, "\u00e9t\u00e9");
+        batch.add(START_DATE, 1000 * START_DATE, 0, 30, rr, 1, "A");
+        DataBatch decoded = decode(encode(batch));
+        assertBatchEquals(batch, decoded);
+        assertEquals(RrUtils.RR_NOT_PRESENT, decoded.rrCounts[0]);
+        assertEquals(0, decoded.rrCounts[1]);
+        assertNull(decoded.devices[0]);
+
+        // An empty block
+        DataBatch empty = new DataBatch(1);
+        BackupFormat.Block block = encode(empty);
+        assertEquals(INVALID_DATE, block.firstDate);
+        assertBatchEquals(empty, decode(block));
+    }
+
+    @Test
+    public void flippedByteIsFound() throws Exception {
+        BackupFormat.Block block = encode(batch(1000, 2, 2));
+        Random random = new Random(3);
+        for (int i = 0; i < 20; i++) {
+            BackupFormat.Block copy = new BackupFormat.Block();
+            copy.compressedLength = block.compressedLength;
+            copy.length = block.length;
+            copy.nRows = block.nRows;
+            copy.crc = block.crc;
+            copy.data = Arrays.copyOf(block.data, block.compressedLength);
+            copy.data[random.nextInt(copy.compressedLength)] ^=
+                    1 << random.nextInt(8);
+            try {
+                copy.decode();
+                fail("Not found to be corrupt");
+            } catch (IOException ex) {
+                assertEquals("Bad checksum", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes a file as BackupWriter does.
+     *
+     * @return The blocks written.
+     */
+    private List<BackupFormat.Block> writeFile(File file,
+                                               BackupFormat.Clocks clocks)
+            throws IOException {
+        List<BackupFormat.Block> blocks = new ArrayList<BackupFormat.Block>();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            channel.position(BackupFormat.HEADER_SIZE);
+            long nRows = 0;
+            for (int i = 0; i < 3; i++) {
+                BackupFormat.Block block = encode(batch(500 + i, 3, i));
+                block.offset = channel.position();
+                BackupFormat.writeFully(channel, ByteBuffer.wrap(block.data,
+                        0, block.compressedLength));
+                nRows += block.nRows;
+                blocks.add(block);
+            }
+            BackupFormat.writeIndex(channel, blocks, clocks, nRows);
+        } finally {
+            raf.close();
+        }
+        return blocks;
+    }
+
+    private static BackupFormat.Index readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return BackupFormat.readIndex(raf.getChannel());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static BackupFormat.Clocks clocks(int n) {
+        BackupFormat.Clocks clocks = new BackupFormat.Clocks(0);
+        for (int i = 0; i < n; i++) {
+            clocks.add(START_DATE + i / 3, 1000 * START_DATE + i * 60000000L,
+                    START_DATE + i * 60000L - i);
+        }
+        return clocks;
+    }
+
+    @Test
+    public void indexRoundTrip() throws Exception {
+        File file = mFolder.newFile("db.bcmb");
+        BackupFormat.Clocks clocks = clocks(10);
+        List<BackupFormat.Block> blocks = writeFile(file, clocks);
+        BackupFormat.Index index = readFile(file);
+        assertEquals(500 + 501 + 502, index.nRows);
+        assertEquals(blocks.size(), index.blocks.length);
+        for (int i = 0; i < blocks.size(); i++) {
+            BackupFormat.Block expected = blocks.get(i);
+            BackupFormat.Block block = index.blocks[i];
+            assertEquals(expected.offset, block.offset);
+            assertEquals(expected.compressedLength, block.compressedLength);
+            assertEquals(expected.length, block.length);
+            assertEquals(expected.nRows, block.nRows);
+            assertEquals(expected.crc, block.crc);
+            assertEquals(expected.firstDate, block.firstDate);
+            assertEquals(expected.lastDate, block.lastDate);
+            // Read the block as BackupRestorer does
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                ByteBuffer buf = ByteBuffer.allocate(block.compressedLength);
+                BackupFormat.readFully(raf.getChannel(), buf, block.offset);
+                block.data = buf.array();
+            } finally {
+                raf.close();
+            }
+            block.decode();
+            assertBatchEquals(expected.batch, block.batch);
+        }
+        assertEquals(clocks.count, index.clocks.count);
+        for (int i = 0; i < clocks.count; i++) {
+            assertEquals(clocks.startDates[i], index.clocks.startDates[i]);
+            assertEquals(clocks.times[i], index.clocks.times[i]);
+            assertEquals(clocks.walls[i], index.clocks.walls[i]);
+        }
+
+        // No clock rows
+        file = mFolder.newFile("noclocks.bcmb");
+        writeFile(file, clocks(0));
+        assertEquals(0, readFile(file).clocks.count);
+    }
+
+    /**
+     * Rewrites the header with a new CRC after changing it.
+     */
+    private static void putHeader(File file, int version, int nBlocks,
+                                  long indexOffset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(BackupFormat.HEADER_SIZE);
+            BackupFormat.readFully(raf.getChannel(), buf, 0);
+            buf.putInt(4, version);
+            buf.putInt(8, nBlocks);
+            buf.putLong(20, indexOffset);
+            putCrc(raf, buf, 0);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes a buffer at a position with a new CRC in its last 4 bytes.
+     */
+    private static void putCrc(RandomAccessFile raf, ByteBuffer buf,
+                               long position) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.capacity() - 4);
+        buf.putInt(buf.capacity() - 4, (int) crc.getValue());
+        buf.rewind();
+        raf.getChannel().write(buf, position);
+    }
+
+    private static long getIndexOffset(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(20);
+            return raf.readLong();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void assertBad(File file, String message) {
+        try {
+            readFile(file);
+            fail("Not found to be bad");
+        } catch (IOException ex) {
+            assertEquals(message, ex.getMessage());
+        }
+    }
+
+    @Test
+    public void badHeader() throws Exception {
+        File file = mFolder.newFile("db.bcmb");
+        writeFile(file, clocks(4));
+        long indexOffset = getIndexOffset(file);
+        long length = file.length();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(12);
+            raf.writeLong(1);
+        } finally {
+            raf.close();
+        }
+        assertBad(file, "Bad header checksum");
+
+        putHeader(file, BackupFormat.VERSION + 1, 3, indexOffset);
+        assertBad(file, "Unsupported version " + (BackupFormat.VERSION + 1));
+        putHeader(file, BackupFormat.VERSION, -1, indexOffset);
+        assertBad(file, "Bad index");
+        putHeader(file, BackupFormat.VERSION, 3,
+                BackupFormat.HEADER_SIZE - 1);
+        assertBad(file, "Bad index");
+        putHeader(file, BackupFormat.VERSION, 3, length);
+        assertBad(file, "Bad index");
+        // More blocks than there are, so the clock rows are read as one
+        putHeader(file, BackupFormat.VERSION, 4, indexOffset);
+        assertBad(file, "Bad index entry 3");
+        putHeader(file, BackupFormat.VERSION, 1000, indexOffset);
+        assertBad(file, "Bad index");
+        putHeader(file, BackupFormat.VERSION, Integer.MAX_VALUE, 32);
+        assertBad(file, "Bad index");
+
+        putHeader(file, BackupFormat.VERSION, 3, indexOffset);
+        readFile(file);
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length - 1);
+        } finally {
+            raf.close();
+        }
+        assertBad(file, "Bad index checksum");
+        assertBad(mFolder.newFile("empty.bcmb"), "Not a saved database");
+    }
+
+    @Test
+    public void badIndex() throws Exception {
+        File file = mFolder.newFile("db.bcmb");
+        writeFile(file, clocks(4));
+        long indexOffset = getIndexOffset(file);
+        int indexLength = (int) (file.length() - indexOffset);
+        int entry = BackupFormat.INDEX_ENTRY_SIZE;
+
+        // A block that overlaps the index
+        putIndex(file, indexOffset, indexLength, entry + 8,
+                (int) indexOffset);
+        assertBad(file, "Bad index entry 1");
+        // A negative length
+        putIndex(file, indexOffset, indexLength, 2 * entry + 12, -1);
+        assertBad(file, "Bad index entry 2");
+        // More clock rows than there are
+        putIndex(file, indexOffset, indexLength, 3 * entry, 5);
+        assertBad(file, "Bad number of clock rows");
+        putIndex(file, indexOffset, indexLength, 3 * entry, -1);
+        assertBad(file, "Bad number of clock rows");
+    }
+
+    /**
+     * Rereads the index of a good file, changes an int in it, and writes it
+     * with a new CRC.
+     */
+    private void putIndex(File file, long indexOffset, int indexLength,
+                          int position, int value) throws IOException {
+        writeFile(file, clocks(4));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(indexLength);
+            BackupFormat.readFully(raf.getChannel(), buf, indexOffset);
+            buf.putInt(position, value);
+            putCrc(raf, buf, indexOffset);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void version1HasNoClocks() throws Exception {
+        File file = mFolder.newFile("v1.bcmb");
+        List<BackupFormat.Block> blocks = writeFile(file, clocks(0));
+        long indexOffset = getIndexOffset(file);
+        // Version 1 has only the entries and their CRC
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            int length = blocks.size() * BackupFormat.INDEX_ENTRY_SIZE + 4;
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            BackupFormat.readFully(raf.getChannel(), buf, indexOffset);
+            putCrc(raf, buf, indexOffset);
+            raf.setLength(indexOffset + length);
+        } finally {
+            raf.close();
+        }
+        putHeader(file, 1, blocks.size(), indexOffset);
+        BackupFormat.Index index = readFile(file);
+        assertEquals(blocks.size(), index.blocks.length);
+        assertEquals(0, index.clocks.count);
+    }
+
+}
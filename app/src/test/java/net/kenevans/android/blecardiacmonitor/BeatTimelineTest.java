@@ -0,0 +1,248 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for BeatTimeline that replay streams of measurements. The beats
+ * are 1000 ms apart, which is 1024 in units of 1/1024 sec, and the times
+ * are in us.
+ */
+public class BeatTimelineTest implements IConstants {
+    private static final int RR = 1024;
+    private static final long SEC = 1000000;
+    private static final long MS = 1000;
+
+    private BeatTimeline mTimeline;
+    /**
+     * The times of all the beats, in order.
+     */
+    private List<Long> mBeats;
+    /**
+     * The flags for each measurement.
+     */
+    private List<Integer> mFlags;
+
+    @Before
+    public void setUp() {
+        mTimeline = new BeatTimeline();
+        mBeats = new ArrayList<>();
+        mFlags = new ArrayList<>();
+    }
+
+    /**
+     * Adds a measurement with the given number of 1000 ms beats.
+     *
+     * @param time  The arrival time in us.
+     * @param count The number of beats.
+     */
+    private void add(long time, int count) {
+        int[] rr = new int[count];
+        for (int i = 0; i < count; i++) {
+            rr[i] = RR;
+        }
+        long[] beatTimes = new long[count];
+        mFlags.add(mTimeline.add(time, rr, count, beatTimes));
+        for (int i = 0; i < count; i++) {
+            mBeats.add(beatTimes[i]);
+        }
+    }
+
+    private long beat(int index) {
+        return mBeats.get(index);
+    }
+
+    /**
+     * Checks the beats never go backward and are at least 1 ms apart.
+     */
+    private void assertIncreasing() {
+        for (int i = 1; i < mBeats.size(); i++) {
+            assertTrue("Beat " + i, beat(i) - beat(i - 1) >= MS);
+        }
+    }
+
+    @Test
+    public void inOrder() {
+        // 2 beats in each measurement, arriving with the second one
+        long start = 100 * SEC;
+        for (int i = 0; i < 100; i++) {
+            add(start + 2 * i * SEC, 2);
+        }
+        assertEquals(BeatTimeline.FLAG_GAP, (int) mFlags.get(0));
+        for (int i = 1; i < mFlags.size(); i++) {
+            assertEquals(0, (int) mFlags.get(i));
+        }
+        for (int i = 0; i < mBeats.size(); i++) {
+            assertEquals(start + (i - 1) * SEC, beat(i));
+        }
+        assertEquals(0, mTimeline.getNCorrections());
+        assertEquals(0, mTimeline.getNResyncs());
+    }
+
+    @Test
+    public void latency() {
+        // Every measurement arrives late by a different amount. The beats
+        // keep the spacing from the sensor.
+        long start = 100 * SEC;
+        long[] latency = {0, 300, 50, 700, 20, 0, 450};
+        for (int i = 0; i < 200; i++) {
+            add(start + i * SEC + latency[i % latency.length] * MS, 1);
+        }
+        for (int i = 1; i < mBeats.size(); i++) {
+            assertEquals(SEC, beat(i) - beat(i - 1));
+        }
+        assertEquals(0, mTimeline.getNResyncs());
+    }
+
+    @Test
+    public void lateNotification() {
+        // The first measurement is late, so the timeline starts late, and
+        // the next one comes with it. The timeline is moved back to the
+        // later arrivals, but the beats do not go backward.
+        long start = 100 * SEC;
+        add(start + 1500 * MS, 1);
+        add(start + 1500 * MS, 1);
+        for (int i = 2; i < 10; i++) {
+            add(start + i * SEC, 1);
+        }
+        assertIncreasing();
+        assertEquals(start + 1500 * MS, beat(0));
+        assertEquals(start + 1501 * MS, beat(1));
+        assertEquals(start + 2 * SEC, beat(2));
+        for (int i = 3; i < mBeats.size(); i++) {
+            assertEquals(start + i * SEC, beat(i));
+        }
+        assertEquals(2, mTimeline.getNCorrections());
+        assertEquals(0, mTimeline.getNResyncs());
+    }
+
+    @Test
+    public void earlyArrivals() {
+        // The sensor clock is slow, so the arrivals are closer together
+        // than the intervals. The timeline follows them back each time.
+        long start = 100 * SEC;
+        for (int i = 0; i < 100; i++) {
+            add(start + i * 990 * MS, 1);
+        }
+        assertIncreasing();
+        for (int i = 0; i < mBeats.size(); i++) {
+            assertEquals(start + i * 990 * MS, beat(i));
+        }
+    }
+
+    @Test
+    public void driftCapped() {
+        // From the second sync period on, the arrivals are 5 steps later
+        long shift = 5 * BEAT_MAX_DRIFT_STEP * MS;
+        long start = 100 * SEC;
+        int n = 10 * BEAT_SYNC_PACKETS;
+        for (int i = 0; i < n; i++) {
+            long time = start + i * SEC;
+            if (i >= BEAT_SYNC_PACKETS) {
+                time += shift;
+            }
+            add(time, 1);
+        }
+        // The timeline moves forward by at most BEAT_MAX_DRIFT_STEP at the
+        // end of each period, until it has caught up
+        int nSteps = 0;
+        for (int i = 1; i < n; i++) {
+            long step = beat(i) - beat(i - 1) - SEC;
+            if ((i + 1) % BEAT_SYNC_PACKETS == 0 && i >= BEAT_SYNC_PACKETS
+                    && nSteps < 5) {
+                assertEquals("Beat " + i, BEAT_MAX_DRIFT_STEP * MS, step);
+                nSteps++;
+            } else {
+                assertEquals("Beat " + i, 0, step);
+            }
+        }
+        assertEquals(5, nSteps);
+        assertEquals(5, mTimeline.getNCorrections());
+        assertEquals(start + (n - 1) * SEC + shift, beat(n - 1));
+    }
+
+    @Test
+    public void resync() {
+        long start = 100 * SEC;
+        for (int i = 0; i < 10; i++) {
+            add(start + i * SEC, 1);
+        }
+        // Just under BEAT_RESYNC_LAG late is kept on the timeline
+        long late = start + 10 * SEC + (BEAT_RESYNC_LAG - 1) * MS;
+        add(late, 1);
+        assertEquals(0, (int) mFlags.get(10));
+        assertEquals(start + 10 * SEC, beat(10));
+        // Over it, beats were lost
+        long lost = start + 11 * SEC + (BEAT_RESYNC_LAG + 1) * MS;
+        add(lost, 1);
+        add(lost + SEC, 1);
+        assertEquals(BeatTimeline.FLAG_GAP, (int) mFlags.get(11));
+        assertEquals(0, (int) mFlags.get(12));
+        assertEquals(lost, beat(11));
+        assertEquals(lost + SEC, beat(12));
+        assertEquals(1, mTimeline.getNResyncs());
+        assertIncreasing();
+    }
+
+    @Test
+    public void reset() {
+        long start = 100 * SEC;
+        add(start, 1);
+        add(start + SEC, 1);
+        mTimeline.reset();
+        // Starts again at the arrival
+        add(start + 3 * SEC, 1);
+        assertEquals(BeatTimeline.FLAG_GAP, (int) mFlags.get(2));
+        assertEquals(start + 3 * SEC, beat(2));
+        // A new timeline is not allowed to put a beat at the last one
+        mTimeline.reset();
+        add(start + 3 * SEC, 1);
+        assertEquals(BeatTimeline.FLAG_GAP, (int) mFlags.get(3));
+        assertEquals(start + 3 * SEC + MS, beat(3));
+        assertIncreasing();
+    }
+
+    @Test
+    public void noValues() {
+        long[] beatTimes = new long[1];
+        assertEquals(0, mTimeline.add(SEC, new int[0], 0, beatTimes));
+        assertEquals(0, mTimeline.add(SEC, new int[0],
+                RrUtils.RR_NOT_PRESENT, beatTimes));
+        // Does not start the timeline
+        add(2 * SEC, 1);
+        assertEquals(BeatTimeline.FLAG_GAP, (int) mFlags.get(0));
+        assertEquals(2 * SEC, beat(0));
+    }
+
+    @Test
+    public void replay() {
+        // The same measurements give the same beats
+        long start = 100 * SEC;
+        long[] latency = {0, 300, 50, 3500, 20, 0, 450, 10};
+        long time = start;
+        List<Long> times = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            time += 997 * MS + latency[i % latency.length] * MS / 10;
+            if (i == 250) {
+                time += 10 * SEC;
+            }
+            times.add(time + latency[i % latency.length] * MS);
+        }
+        for (long t : times) {
+            add(t, 1);
+        }
+        List<Long> first = mBeats;
+        setUp();
+        for (long t : times) {
+            add(t, 1);
+        }
+        assertEquals(first, mBeats);
+        assertIncreasing();
+    }
+}
@@ -0,0 +1,388 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for GattOperationQueue, driven by a fake Gatt and a fake Scheduler
+ * whose time only moves when the test advances it.
+ */
+public class GattOperationQueueTest implements IConstants {
+    private static final int READ = GattOperationQueue.Operation
+            .TYPE_READ_CHARACTERISTIC;
+    private static final int WRITE = GattOperationQueue.Operation
+            .TYPE_WRITE_DESCRIPTOR;
+
+    private FakeScheduler mScheduler;
+    private FakeGatt mGatt;
+    private final List<GattOperationQueue.Operation> mFailed =
+            new ArrayList<GattOperationQueue.Operation>();
+    private final List<Integer> mFailedStatus = new ArrayList<Integer>();
+    private GattOperationQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mScheduler = new FakeScheduler();
+        mGatt = new FakeGatt();
+        mQueue = new GattOperationQueue(mScheduler, mGatt,
+                new GattOperationQueue.Listener() {
+                    @Override
+                    public void onOperationFailed(GattOperationQueue
+                                                          .Operation
+                                                          operation,
+                                                  int status) {
+                        mFailed.add(operation);
+                        mFailedStatus.add(status);
+                    }
+                });
+    }
+
+    @Test
+    public void priorityOrder() {
+        BluetoothGattCharacteristic first = characteristic(1);
+        BluetoothGattCharacteristic low = characteristic(2);
+        BluetoothGattCharacteristic normal = characteristic(3);
+        BluetoothGattDescriptor high1 = descriptor(4);
+        BluetoothGattDescriptor high2 = descriptor(5);
+        mQueue.add(read(first, GattOperationQueue.Operation.PRIORITY_LOW));
+        // These wait for the first one, which is running
+        mQueue.add(read(low, GattOperationQueue.Operation.PRIORITY_LOW));
+        mQueue.add(read(normal, GattOperationQueue.Operation
+                .PRIORITY_NORMAL));
+        mQueue.add(write(high1));
+        mQueue.add(write(high2));
+        assertEquals(1, mGatt.started.size());
+        assertEquals(5, mQueue.size());
+
+        assertTrue(mQueue.onComplete(READ, first, BluetoothGatt
+                .GATT_SUCCESS));
+        assertTrue(mQueue.onComplete(WRITE, high1, BluetoothGatt
+                .GATT_SUCCESS));
+        assertTrue(mQueue.onComplete(WRITE, high2, BluetoothGatt
+                .GATT_SUCCESS));
+        assertTrue(mQueue.onComplete(READ, normal, BluetoothGatt
+                .GATT_SUCCESS));
+        assertTrue(mQueue.onComplete(READ, low, BluetoothGatt
+                .GATT_SUCCESS));
+
+        assertStarted(first, high1, high2, normal, low);
+        assertEquals(0, mQueue.size());
+        assertEquals(5, mQueue.getNCompleted());
+        assertEquals(0, mQueue.getNRetries());
+        assertTrue(mFailed.isEmpty());
+        // No timeouts are left
+        assertEquals(0, mScheduler.pending.size());
+    }
+
+    @Test
+    public void timeout() {
+        BluetoothGattCharacteristic target = characteristic(1);
+        GattOperationQueue.Operation operation = read(target,
+                GattOperationQueue.Operation.PRIORITY_NORMAL);
+        mQueue.add(operation);
+        mScheduler.advance(GATT_OPERATION_TIMEOUT - 1);
+        assertEquals(1, mGatt.started.size());
+        assertEquals(0, mQueue.getNTimeouts());
+
+        mScheduler.advance(1);
+        assertEquals(1, mQueue.getNTimeouts());
+        // It is retried after the delay
+        assertEquals(1, mGatt.started.size());
+        mScheduler.advance(GATT_RETRY_DELAY);
+        assertStarted(target, target);
+        assertEquals(2, operation.getAttempts());
+        assertEquals(1, mQueue.getNRetries());
+
+        assertTrue(mQueue.onComplete(READ, target, BluetoothGatt
+                .GATT_SUCCESS));
+        assertEquals(1, mQueue.getNCompleted());
+        assertTrue(mFailed.isEmpty());
+        // The timeout for the second attempt was removed
+        mScheduler.advance(10 * GATT_OPERATION_TIMEOUT);
+        assertEquals(1, mQueue.getNTimeouts());
+        assertEquals(2, mGatt.started.size());
+    }
+
+    @Test
+    public void retryLimitNotStarted() {
+        BluetoothGattCharacteristic refused = characteristic(1);
+        BluetoothGattCharacteristic next = characteristic(2);
+        mGatt.refuse = refused;
+        GattOperationQueue.Operation operation = read(refused,
+                GattOperationQueue.Operation.PRIORITY_HIGH);
+        mQueue.add(operation);
+        mQueue.add(read(next, GattOperationQueue.Operation.PRIORITY_LOW));
+        for (int i = 0; i < GATT_OPERATION_RETRIES; i++) {
+            assertTrue(mFailed.isEmpty());
+            mScheduler.advance(GATT_RETRY_DELAY);
+        }
+
+        assertEquals(1, mFailed.size());
+        assertSame(operation, mFailed.get(0));
+        assertEquals(GattOperationQueue.STATUS_NOT_STARTED,
+                (int) mFailedStatus.get(0));
+        assertEquals(GATT_OPERATION_RETRIES + 1, operation.getAttempts());
+        assertEquals(GATT_OPERATION_RETRIES, mQueue.getNRetries());
+        assertEquals(1, mQueue.getNFailed());
+        // The next one started when it was dropped
+        assertEquals(next, mGatt.started.get(mGatt.started.size() - 1));
+        assertEquals(1, mQueue.size());
+    }
+
+    @Test
+    public void retryLimitError() {
+        BluetoothGattDescriptor target = descriptor(1);
+        GattOperationQueue.Operation operation = write(target);
+        mQueue.add(operation);
+        for (int i = 0; i <= GATT_OPERATION_RETRIES; i++) {
+            assertTrue(mFailed.isEmpty());
+            assertTrue(mQueue.onComplete(WRITE, target, BluetoothGatt
+                    .GATT_FAILURE));
+            mScheduler.advance(GATT_RETRY_DELAY);
+        }
+
+        assertEquals(GATT_OPERATION_RETRIES + 1, mGatt.started.size());
+        assertEquals(1, mFailed.size());
+        assertEquals(BluetoothGatt.GATT_FAILURE, (int) mFailedStatus.get(0));
+        assertEquals(0, mQueue.getNCompleted());
+        assertEquals(0, mQueue.size());
+        assertEquals(0, mScheduler.pending.size());
+    }
+
+    @Test
+    public void retryKeepsItsPlace() {
+        BluetoothGattCharacteristic first = characteristic(1);
+        BluetoothGattCharacteristic second = characteristic(2);
+        mQueue.add(read(first, GattOperationQueue.Operation.PRIORITY_NORMAL));
+        mQueue.add(read(second, GattOperationQueue.Operation
+                .PRIORITY_NORMAL));
+        assertTrue(mQueue.onComplete(READ, first, BluetoothGatt
+                .GATT_FAILURE));
+        // Nothing runs during the delay
+        assertEquals(1, mGatt.started.size());
+        mScheduler.advance(GATT_RETRY_DELAY);
+        assertTrue(mQueue.onComplete(READ, first, BluetoothGatt
+                .GATT_SUCCESS));
+        assertStarted(first, first, second);
+    }
+
+    @Test
+    public void lostCallback() {
+        BluetoothGattDescriptor lost = descriptor(1);
+        BluetoothGattCharacteristic next = characteristic(2);
+        GattOperationQueue.Operation operation = write(lost);
+        mQueue.add(operation);
+        mQueue.add(read(next, GattOperationQueue.Operation.PRIORITY_LOW));
+        // Each attempt times out and is retried after the delay
+        for (int i = 0; i < GATT_OPERATION_RETRIES; i++) {
+            mScheduler.advance(GATT_OPERATION_TIMEOUT + GATT_RETRY_DELAY);
+        }
+        assertTrue(mFailed.isEmpty());
+        mScheduler.advance(GATT_OPERATION_TIMEOUT);
+
+        assertEquals(1, mFailed.size());
+        assertSame(operation, mFailed.get(0));
+        assertEquals(GattOperationQueue.STATUS_TIMEOUT,
+                (int) mFailedStatus.get(0));
+        assertEquals(GATT_OPERATION_RETRIES + 1, mQueue.getNTimeouts());
+        assertEquals(GATT_OPERATION_RETRIES + 2, mGatt.started.size());
+        assertEquals(next, mGatt.started.get(mGatt.started.size() - 1));
+
+        // A late callback for the lost one does not complete the next one
+        assertFalse(mQueue.onComplete(WRITE, lost, BluetoothGatt
+                .GATT_SUCCESS));
+        assertFalse(mQueue.onComplete(READ, characteristic(1),
+                BluetoothGatt.GATT_SUCCESS));
+        assertEquals(1, mQueue.size());
+        // Another instance for the same characteristic matches
+        assertTrue(mQueue.onComplete(READ, characteristic(2),
+                BluetoothGatt.GATT_SUCCESS));
+        assertEquals(0, mQueue.size());
+        assertEquals(1, mQueue.getNCompleted());
+    }
+
+    @Test
+    public void clear() {
+        BluetoothGattCharacteristic first = characteristic(1);
+        mQueue.add(read(first, GattOperationQueue.Operation.PRIORITY_NORMAL));
+        mQueue.add(read(characteristic(2), GattOperationQueue.Operation
+                .PRIORITY_NORMAL));
+        assertTrue(mQueue.onComplete(READ, first, BluetoothGatt
+                .GATT_FAILURE));
+        mQueue.clear();
+        assertEquals(0, mQueue.size());
+        assertEquals(0, mScheduler.pending.size());
+        mScheduler.advance(10 * GATT_OPERATION_TIMEOUT);
+        assertEquals(1, mGatt.started.size());
+        assertTrue(mFailed.isEmpty());
+        assertFalse(mQueue.onComplete(READ, first, BluetoothGatt
+                .GATT_SUCCESS));
+    }
+
+    private void assertStarted(Object... targets) {
+        assertEquals(targets.length, mGatt.started.size());
+        for (int i = 0; i < targets.length; i++) {
+            assertSame("Operation " + i, targets[i], mGatt.started.get(i));
+        }
+    }
+
+    private static GattOperationQueue.Operation read(
+            BluetoothGattCharacteristic characteristic, int priority) {
+        return GattOperationQueue.Operation.readCharacteristic(
+                characteristic, priority);
+    }
+
+    private static GattOperationQueue.Operation write(
+            BluetoothGattDescriptor descriptor) {
+        return GattOperationQueue.Operation.writeDescriptor(descriptor,
+                GattOperationQueue.Operation.PRIORITY_HIGH);
+    }
+
+    /**
+     * Creates a characteristic. The Android classes are stubs in unit
+     * tests, so the UUID is returned by an override. Characteristics with
+     * the same id have the same UUID.
+     *
+     * @param id The id.
+     * @return The characteristic.
+     */
+    private static BluetoothGattCharacteristic characteristic(int id) {
+        final UUID uuid = new UUID(0, id);
+        return new BluetoothGattCharacteristic(uuid, 0, 0) {
+            @Override
+            public UUID getUuid() {
+                return uuid;
+            }
+        };
+    }
+
+    /**
+     * Creates a descriptor of its own characteristic, as above.
+     *
+     * @param id The id.
+     * @return The descriptor.
+     */
+    private static BluetoothGattDescriptor descriptor(int id) {
+        final UUID uuid = new UUID(1, id);
+        final BluetoothGattCharacteristic characteristic = characteristic(id);
+        return new BluetoothGattDescriptor(uuid, 0) {
+            @Override
+            public UUID getUuid() {
+                return uuid;
+            }
+
+            @Override
+            public BluetoothGattCharacteristic getCharacteristic() {
+                return characteristic;
+            }
+        };
+    }
+
+    /**
+     * Records the operations started, without any callbacks, which the
+     * tests make.
+     */
+    private static class FakeGatt implements GattOperationQueue.Gatt {
+        final List<Object> started = new ArrayList<Object>();
+        /**
+         * A target whose operations do not start.
+         */
+        Object refuse;
+
+        @Override
+        public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+            return start(descriptor);
+        }
+
+        @Override
+        public boolean readCharacteristic(BluetoothGattCharacteristic
+                                                  characteristic) {
+            return start(characteristic);
+        }
+
+        private boolean start(Object target) {
+            if (target == refuse) {
+                return false;
+            }
+            started.add(target);
+            return true;
+        }
+    }
+
+    /**
+     * Runs the tasks when advance moves the time past when they are due.
+     */
+    private static class FakeScheduler implements GattOperationQueue
+            .Scheduler {
+        final List<Task> pending = new ArrayList<Task>();
+        private long mNow = 1000;
+
+        private static class Task {
+            final Runnable runnable;
+            final long due;
+
+            Task(Runnable runnable, long due) {
+                this.runnable = runnable;
+                this.due = due;
+            }
+        }
+
+        @Override
+        public long uptimeMillis() {
+            return mNow;
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            pending.add(new Task(task, mNow + delayMs));
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            for (int i = pending.size() - 1; i >= 0; i--) {
+                if (pending.get(i).runnable == task) {
+                    pending.remove(i);
+                }
+            }
+        }
+
+        /**
+         * Moves the time forward, running the tasks that come due in order,
+         * including those they post.
+         *
+         * @param ms The time in ms.
+         */
+        void advance(long ms) {
+            long end = mNow + ms;
+            while (true) {
+                Task next = null;
+                for (Task task : pending) {
+                    if (task.due <= end
+                            && (next == null || task.due < next.due)) {
+                        next = task;
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+                pending.remove(next);
+                mNow = next.due;
+                next.runnable.run();
+            }
+            mNow = end;
+        }
+    }
+}
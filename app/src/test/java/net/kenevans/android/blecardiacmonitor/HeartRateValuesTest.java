@@ -0,0 +1,267 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for HeartRateValues. Each value is decoded from a byte array, from
+ * a heap ByteBuffer that is a slice of a larger array, and from a direct
+ * ByteBuffer, which must all give the same result.
+ */
+public class HeartRateValuesTest implements IConstants {
+    private static final long DATE = 1500000000000L;
+
+    private final HeartRateValues[] mValues = {new HeartRateValues(),
+            new HeartRateValues(), new HeartRateValues()};
+
+    /**
+     * Decodes a value in each of the ways.
+     *
+     * @param data The characteristic value.
+     * @return If it could be decoded, which is checked to be the same for
+     * each.
+     */
+    private boolean decode(int... data) {
+        byte[] bytes = new byte[data.length];
+        for (int i = 0; i < data.length; i++) {
+            bytes[i] = (byte) data[i];
+        }
+        boolean ok = mValues[0].decode(bytes, DATE);
+
+        // Surrounded by other bytes, with the position past the first ones
+        byte[] padded = new byte[bytes.length + 5];
+        System.arraycopy(bytes, 0, padded, 3, bytes.length);
+        ByteBuffer heap = ByteBuffer.wrap(padded, 1, bytes.length + 2)
+                .slice();
+        heap.position(2);
+        heap.limit(2 + bytes.length);
+        assertEquals(ok, mValues[1].decode(heap, DATE));
+        assertEquals(2, heap.position());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 1);
+        direct.position(1);
+        direct.put(bytes);
+        direct.position(1);
+        assertFalse(direct.hasArray());
+        assertEquals(ok, mValues[2].decode(direct, DATE));
+        assertEquals(1, direct.position());
+        return ok;
+    }
+
+    /**
+     * Checks the values decoded in each way.
+     */
+    private void check(int flags, int hr, int sensorContact, int ee,
+                       boolean rrPresent, int... rr) {
+        for (HeartRateValues values : mValues) {
+            assertEquals(DATE, values.getDate());
+            assertEquals(flags, values.getFlags());
+            assertEquals(hr, values.getHr());
+            assertEquals(sensorContact, values.getSensorContact());
+            assertEquals(ee, values.getEe());
+            assertEquals(rrPresent, values.isRrPresent());
+            assertEquals(rr.length, values.getRrCount());
+            int[] decoded = new int[values.getRrCount()];
+            System.arraycopy(values.getRrValues(), 0, decoded, 0,
+                    decoded.length);
+            assertArrayEquals(rr, decoded);
+        }
+    }
+
+    /**
+     * Checks that each decoder failed and left the values invalid.
+     */
+    private void checkInvalid() {
+        for (HeartRateValues values : mValues) {
+            assertEquals(DATE, values.getDate());
+            assertEquals(0, values.getFlags());
+            assertEquals(INVALID_INT, values.getHr());
+            assertEquals(INVALID_INT, values.getEe());
+            assertFalse(values.isRrPresent());
+            assertEquals(0, values.getRrCount());
+        }
+    }
+
+    @Test
+    public void hrUint8() {
+        assertTrue(decode(0x00, 0xC8));
+        check(0x00, 200, HeartRateValues.CONTACT_NOT_SUPPORTED, INVALID_INT,
+                false);
+    }
+
+    @Test
+    public void hrUint16() {
+        assertTrue(decode(0x01, 0x2C, 0x01));
+        check(0x01, 300, HeartRateValues.CONTACT_NOT_SUPPORTED, INVALID_INT,
+                false);
+    }
+
+    @Test
+    public void hrUint16Truncated() {
+        assertFalse(decode(0x01, 0x2C));
+        checkInvalid();
+    }
+
+    @Test
+    public void contactStates() {
+        assertTrue(decode(0x02, 60));
+        check(0x02, 60, 1, INVALID_INT, false);
+        assertTrue(decode(HeartRateValues.FLAG_CONTACT_SUPPORTED, 61));
+        check(0x04, 61, HeartRateValues.CONTACT_NOT_DETECTED, INVALID_INT,
+                false);
+        assertTrue(decode(HeartRateValues.FLAG_CONTACT_SUPPORTED
+                | HeartRateValues.FLAG_CONTACT_DETECTED, 62));
+        check(0x06, 62, HeartRateValues.CONTACT_DETECTED, INVALID_INT, false);
+    }
+
+    @Test
+    public void energyExpended() {
+        assertTrue(decode(0x08, 70, 0x34, 0x12));
+        check(0x08, 70, HeartRateValues.CONTACT_NOT_SUPPORTED, 0x1234, false);
+        // With a UINT16 heart rate
+        assertTrue(decode(0x09, 70, 0x00, 0xFF, 0xFF));
+        check(0x09, 70, HeartRateValues.CONTACT_NOT_SUPPORTED, 0xFFFF, false);
+    }
+
+    @Test
+    public void energyExpendedTruncated() {
+        assertFalse(decode(0x08, 70, 0x34));
+        checkInvalid();
+    }
+
+    @Test
+    public void rrPresent() {
+        assertTrue(decode(0x16, 64, 0x00, 0x04, 0x10, 0x04, 0xFF, 0xFF));
+        check(0x16, 64, HeartRateValues.CONTACT_DETECTED, INVALID_INT, true,
+                1024, 1040, 0xFFFF);
+    }
+
+    @Test
+    public void rrPresentWithNoValues() {
+        assertTrue(decode(0x10, 64));
+        check(0x10, 64, HeartRateValues.CONTACT_NOT_SUPPORTED, INVALID_INT,
+                true);
+    }
+
+    @Test
+    public void rrAbsent() {
+        // The bytes after the heart rate are ignored without the flag
+        assertTrue(decode(0x00, 64, 0x00, 0x04));
+        check(0x00, 64, HeartRateValues.CONTACT_NOT_SUPPORTED, INVALID_INT,
+                false);
+    }
+
+    @Test
+    public void rrTruncated() {
+        // A trailing odd byte is ignored
+        assertTrue(decode(0x10, 64, 0x00, 0x04, 0x10));
+        check(0x10, 64, HeartRateValues.CONTACT_NOT_SUPPORTED, INVALID_INT,
+                true, 1024);
+    }
+
+    @Test
+    public void allFields() {
+        assertTrue(decode(0x1F, 0x2C, 0x01, 0x0A, 0x00, 0x00, 0x03));
+        check(0x1F, 300, HeartRateValues.CONTACT_DETECTED, 10, true, 768);
+    }
+
+    @Test
+    public void allFlags() {
+        // Bits 5 to 7 are reserved and not tested
+        for (int flags = 0; flags < 0x20; flags++) {
+            boolean uint16 = (flags & HeartRateValues.FLAG_HR_UINT16) != 0;
+            boolean eePresent =
+                    (flags & HeartRateValues.FLAG_ENERGY_EXPENDED) != 0;
+            boolean rrPresent = (flags & HeartRateValues.FLAG_RR) != 0;
+            int hr = uint16 ? 0x1234 + flags : 0xF0 + flags % 16;
+            int ee = 0xFEDC - flags;
+            int[] rr = rrPresent ? new int[]{1000 + flags, 0xFFFF - flags}
+                    : new int[0];
+            int[] data = new int[1 + (uint16 ? 2 : 1) + (eePresent ? 2 : 0)
+                    + 2 * rr.length];
+            int pos = 0;
+            data[pos++] = flags;
+            data[pos++] = hr & 0xFF;
+            if (uint16) {
+                data[pos++] = hr >> 8;
+            }
+            if (eePresent) {
+                data[pos++] = ee & 0xFF;
+                data[pos++] = ee >> 8;
+            }
+            for (int value : rr) {
+                data[pos++] = value & 0xFF;
+                data[pos++] = value >> 8;
+            }
+            assertTrue("flags=" + flags, decode(data));
+            // Bits 1 and 2 as they are: CONTACT_NOT_DETECTED or
+            // CONTACT_DETECTED if supported, and 0 or 1 if not
+            int contact = (flags >> 1) & 0x03;
+            check(flags, hr, contact, eePresent ? ee : INVALID_INT,
+                    rrPresent, rr);
+        }
+    }
+
+    @Test
+    public void maxRr() {
+        // The largest value, all R-R values
+        int[] data = new int[HeartRateValues.MAX_LENGTH];
+        data[0] = 0x10;
+        data[1] = 64;
+        int[] rr = new int[(data.length - 2) / 2];
+        for (int i = 0; i < rr.length; i++) {
+            rr[i] = 512 + i;
+            data[2 + 2 * i] = rr[i] & 0xFF;
+            data[3 + 2 * i] = rr[i] >> 8;
+        }
+        assertTrue(decode(data));
+        check(0x10, 64, HeartRateValues.CONTACT_NOT_SUPPORTED, INVALID_INT,
+                true, rr);
+    }
+
+    @Test
+    public void tooShort() {
+        assertFalse(decode());
+        checkInvalid();
+        assertFalse(decode(0x00));
+        checkInvalid();
+    }
+
+    @Test
+    public void nullValue() {
+        HeartRateValues values = new HeartRateValues();
+        assertFalse(values.decode((byte[]) null, DATE));
+        assertEquals(DATE, values.getDate());
+        assertEquals(INVALID_INT, values.getHr());
+        assertFalse(values.decode((ByteBuffer) null, DATE + 1));
+        assertEquals(DATE + 1, values.getDate());
+        assertEquals(INVALID_INT, values.getHr());
+    }
+
+    @Test
+    public void reused() {
+        // A failed decode clears the values of the previous one
+        assertTrue(decode(0x18, 64, 0x01, 0x00, 0x00, 0x04));
+        check(0x18, 64, HeartRateValues.CONTACT_NOT_SUPPORTED, 1, true,
+                1024);
+        assertFalse(decode(0x01, 64));
+        checkInvalid();
+        assertEquals(INVALID_STRING, mValues[0].getRr());
+    }
+
+    @Test
+    public void rrString() {
+        assertTrue(decode(0x10, 64, 0x00, 0x04, 0x10, 0x04));
+        assertEquals("1024 1040", mValues[0].getRr());
+        assertTrue(decode(0x10, 64));
+        assertEquals("", mValues[0].getRr());
+        assertTrue(decode(0x00, 64));
+        assertEquals(INVALID_STRING, mValues[0].getRr());
+    }
+}
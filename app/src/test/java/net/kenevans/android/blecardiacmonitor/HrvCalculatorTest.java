@@ -0,0 +1,414 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for HrvCalculator that check its running sums against a brute-force
+ * recomputation of the metrics from all the beats in each window, on a
+ * randomized stream with artifacts, gaps, and resets, and on small streams
+ * where the expected values are worked out by hand.
+ */
+public class HrvCalculatorTest implements IConstants {
+    /**
+     * Short windows, so that beats are evicted often.
+     */
+    private static final long[] WINDOWS = {5000, 20000, 60000};
+    private static final double TOLERANCE = 1e-9;
+
+    /**
+     * An accepted beat as kept by the Model.
+     */
+    private static class Beat {
+        final long date;
+        final int rr;
+        /**
+         * The time taken by the rejected intervals before it, or
+         * HrvCalculator.BEFORE_GAP.
+         */
+        final int before;
+
+        Beat(long date, int rr, int before) {
+            this.date = date;
+            this.rr = rr;
+            this.before = before;
+        }
+    }
+
+    /**
+     * Keeps every accepted beat and recomputes the metrics for a window from
+     * the beats in it each time they are asked for.
+     */
+    private static class Model {
+        private final long[] mWindows;
+        private final int mCapacity;
+        private final List<Beat> mBeats = new ArrayList<Beat>();
+        private final RrFilter mFilter = new RrFilter();
+        /**
+         * The index of the first beat after the last reset.
+         */
+        private int mFirst;
+        private long mDate;
+        private boolean mGap = true;
+        private int mSkipped;
+
+        Model(long[] windows, int capacity) {
+            mWindows = windows;
+            mCapacity = capacity;
+        }
+
+        void add(long date, long[] beatDates, int[] rr, int count) {
+            for (int i = 0; i < count; i++) {
+                if (!mFilter.accept(rr[i])) {
+                    mSkipped += rr[i];
+                    continue;
+                }
+                mBeats.add(new Beat(beatDates[i], rr[i], mGap
+                        ? HrvCalculator.BEFORE_GAP : mSkipped));
+                mGap = false;
+                mSkipped = 0;
+            }
+            mDate = date;
+        }
+
+        void addGap() {
+            mGap = true;
+        }
+
+        void reset() {
+            mFirst = mBeats.size();
+            mGap = true;
+            mFilter.reset();
+        }
+
+        /**
+         * @return The beats in a window, oldest first.
+         */
+        List<Beat> beats(int w) {
+            int start = Math.max(mFirst, mBeats.size() - mCapacity);
+            while (start < mBeats.size()
+                    && mBeats.get(start).date < mDate - mWindows[w]) {
+                start++;
+            }
+            return mBeats.subList(start, mBeats.size());
+        }
+
+        /**
+         * @return The successive differences in a window in ms.
+         */
+        List<Double> diffs(int w) {
+            List<Beat> beats = beats(w);
+            List<Double> diffs = new ArrayList<Double>();
+            for (int i = 1; i < beats.size(); i++) {
+                if (beats.get(i).before == 0) {
+                    diffs.add((beats.get(i).rr - beats.get(i - 1).rr)
+                            / 1.024);
+                }
+            }
+            return diffs;
+        }
+
+        double rmssd(int w) {
+            List<Double> diffs = diffs(w);
+            if (diffs.isEmpty()) {
+                return Double.NaN;
+            }
+            double sum = 0;
+            for (double diff : diffs) {
+                sum += diff * diff;
+            }
+            return Math.sqrt(sum / diffs.size());
+        }
+
+        double sdnn(int w) {
+            List<Beat> beats = beats(w);
+            int n = beats.size();
+            if (n < 2) {
+                return Double.NaN;
+            }
+            double mean = 0;
+            for (Beat beat : beats) {
+                mean += beat.rr / 1.024;
+            }
+            mean /= n;
+            double sum = 0;
+            for (Beat beat : beats) {
+                double dev = beat.rr / 1.024 - mean;
+                sum += dev * dev;
+            }
+            return Math.sqrt(sum / (n - 1));
+        }
+
+        double pnn50(int w) {
+            List<Double> diffs = diffs(w);
+            if (diffs.isEmpty()) {
+                return Double.NaN;
+            }
+            int n50 = 0;
+            for (double diff : diffs) {
+                if (Math.abs(diff) > 50) {
+                    n50++;
+                }
+            }
+            return 100.0 * n50 / diffs.size();
+        }
+
+        double meanHr(int w) {
+            List<Beat> beats = beats(w);
+            if (beats.isEmpty()) {
+                return Double.NaN;
+            }
+            double sum = 0;
+            for (Beat beat : beats) {
+                sum += beat.rr / 1.024;
+            }
+            return 60000 * beats.size() / sum;
+        }
+    }
+
+    private static void assertClose(String message, double expected,
+                                    double actual) {
+        if (Double.isNaN(expected)) {
+            assertTrue(message + ": expected NaN but was " + actual,
+                    Double.isNaN(actual));
+        } else {
+            assertEquals(message, expected, actual, TOLERANCE
+                    * Math.max(1, Math.abs(expected)));
+        }
+    }
+
+    /**
+     * Checks all the metrics and the copied beats for every window.
+     */
+    private static void check(String where, HrvCalculator calc,
+                              Model model) {
+        int[] rr = new int[calc.getCapacity()];
+        int[] before = new int[calc.getCapacity()];
+        for (int w = 0; w < calc.getWindowCount(); w++) {
+            String message = where + " window " + w;
+            List<Beat> beats = model.beats(w);
+            assertEquals(message + " beats", beats.size(),
+                    calc.getBeatCount(w));
+            assertClose(message + " RMSSD", model.rmssd(w),
+                    calc.getRmssd(w));
+            assertClose(message + " SDNN", model.sdnn(w), calc.getSdnn(w));
+            assertClose(message + " pNN50", model.pnn50(w),
+                    calc.getPnn50(w));
+            assertClose(message + " mean HR", model.meanHr(w),
+                    calc.getMeanHr(w));
+
+            assertEquals(message + " copied", beats.size(),
+                    calc.copyBeats(w, rr, before));
+            for (int i = 0; i < beats.size(); i++) {
+                assertEquals(message + " rr " + i, beats.get(i).rr, rr[i]);
+                assertEquals(message + " before " + i, i == 0
+                        ? HrvCalculator.BEFORE_GAP : beats.get(i).before,
+                        before[i]);
+            }
+        }
+    }
+
+    private static int toRr(double ms) {
+        return (int) Math.round(ms * 1.024);
+    }
+
+    @Test
+    public void randomStream() {
+        Random random = new Random(19);
+        HrvCalculator calc = new HrvCalculator(WINDOWS);
+        Model model = new Model(WINDOWS, calc.getCapacity());
+        int[] rr = new int[4];
+        long[] beatDates = new long[4];
+        long date = 1500000000000L;
+        double mean = 800;
+        int nGaps = 0;
+        for (int n = 0; n < 20000; n++) {
+            double r = random.nextDouble();
+            if (r < 0.002) {
+                calc.reset();
+                model.reset();
+            } else if (r < 0.01) {
+                calc.addGap();
+                model.addGap();
+                date += 1000 + random.nextInt(30000);
+                nGaps++;
+            }
+            // A wandering rhythm with some variability
+            mean = Math.max(400, Math.min(1500, mean
+                    + random.nextGaussian() * 10));
+            int count = random.nextDouble() < 0.05 ? RrUtils.RR_NOT_PRESENT
+                    : random.nextInt(rr.length);
+            for (int i = 0; i < count; i++) {
+                double ms = mean + random.nextGaussian() * 40;
+                double a = random.nextDouble();
+                if (a < 0.02) {
+                    // A missed beat
+                    ms *= 2;
+                } else if (a < 0.04) {
+                    // An extra beat
+                    ms /= 2;
+                } else if (a < 0.045) {
+                    ms = 100;
+                }
+                rr[i] = toRr(ms);
+                date += (long) ms;
+                beatDates[i] = date;
+            }
+            // The dates only go forward, as the eviction assumes
+            date += random.nextInt(500);
+            long now = date;
+            if (random.nextBoolean()) {
+                calc.add(now, beatDates, rr, count);
+                model.add(now, beatDates, rr, count);
+            } else {
+                // The beats take the date of the measurement
+                long[] dates = new long[Math.max(count, 0)];
+                for (int i = 0; i < dates.length; i++) {
+                    dates[i] = now;
+                }
+                calc.add(now, rr, count);
+                model.add(now, dates, rr, count);
+            }
+            check("After " + n, calc, model);
+        }
+        assertTrue(nGaps > 0);
+        assertTrue(calc.getNRejected() > 0);
+        assertEquals(model.mFilter.getNAccepted(), calc.getNAccepted());
+        assertEquals(model.mFilter.getNRejected(), calc.getNRejected());
+    }
+
+    @Test
+    public void evictsByDate() {
+        HrvCalculator calc = new HrvCalculator(new long[]{3000, 10000});
+        int[] rr = new int[1];
+        long date = 0;
+        for (int i = 0; i < 20; i++) {
+            rr[0] = toRr(1000);
+            date += 1000;
+            calc.add(date, rr, 1);
+        }
+        // Beats are kept while their date is no older than the window
+        assertEquals(4, calc.getBeatCount(0));
+        assertEquals(11, calc.getBeatCount(1));
+        assertEquals(60, calc.getMeanHr(0), TOLERANCE);
+        assertEquals(0, calc.getRmssd(1), TOLERANCE);
+
+        // A measurement without R-R values still ages them out
+        calc.add(date + 2500, rr, RrUtils.RR_NOT_PRESENT);
+        assertEquals(1, calc.getBeatCount(0));
+        assertTrue(Double.isNaN(calc.getRmssd(0)));
+        assertTrue(Double.isNaN(calc.getSdnn(0)));
+        calc.add(date + 3001, rr, 0);
+        assertEquals(0, calc.getBeatCount(0));
+        assertTrue(Double.isNaN(calc.getMeanHr(0)));
+        assertEquals(7, calc.getBeatCount(1));
+    }
+
+    @Test
+    public void gapBreaksDifferences() {
+        HrvCalculator calc = new HrvCalculator(new long[]{60000});
+        int[] rr = {toRr(800), toRr(900)};
+        calc.add(1000, rr, 2);
+        assertEquals(100, calc.getRmssd(0), 1);
+        calc.addGap();
+        rr[0] = toRr(700);
+        rr[1] = toRr(720);
+        calc.add(5000, rr, 2);
+        // Only 900 -> 800 and 700 -> 720, not 900 -> 700
+        double rmssd = Math.sqrt(((double) (toRr(900) - toRr(800))
+                * (toRr(900) - toRr(800)) + (toRr(720) - toRr(700))
+                * (toRr(720) - toRr(700))) / 2) / 1.024;
+        assertEquals(rmssd, calc.getRmssd(0), TOLERANCE);
+        assertEquals(50, calc.getPnn50(0), TOLERANCE);
+
+        int[] copied = new int[4];
+        int[] before = new int[4];
+        assertEquals(4, calc.copyBeats(0, copied, before));
+        assertEquals(HrvCalculator.BEFORE_GAP, before[0]);
+        assertEquals(0, before[1]);
+        assertEquals(HrvCalculator.BEFORE_GAP, before[2]);
+        assertEquals(0, before[3]);
+    }
+
+    @Test
+    public void artifactBreaksDifferences() {
+        HrvCalculator calc = new HrvCalculator(new long[]{60000});
+        int[] rr = {toRr(800), toRr(810), toRr(1600), toRr(820)};
+        calc.add(1000, rr, 4);
+        assertEquals(1, calc.getNRejected());
+        assertEquals(3, calc.getBeatCount(0));
+        // Only 800 -> 810, as 810 -> 820 spans the missed beat
+        assertEquals((toRr(810) - toRr(800)) / 1.024, calc.getRmssd(0),
+                TOLERANCE);
+        assertEquals(0, calc.getPnn50(0), TOLERANCE);
+
+        int[] copied = new int[3];
+        int[] before = new int[3];
+        assertEquals(3, calc.copyBeats(0, copied, before));
+        assertEquals(toRr(820), copied[2]);
+        assertEquals(toRr(1600), before[2]);
+    }
+
+    @Test
+    public void evictingTheHeadRemovesItsDifference() {
+        HrvCalculator calc = new HrvCalculator(new long[]{1500, 60000});
+        int[] rr = new int[1];
+        int[] values = {800, 900, 800};
+        for (int i = 0; i < values.length; i++) {
+            rr[0] = toRr(values[i]);
+            calc.add(1000 * (i + 1), rr, 1);
+        }
+        // The short window has lost the first beat and 800 -> 900
+        assertEquals(2, calc.getBeatCount(0));
+        assertEquals((toRr(900) - toRr(800)) / 1.024, calc.getRmssd(0),
+                TOLERANCE);
+        assertEquals(100, calc.getPnn50(0), TOLERANCE);
+        assertEquals(3, calc.getBeatCount(1));
+    }
+
+    @Test
+    public void fullBufferDropsTheOldest() {
+        // Many beats with the same date, so none age out
+        HrvCalculator calc = new HrvCalculator(new long[]{1000});
+        int capacity = calc.getCapacity();
+        Model model = new Model(new long[]{1000}, capacity);
+        int[] rr = new int[1];
+        long[] dates = {0};
+        for (int i = 0; i < 3 * capacity; i++) {
+            rr[0] = toRr(800 + 10 * (i % 5));
+            calc.add(0, rr, 1);
+            model.add(0, dates, rr, 1);
+            check("After " + i, calc, model);
+        }
+        assertEquals(capacity, calc.getBeatCount(0));
+    }
+
+    @Test
+    public void pack() {
+        HrvCalculator calc = new HrvCalculator(WINDOWS);
+        int[] values = new int[WINDOWS.length * HrvCalculator.N_METRICS];
+        assertEquals(values.length, calc.pack(values));
+        assertTrue(Double.isNaN(HrvCalculator.unpack(values, 0,
+                HrvCalculator.METRIC_MEAN_HR)));
+
+        int[] rr = {toRr(800), toRr(850), toRr(780)};
+        calc.add(3000, rr, 3);
+        calc.pack(values);
+        for (int w = 0; w < WINDOWS.length; w++) {
+            assertEquals(calc.getRmssd(w), HrvCalculator.unpack(values, w,
+                    HrvCalculator.METRIC_RMSSD), 0.05);
+            assertEquals(calc.getSdnn(w), HrvCalculator.unpack(values, w,
+                    HrvCalculator.METRIC_SDNN), 0.05);
+            assertEquals(calc.getPnn50(w), HrvCalculator.unpack(values, w,
+                    HrvCalculator.METRIC_PNN50), 0.005);
+            assertEquals(calc.getMeanHr(w), HrvCalculator.unpack(values, w,
+                    HrvCalculator.METRIC_MEAN_HR), 0.05);
+        }
+    }
+}
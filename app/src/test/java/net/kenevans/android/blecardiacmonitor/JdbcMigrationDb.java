@@ -0,0 +1,203 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * MigrationDb for a SQLite JDBC connection, so the migrations can be tested
+ * on the JVM. Errors are thrown as RuntimeExceptions, as SQLiteDatabase
+ * does.
+ */
+public class JdbcMigrationDb implements MigrationDb {
+    private final Connection mConnection;
+    private boolean mSuccessful;
+
+    /**
+     * Constructor.
+     *
+     * @param connection The connection.
+     */
+    public JdbcMigrationDb(Connection connection) {
+        mConnection = connection;
+    }
+
+    /**
+     * Opens a database.
+     *
+     * @param path The path of the database file or ":memory:".
+     * @return The MigrationDb.
+     */
+    public static JdbcMigrationDb open(String path) {
+        try {
+            return new JdbcMigrationDb(DriverManager.getConnection(
+                    "jdbc:sqlite:" + path));
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Closes the connection.
+     */
+    public void close() {
+        try {
+            mConnection.close();
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public void beginTransaction() {
+        try {
+            mConnection.setAutoCommit(false);
+            mSuccessful = false;
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        mSuccessful = true;
+    }
+
+    @Override
+    public void endTransaction() {
+        try {
+            if (mSuccessful) {
+                mConnection.commit();
+            } else {
+                mConnection.rollback();
+            }
+            mConnection.setAutoCommit(true);
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public void execSQL(String sql, Object... args) {
+        try {
+            PreparedStatement statement = prepare(sql, args);
+            try {
+                statement.execute();
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public Rows query(String sql, Object... args) {
+        try {
+            final PreparedStatement statement = prepare(sql, args);
+            final ResultSet resultSet = statement.executeQuery();
+            return new Rows() {
+                @Override
+                public boolean next() {
+                    try {
+                        return resultSet.next();
+                    } catch (SQLException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+
+                @Override
+                public boolean isNull(int column) {
+                    try {
+                        return resultSet.getObject(column + 1) == null;
+                    } catch (SQLException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+
+                @Override
+                public long getLong(int column) {
+                    try {
+                        return resultSet.getLong(column + 1);
+                    } catch (SQLException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+
+                @Override
+                public String getString(int column) {
+                    try {
+                        return resultSet.getString(column + 1);
+                    } catch (SQLException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+
+                @Override
+                public byte[] getBlob(int column) {
+                    try {
+                        return resultSet.getBytes(column + 1);
+                    } catch (SQLException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+
+                @Override
+                public void close() {
+                    try {
+                        resultSet.close();
+                        statement.close();
+                    } catch (SQLException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            };
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public long queryLong(String sql, long defaultValue, Object... args) {
+        Rows rows = query(sql, args);
+        try {
+            if (rows.next() && !rows.isNull(0)) {
+                return rows.getLong(0);
+            }
+            return defaultValue;
+        } finally {
+            rows.close();
+        }
+    }
+
+    /**
+     * Prepares a statement and binds the arguments.
+     *
+     * @param sql  The SQL.
+     * @param args The arguments.
+     * @return The statement.
+     * @throws SQLException If it cannot be prepared.
+     */
+    private PreparedStatement prepare(String sql, Object[] args)
+            throws SQLException {
+        PreparedStatement statement = mConnection.prepareStatement(sql);
+        Object arg;
+        for (int i = 0; i < args.length; i++) {
+            arg = args[i];
+            if (arg == null) {
+                statement.setNull(i + 1, Types.NULL);
+            } else if (arg instanceof byte[]) {
+                statement.setBytes(i + 1, (byte[]) arg);
+            } else if (arg instanceof String) {
+                statement.setString(i + 1, (String) arg);
+            } else {
+                statement.setLong(i + 1, ((Number) arg).longValue());
+            }
+        }
+        return statement;
+    }
+
+}
@@ -0,0 +1,432 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the migrations in BCMSchema, run on a SQLite JDBC database. A
+ * version 1 database, with the R-R values as text, is migrated to
+ * DB_VERSION, including after the migration failed part way through one of
+ * the steps that are done in chunks.
+ */
+public class MigrationTest implements IConstants {
+    private static final int N_SESSIONS = 3;
+    /**
+     * Enough rows that the R-R conversion takes more than one chunk.
+     */
+    private static final int N_ROWS_PER_SESSION = 4000;
+    private static final long FIRST_START_DATE = 1500000000000L;
+    private static final String SQL_CREATE_V1_DATA_TABLE = "create table "
+            + DB_DATA_TABLE + " (_id integer primary key autoincrement, "
+            + COL_DATE + " integer not null, " + COL_START_DATE
+            + " integer not null, " + COL_HR + " integer not null, " + COL_RR
+            + " text not null);";
+    private static final String SQL_INSERT_V1 = "insert into "
+            + DB_DATA_TABLE + " (" + COL_DATE + ", " + COL_START_DATE + ", "
+            + COL_HR + ", " + COL_RR + ") values (?, ?, ?, ?);";
+    private static final String SQL_POSITION = "select position from "
+            + Migrator.MIGRATION_TABLE + " where version=?";
+
+    /**
+     * A version 1 row.
+     */
+    private static class Row {
+        long date;
+        long startDate;
+        int hr;
+        String rr;
+    }
+
+    /**
+     * MigrationDb that fails when a statement has been executed a given
+     * number of times, as if the process were killed at that point.
+     */
+    private static class FailingDb implements MigrationDb {
+        private final MigrationDb mDb;
+        private final String mPrefix;
+        private int mRemaining;
+
+        /**
+         * Constructor.
+         *
+         * @param db     The database.
+         * @param prefix The start of the statement to fail.
+         * @param count  The number of times it succeeds before failing.
+         */
+        FailingDb(MigrationDb db, String prefix, int count) {
+            mDb = db;
+            mPrefix = prefix;
+            mRemaining = count;
+        }
+
+        @Override
+        public void beginTransaction() {
+            mDb.beginTransaction();
+        }
+
+        @Override
+        public void setTransactionSuccessful() {
+            mDb.setTransactionSuccessful();
+        }
+
+        @Override
+        public void endTransaction() {
+            mDb.endTransaction();
+        }
+
+        @Override
+        public void execSQL(String sql, Object... args) {
+            if (sql.startsWith(mPrefix) && mRemaining-- == 0) {
+                throw new RuntimeException("Failed at " + sql);
+            }
+            mDb.execSQL(sql, args);
+        }
+
+        @Override
+        public Rows query(String sql, Object... args) {
+            return mDb.query(sql, args);
+        }
+
+        @Override
+        public long queryLong(String sql, long defaultValue,
+                              Object... args) {
+            return mDb.queryLong(sql, defaultValue, args);
+        }
+    }
+
+    private JdbcMigrationDb mDb;
+    private List<Row> mRows;
+
+    @Before
+    public void setUp() {
+        mDb = JdbcMigrationDb.open(":memory:");
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    private static long startDate(int session) {
+        return FIRST_START_DATE + session * 100000000L;
+    }
+
+    /**
+     * Creates a version 1 database. Each row is 1 sec after the previous
+     * one, with R-R values adding up to 1 sec. Some are gaps, and a few
+     * have no or unparsable R-R values.
+     */
+    private void createV1() {
+        mDb.execSQL(SQL_CREATE_V1_DATA_TABLE);
+        mRows = new ArrayList<>();
+        for (int s = 0; s < N_SESSIONS; s++) {
+            for (int i = 0; i < N_ROWS_PER_SESSION; i++) {
+                Row row = new Row();
+                row.startDate = startDate(s);
+                row.date = row.startDate + i * 1000L;
+                row.hr = 60 + i % 20;
+                if (i % 1000 == 999) {
+                    row.hr = INVALID_INT;
+                    row.rr = INVALID_STRING;
+                } else if (i == 500) {
+                    row.rr = "";
+                } else if (i == 501) {
+                    row.rr = "1024x";
+                } else if (i % 10 == 0) {
+                    row.rr = "512 512";
+                } else {
+                    row.rr = "1024";
+                }
+                mRows.add(row);
+            }
+        }
+        mDb.beginTransaction();
+        try {
+            for (Row row : mRows) {
+                mDb.execSQL(SQL_INSERT_V1, row.date, row.startDate, row.hr,
+                        row.rr);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        BCMSchema.createMigrator().markPending(mDb, 1);
+    }
+
+    /**
+     * @param row The row.
+     * @return The expected R-R blob for the row.
+     */
+    private static byte[] blob(Row row) {
+        try {
+            return RrUtils.parseToBlob(row.rr,
+                    new int[HeartRateValues.MAX_RR]);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private int expectedRrCount(int session) {
+        int count = 0;
+        for (Row row : mRows) {
+            byte[] blob = blob(row);
+            if (row.startDate == startDate(session) && blob != null) {
+                count += blob.length / 2;
+            }
+        }
+        return count;
+    }
+
+    private List<String> columns(String pragma) {
+        List<String> names = new ArrayList<>();
+        MigrationDb.Rows rows = mDb.query(pragma);
+        try {
+            while (rows.next()) {
+                names.add(rows.getString(1));
+            }
+        } finally {
+            rows.close();
+        }
+        return names;
+    }
+
+    private List<String> indexColumns(String index) {
+        List<String> names = new ArrayList<>();
+        MigrationDb.Rows rows = mDb.query("pragma index_info(" + index
+                + ")");
+        try {
+            while (rows.next()) {
+                names.add(rows.getString(2));
+            }
+        } finally {
+            rows.close();
+        }
+        return names;
+    }
+
+    private long count(String sql, Object... args) {
+        return mDb.queryLong(sql, -1, args);
+    }
+
+    /**
+     * Checks the schema is that of DB_VERSION.
+     */
+    private void assertCurrentSchema() {
+        assertFalse(BCMSchema.createMigrator().hasPending(mDb));
+        assertEquals(Arrays.asList(COL_ID, COL_DATE, COL_START_DATE, COL_HR,
+                COL_RR, COL_DEVICE, COL_TIME),
+                columns("pragma table_info(" + DB_DATA_TABLE + ")"));
+        assertEquals(Arrays.asList(COL_START_DATE, COL_DATE, COL_HR),
+                indexColumns(BCMSchema.DB_START_DATE_INDEX));
+        assertEquals(Arrays.asList(COL_DATE, COL_HR),
+                indexColumns(BCMSchema.DB_DATE_INDEX));
+        for (String table : new String[]{DB_SESSION_TABLE, DB_BEAT_TABLE,
+                DB_CLOCK_TABLE, DB_ROLLUP_TABLE}) {
+            assertEquals(table, 1, count("select count(*) from "
+                    + "sqlite_master where type='table' and name=?", table));
+        }
+        for (int version = 2; version <= DB_VERSION; version++) {
+            assertEquals(Migration.DONE, count(SQL_POSITION, version));
+        }
+    }
+
+    /**
+     * Checks the data from createV1 were migrated.
+     */
+    private void assertMigrated() {
+        assertCurrentSchema();
+        assertEquals(0, count("select count(*) from sqlite_master where "
+                + "name like '" + DB_DATA_TABLE + "_v%'"));
+
+        // Data
+        MigrationDb.Rows rows = mDb.query("select " + COL_DATE + ", "
+                + COL_START_DATE + ", " + COL_HR + ", " + COL_RR + ", "
+                + COL_DEVICE + ", " + COL_TIME + " from " + DB_DATA_TABLE
+                + " order by " + COL_ID);
+        try {
+            for (Row row : mRows) {
+                assertTrue(rows.next());
+                assertEquals(row.date, rows.getLong(0));
+                assertEquals(row.startDate, rows.getLong(1));
+                assertEquals(row.hr, rows.getLong(2));
+                byte[] blob = blob(row);
+                if (blob == null) {
+                    assertTrue(rows.isNull(3));
+                } else {
+                    assertArrayEquals(blob, rows.getBlob(3));
+                }
+                assertTrue(rows.isNull(4));
+                assertTrue(rows.isNull(5));
+            }
+            assertFalse(rows.next());
+        } finally {
+            rows.close();
+        }
+
+        for (int s = 0; s < N_SESSIONS; s++) {
+            long startDate = startDate(s);
+            int nRr = expectedRrCount(s);
+            // Sessions
+            assertEquals(N_ROWS_PER_SESSION, count("select " + COL_N_SAMPLES
+                    + " from " + DB_SESSION_TABLE + " where " + COL_START_DATE
+                    + "=?", startDate));
+            assertEquals(nRr, count("select " + COL_N_RR + " from "
+                    + DB_SESSION_TABLE + " where " + COL_START_DATE + "=?",
+                    startDate));
+            // Beats, once each
+            assertEquals(nRr, count("select count(*) from " + DB_BEAT_TABLE
+                    + " where " + COL_START_DATE + "=?", startDate));
+            assertEquals(nRr, count("select count(distinct " + COL_TIME
+                    + ") from " + DB_BEAT_TABLE + " where " + COL_START_DATE
+                    + "=?", startDate));
+            // Rollups, every row at each resolution
+            for (long res : ROLLUP_RESOLUTIONS) {
+                assertEquals(N_ROWS_PER_SESSION, count("select sum("
+                        + COL_N_SAMPLES + ") from " + DB_ROLLUP_TABLE
+                        + " where " + COL_RES + "=? and " + COL_START_DATE
+                        + "=?", res, startDate));
+            }
+        }
+    }
+
+    @Test
+    public void create() {
+        BCMSchema.create(mDb);
+        assertCurrentSchema();
+        assertEquals(0, BCMSchema.createMigrator().run(mDb, null));
+    }
+
+    @Test
+    public void migrateEmpty() {
+        mDb.execSQL(SQL_CREATE_V1_DATA_TABLE);
+        mRows = new ArrayList<>();
+        Migrator migrator = BCMSchema.createMigrator();
+        migrator.markPending(mDb, 1);
+        assertTrue(migrator.hasPending(mDb));
+        migrator.run(mDb, null);
+        assertCurrentSchema();
+        assertEquals(0, count("select count(*) from " + DB_DATA_TABLE));
+    }
+
+    @Test
+    public void migrateFromV1() {
+        createV1();
+        final int[] nSteps = new int[DB_VERSION + 1];
+        BCMSchema.createMigrator().run(mDb, new Migrator.ProgressListener() {
+            @Override
+            public void onProgress(Migration migration, long position) {
+                nSteps[migration.getVersion()]++;
+            }
+        });
+        assertMigrated();
+        // A step for each chunk and one to replace the table
+        int nRows = N_SESSIONS * N_ROWS_PER_SESSION;
+        assertEquals((nRows + BCMSchema.MIGRATION_CHUNK_SIZE - 1)
+                / BCMSchema.MIGRATION_CHUNK_SIZE + 1, nSteps[2]);
+        // A step for each session and one to find there are no more
+        assertEquals(N_SESSIONS + 1, nSteps[7]);
+        assertEquals(N_SESSIONS + 1, nSteps[8]);
+        assertEquals(1, nSteps[9]);
+    }
+
+    @Test
+    public void resumeRrToBlob() {
+        createV1();
+        // Fail half way through the second chunk
+        int chunk = BCMSchema.MIGRATION_CHUNK_SIZE;
+        assertTrue(mRows.size() > chunk);
+        try {
+            BCMSchema.createMigrator().run(new FailingDb(mDb,
+                    "insert into " + DB_DATA_TABLE + "_v2",
+                    (chunk + mRows.size()) / 2), null);
+            fail("The migration did not fail");
+        } catch (RuntimeException ex) {
+            // Expected
+        }
+        // The first chunk was kept and the second rolled back. The old
+        // table is still there.
+        assertEquals(chunk, count(SQL_POSITION, 2));
+        assertEquals(chunk, count("select count(*) from " + DB_DATA_TABLE
+                + "_v2"));
+        assertEquals(mRows.size(), count("select count(*) from "
+                + DB_DATA_TABLE));
+        assertEquals(Migration.START, count(SQL_POSITION, 3));
+
+        BCMSchema.createMigrator().run(mDb, null);
+        assertMigrated();
+    }
+
+    @Test
+    public void resumeTime() {
+        createV1();
+        // Fail part way through the beats for the second session
+        int nBeats = expectedRrCount(0) + 100;
+        try {
+            BCMSchema.createMigrator().run(new FailingDb(mDb,
+                    BCMSchema.DB_INSERT_BEAT, nBeats), null);
+            fail("The migration did not fail");
+        } catch (RuntimeException ex) {
+            // Expected
+        }
+        // The first session was kept and the second rolled back
+        assertEquals(Migration.DONE, count(SQL_POSITION, 6));
+        assertEquals(startDate(0), count(SQL_POSITION, 7));
+        assertEquals(expectedRrCount(0), count("select count(*) from "
+                + DB_BEAT_TABLE));
+        assertEquals(Migration.START, count(SQL_POSITION, 8));
+
+        BCMSchema.createMigrator().run(mDb, null);
+        assertMigrated();
+    }
+
+    @Test
+    public void resumeAtStart() {
+        createV1();
+        // Fail in the first step of the time migration, which alters the
+        // data table
+        try {
+            BCMSchema.createMigrator().run(new FailingDb(mDb,
+                    BCMSchema.DB_INSERT_BEAT, 0), null);
+            fail("The migration did not fail");
+        } catch (RuntimeException ex) {
+            // Expected
+        }
+        assertEquals(Migration.START, count(SQL_POSITION, 7));
+        assertFalse(columns("pragma table_info(" + DB_DATA_TABLE + ")")
+                .contains(COL_TIME));
+
+        BCMSchema.createMigrator().run(mDb, null);
+        assertMigrated();
+    }
+
+    @Test
+    public void emptyRr() {
+        createV1();
+        BCMSchema.createMigrator().run(mDb, null);
+        // Present with no values is an empty blob, unparsable not present
+        MigrationDb.Rows rows = mDb.query("select " + COL_RR + " from "
+                + DB_DATA_TABLE + " where " + COL_DATE + "=?",
+                startDate(0) + 500000);
+        try {
+            assertTrue(rows.next());
+            assertEquals(0, rows.getBlob(0).length);
+        } finally {
+            rows.close();
+        }
+        assertNull(blob(mRows.get(501)));
+        assertTrue(count("select count(*) from " + DB_DATA_TABLE + " where "
+                + COL_RR + " is null and " + COL_HR + ">0") >= N_SESSIONS);
+    }
+}
@@ -0,0 +1,259 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.afree.data.Range;
+import org.afree.data.general.DatasetChangeEvent;
+import org.afree.data.general.DatasetChangeListener;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for RingBufferXYDataset that apply random appends, out-of-order
+ * inserts, replacements, and clears to it and to a TreeMap that models the
+ * behavior documented for it, and check they hold the same items after
+ * every step.
+ */
+public class RingBufferXYDatasetTest {
+    private static final String KEY = "Test";
+
+    /**
+     * The expected items, kept in a TreeMap with the eviction rules applied
+     * directly.
+     */
+    private static class Model {
+        private final TreeMap<Long, Double> mItems = new TreeMap<Long,
+                Double>();
+        private final int mCapacity;
+        private final long mMaximumAge;
+
+        Model(int capacity, long maximumAge) {
+            mCapacity = capacity;
+            mMaximumAge = maximumAge;
+        }
+
+        void add(long time, double value) {
+            if (!mItems.isEmpty() && time <= mItems.lastKey()) {
+                if (mMaximumAge != Long.MAX_VALUE
+                        && time < mItems.lastKey() - mMaximumAge) {
+                    // Already too old
+                    return;
+                }
+                if (mItems.containsKey(time)) {
+                    mItems.put(time, value);
+                    return;
+                }
+                if (mItems.size() == mCapacity) {
+                    if (time < mItems.firstKey()) {
+                        return;
+                    }
+                    mItems.pollFirstEntry();
+                }
+                mItems.put(time, value);
+                return;
+            }
+            if (mItems.size() == mCapacity) {
+                mItems.pollFirstEntry();
+            }
+            mItems.put(time, value);
+            if (mMaximumAge != Long.MAX_VALUE) {
+                while (mItems.size() > 1
+                        && mItems.firstKey() < time - mMaximumAge) {
+                    mItems.pollFirstEntry();
+                }
+            }
+        }
+
+        void clear() {
+            mItems.clear();
+        }
+    }
+
+    private static void check(String where, RingBufferXYDataset dataset,
+                              Model model) {
+        assertEquals(where + " count", model.mItems.size(),
+                dataset.getItemCount(0));
+        int item = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (Map.Entry<Long, Double> entry : model.mItems.entrySet()) {
+            String message = where + " item " + item;
+            assertEquals(message + " x", entry.getKey(),
+                    dataset.getXValue(0, item), 0);
+            assertEquals(message + " x", entry.getKey().longValue(),
+                    dataset.getX(0, item).longValue());
+            assertEquals(message + " y", entry.getValue(),
+                    dataset.getYValue(0, item), 0);
+            assertEquals(message + " y", entry.getValue(),
+                    dataset.getY(0, item).doubleValue(), 0);
+            double value = entry.getValue();
+            if (!Double.isNaN(value)) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            item++;
+        }
+
+        if (model.mItems.isEmpty()) {
+            assertNull(where, dataset.getDomainBounds(false));
+            assertTrue(where, Double.isNaN(dataset.getDomainLowerBound(
+                    false)));
+        } else {
+            Range domain = dataset.getDomainBounds(false);
+            assertEquals(where + " first", model.mItems.firstKey(),
+                    domain.getLowerBound(), 0);
+            assertEquals(where + " last", model.mItems.lastKey(),
+                    domain.getUpperBound(), 0);
+        }
+        Range range = dataset.getRangeBounds(false);
+        if (min > max) {
+            assertNull(where, range);
+        } else {
+            assertEquals(where + " min", min, range.getLowerBound(), 0);
+            assertEquals(where + " max", max, range.getUpperBound(), 0);
+        }
+    }
+
+    /**
+     * Applies a random mix of operations, with times that mostly go
+     * forward, and sometimes step back within or beyond the maximum age or
+     * repeat a time already held.
+     */
+    private static void random(long seed, int capacity, long maximumAge,
+                               int nSteps) {
+        Random random = new Random(seed);
+        RingBufferXYDataset dataset = new RingBufferXYDataset(KEY, capacity,
+                maximumAge);
+        assertEquals(KEY, dataset.getSeriesKey(0));
+        Model model = new Model(dataset.getCapacity(), maximumAge);
+        long time = 1000000;
+        for (int step = 0; step < nSteps; step++) {
+            double r = random.nextDouble();
+            double value = random.nextDouble() < 0.05 ? Double.NaN
+                    : random.nextInt(200) - 50;
+            long t;
+            if (r < 0.005) {
+                dataset.clear();
+                model.clear();
+                check("Clear " + step, dataset, model);
+                continue;
+            } else if (r < 0.2) {
+                // Out of order, sometimes beyond the maximum age
+                t = time - random.nextInt(1500);
+            } else if (r < 0.3 && !model.mItems.isEmpty()) {
+                // An existing time
+                Long[] times = model.mItems.keySet().toArray(new Long[0]);
+                t = times[random.nextInt(times.length)];
+            } else if (r < 0.32) {
+                // A jump that ages out everything
+                time += 5000;
+                t = time;
+            } else {
+                time += random.nextInt(100);
+                t = time;
+            }
+            dataset.add(t, value);
+            model.add(t, value);
+            check("Add " + t + " at " + step, dataset, model);
+        }
+    }
+
+    @Test
+    public void randomWithMaximumAge() {
+        random(11, 16, 1000, 50000);
+    }
+
+    @Test
+    public void randomFull() {
+        // Small enough that the buffer fills before items age out
+        random(12, 5, 1000, 50000);
+    }
+
+    @Test
+    public void randomWithoutMaximumAge() {
+        random(13, 16, Long.MAX_VALUE, 50000);
+    }
+
+    @Test
+    public void capacityIsRoundedUp() {
+        assertEquals(8, new RingBufferXYDataset(KEY, 5, 1).getCapacity());
+        assertEquals(8, new RingBufferXYDataset(KEY, 8, 1).getCapacity());
+        assertEquals(2, new RingBufferXYDataset(KEY, 0, 1).getCapacity());
+    }
+
+    @Test
+    public void evictsByAge() {
+        RingBufferXYDataset dataset = new RingBufferXYDataset(KEY, 16, 100);
+        dataset.add(0, 1);
+        dataset.add(50, 2);
+        dataset.add(100, 3);
+        assertEquals(3, dataset.getItemCount(0));
+        dataset.add(151, 4);
+        // 0 and 50 are older than 151 - 100
+        assertEquals(2, dataset.getItemCount(0));
+        assertEquals(100, dataset.getXValue(0, 0), 0);
+        // Too old to insert
+        dataset.add(50, 5);
+        assertEquals(2, dataset.getItemCount(0));
+        // Not too old
+        dataset.add(60, 6);
+        assertEquals(3, dataset.getItemCount(0));
+        assertEquals(60, dataset.getXValue(0, 0), 0);
+        // The newest is always kept
+        dataset.add(1000, 7);
+        assertEquals(1, dataset.getItemCount(0));
+    }
+
+    @Test
+    public void insertWrapsAround() {
+        RingBufferXYDataset dataset = new RingBufferXYDataset(KEY, 4,
+                Long.MAX_VALUE);
+        // Move the head so that the items wrap around the end of the arrays
+        for (int i = 0; i < 6; i++) {
+            dataset.add(10 * i, i);
+        }
+        // Holds 20, 30, 40, 50; 35 drops 20
+        dataset.add(35, 9);
+        assertEquals(4, dataset.getItemCount(0));
+        double[] expected = {30, 35, 40, 50};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], dataset.getXValue(0, i), 0);
+        }
+        assertEquals(9, dataset.getYValue(0, 1), 0);
+        // Older than everything in a full buffer
+        dataset.add(25, 8);
+        assertEquals(30, dataset.getXValue(0, 0), 0);
+    }
+
+    @Test
+    public void notification() {
+        RingBufferXYDataset dataset = new RingBufferXYDataset(KEY, 8, 100);
+        final int[] nEvents = new int[1];
+        dataset.addChangeListener(new DatasetChangeListener() {
+            @Override
+            public void datasetChanged(DatasetChangeEvent event) {
+                nEvents[0]++;
+            }
+        });
+        dataset.add(0, 1);
+        dataset.add(0, 2);
+        assertEquals(2, nEvents[0]);
+
+        dataset.setNotify(false);
+        dataset.add(10, 3);
+        dataset.add(5, 4);
+        dataset.clear();
+        assertEquals(2, nEvents[0]);
+        // Once for all the changes while it was off
+        dataset.setNotify(true);
+        assertEquals(3, nEvents[0]);
+        dataset.setNotify(false);
+        dataset.setNotify(true);
+        assertEquals(3, nEvents[0]);
+    }
+}
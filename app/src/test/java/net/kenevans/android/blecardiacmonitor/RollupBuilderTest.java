@@ -0,0 +1,264 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for RollupBuilder on a SQLite JDBC database. The rollups built live,
+ * as BCMDbAdapter.createDataBatch builds them while recording, must be the
+ * same as those BCMSchema.rebuildRollups makes from the stored rows, which
+ * is what the migration and the rebuild commands use.
+ */
+public class RollupBuilderTest implements IConstants {
+    private static final long FIRST_START_DATE = 1500000000000L;
+    private static final String SQL_INSERT_DATA = "insert into "
+            + DB_DATA_TABLE + " (" + COL_DATE + ", " + COL_START_DATE + ", "
+            + COL_HR + ", " + COL_RR + ") values (?, ?, ?, ?);";
+    private static final String SQL_ROLLUPS = "select " + COL_RES + ", "
+            + COL_DATE + ", " + COL_N_SAMPLES + ", " + COL_N_HR + ", "
+            + COL_HR_MIN + ", " + COL_HR_MAX + ", " + COL_HR_SUM + ", "
+            + COL_N_RR + ", " + COL_RR_SUM + ", " + COL_RR_SUM_SQ + ", "
+            + COL_N_DIFF + ", " + COL_DIFF_SUM_SQ + " from "
+            + DB_ROLLUP_TABLE + " where " + COL_START_DATE + "=? order by "
+            + COL_RES + ", " + COL_DATE;
+    private static final int N_ROLLUP_COLUMNS = 12;
+
+    /**
+     * A row as recorded.
+     */
+    private static class Row {
+        long date;
+        long startDate;
+        int hr;
+        int[] rr;
+        int rrCount;
+    }
+
+    private JdbcMigrationDb mDb;
+
+    @Before
+    public void setUp() {
+        mDb = JdbcMigrationDb.open(":memory:");
+        BCMSchema.create(mDb);
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    /**
+     * Makes the rows of several sessions recorded at once, interleaved in
+     * order of date. There are gap rows, rows with invalid heart rates,
+     * rows with no or not present R-R values, artifacts, several rows in
+     * the same second, and pauses long enough to skip buckets of every
+     * resolution.
+     */
+    private static List<Row> makeRows(Random random, int nSessions,
+                                      int nRowsPerSession) {
+        List<Row> rows = new ArrayList<Row>();
+        long date = FIRST_START_DATE;
+        for (int i = 0; i < nRowsPerSession; i++) {
+            double r = random.nextDouble();
+            if (r < 0.002) {
+                date += 700000 + random.nextInt(1000000);
+            } else if (r < 0.02) {
+                date += 10000 + random.nextInt(60000);
+            } else if (r > 0.1) {
+                date += 900 + random.nextInt(200);
+            }
+            for (int s = 0; s < nSessions; s++) {
+                Row row = new Row();
+                row.date = date + s;
+                row.startDate = FIRST_START_DATE + s;
+                double type = random.nextDouble();
+                if (type < 0.01) {
+                    // A gap
+                    row.hr = INVALID_INT;
+                    row.rrCount = RrUtils.RR_NOT_PRESENT;
+                } else {
+                    row.hr = type < 0.03 ? 0 : 40 + random.nextInt(140);
+                    row.rrCount = type < 0.06 ? RrUtils.RR_NOT_PRESENT
+                            : random.nextInt(4);
+                }
+                row.rr = new int[Math.max(row.rrCount, 0)];
+                for (int j = 0; j < row.rr.length; j++) {
+                    double ms = 800 + random.nextGaussian() * 60;
+                    double a = random.nextDouble();
+                    if (a < 0.02) {
+                        ms *= 2;
+                    } else if (a < 0.04) {
+                        ms /= 2;
+                    } else if (a < 0.045) {
+                        ms = 3000;
+                    }
+                    row.rr[j] = (int) Math.round(ms * 1.024);
+                }
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Inserts the rows and builds their rollups in batches of random
+     * sizes, with one RollupBuilder per session kept across the batches and
+     * flushed at the end of each, as createDataBatch does.
+     */
+    private void recordLive(Random random, List<Row> rows, int maxBatch) {
+        Map<Long, RollupBuilder> builders = new HashMap<Long,
+                RollupBuilder>();
+        int i = 0;
+        while (i < rows.size()) {
+            int end = Math.min(rows.size(), i + 1 + random.nextInt(maxBatch));
+            mDb.beginTransaction();
+            try {
+                for (; i < end; i++) {
+                    Row row = rows.get(i);
+                    mDb.execSQL(SQL_INSERT_DATA, row.date, row.startDate,
+                            row.hr, row.rrCount < 0 ? null
+                                    : RrUtils.toBlob(row.rr, 0,
+                                    row.rrCount));
+                    RollupBuilder builder = builders.get(row.startDate);
+                    if (builder == null) {
+                        builder = new RollupBuilder(row.startDate);
+                        builders.put(row.startDate, builder);
+                    }
+                    // The values are in a shared array at an offset
+                    int[] rrValues = new int[row.rr.length + 3];
+                    System.arraycopy(row.rr, 0, rrValues, 3, row.rr.length);
+                    builder.add(mDb, row.date, row.hr, rrValues, 3,
+                            row.rrCount);
+                }
+                for (RollupBuilder builder : builders.values()) {
+                    builder.flush(mDb);
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * @return The rollups for a session, one string per bucket, in order of
+     * resolution and date.
+     */
+    private List<String> rollups(long startDate) {
+        List<String> rollups = new ArrayList<String>();
+        MigrationDb.Rows rows = mDb.query(SQL_ROLLUPS, startDate);
+        try {
+            Long[] values = new Long[N_ROLLUP_COLUMNS];
+            while (rows.next()) {
+                for (int c = 0; c < N_ROLLUP_COLUMNS; c++) {
+                    values[c] = rows.isNull(c) ? null : rows.getLong(c);
+                }
+                rollups.add(Arrays.toString(values));
+            }
+        } finally {
+            rows.close();
+        }
+        return rollups;
+    }
+
+    private long count(String sql, Object... args) {
+        return mDb.queryLong(sql, -1, args);
+    }
+
+    private void checkLiveEqualsRebuilt(long seed, int nSessions,
+                                        int nRowsPerSession, int maxBatch) {
+        Random random = new Random(seed);
+        List<Row> rows = makeRows(random, nSessions, nRowsPerSession);
+        recordLive(random, rows, maxBatch);
+        for (int s = 0; s < nSessions; s++) {
+            long startDate = FIRST_START_DATE + s;
+            List<String> live = rollups(startDate);
+            // Every row is in one bucket of each resolution
+            for (long res : ROLLUP_RESOLUTIONS) {
+                assertEquals(nRowsPerSession, count("select sum("
+                        + COL_N_SAMPLES + ") from " + DB_ROLLUP_TABLE
+                        + " where " + COL_RES + "=? and " + COL_START_DATE
+                        + "=?", res, startDate));
+            }
+            assertTrue(count("select sum(" + COL_N_DIFF + ") from "
+                    + DB_ROLLUP_TABLE + " where " + COL_START_DATE + "=?",
+                    startDate) > 0);
+
+            mDb.beginTransaction();
+            try {
+                BCMSchema.rebuildRollups(mDb, startDate);
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+            List<String> rebuilt = rollups(startDate);
+            assertEquals("Buckets for session " + s, rebuilt.size(),
+                    live.size());
+            for (int i = 0; i < live.size(); i++) {
+                assertEquals("Session " + s + " bucket " + i, rebuilt.get(i),
+                        live.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void liveEqualsRebuilt() {
+        checkLiveEqualsRebuilt(23, 2, 5000, 50);
+    }
+
+    @Test
+    public void liveEqualsRebuiltOneRowPerBatch() {
+        // Every bucket is written in parts
+        checkLiveEqualsRebuilt(24, 1, 2000, 1);
+    }
+
+    @Test
+    public void liveEqualsRebuiltOneBatch() {
+        checkLiveEqualsRebuilt(25, 3, 2000, Integer.MAX_VALUE - 1);
+    }
+
+    @Test
+    public void bucket() {
+        long start = 1500000000000L;
+        RollupBuilder builder = new RollupBuilder(start);
+        int[] rr = {800, 820, 1700, 810};
+        builder.add(mDb, start + 100, 60, rr, 0, 2);
+        // The artifact breaks the chain, so 1700 -> 810 is not used
+        builder.add(mDb, start + 900, 0, rr, 2, 2);
+        builder.add(mDb, start + 950, 70, rr, 0, RrUtils.RR_NOT_PRESENT);
+        builder.flush(mDb);
+        assertEquals("[1000, " + start + ", 3, 2, 60, 70, 130, 3, 2430, "
+                        + (800 * 800 + 820 * 820 + 810 * 810) + ", 1, 400]",
+                rollups(start).get(0));
+        assertEquals(ROLLUP_RESOLUTIONS.length, rollups(start).size());
+    }
+
+    @Test
+    public void resolution() {
+        long start = FIRST_START_DATE;
+        assertEquals(ROLLUP_RESOLUTIONS[0], RollupBuilder.getResolution(start,
+                start + 1000 * 1000, 1000));
+        assertEquals(ROLLUP_RESOLUTIONS[1], RollupBuilder.getResolution(start,
+                start + 10000 * 1000, 1000));
+        assertEquals(ROLLUP_RESOLUTIONS[ROLLUP_RESOLUTIONS.length - 1],
+                RollupBuilder.getResolution(start, start + 365 * 86400000L,
+                        1000));
+        // Finest when nothing gives enough buckets
+        assertEquals(ROLLUP_RESOLUTIONS[0], RollupBuilder.getResolution(start,
+                start + 10, 1000));
+        assertEquals(10, RollupBuilder.getRmssd(4, 4 * 10.24 * 10.24),
+                1e-12);
+        assertTrue(Double.isNaN(RollupBuilder.getRmssd(0, 0)));
+    }
+}
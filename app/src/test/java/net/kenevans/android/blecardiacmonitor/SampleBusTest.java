@@ -0,0 +1,420 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for SampleBus that check the samples come out as they were
+ * published, for each type, source, and number of R-R values, and that
+ * subscribers that fall behind or race the producer lose samples instead of
+ * seeing them torn.
+ */
+public class SampleBusTest implements IConstants {
+    private static final long DATE = 1500000000000L;
+    private static final int CAPACITY = 8;
+
+    /**
+     * A sample copied out of the bus, since the Sample is reused.
+     */
+    private static class Copy {
+        final long sequence;
+        final int type;
+        final int source;
+        final long date;
+        final int value;
+        final int rrCount;
+        final int[] rr;
+        final long beatDate;
+
+        Copy(SampleBus.Sample sample) {
+            sequence = sample.getSequence();
+            type = sample.getType();
+            source = sample.getSource();
+            date = sample.getDate();
+            value = sample.getHr();
+            rrCount = sample.getRrCount();
+            rr = new int[Math.max(rrCount, 0)];
+            System.arraycopy(sample.getRrValues(), 0, rr, 0, rr.length);
+            beatDate = sample.getBeatDate();
+        }
+    }
+
+    /**
+     * Collects copies of the samples delivered to it.
+     */
+    private static class Collector implements SampleBus.Listener {
+        final List<Copy> mCopies = new ArrayList<Copy>();
+
+        @Override
+        public void onSample(SampleBus.Sample sample) {
+            mCopies.add(new Copy(sample));
+        }
+    }
+
+    private static List<Copy> pollAll(SampleBus.Subscription subscription) {
+        Collector collector = new Collector();
+        subscription.poll(collector, Integer.MAX_VALUE);
+        return collector.mCopies;
+    }
+
+    private static int[] rr(int count, int first) {
+        int[] rr = new int[count];
+        for (int i = 0; i < count; i++) {
+            rr[i] = (first + 257 * i) & 0xFFFF;
+        }
+        return rr;
+    }
+
+    @Test
+    public void heartRate() {
+        SampleBus bus = new SampleBus(CAPACITY);
+        SampleBus.Subscription subscription = bus.subscribe();
+        int[] rr = rr(SampleBus.MAX_RR, 0xFFFF);
+        bus.publishHr(3, DATE, 72, rr, SampleBus.MAX_RR, DATE - 10);
+        bus.publishHr(3, DATE + 1, 255, rr, 0, INVALID_DATE);
+        bus.publishHr(3, DATE + 2, 0, null, RrUtils.RR_NOT_PRESENT,
+                INVALID_DATE);
+        bus.publishHr(3, DATE + 3, 60, rr, 5, DATE);
+
+        List<Copy> copies = pollAll(subscription);
+        assertEquals(4, copies.size());
+        Copy copy = copies.get(0);
+        assertEquals(0, copy.sequence);
+        assertEquals(SampleBus.TYPE_HR, copy.type);
+        assertEquals(3, copy.source);
+        assertEquals(DATE, copy.date);
+        assertEquals(72, copy.value);
+        assertEquals(DATE - 10, copy.beatDate);
+        // All the values, including 0xFFFF, which must not be sign-extended
+        assertArrayEquals(rr, copy.rr);
+
+        copy = copies.get(1);
+        assertEquals(255, copy.value);
+        assertEquals(0, copy.rrCount);
+        assertEquals(INVALID_DATE, copy.beatDate);
+
+        // Not present is stored in 16 bits and must come back as -1
+        copy = copies.get(2);
+        assertEquals(RrUtils.RR_NOT_PRESENT, copy.rrCount);
+
+        copy = copies.get(3);
+        assertEquals(3, copy.sequence);
+        assertArrayEquals(rr(5, 0xFFFF), copy.rr);
+        assertEquals(0, subscription.getLag());
+        assertEquals(0, subscription.getNDropped());
+    }
+
+    @Test
+    public void rrCountIsLimited() {
+        SampleBus bus = new SampleBus(CAPACITY);
+        SampleBus.Subscription subscription = bus.subscribe();
+        int[] rr = rr(SampleBus.MAX_RR + 10, 1);
+        bus.publishHr(0, DATE, 60, rr, rr.length, DATE);
+        Copy copy = pollAll(subscription).get(0);
+        assertEquals(SampleBus.MAX_RR, copy.rrCount);
+        assertArrayEquals(rr(SampleBus.MAX_RR, 1), copy.rr);
+    }
+
+    @Test
+    public void appendRr() {
+        SampleBus bus = new SampleBus(CAPACITY);
+        SampleBus.Subscription subscription = bus.subscribe();
+        bus.publishHr(0, DATE, 60, new int[]{800, 1024}, 2, DATE);
+        bus.publishHr(0, DATE, 60, null, 0, INVALID_DATE);
+        bus.publishHr(0, DATE, 60, null, RrUtils.RR_NOT_PRESENT,
+                INVALID_DATE);
+        final List<String> strings = new ArrayList<String>();
+        subscription.poll(new SampleBus.Listener() {
+            @Override
+            public void onSample(SampleBus.Sample sample) {
+                strings.add(sample.appendRr(new StringBuilder()).toString());
+            }
+        }, Integer.MAX_VALUE);
+        assertEquals(3, strings.size());
+        assertEquals("800 1024", strings.get(0));
+        assertEquals("", strings.get(1));
+        assertEquals(INVALID_STRING, strings.get(2));
+    }
+
+    @Test
+    public void beatDates() {
+        SampleBus bus = new SampleBus(CAPACITY);
+        SampleBus.Subscription subscription = bus.subscribe();
+        bus.publishHr(0, DATE, 60, new int[]{1024, 512}, 2, DATE);
+        bus.publishHr(0, DATE, 60, null, RrUtils.RR_NOT_PRESENT, DATE);
+        final long[] dates = new long[2];
+        final List<Boolean> found = new ArrayList<Boolean>();
+        subscription.poll(new SampleBus.Listener() {
+            @Override
+            public void onSample(SampleBus.Sample sample) {
+                found.add(sample.getBeatDates(dates));
+            }
+        }, 1);
+        assertTrue(found.get(0));
+        assertArrayEquals(new long[]{DATE - 500, DATE}, dates);
+        subscription.poll(new SampleBus.Listener() {
+            @Override
+            public void onSample(SampleBus.Sample sample) {
+                found.add(sample.getBeatDates(dates));
+            }
+        }, 1);
+        assertFalse(found.get(1));
+    }
+
+    @Test
+    public void batteryAndHrv() {
+        SampleBus bus = new SampleBus(CAPACITY);
+        SampleBus.Subscription subscription = bus.subscribe();
+        bus.publishBattery(1, DATE, 87);
+        int nWindows = 3;
+        int count = nWindows * HrvCalculator.N_METRICS
+                + SpectralHrv.N_METRICS;
+        int[] values = rr(count, 100);
+        bus.publishHrv(2, DATE + 1, values, count);
+        bus.publishHrv(2, DATE + 2, values, nWindows
+                * HrvCalculator.N_METRICS);
+
+        final List<Integer> offsets = new ArrayList<Integer>();
+        final List<Copy> copies = new ArrayList<Copy>();
+        subscription.poll(new SampleBus.Listener() {
+            @Override
+            public void onSample(SampleBus.Sample sample) {
+                copies.add(new Copy(sample));
+                offsets.add(sample.getHrvSpectralOffset());
+            }
+        }, Integer.MAX_VALUE);
+        assertEquals(3, copies.size());
+        Copy copy = copies.get(0);
+        assertEquals(SampleBus.TYPE_BATTERY, copy.type);
+        assertEquals(1, copy.source);
+        assertEquals(87, copy.value);
+        assertEquals(RrUtils.RR_NOT_PRESENT, copy.rrCount);
+
+        copy = copies.get(1);
+        assertEquals(SampleBus.TYPE_HRV, copy.type);
+        assertEquals(nWindows, copy.value);
+        assertArrayEquals(values, copy.rr);
+        assertEquals(nWindows * HrvCalculator.N_METRICS,
+                (int) offsets.get(1));
+        assertEquals(-1, (int) offsets.get(2));
+    }
+
+    @Test
+    public void overrun() {
+        SampleBus bus = new SampleBus(CAPACITY - 1);
+        assertEquals(CAPACITY, bus.getCapacity());
+        SampleBus.Subscription slow = bus.subscribe();
+        int n = 3 * CAPACITY + 3;
+        for (int i = 0; i < n; i++) {
+            bus.publishHr(0, DATE + i, i, null, 0, INVALID_DATE);
+        }
+        assertEquals(n, bus.getNPublished());
+        assertEquals(n, slow.getLag());
+        assertEquals(0, slow.getNDropped());
+
+        // Only the newest CAPACITY are still held
+        List<Copy> copies = pollAll(slow);
+        assertEquals(CAPACITY, copies.size());
+        for (int i = 0; i < CAPACITY; i++) {
+            Copy copy = copies.get(i);
+            assertEquals(n - CAPACITY + i, copy.sequence);
+            assertEquals(n - CAPACITY + i, copy.value);
+        }
+        assertEquals(n - CAPACITY, slow.getNDropped());
+        assertEquals(0, slow.getLag());
+
+        // It keeps up from there
+        bus.publishHr(0, DATE + n, n, null, 0, INVALID_DATE);
+        assertEquals(1, slow.getLag());
+        assertEquals(n, pollAll(slow).get(0).value);
+        assertEquals(n - CAPACITY, slow.getNDropped());
+    }
+
+    @Test
+    public void pollLimit() {
+        SampleBus bus = new SampleBus(CAPACITY);
+        SampleBus.Subscription subscription = bus.subscribe();
+        for (int i = 0; i < 5; i++) {
+            bus.publishBattery(0, DATE + i, i);
+        }
+        Collector collector = new Collector();
+        assertEquals(2, subscription.poll(collector, 2));
+        assertEquals(3, subscription.getLag());
+        assertEquals(3, subscription.poll(collector, 10));
+        assertEquals(0, subscription.poll(collector, 10));
+        assertEquals(5, collector.mCopies.size());
+        assertEquals(4, collector.mCopies.get(4).value);
+    }
+
+    @Test
+    public void subscribersAreIndependent() {
+        SampleBus bus = new SampleBus(CAPACITY);
+        bus.publishBattery(0, DATE, 1);
+        // Only samples published after subscribing are seen
+        SampleBus.Subscription first = bus.subscribe();
+        bus.publishBattery(0, DATE, 2);
+        SampleBus.Subscription second = bus.subscribe();
+        bus.publishBattery(0, DATE, 3);
+
+        List<Copy> copies = pollAll(first);
+        assertEquals(2, copies.size());
+        assertEquals(2, copies.get(0).value);
+        assertEquals(1, second.getLag());
+        copies = pollAll(second);
+        assertEquals(1, copies.size());
+        assertEquals(3, copies.get(0).value);
+    }
+
+    @Test
+    public void sources() {
+        SampleBus bus = new SampleBus(CAPACITY);
+        assertEquals(0, bus.getSourceId("A"));
+        assertEquals(1, bus.getSourceId("B"));
+        assertEquals(0, bus.getSourceId("A"));
+        assertEquals("B", bus.getSourceName(1));
+        assertNull(bus.getSourceName(2));
+        assertNull(bus.getSourceName(-1));
+        for (int i = 2; i < SampleBus.MAX_SOURCES; i++) {
+            assertEquals(i, bus.getSourceId("Device " + i));
+        }
+        assertEquals(-1, bus.getSourceId("One too many"));
+        assertEquals(SampleBus.MAX_SOURCES - 1, bus.getSourceId("Device "
+                + (SampleBus.MAX_SOURCES - 1)));
+    }
+
+    @Test
+    public void interleavedSources() {
+        SampleBus bus = new SampleBus(CAPACITY);
+        SampleBus.Subscription subscription = bus.subscribe();
+        int[] sources = {0, SampleBus.MAX_SOURCES - 1, 7};
+        for (int i = 0; i < 6; i++) {
+            int source = sources[i % sources.length];
+            bus.publishHr(source, DATE + i, 60 + source % 100, rr(i, source),
+                    i, DATE + i);
+        }
+        List<Copy> copies = pollAll(subscription);
+        assertEquals(6, copies.size());
+        for (int i = 0; i < 6; i++) {
+            Copy copy = copies.get(i);
+            int source = sources[i % sources.length];
+            assertEquals(source, copy.source);
+            assertEquals(60 + source % 100, copy.value);
+            assertArrayEquals(rr(i, source), copy.rr);
+        }
+    }
+
+    @Test
+    public void listener() {
+        SampleBus bus = new SampleBus(CAPACITY);
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        Collector collector = new Collector();
+        SampleBus.Subscription subscription = bus.subscribe(collector,
+                executor);
+        bus.publishBattery(0, DATE, 1);
+        bus.publishBattery(0, DATE, 2);
+        // Only one drain task is queued
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        assertEquals(2, collector.mCopies.size());
+
+        bus.publishBattery(0, DATE, 3);
+        assertEquals(1, tasks.size());
+        subscription.close();
+        tasks.remove(0).run();
+        bus.publishBattery(0, DATE, 4);
+        // Nothing is delivered or scheduled after closing
+        assertEquals(2, collector.mCopies.size());
+        assertEquals(0, tasks.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void listenerNeedsAnExecutor() {
+        new SampleBus(CAPACITY).subscribe(new Collector(), null);
+    }
+
+    /**
+     * Publishes from two threads as two sources while a reader polls, with
+     * each sample's values derived from its HR, so a torn read would show as
+     * a mismatch. Every sample is either delivered whole or counted as
+     * dropped.
+     */
+    @Test
+    public void concurrentPublishAndPoll() throws Exception {
+        final SampleBus bus = new SampleBus(CAPACITY);
+        final int nPerSource = 200000;
+        final SampleBus.Subscription subscription = bus.subscribe();
+        Thread[] producers = new Thread[2];
+        for (int p = 0; p < producers.length; p++) {
+            final int source = p;
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int[] rr = new int[SampleBus.MAX_RR];
+                    for (int i = 0; i < nPerSource; i++) {
+                        int count = i % 9;
+                        for (int j = 0; j < count; j++) {
+                            rr[j] = (i + j) & 0xFFFF;
+                        }
+                        bus.publishHr(source, i, i, rr, count, i);
+                    }
+                }
+            });
+        }
+
+        final long[] nDelivered = new long[1];
+        final int[] last = {-1, -1};
+        final String[] error = new String[1];
+        SampleBus.Listener checker = new SampleBus.Listener() {
+            @Override
+            public void onSample(SampleBus.Sample sample) {
+                nDelivered[0]++;
+                int i = sample.getHr();
+                int source = sample.getSource();
+                boolean ok = sample.getType() == SampleBus.TYPE_HR
+                        && source < 2 && sample.getDate() == i
+                        && sample.getBeatDate() == i
+                        && sample.getRrCount() == i % 9 && i > last[source];
+                for (int j = 0; ok && j < sample.getRrCount(); j++) {
+                    ok = sample.getRrValues()[j] == ((i + j) & 0xFFFF);
+                }
+                if (!ok && error[0] == null) {
+                    error[0] = "Torn sample " + sample.getSequence();
+                }
+                if (source < 2) {
+                    last[source] = i;
+                }
+            }
+        };
+        for (Thread producer : producers) {
+            producer.start();
+        }
+        while (producers[0].isAlive() || producers[1].isAlive()) {
+            subscription.poll(checker, 100);
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        subscription.poll(checker, Integer.MAX_VALUE);
+
+        assertNull(error[0], error[0]);
+        assertEquals(2 * nPerSource, bus.getNPublished());
+        assertEquals(bus.getNPublished(), nDelivered[0]
+                + subscription.getNDropped());
+        assertEquals(0, subscription.getLag());
+    }
+}
@@ -0,0 +1,492 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.content.Context;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for SessionJournal, and for the replay of journals by BCMDbWriter
+ * into a fake database adapter.
+ */
+public class SessionJournalTest implements IConstants {
+    private static final long START_DATE = 1500000000000L;
+    private static final String DEVICE = "00:11:22:33:44:55";
+    /**
+     * The number of rows with few R-R values that fit in a segment. It
+     * starts with a device record, and room for one more is kept.
+     */
+    private static final int ROWS_PER_SEGMENT = JOURNAL_SEGMENT_SIZE
+            / SessionJournal.RECORD_SIZE - 2;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * A row as appended and as read back.
+     */
+    private static class Row {
+        final String device;
+        final long date;
+        final long time;
+        final int hr;
+        final int[] rr;
+        final int rrCount;
+        final long[] beatTimes;
+        final int beatFlags;
+
+        Row(String device, long date, long time, int hr, int[] rr,
+            int rrCount, long[] beatTimes, int beatFlags) {
+            int n = rrCount < 0 ? 0 : rrCount;
+            this.device = device;
+            this.date = date;
+            this.time = time;
+            this.hr = hr;
+            this.rr = Arrays.copyOf(rr, n);
+            this.rrCount = rrCount;
+            this.beatTimes = beatTimes == null ? null
+                    : Arrays.copyOf(beatTimes, n);
+            this.beatFlags = beatFlags;
+        }
+
+        void assertEqualTo(Row row) {
+            assertEquals(device, row.device);
+            assertEquals(date, row.date);
+            assertEquals(time, row.time);
+            assertEquals(hr, row.hr);
+            assertEquals(rrCount, row.rrCount);
+            assertArrayEquals(rr, row.rr);
+            assertArrayEquals(beatTimes, row.beatTimes);
+            assertEquals(beatFlags, row.beatFlags);
+        }
+    }
+
+    /**
+     * Collects the rows read from segment files.
+     */
+    private static class Collector implements SessionJournal.Visitor {
+        final List<Row> mRows = new ArrayList<Row>();
+        final List<long[]> mClocks = new ArrayList<long[]>();
+
+        @Override
+        public void row(String device, long date, long time, int hr,
+                        int[] rr, int rrCount, long[] beatTimes,
+                        int beatFlags) {
+            mRows.add(new Row(device, date, time, hr, rr, rrCount, beatTimes,
+                    beatFlags));
+        }
+
+        @Override
+        public void clock(long time, long wall) {
+            mClocks.add(new long[]{time, wall});
+        }
+    }
+
+    private File dir() {
+        return new File(mFolder.getRoot(), JOURNAL_DIR);
+    }
+
+    private static Row row(String device, long time, int hr, int rrCount,
+                           boolean beats) {
+        int n = rrCount < 0 ? 0 : rrCount;
+        int[] rr = new int[n];
+        long[] beatTimes = beats ? new long[n] : null;
+        for (int i = 0; i < n; i++) {
+            // Up to 64 s, which uses all 16 bits
+            rr[i] = 65535 - 37 * i;
+            if (beats) {
+                beatTimes[i] = time - (n - i) * 1000000L + i;
+            }
+        }
+        return new Row(device, time / 1000, time, hr, rr, rrCount, beatTimes,
+                beats && n > 0 ? BeatTimeline.FLAG_GAP : 0);
+    }
+
+    private static void append(SessionJournal journal, Row row) {
+        assertTrue(journal.appendRow(row.device, row.date, row.time, row.hr,
+                row.rr, row.rrCount, row.beatTimes, row.beatFlags));
+    }
+
+    private static Collector read(File dir) throws IOException {
+        Collector collector = new Collector();
+        for (File file : SessionJournal.listFiles(dir)) {
+            SessionJournal.read(file, collector);
+        }
+        return collector;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        SessionJournal journal = new SessionJournal(dir(), START_DATE);
+        int[] rrCounts = {0, RrUtils.RR_NOT_PRESENT, 1, 6, 7, 16, 17, 26,
+                HeartRateValues.MAX_RR};
+        String[] devices = {DEVICE, DEVICE, null, "AA:BB:CC:DD:EE:FF"};
+        List<Row> rows = new ArrayList<Row>();
+        long time = START_DATE * 1000;
+        for (int i = 0; i < 4 * rrCounts.length; i++) {
+            time += 1000000 + i;
+            Row row = row(devices[i % devices.length], time, 60 + i,
+                    rrCounts[i % rrCounts.length], i % 2 == 0);
+            append(journal, row);
+            rows.add(row);
+            if (i % 5 == 0) {
+                assertTrue(journal.appendClock(time, time / 1000 + i));
+            }
+        }
+        // A row with no time has no beats
+        Row noTime = new Row(null, START_DATE + 5, INVALID_DATE, 70,
+                new int[]{1000}, 1, null, 0);
+        append(journal, noTime);
+        rows.add(noTime);
+
+        Collector collector = read(dir());
+        assertEquals(rows.size(), collector.mRows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            rows.get(i).assertEqualTo(collector.mRows.get(i));
+        }
+        assertEquals(8, collector.mClocks.size());
+        assertEquals(rows.get(5).time, collector.mClocks.get(1)[0]);
+        assertEquals(rows.get(5).time / 1000 + 5,
+                collector.mClocks.get(1)[1]);
+    }
+
+    @Test
+    public void rolloverAndDeleteCommitted() throws Exception {
+        SessionJournal journal = new SessionJournal(dir(), START_DATE);
+        int nRows = 2 * ROWS_PER_SEGMENT + 100;
+        for (int i = 0; i < nRows; i++) {
+            append(journal, row(DEVICE, START_DATE * 1000 + i, 60, 0,
+                    false));
+        }
+        File[] files = SessionJournal.listFiles(dir());
+        assertEquals(3, files.length);
+        assertEquals(START_DATE, SessionJournal.getStartDate(files[0]));
+        Collector collector = read(dir());
+        assertEquals(nRows, collector.mRows.size());
+        for (int i = 0; i < nRows; i++) {
+            assertEquals(START_DATE * 1000 + i,
+                    collector.mRows.get(i).time);
+        }
+
+        journal.commit(ROWS_PER_SEGMENT - 1, 0);
+        assertEquals(0, journal.deleteCommitted());
+        journal.commit(1, 0);
+        assertEquals(1, journal.deleteCommitted());
+        assertEquals(2, SessionJournal.listFiles(dir()).length);
+        // The current segment is not deleted until the journal is closed
+        journal.commit(nRows - ROWS_PER_SEGMENT, 0);
+        assertTrue(journal.isCommitted());
+        assertEquals(1, journal.deleteCommitted());
+        assertFalse(journal.isDone());
+        journal.close();
+        assertTrue(journal.isDone());
+        assertEquals(1, journal.deleteCommitted());
+        assertEquals(0, SessionJournal.listFiles(dir()).length);
+    }
+
+    @Test
+    public void keptJournalIsNotDeleted() throws Exception {
+        SessionJournal journal = new SessionJournal(dir(), START_DATE);
+        for (int i = 0; i < ROWS_PER_SEGMENT + 10; i++) {
+            append(journal, row(DEVICE, START_DATE * 1000 + i, 60, 0,
+                    false));
+        }
+        journal.keep();
+        journal.commit(ROWS_PER_SEGMENT + 10, 0);
+        journal.close();
+        assertFalse(journal.isDone());
+        assertEquals(0, journal.deleteCommitted());
+        assertEquals(2, SessionJournal.listFiles(dir()).length);
+    }
+
+    @Test
+    public void truncatedRecordStopsTheRead() throws Exception {
+        SessionJournal journal = new SessionJournal(dir(), START_DATE);
+        for (int i = 0; i < 5; i++) {
+            append(journal, row(DEVICE, START_DATE * 1000 + i, 60, 0,
+                    false));
+        }
+        // Records are the device, then a row each
+        File file = SessionJournal.listFiles(dir())[0];
+        zeroType(file, 3);
+        Collector collector = read(dir());
+        assertEquals(2, collector.mRows.size());
+
+        // A row whose continuation record was not completed is not read
+        File other = new File(mFolder.getRoot(), "other");
+        journal = new SessionJournal(other, START_DATE);
+        append(journal, row(DEVICE, START_DATE * 1000, 60, 3, true));
+        append(journal, row(DEVICE, START_DATE * 1000 + 1, 60, 20, true));
+        zeroType(SessionJournal.listFiles(other)[0], 4);
+        collector = read(other);
+        assertEquals(1, collector.mRows.size());
+        assertEquals(3, collector.mRows.get(0).rrCount);
+    }
+
+    private static void zeroType(File file, int record) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(record * SessionJournal.RECORD_SIZE);
+            raf.write(0);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void segmentCreatedAhead() throws Exception {
+        SessionJournal journal = new SessionJournal(dir(), START_DATE);
+        append(journal, row(DEVICE, START_DATE * 1000, 60, 0, false));
+        assertTrue(journal.needsSegment());
+        File file = journal.nextSegmentFile();
+        assertFalse(journal.needsSegment());
+        MappedByteBuffer buffer = SessionJournal.mapSegment(file);
+        assertTrue(journal.setNextSegment(file, buffer));
+        assertFalse(journal.needsSegment());
+        for (int i = 1; i < ROWS_PER_SEGMENT + 10; i++) {
+            append(journal, row(DEVICE, START_DATE * 1000 + i, 60, 0,
+                    false));
+        }
+        // The one created ahead was used
+        File[] files = SessionJournal.listFiles(dir());
+        assertEquals(2, files.length);
+        assertEquals(file, files[1]);
+        assertTrue(journal.needsSegment());
+        assertEquals(ROWS_PER_SEGMENT + 10, read(dir()).mRows.size());
+
+        // One that comes too late is deleted
+        file = journal.nextSegmentFile();
+        buffer = SessionJournal.mapSegment(file);
+        for (int i = 0; i < ROWS_PER_SEGMENT; i++) {
+            append(journal, row(DEVICE, START_DATE * 1000 + i, 60, 0,
+                    false));
+        }
+        assertFalse(journal.setNextSegment(file, buffer));
+        assertFalse(file.exists());
+        assertEquals(3, SessionJournal.listFiles(dir()).length);
+
+        // An unused one is deleted when the journal is closed
+        file = journal.nextSegmentFile();
+        assertTrue(journal.setNextSegment(file,
+                SessionJournal.mapSegment(file)));
+        journal.close();
+        journal.deleteCommitted();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void newJournalSkipsKeptFiles() throws Exception {
+        SessionJournal journal = new SessionJournal(dir(), START_DATE);
+        append(journal, row(DEVICE, START_DATE * 1000, 60, 0, false));
+        journal = new SessionJournal(dir(), START_DATE);
+        append(journal, row(DEVICE, START_DATE * 1000 + 1, 61, 0, false));
+        assertEquals(2, SessionJournal.listFiles(dir()).length);
+        Collector collector = read(dir());
+        assertEquals(60, collector.mRows.get(0).hr);
+        assertEquals(61, collector.mRows.get(1).hr);
+    }
+
+    @Test
+    public void recoverySkipsCommittedRows() throws Exception {
+        SessionJournal journal = new SessionJournal(dir(), START_DATE);
+        FakeDbAdapter adapter = new FakeDbAdapter();
+        for (int i = 0; i < 20; i++) {
+            Row row = row(DEVICE, START_DATE * 1000 + i * 1000000L, 60 + i,
+                    i % 8, true);
+            append(journal, row);
+            if (i < 12) {
+                adapter.mRows.add(row);
+            }
+        }
+        assertTrue(journal.appendClock(START_DATE * 1000, START_DATE));
+        assertTrue(journal.appendClock(START_DATE * 1000 + 1, START_DATE));
+        adapter.mClockTimes.add(START_DATE * 1000);
+
+        BCMDbWriter writer = new BCMDbWriter(adapter, dir());
+        writer.start();
+        writer.stop();
+        assertEquals(20, adapter.mRows.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(60 + i, adapter.mRows.get(i).hr);
+        }
+        assertEquals(Arrays.asList(START_DATE * 1000, START_DATE * 1000 + 1),
+                adapter.mClockTimes);
+        assertEquals(0, SessionJournal.listFiles(dir()).length);
+    }
+
+    @Test
+    public void failedBatchIsReplayed() throws Exception {
+        checkReplayed(false);
+    }
+
+    @Test
+    public void partialBatchIsReplayed() throws Exception {
+        checkReplayed(true);
+    }
+
+    /**
+     * Writes a batch that fails and then one that is written, and checks
+     * that the rows of the first are replayed the next time, though rows
+     * after them were written.
+     *
+     * @param partial If the first batch is written except for one row,
+     *                rather than not at all.
+     */
+    private void checkReplayed(boolean partial) throws Exception {
+        FakeDbAdapter adapter = new FakeDbAdapter();
+        adapter.mFailNext = true;
+        adapter.mPartial = partial;
+        BCMDbWriter writer = new BCMDbWriter(adapter, dir());
+        writer.start();
+        int[] rr = {800, 810};
+        long time = START_DATE * 1000;
+        for (int i = 0; i < 10; i++) {
+            assertTrue(writer.add(DEVICE, time + i * 1000000L, START_DATE,
+                    60 + i, rr, 2, null, 0));
+        }
+        writer.flush();
+        adapter.waitForBatches(1);
+        for (int i = 10; i < 20; i++) {
+            assertTrue(writer.add(DEVICE, time + i * 1000000L, START_DATE,
+                    60 + i, rr, 2, null, 0));
+        }
+        writer.closeJournal(START_DATE);
+        writer.stop();
+        assertEquals(partial ? 19 : 10, adapter.mRows.size());
+        // The journal was kept
+        assertEquals(1, SessionJournal.listFiles(dir()).length);
+
+        writer = new BCMDbWriter(adapter, dir());
+        writer.start();
+        writer.stop();
+        assertEquals(20, adapter.mRows.size());
+        List<Long> times = new ArrayList<Long>();
+        for (Row row : adapter.mRows) {
+            times.add(row.time);
+        }
+        for (int i = 0; i < 20; i++) {
+            assertTrue(times.contains(time + i * 1000000L));
+        }
+        assertEquals(0, SessionJournal.listFiles(dir()).length);
+    }
+
+    /**
+     * An adapter with no database that keeps the rows of one session in
+     * memory, in the order they were written. The next batch can be made to
+     * fail, or to skip its first row.
+     */
+    private static class FakeDbAdapter extends BCMDbAdapter {
+        final List<Row> mRows = new ArrayList<Row>();
+        final List<Long> mClockTimes = new ArrayList<Long>();
+        boolean mFailNext;
+        boolean mPartial;
+        int mNBatches;
+
+        FakeDbAdapter() {
+            super((Context) null, null);
+        }
+
+        @Override
+        public synchronized int createDataBatch(long[] dates, long[] times,
+                                                long[] startDates, int[] hrs,
+                                                int[] rrCounts,
+                                                int[] rrValues,
+                                                String[] devices,
+                                                long[] beatTimes,
+                                                int[] beatFlags, int count) {
+            mNBatches++;
+            notifyAll();
+            boolean fail = mFailNext;
+            mFailNext = false;
+            if (fail && !mPartial) {
+                return -1;
+            }
+            int nRr = 0;
+            int nCreated = 0;
+            for (int i = 0; i < count; i++) {
+                int n = rrCounts[i] < 0 ? 0 : rrCounts[i];
+                if (!fail || i > 0) {
+                    mRows.add(new Row(devices[i], dates[i], times[i], hrs[i],
+                            Arrays.copyOfRange(rrValues, nRr, nRr + n),
+                            rrCounts[i], null, beatFlags[i]));
+                    nCreated++;
+                }
+                nRr += n;
+            }
+            return nCreated;
+        }
+
+        @Override
+        public synchronized int createClockBatch(long[] startDates,
+                                                 long[] times, long[] walls,
+                                                 int count) {
+            for (int i = 0; i < count; i++) {
+                mClockTimes.add(times[i]);
+            }
+            return count;
+        }
+
+        @Override
+        public synchronized long getLastDataTime(long startDate) {
+            long[] times = getDataTimes(startDate);
+            return times.length == 0 ? INVALID_DATE
+                    : times[times.length - 1];
+        }
+
+        @Override
+        public synchronized long getLastClockTime(long startDate) {
+            long[] times = getClockTimes(startDate);
+            return times.length == 0 ? INVALID_DATE
+                    : times[times.length - 1];
+        }
+
+        @Override
+        public synchronized long[] getDataTimes(long startDate) {
+            long[] times = new long[mRows.size()];
+            for (int i = 0; i < times.length; i++) {
+                Row row = mRows.get(i);
+                times[i] = row.time != INVALID_DATE ? row.time
+                        : row.date * 1000;
+            }
+            Arrays.sort(times);
+            return times;
+        }
+
+        @Override
+        public synchronized long[] getClockTimes(long startDate) {
+            long[] times = new long[mClockTimes.size()];
+            for (int i = 0; i < times.length; i++) {
+                times[i] = mClockTimes.get(i);
+            }
+            Arrays.sort(times);
+            return times;
+        }
+
+        @Override
+        public synchronized void endRollups(long startDate) {
+        }
+
+        synchronized void waitForBatches(int n) throws InterruptedException {
+            long end = System.currentTimeMillis() + 10000;
+            while (mNBatches < n && System.currentTimeMillis() < end) {
+                wait(1000);
+            }
+            assertTrue(mNBatches >= n);
+        }
+    }
+
+}
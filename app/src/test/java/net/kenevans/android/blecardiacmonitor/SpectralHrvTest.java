@@ -0,0 +1,188 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for SpectralHrv with synthetic R-R series in which the interval is
+ * a sine of the time of the beat. A sine of amplitude A ms has a power of
+ * A^2 / 2, which is 1250 ms^2 for the 50 ms used here.
+ * <p/>
+ * The series is only known at the beats and is interpolated between them,
+ * which passes less of the power the fewer beats there are in a cycle. At
+ * 0.25 Hz and 1000 ms intervals there are only 4 beats in a cycle, and the
+ * cubic interpolation passes 88% of the power, about 1101 ms^2. At 750 ms
+ * there are 5.3 and it passes 96%. At 0.1 Hz there are 10, and the loss is
+ * under 1%. The tolerances allow for these and for the rounding of the
+ * intervals to 1/1024 sec.
+ */
+public class SpectralHrvTest implements IConstants {
+    private static final double AMPLITUDE = 50;
+    private static final double POWER = AMPLITUDE * AMPLITUDE / 2;
+    /**
+     * Fraction of the power passed at 4 beats per cycle.
+     */
+    private static final double PASSED_4_BEATS = 0.88;
+    /**
+     * Power below which a band is taken to be empty, in ms^2. The leakage
+     * from the other bands is well under this.
+     */
+    private static final double EMPTY = 1;
+
+    /**
+     * Adds a series to the analysis.
+     *
+     * @param spectral The SpectralHrv.
+     * @param freq     The frequency of the sine in Hz.
+     * @param mean     The mean interval in ms.
+     * @param start    The time to start at in ms.
+     * @param end      The time to end at in ms.
+     * @param skipAt   The time after which intervals are skipped rather
+     *                 than added, or -1.
+     * @param nSkip    The number of intervals to skip.
+     * @return The time after the last interval.
+     */
+    private static double addSine(SpectralHrv spectral, double freq,
+                                  double mean, double start, double end,
+                                  double skipAt, int nSkip) {
+        double t = start;
+        while (t < end) {
+            double rr = mean + AMPLITUDE * Math.sin(2 * Math.PI * freq
+                    * t / 1000);
+            int value = (int) Math.round(rr * 1.024);
+            if (skipAt >= 0 && t >= skipAt && nSkip > 0) {
+                spectral.skip(value);
+                nSkip--;
+            } else {
+                spectral.add(value);
+            }
+            t += value / 1.024;
+        }
+        return t;
+    }
+
+    private static SpectralHrv analyze(double freq, double mean,
+                                       double length) {
+        SpectralHrv spectral = new SpectralHrv();
+        addSine(spectral, freq, mean, 0, length, -1, 0);
+        spectral.addGap();
+        return spectral;
+    }
+
+    @Test
+    public void hf() {
+        SpectralHrv spectral = analyze(0.25, 1000, 1200000);
+        // 20 min less the last interval gives 6 half-overlapped segments
+        assertEquals(6, spectral.getSegmentCount());
+        assertEquals(PASSED_4_BEATS * POWER, spectral.getHf(), 0.02 * POWER);
+        assertTrue(spectral.getLf() < EMPTY);
+        assertTrue(spectral.getVlf() < EMPTY);
+        assertTrue(spectral.getLfHf() < 0.001);
+        assertEquals(100, spectral.getHfNu(), 0.1);
+    }
+
+    @Test
+    public void hfMoreBeatsPerCycle() {
+        SpectralHrv spectral = analyze(0.25, 750, 1200000);
+        assertEquals(POWER, spectral.getHf(), 0.06 * POWER);
+        assertTrue(spectral.getHf() > PASSED_4_BEATS * POWER);
+    }
+
+    @Test
+    public void lf() {
+        SpectralHrv spectral = analyze(0.1, 1000, 1200000);
+        assertEquals(POWER, spectral.getLf(), 0.01 * POWER);
+        assertTrue(spectral.getHf() < EMPTY);
+        assertTrue(spectral.getVlf() < EMPTY);
+        assertTrue(spectral.getLfHf() > 1000);
+    }
+
+    @Test
+    public void gap() {
+        SpectralHrv spectral = new SpectralHrv();
+        double t = addSine(spectral, 0.1, 1000, 0, 600000, -1, 0);
+        spectral.addGap();
+        // A minute is missing
+        addSine(spectral, 0.1, 1000, t + 60000, 1200000, -1, 0);
+        spectral.addGap();
+        // No segment spans the gap. Each run is less than 600 sec, so it
+        // gives 2 segments instead of 3.
+        assertEquals(4, spectral.getSegmentCount());
+        assertEquals(POWER, spectral.getLf(), 0.01 * POWER);
+        assertTrue(spectral.getHf() < EMPTY);
+    }
+
+    @Test
+    public void skippedBeat() {
+        SpectralHrv spectral = new SpectralHrv();
+        addSine(spectral, 0.25, 1000, 0, 1200000, 600000, 1);
+        spectral.addGap();
+        SpectralHrv reference = analyze(0.25, 1000, 1200000);
+        // The series is interpolated across the skipped beat, which is in
+        // 2 of the segments
+        assertEquals(6, spectral.getSegmentCount());
+        assertEquals(reference.getHf(), spectral.getHf(),
+                0.01 * reference.getHf());
+        assertTrue(spectral.getLf() < EMPTY);
+        assertEquals(reference.getBeatCount() - 1, spectral.getBeatCount());
+    }
+
+    @Test
+    public void skippedTooLong() {
+        SpectralHrv spectral = new SpectralHrv();
+        // More than SPECTRAL_MAX_SKIP of skipped beats ends the run, as for
+        // a gap
+        int nSkip = (int) (SPECTRAL_MAX_SKIP / 1000) + 1;
+        addSine(spectral, 0.1, 1000, 0, 1200000, 600000, nSkip);
+        spectral.addGap();
+        assertEquals(4, spectral.getSegmentCount());
+        assertEquals(POWER, spectral.getLf(), 0.01 * POWER);
+    }
+
+    @Test
+    public void shortRuns() {
+        // Too short for any segment
+        SpectralHrv spectral = analyze(0.1, 1000,
+                SPECTRAL_MIN_SEGMENT - 10000);
+        assertEquals(0, spectral.getSegmentCount());
+        assertTrue(Double.isNaN(spectral.getLf()));
+        assertTrue(Double.isNaN(spectral.getLfHf()));
+
+        // Analyzed as one shorter segment. The bins are wider, so the
+        // tolerance is larger.
+        spectral = analyze(0.1, 1000, 200000);
+        assertEquals(1, spectral.getSegmentCount());
+        assertEquals(POWER, spectral.getLf(), 0.05 * POWER);
+    }
+
+    @Test
+    public void reset() {
+        SpectralHrv spectral = analyze(0.1, 1000, 600000);
+        assertTrue(spectral.getSegmentCount() > 0);
+        spectral.reset();
+        assertEquals(0, spectral.getSegmentCount());
+        assertEquals(0, spectral.getBeatCount());
+        addSine(spectral, 0.25, 1000, 0, 1200000, -1, 0);
+        spectral.addGap();
+        assertEquals(PASSED_4_BEATS * POWER, spectral.getHf(), 0.02 * POWER);
+        assertTrue(spectral.getLf() < EMPTY);
+    }
+
+    @Test
+    public void pack() {
+        SpectralHrv spectral = analyze(0.1, 1000, 1200000);
+        int[] values = new int[SpectralHrv.N_METRICS + 1];
+        assertEquals(values.length, spectral.pack(values, 1));
+        assertEquals(Math.round(spectral.getLf()),
+                values[1 + SpectralHrv.METRIC_LF]);
+        assertEquals(Math.round(spectral.getHf()),
+                values[1 + SpectralHrv.METRIC_HF]);
+
+        // Not available
+        new SpectralHrv().pack(values, 0);
+        assertEquals(0xFFFF, values[SpectralHrv.METRIC_LF]);
+        assertEquals(0xFFFF, values[SpectralHrv.METRIC_LF_HF]);
+    }
+}
@@ -0,0 +1,265 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.XMLConstants;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for TrackWriter that write sessions through a ChannelWriter, plain
+ * and compressed, and validate them against the GPX 1.1 and TCX v2 schemas
+ * in the test resources.
+ */
+public class TrackWriterTest implements IConstants {
+    /**
+     * 2017-07-14T02:40:00Z.
+     */
+    private static final long START_DATE = 1500000000000L;
+    /**
+     * More points than fit in the ChannelWriter buffer.
+     */
+    private static final int N_POINTS = 3000;
+    private static final String CREATOR = "BCM & <Test>";
+    private static final String NAME = "Session \"1\" <&>";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static Schema schema(String... names) throws SAXException {
+        Source[] sources = new Source[names.length];
+        for (int i = 0; i < names.length; i++) {
+            sources[i] = new StreamSource(TrackWriterTest.class.getResource(
+                    "/schemas/" + names[i]).toString());
+        }
+        return SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI)
+                .newSchema(sources);
+    }
+
+    private static Schema gpxSchema() throws SAXException {
+        return schema("gpx.xsd", "TrackPointExtensionv1.xsd");
+    }
+
+    private static Schema tcxSchema() throws SAXException {
+        return schema("TrainingCenterDatabasev2.xsd");
+    }
+
+    private static Session session(boolean summary) {
+        Session session = new Session(NAME, START_DATE, START_DATE
+                + (N_POINTS - 1) * 1000L);
+        if (summary) {
+            session.setHrAvg(80);
+            session.setHrMax(119);
+        }
+        return session;
+    }
+
+    /**
+     * Writes a session with a point every second, with a few invalid HRs
+     * that are skipped.
+     *
+     * @return The number of points written.
+     */
+    private static long write(File file, boolean gzip,
+                              SessionExporter.Format format, Session session,
+                              int nPoints) throws IOException {
+        TrackWriter writer = new TrackWriter(ChannelWriter.open(file, gzip),
+                format);
+        try {
+            writer.begin(CREATOR, session, START_DATE + 3600000);
+            for (int i = 0; i < nPoints; i++) {
+                int hr = i % 100 == 50 ? (i % 200 == 50 ? 0 : 256)
+                        : 60 + i % 60;
+                writer.writePoint(session.getStartDate() + i * 1000L, hr);
+            }
+            writer.end();
+        } finally {
+            writer.close();
+        }
+        return writer.getNPoints();
+    }
+
+    private static InputStream open(File file, boolean gzip)
+            throws IOException {
+        InputStream in = new FileInputStream(file);
+        return gzip ? new GZIPInputStream(in) : in;
+    }
+
+    private static void validate(Schema schema, File file, boolean gzip)
+            throws Exception {
+        InputStream in = open(file, gzip);
+        try {
+            schema.newValidator().validate(new StreamSource(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Document parse(File file, boolean gzip) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        InputStream in = open(file, gzip);
+        try {
+            return factory.newDocumentBuilder().parse(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long parseTime(String time) throws Exception {
+        return DatatypeFactory.newInstance().newXMLGregorianCalendar(time)
+                .toGregorianCalendar().getTimeInMillis();
+    }
+
+    private static String text(Document doc, String namespace, String name,
+                               int index) {
+        return doc.getElementsByTagNameNS(namespace, name).item(index)
+                .getTextContent();
+    }
+
+    private static boolean isGzip(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return in.read() == 0x1f && in.read() == 0x8b;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void checkGpx(boolean gzip) throws Exception {
+        File file = mFolder.newFile("track.gpx" + (gzip ? ".gz" : ""));
+        long nPoints = write(file, gzip, SessionExporter.Format.GPX,
+                session(true), N_POINTS);
+        assertEquals(gzip, isGzip(file));
+        validate(gpxSchema(), file, gzip);
+
+        String ns = GPXUtils.GPX_NAMESPACE;
+        Document doc = parse(file, gzip);
+        assertEquals(CREATOR, doc.getDocumentElement().getAttribute(
+                "creator"));
+        assertEquals(NAME, text(doc, ns, "name", 0));
+        NodeList points = doc.getElementsByTagNameNS(ns, "trkpt");
+        assertEquals(N_POINTS - N_POINTS / 100, nPoints);
+        assertEquals(nPoints, points.getLength());
+        Element first = (Element) points.item(0);
+        assertEquals(START_DATE, parseTime(first.getElementsByTagNameNS(ns,
+                "time").item(0).getTextContent()));
+        assertEquals("60", text(doc, GPXUtils.GPXTPX_NAMESPACE, "hr", 0));
+        // Point 50 was skipped
+        assertEquals(START_DATE + 51000, parseTime(text(doc, ns, "time",
+                1 + 50)));
+    }
+
+    private void checkTcx(boolean gzip) throws Exception {
+        File file = mFolder.newFile("track.tcx" + (gzip ? ".gz" : ""));
+        long nPoints = write(file, gzip, SessionExporter.Format.TCX,
+                session(true), N_POINTS);
+        assertEquals(gzip, isGzip(file));
+        validate(tcxSchema(), file, gzip);
+
+        String ns = GPXUtils.TCX_NAMESPACE;
+        Document doc = parse(file, gzip);
+        assertEquals(START_DATE, parseTime(text(doc, ns, "Id", 0)));
+        assertEquals(String.valueOf(N_POINTS - 1), text(doc, ns,
+                "TotalTimeSeconds", 0));
+        assertEquals("80", text(doc, ns, "Value", 0));
+        assertEquals("119", text(doc, ns, "Value", 1));
+        assertEquals(nPoints, doc.getElementsByTagNameNS(ns, "Trackpoint")
+                .getLength());
+        assertEquals(START_DATE + 1000, parseTime(text(doc, ns, "Time", 1)));
+    }
+
+    @Test
+    public void gpx() throws Exception {
+        checkGpx(false);
+    }
+
+    @Test
+    public void gpxGzip() throws Exception {
+        checkGpx(true);
+    }
+
+    @Test
+    public void tcx() throws Exception {
+        checkTcx(false);
+    }
+
+    @Test
+    public void tcxGzip() throws Exception {
+        checkTcx(true);
+    }
+
+    @Test
+    public void empty() throws Exception {
+        // No valid points, no HR summary, and no end date
+        Session session = new Session(NAME, START_DATE, INVALID_DATE);
+        File gpx = mFolder.newFile("empty.gpx");
+        assertEquals(0, write(gpx, false, SessionExporter.Format.GPX,
+                session, 0));
+        validate(gpxSchema(), gpx, false);
+        File tcx = mFolder.newFile("empty.tcx");
+        assertEquals(0, write(tcx, false, SessionExporter.Format.TCX,
+                session, 0));
+        validate(tcxSchema(), tcx, false);
+        Document doc = parse(tcx, false);
+        assertEquals(0, doc.getElementsByTagNameNS(GPXUtils.TCX_NAMESPACE,
+                "Track").getLength());
+        assertEquals("0", text(doc, GPXUtils.TCX_NAMESPACE,
+                "TotalTimeSeconds", 0));
+    }
+
+    @Test
+    public void schemasCheckTheHr() throws Exception {
+        // The HR extension is validated too, so a bad HR would be found
+        String gpx = "<gpx xmlns=\"" + GPXUtils.GPX_NAMESPACE
+                + "\" xmlns:gpxtpx=\"" + GPXUtils.GPXTPX_NAMESPACE
+                + "\" version=\"1.1\" creator=\"Test\"><trk><trkseg>"
+                + "<trkpt lat=\"0\" lon=\"0\"><extensions>"
+                + "<gpxtpx:TrackPointExtension><gpxtpx:hr>0</gpxtpx:hr>"
+                + "</gpxtpx:TrackPointExtension></extensions></trkpt>"
+                + "</trkseg></trk></gpx>";
+        assertInvalid(gpxSchema(), gpx);
+        String tcx = "<TrainingCenterDatabase xmlns=\""
+                + GPXUtils.TCX_NAMESPACE + "\"><Activities><Activity "
+                + "Sport=\"Other\"><Id>2017-07-14T02:40:00Z</Id><Lap "
+                + "StartTime=\"2017-07-14T02:40:00Z\"><TotalTimeSeconds>0"
+                + "</TotalTimeSeconds><DistanceMeters>0</DistanceMeters>"
+                + "<Calories>0</Calories><Intensity>Active</Intensity>"
+                + "<TriggerMethod>Manual</TriggerMethod><Track><Trackpoint>"
+                + "<Time>2017-07-14T02:40:00Z</Time><HeartRateBpm><Value>256"
+                + "</Value></HeartRateBpm></Trackpoint></Track></Lap>"
+                + "</Activity></Activities></TrainingCenterDatabase>";
+        assertInvalid(tcxSchema(), tcx);
+    }
+
+    private static void assertInvalid(Schema schema, String xml)
+            throws IOException {
+        try {
+            schema.newValidator().validate(new StreamSource(
+                    new ByteArrayInputStream(xml.getBytes("UTF-8"))));
+            fail("Not found to be invalid");
+        } catch (SAXException ex) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures decoding a Heart Rate Measurement from a byte array, a heap
+ * ByteBuffer, and a direct ByteBuffer, for a typical value with a few R-R
+ * values and the largest possible value. The old string-building
+ * constructor, in LegacyHeartRateValues, is the baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeartRateValuesBenchmark {
+    /**
+     * The number of R-R values in the value. 255 fills the largest value
+     * with an 8-bit heart rate.
+     */
+    @Param({"2", "255"})
+    public int nRr;
+
+    private final HeartRateValues mValues = new HeartRateValues();
+    private byte[] mData;
+    private ByteBuffer mHeap;
+    private ByteBuffer mDirect;
+
+    @Setup
+    public void setup() {
+        mData = new byte[2 + 2 * nRr];
+        // 8-bit heart rate, contact detected, R-R values
+        mData[0] = HeartRateValues.FLAG_CONTACT_SUPPORTED
+                | HeartRateValues.FLAG_CONTACT_DETECTED
+                | HeartRateValues.FLAG_RR;
+        mData[1] = 72;
+        for (int i = 0; i < nRr; i++) {
+            int rr = 800 + i;
+            mData[2 + 2 * i] = (byte) rr;
+            mData[3 + 2 * i] = (byte) (rr >> 8);
+        }
+        mHeap = ByteBuffer.wrap(mData);
+        mDirect = ByteBuffer.allocateDirect(mData.length);
+        mDirect.put(mData);
+        mDirect.flip();
+    }
+
+    @Benchmark
+    public int legacyConstructor() {
+        LegacyHeartRateValues values = new LegacyHeartRateValues(mData, 0L);
+        return values.getHr() + values.getRr().length();
+    }
+
+    @Benchmark
+    public int decodeArray() {
+        mValues.decode(mData, 0L);
+        return mValues.getHr() + mValues.getRrCount();
+    }
+
+    @Benchmark
+    public int decodeHeapBuffer() {
+        mValues.decode(mHeap, 0L);
+        return mValues.getHr() + mValues.getRrCount();
+    }
+
+    @Benchmark
+    public int decodeDirectBuffer() {
+        mValues.decode(mDirect, 0L);
+        return mValues.getHr() + mValues.getRrCount();
+    }
+}
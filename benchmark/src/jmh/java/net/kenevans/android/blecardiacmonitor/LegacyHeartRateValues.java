@@ -0,0 +1,104 @@
+package net.kenevans.android.blecardiacmonitor;
+
+/**
+ * The HeartRateValues constructor from before the values were decoded in
+ * place, kept as the baseline for HeartRateValuesBenchmark. The code is as
+ * it was, except that it reads the value from a byte array instead of a
+ * BluetoothGattCharacteristic, with getIntValue as Android implements it.
+ * It builds the info string and the R-R string for every value.
+ */
+public class LegacyHeartRateValues implements IConstants {
+    private static final int FORMAT_UINT8 = 0x11;
+    private static final int FORMAT_UINT16 = 0x12;
+
+    long date;
+    private int hr = INVALID_INT;
+    int sensorContact = INVALID_INT;
+    int ee = INVALID_INT;
+    private String rr = INVALID_STRING;
+    private String info;
+
+    public LegacyHeartRateValues(byte[] value, long date) {
+        this.date = date;
+        String string = "";
+        int flag = value[0] & 0xFF;
+        int format;
+        int offset = 1;
+        if ((flag & 0x01) != 0) {
+            format = FORMAT_UINT16;
+            offset += 2;
+        } else {
+            format = FORMAT_UINT8;
+            offset += 1;
+        }
+        hr = getIntValue(value, format, 1);
+        string += "Heart Rate: " + hr;
+        // Sensor Contact
+        sensorContact = (flag >> 1) & 0x11;
+        switch (sensorContact) {
+            case 0:
+            case 1:
+                string += "\nSensor contact not supported";
+                break;
+            case 2:
+                string += "\nSensor contact not detected";
+                break;
+            case 3:
+                string += "\nSensor contact detected";
+                break;
+        }
+        // Energy Expended
+        if ((flag & 0x08) != 0) {
+            offset += 2;
+            ee = getIntValue(value, FORMAT_UINT16, offset);
+            string += "\nEnergy Expended: " + ee;
+        } else {
+            string += "\nEnergy Expended: NA";
+        }
+        // R-R
+        if ((flag & 0x10) != 0) {
+            int len = value.length;
+            // There may be more than 1 R-R value
+            int iVal;
+            String rrString = "";
+            while (offset < len) {
+                iVal = getIntValue(value, FORMAT_UINT16, offset);
+                offset += 2;
+                rrString += " " + iVal;
+            }
+            rr = rrString.trim();
+            string += "\nR-R: " + rrString;
+        } else {
+            string += "\nR-R: NA";
+        }
+        this.info = string;
+    }
+
+    /**
+     * BluetoothGattCharacteristic.getIntValue for the unsigned formats,
+     * which returns null if the value is too short.
+     */
+    private static Integer getIntValue(byte[] value, int format,
+                                       int offset) {
+        if (offset + (format & 0xF) > value.length) {
+            return null;
+        }
+        if (format == FORMAT_UINT8) {
+            return value[offset] & 0xFF;
+        }
+        return (value[offset] & 0xFF) + ((value[offset + 1] & 0xFF) << 8);
+    }
+
+    public int getHr() {
+        return hr;
+    }
+
+    public String getRr() {
+        return rr;
+    }
+
+    public String getInfo() {
+        return info;
+    }
+
+}